@@ -0,0 +1,94 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_GIF;
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_WEBP;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_RGB8;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUV420P;
+
+/**
+ * 指定した区間をフレームレートを落としたアニメーションに書き出す出力
+ */
+public class AnimatedPreviewSink extends RecorderSink {
+
+    /**
+     * アニメーションの形式
+     */
+    public enum Format {
+        GIF("gif", AV_CODEC_ID_GIF, AV_PIX_FMT_RGB8),
+        /** libwebpを含めてビルドしたFFmpegが必要 */
+        WEBP("webp", AV_CODEC_ID_WEBP, AV_PIX_FMT_YUV420P);
+
+        private final String mFormatName;
+        private final int mVideoCodec;
+        private final int mPixelFormat;
+
+        Format(String formatName, int videoCodec, int pixelFormat) {
+            mFormatName = formatName;
+            mVideoCodec = videoCodec;
+            mPixelFormat = pixelFormat;
+        }
+    }
+
+    private final Format mFormat;
+    private final int mImageWidth;
+    private final int mImageHeight;
+    private final double mFrameRate;
+    private final long mStartTimestamp;
+    private final long mDuration;
+    private int mFrameCount = 0;
+
+    /**
+     * @param outputPath 出力先
+     * @param format アニメーションの形式
+     * @param imageWidth 横幅の上限
+     * @param imageHeight 高さの上限
+     * @param frameRate アニメーションのフレームレート
+     * @param startTimestamp 開始する時間 (マイクロ秒)
+     * @param duration 長さ (マイクロ秒)
+     */
+    public AnimatedPreviewSink(String outputPath, Format format, int imageWidth, int imageHeight,
+                               double frameRate, long startTimestamp, long duration) {
+        super(outputPath);
+        mFormat = format;
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        mFrameRate = frameRate;
+        mStartTimestamp = startTimestamp;
+        mDuration = duration;
+    }
+
+    @Override
+    protected FFmpegFrameRecorder createRecorder(String outputPath, PostProcessor.SourceInfo source) {
+        int[] size = fitSize(source, mImageWidth, mImageHeight);
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputPath, size[0], size[1], 0);
+        recorder.setFormat(mFormat.mFormatName);
+        recorder.setVideoCodec(mFormat.mVideoCodec);
+        recorder.setPixelFormat(mFormat.mPixelFormat);
+        recorder.setFrameRate(mFrameRate);
+        // 繰り返し再生する
+        recorder.setOption("loop", "0");
+        return recorder;
+    }
+
+    @Override
+    public boolean onFrame(Frame frame, long timestamp) throws Exception {
+        if (frame.image == null || timestamp < mStartTimestamp) {
+            return false;
+        }
+        long offset = timestamp - mStartTimestamp;
+        if (offset >= mDuration) {
+            return true;
+        }
+        // 次のアニメーションのフレームの時間に達したフレームだけを書き込む
+        if (offset < Math.round(mFrameCount * 1000000 / mFrameRate)) {
+            return false;
+        }
+        getRecorder().record(frame);
+        // 元のフレームが間引かれていても時間がずれないように次の時間を決める
+        mFrameCount = (int) (offset * mFrameRate / 1000000) + 1;
+        return false;
+    }
+}
@@ -0,0 +1,165 @@
+package com.unuuu.sample;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * 録音に使い回すダイレクトバッファのプール
+ *
+ * 1つのバッファに数回分の読み込みをまとめて、レコーダーへの書き込みをバッファ毎に1回にする。
+ * ダイレクトバッファはレコーダーがネイティブのメモリにコピーせずに使える。
+ * バッファは最初に全て確保し、録音中は確保しない。
+ * 取得する側と戻す側はそれぞれ1つのスレッドから呼ぶ。
+ */
+public class AudioBufferPool {
+    /** 16bitのPCMの1サンプルのバイト数 */
+    public static final int BYTES_PER_SAMPLE = 2;
+
+    /**
+     * 読み込みをまとめるバッファ
+     */
+    public static class Chunk {
+        private final ShortBuffer mSamples;
+        private final ByteBuffer[] mReadBuffers;
+        private int mSilenceBefore;
+
+        Chunk(int readSamples, int readsPerChunk) {
+            int readBytes = readSamples * BYTES_PER_SAMPLE;
+            ByteBuffer bytes = ByteBuffer.allocateDirect(readBytes * readsPerChunk).order(ByteOrder.nativeOrder());
+            mSamples = bytes.asShortBuffer();
+            // AudioRecordはバッファの先頭から書き込むので、読み込み毎の位置から始まるバッファを作っておく
+            mReadBuffers = new ByteBuffer[readsPerChunk];
+            for (int i = 0; i < readsPerChunk; i++) {
+                bytes.limit((i + 1) * readBytes).position(i * readBytes);
+                mReadBuffers[i] = bytes.slice().order(ByteOrder.nativeOrder());
+            }
+        }
+
+        /**
+         * @param index 何回目の読み込みか
+         * @return 読み込み先、先頭から1回分の大きさがある
+         */
+        public ByteBuffer getReadBuffer(int index) {
+            return mReadBuffers[index];
+        }
+
+        /**
+         * 読み込んだサンプル、setSampleCountで決めた数だけpositionからlimitに入っている
+         */
+        public ShortBuffer getSamples() {
+            return mSamples;
+        }
+
+        /**
+         * 読み込んだサンプル数を決める
+         */
+        public void setSampleCount(int sampleCount) {
+            mSamples.limit(sampleCount).position(0);
+        }
+
+        /**
+         * このバッファの前に無音にするサンプル数
+         */
+        public int getSilenceBefore() {
+            return mSilenceBefore;
+        }
+
+        public void setSilenceBefore(int silenceBefore) {
+            mSilenceBefore = silenceBefore;
+        }
+    }
+
+    private final int mReadSamples;
+    private final int mReadsPerChunk;
+    private final int mChunkCount;
+    /* バッファの数とキューの大きさを揃えているので追加に失敗することはない */
+    private final SpscRingBuffer<Chunk> mFreeChunks;
+
+    /**
+     * @param readSamples 1回に読み込むサンプル数
+     * @param readsPerChunk 1つのバッファにまとめる読み込みの回数
+     * @param chunkCount バッファの数
+     */
+    public AudioBufferPool(int readSamples, int readsPerChunk, int chunkCount) {
+        if (readSamples <= 0) {
+            throw new IllegalArgumentException("readSamples must be positive: " + readSamples);
+        }
+        if (readsPerChunk <= 0) {
+            throw new IllegalArgumentException("readsPerChunk must be positive: " + readsPerChunk);
+        }
+        mReadSamples = readSamples;
+        mReadsPerChunk = readsPerChunk;
+        mChunkCount = chunkCount;
+        mFreeChunks = new SpscRingBuffer<>(chunkCount, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        for (int i = 0; i < chunkCount; i++) {
+            mFreeChunks.offer(new Chunk(readSamples, readsPerChunk));
+        }
+    }
+
+    /**
+     * 遅延の目標に収まるだけ読み込みをまとめる回数を求める
+     *
+     * @param sampleRate サンプルレート
+     * @param readSamples 1回に読み込むサンプル数
+     * @param latencyMillis 読み込んでから書き込むまでに許す遅延 (ミリ秒)
+     * @return まとめる回数、1以上
+     */
+    public static int readsForLatency(int sampleRate, int readSamples, int latencyMillis) {
+        long latencySamples = (long) sampleRate * latencyMillis / 1000;
+        return (int) Math.max(1, latencySamples / readSamples);
+    }
+
+    /**
+     * 空いているバッファを取得する
+     *
+     * @return バッファ、全て使用中の時はnull
+     */
+    public Chunk acquire() {
+        return mFreeChunks.poll();
+    }
+
+    /**
+     * バッファを戻す
+     */
+    public void release(Chunk chunk) {
+        mFreeChunks.offer(chunk);
+    }
+
+    public int getReadSamples() {
+        return mReadSamples;
+    }
+
+    public int getReadBytes() {
+        return mReadSamples * BYTES_PER_SAMPLE;
+    }
+
+    public int getReadsPerChunk() {
+        return mReadsPerChunk;
+    }
+
+    /**
+     * 1つのバッファのサンプル数
+     */
+    public int getChunkSamples() {
+        return mReadSamples * mReadsPerChunk;
+    }
+
+    public int getChunkCount() {
+        return mChunkCount;
+    }
+
+    /**
+     * 確保したバッファのバイト数
+     */
+    public long getMemoryBytes() {
+        return (long) getChunkSamples() * BYTES_PER_SAMPLE * mChunkCount;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioBufferPool{readSamples=" + mReadSamples
+                + ", readsPerChunk=" + mReadsPerChunk
+                + ", chunks=" + mChunkCount + "}";
+    }
+}
@@ -0,0 +1,23 @@
+package com.unuuu.sample;
+
+import java.io.IOException;
+
+/**
+ * 録画する音声の取得元
+ *
+ * モノラルの16bitのPCMをRecordPipeline.AudioReaderとして読み込む。
+ */
+public interface AudioSource extends RecordPipeline.AudioReader {
+
+    int getSampleRate();
+
+    /**
+     * 録音を開始する
+     */
+    void start() throws IOException;
+
+    /**
+     * 録音を止めて解放する
+     */
+    void stop();
+}
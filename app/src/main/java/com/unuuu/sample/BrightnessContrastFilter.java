@@ -0,0 +1,81 @@
+package com.unuuu.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 明るさとコントラストを変えるフィルタ
+ *
+ * 輝度だけを変換表で書き換え、色差はそのままにする。
+ */
+public class BrightnessContrastFilter implements VideoFilter {
+    private final int mBrightness;
+    private final float mContrast;
+    private final byte[] mTable = new byte[256];
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mRow;
+
+    /**
+     * @param brightness 輝度に足す値 (-255 - 255)
+     * @param contrast 中間の輝度を中心に掛ける倍率、1の時は変えない
+     */
+    public BrightnessContrastFilter(int brightness, float contrast) {
+        if (contrast < 0) {
+            throw new IllegalArgumentException("contrast must not be negative: " + contrast);
+        }
+        mBrightness = brightness;
+        mContrast = contrast;
+        for (int i = 0; i < mTable.length; i++) {
+            int value = Math.round((i - 128) * contrast + 128 + brightness);
+            mTable[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "brightnessContrast(" + mBrightness + ", " + mContrast + ")";
+    }
+
+    @Override
+    public void prepare(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mRow = new byte[width];
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getOutputHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return true;
+    }
+
+    @Override
+    public boolean apply(ByteBuffer src, ByteBuffer dst) {
+        for (int y = 0; y < mHeight; y++) {
+            int offset = y * mWidth;
+            src.position(offset);
+            src.get(mRow, 0, mWidth);
+            for (int x = 0; x < mWidth; x++) {
+                mRow[x] = mTable[mRow[x] & 0xff];
+            }
+            src.position(offset);
+            src.put(mRow, 0, mWidth);
+        }
+        return true;
+    }
+
+    @Override
+    public void release() {
+        mRow = null;
+    }
+}
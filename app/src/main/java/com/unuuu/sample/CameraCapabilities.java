@@ -0,0 +1,129 @@
+package com.unuuu.sample;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 1つのカメラの向きと対応しているプレビューのサイズ
+ *
+ * カメラを開かずにプレビューのサイズを選べるように、文字列にして保存できるようにする。
+ * Camera.CameraInfoなどに依存しないのでAndroidの外でも使える。
+ */
+public class CameraCapabilities {
+    /** Camera.CameraInfo.CAMERA_FACING_BACKと同じ値 */
+    public static final int FACING_BACK = 0;
+    /** Camera.CameraInfo.CAMERA_FACING_FRONTと同じ値 */
+    public static final int FACING_FRONT = 1;
+
+    private static final PreviewSizeSelector.SizeAccessor<int[]> SIZE_ACCESSOR =
+            new PreviewSizeSelector.SizeAccessor<int[]>() {
+                @Override
+                public int getWidth(int[] size) {
+                    return size[0];
+                }
+
+                @Override
+                public int getHeight(int[] size) {
+                    return size[1];
+                }
+            };
+
+    private final int mCameraId;
+    private final int mFacing;
+    private final int mOrientation;
+    private final List<int[]> mPreviewSizes;
+
+    /**
+     * @param cameraId Camera.openに渡す番号
+     * @param facing FACING_BACKかFACING_FRONT
+     * @param orientation カメラの画像の向き (度)
+     * @param previewSizes 対応しているプレビューのサイズ、{横幅, 高さ}の配列
+     */
+    public CameraCapabilities(int cameraId, int facing, int orientation, List<int[]> previewSizes) {
+        mCameraId = cameraId;
+        mFacing = facing;
+        mOrientation = orientation;
+        mPreviewSizes = Collections.unmodifiableList(new ArrayList<>(previewSizes));
+    }
+
+    public int getCameraId() {
+        return mCameraId;
+    }
+
+    public int getFacing() {
+        return mFacing;
+    }
+
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    public List<int[]> getPreviewSizes() {
+        return mPreviewSizes;
+    }
+
+    /**
+     * CameraRepository.getOptimalPreviewSizeと同じ選び方でプレビューのサイズを選ぶ
+     *
+     * @param w 横幅
+     * @param h 高さ
+     * @return {横幅, 高さ}、対応しているサイズがない時はnull
+     */
+    public int[] getOptimalPreviewSize(int w, int h) {
+        int index = PreviewSizeSelector.indexOfOptimalSize(mPreviewSizes, w, h, SIZE_ACCESSOR);
+        return index >= 0 ? mPreviewSizes.get(index) : null;
+    }
+
+    /**
+     * 保存する文字列にする、"番号;向き;角度;横幅x高さ,横幅x高さ"の形式
+     */
+    public String encode() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mCameraId).append(';').append(mFacing).append(';').append(mOrientation).append(';');
+        for (int i = 0; i < mPreviewSizes.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(mPreviewSizes.get(i)[0]).append('x').append(mPreviewSizes.get(i)[1]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * encodeした文字列から戻す
+     *
+     * @param value encodeした文字列
+     * @return 形式が正しくない時はnull
+     */
+    public static CameraCapabilities decode(String value) {
+        if (value == null) {
+            return null;
+        }
+        String[] fields = value.split(";", -1);
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            List<int[]> sizes = new ArrayList<>();
+            if (!fields[3].isEmpty()) {
+                for (String size : fields[3].split(",")) {
+                    String[] values = size.split("x");
+                    if (values.length != 2) {
+                        return null;
+                    }
+                    sizes.add(new int[]{Integer.parseInt(values[0]), Integer.parseInt(values[1])});
+                }
+            }
+            return new CameraCapabilities(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                    Integer.parseInt(fields[2]), sizes);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CameraCapabilities{" + encode() + "}";
+    }
+}
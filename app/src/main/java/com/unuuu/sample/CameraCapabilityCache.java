@@ -0,0 +1,162 @@
+package com.unuuu.sample;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * カメラの向きとプレビューのサイズを端末に保存しておくキャッシュ
+ *
+ * 全てのカメラを開いて調べるのは時間がかかるので、アプリの起動時に別のスレッドで1回だけ行い、
+ * 結果はカメラの番号毎にSharedPreferencesに保存する。
+ * 端末のビルド (Build.FINGERPRINT) が変わった時は調べ直す。
+ */
+public class CameraCapabilityCache {
+    private static final String LOG_TAG = "CameraCapabilityCache";
+    private static final String PREFERENCES_NAME = "camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_CAMERA_COUNT = "camera_count";
+    private static final String KEY_CAMERA_PREFIX = "camera_";
+
+    private static CameraCapabilityCache sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final String mFingerprint;
+    private List<CameraCapabilities> mCameras;
+
+    /**
+     * @param context アプリのContextを保持するので、どのContextでもよい
+     */
+    public static synchronized CameraCapabilityCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CameraCapabilityCache(context.getApplicationContext()
+                    .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE), Build.FINGERPRINT);
+        }
+        return sInstance;
+    }
+
+    CameraCapabilityCache(SharedPreferences preferences, String fingerprint) {
+        mPreferences = preferences;
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * 別のスレッドでキャッシュを読み込む、保存されていない時はカメラを調べる
+     * 読み込み中にgetCamerasを呼ぶと終わるまで待つ
+     */
+    public void warmUpAsync() {
+        Thread thread = new Thread(this::getCameras, "CameraCapabilityCache");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * 全てのカメラの情報を取得する
+     *
+     * @return カメラの番号の順に並んだ情報、調べられなかったカメラは含まない
+     */
+    public synchronized List<CameraCapabilities> getCameras() {
+        if (mCameras == null) {
+            long startTime = System.nanoTime();
+            mCameras = load();
+            if (mCameras == null) {
+                mCameras = probe();
+                Log.d(LOG_TAG, "カメラを調べました: " + (System.nanoTime() - startTime) / 1000000L + "ms");
+            } else {
+                Log.d(LOG_TAG, "キャッシュを読み込みました: " + (System.nanoTime() - startTime) / 1000000L + "ms");
+            }
+        }
+        return mCameras;
+    }
+
+    /**
+     * 指定した向きの最初のカメラの情報を取得する
+     *
+     * @param facing CameraCapabilities.FACING_BACKかFACING_FRONT
+     * @return カメラの情報、見つからない時はnull
+     */
+    public CameraCapabilities find(int facing) {
+        List<CameraCapabilities> cameras = getCameras();
+        for (int i = 0; i < cameras.size(); i++) {
+            if (cameras.get(i).getFacing() == facing) {
+                return cameras.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 保存した情報を消し、次に使う時に調べ直す
+     * 保存したサイズでカメラの設定に失敗した時に呼ぶ
+     */
+    public synchronized void invalidate() {
+        mCameras = null;
+        mPreferences.edit().clear().apply();
+    }
+
+    private List<CameraCapabilities> load() {
+        if (!mFingerprint.equals(mPreferences.getString(KEY_FINGERPRINT, null))) {
+            return null;
+        }
+        int count = mPreferences.getInt(KEY_CAMERA_COUNT, -1);
+        if (count < 0) {
+            return null;
+        }
+        List<CameraCapabilities> cameras = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            CameraCapabilities camera = CameraCapabilities.decode(mPreferences.getString(KEY_CAMERA_PREFIX + i, null));
+            if (camera == null) {
+                return null;
+            }
+            cameras.add(camera);
+        }
+        return Collections.unmodifiableList(cameras);
+    }
+
+    /**
+     * 全てのカメラを順に開いて調べ、全て調べられた時だけ保存する
+     */
+    private List<CameraCapabilities> probe() {
+        List<CameraCapabilities> cameras = new ArrayList<>();
+        boolean isComplete = true;
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        int count = Camera.getNumberOfCameras();
+        for (int i = 0; i < count; i++) {
+            Camera camera = null;
+            try {
+                Camera.getCameraInfo(i, info);
+                camera = Camera.open(i);
+                List<int[]> sizes = new ArrayList<>();
+                for (Camera.Size size : camera.getParameters().getSupportedPreviewSizes()) {
+                    sizes.add(new int[]{size.width, size.height});
+                }
+                cameras.add(new CameraCapabilities(i, info.facing, info.orientation, sizes));
+            } catch (RuntimeException e) {
+                // 他のアプリが使っている時は開けないので、次に起動した時に調べ直す
+                Log.w(LOG_TAG, "カメラを調べられません: " + i + " " + e.getMessage());
+                isComplete = false;
+            } finally {
+                if (camera != null) {
+                    camera.release();
+                }
+            }
+        }
+
+        if (isComplete) {
+            SharedPreferences.Editor editor = mPreferences.edit().clear()
+                    .putString(KEY_FINGERPRINT, mFingerprint)
+                    .putInt(KEY_CAMERA_COUNT, cameras.size());
+            for (int i = 0; i < cameras.size(); i++) {
+                editor.putString(KEY_CAMERA_PREFIX + i, cameras.get(i).encode());
+            }
+            editor.apply();
+        }
+        return Collections.unmodifiableList(cameras);
+    }
+}
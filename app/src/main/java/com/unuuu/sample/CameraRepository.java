@@ -1,13 +1,12 @@
 package com.unuuu.sample;
 
 import android.hardware.Camera;
+import android.util.Log;
 
 import java.util.List;
 
-import rx.Observable;
-import rx.functions.Func2;
-
 public class CameraRepository {
+    private static final String LOG_TAG = "CameraRepository";
     private static final int FRAME_RATE = 30;
 
     public enum CameraType {
@@ -15,7 +14,31 @@ public class CameraRepository {
         FRONT
     }
 
+    private final CameraCapabilityCache mCapabilityCache;
+
+    public CameraRepository() {
+        this(null);
+    }
+
+    /**
+     * @param capabilityCache カメラの情報のキャッシュ、nullの時は毎回カメラから取得する
+     */
+    public CameraRepository(CameraCapabilityCache capabilityCache) {
+        mCapabilityCache = capabilityCache;
+    }
+
     public Camera getCamera(CameraType type, int baseWidth, int baseHeight) {
+        if (mCapabilityCache != null) {
+            CameraCapabilities capabilities = mCapabilityCache.find(
+                    CameraType.FRONT == type ? CameraCapabilities.FACING_FRONT : CameraCapabilities.FACING_BACK);
+            if (capabilities != null) {
+                Camera camera = getCamera(capabilities, baseWidth, baseHeight);
+                if (camera != null) {
+                    return camera;
+                }
+            }
+        }
+
         try {
             Camera camera = getCamera(type);
             Camera.Parameters parameters = camera.getParameters();
@@ -31,11 +54,41 @@ public class CameraRepository {
         return null;
     }
 
+    /**
+     * キャッシュしたプレビューのサイズでカメラを開く
+     * 設定に失敗した時はキャッシュが古いので消して、カメラから取得し直させる
+     */
+    private Camera getCamera(CameraCapabilities capabilities, int baseWidth, int baseHeight) {
+        int[] optimalSize = capabilities.getOptimalPreviewSize(baseWidth, baseHeight);
+        if (optimalSize == null) {
+            return null;
+        }
+        Camera camera = null;
+        try {
+            camera = Camera.open(capabilities.getCameraId());
+            Camera.Parameters parameters = camera.getParameters();
+            parameters.setPreviewSize(optimalSize[0], optimalSize[1]);
+            parameters.setPreviewFrameRate(FRAME_RATE);
+            camera.setParameters(parameters);
+            return camera;
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "キャッシュしたカメラの情報を使えません: " + capabilities + " " + e.getMessage());
+            if (camera != null) {
+                camera.release();
+            }
+            mCapabilityCache.invalidate();
+        }
+        return null;
+    }
+
     private Camera getCamera(CameraType type) {
         Camera camera;
         try {
             if (CameraType.FRONT == type) {
-                int cameraIndex = getFrontCameraIndex().toBlocking().first();
+                int cameraIndex = getFrontCameraIndex();
+                if (cameraIndex < 0) {
+                    return null;
+                }
                 camera = Camera.open(cameraIndex);
             } else {
                 camera = Camera.open();
@@ -47,13 +100,18 @@ public class CameraRepository {
         return null;
     }
 
-    private Observable<Integer> getFrontCameraIndex() {
-        final Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
-        return Observable.range(0, Camera.getNumberOfCameras())
-                .filter(i -> {
-                    Camera.getCameraInfo(i, cameraInfo);
-                    return cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
-                });
+    /**
+     * @return フロントカメラの番号、ない時は-1
+     */
+    private int getFrontCameraIndex() {
+        Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+        for (int i = 0; i < Camera.getNumberOfCameras(); i++) {
+            Camera.getCameraInfo(i, cameraInfo);
+            if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -64,36 +122,19 @@ public class CameraRepository {
      * @return サイズ
      */
     public static  Camera.Size getOptimalPreviewSize(List<Camera.Size> sizes, int w, int h) {
-        if (sizes == null) {
-            return null;
-        }
-
-        Func2<Camera.Size, Camera.Size, Camera.Size> reduceFunc = (minSize, size) -> {
-            if (minSize == null) {
-                return size;
-            }
-
-            if (w > size.width || h > size.height) {
-                return minSize;
-            }
-
-            if (Math.abs(size.height - h) < Math.abs(minSize.height - h)) {
-                return size;
-            }
-            return minSize;
-        };
-
-        double targetRatio = (double) w / h;
-        Camera.Size optimalSize = Observable.from(sizes).filter(size -> {
-            double ratio = (double) size.width / size.height;
-            return Math.abs(ratio - targetRatio) <= 0.1f;
-        }).reduce(null, reduceFunc).toBlocking().first();
-
-        if (optimalSize == null) {
-            optimalSize = Observable.from(sizes)
-                    .reduce(null, reduceFunc).toBlocking().first();
-        }
-
-        return optimalSize;
+        return PreviewSizeSelector.getOptimalSize(sizes, w, h, CAMERA_SIZE_ACCESSOR);
     }
+
+    private static final PreviewSizeSelector.SizeAccessor<Camera.Size> CAMERA_SIZE_ACCESSOR =
+            new PreviewSizeSelector.SizeAccessor<Camera.Size>() {
+                @Override
+                public int getWidth(Camera.Size size) {
+                    return size.width;
+                }
+
+                @Override
+                public int getHeight(Camera.Size size) {
+                    return size.height;
+                }
+            };
 }
@@ -0,0 +1,94 @@
+package com.unuuu.sample;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+
+import java.io.IOException;
+
+/**
+ * カメラのプレビューのフレームを渡す映像の取得元
+ *
+ * プレビューのバッファは最初に確保して使い回す。
+ * カメラを開いて設定するのと解放するのは呼び出し側で行う。
+ */
+public class CameraVideoSource implements VideoSource, Camera.PreviewCallback {
+    private final Camera mCamera;
+    private final int mWidth;
+    private final int mHeight;
+    private final double mFrameRate;
+    private final byte[][] mBuffers;
+    private SurfaceTexture mSurfaceTexture;
+    private Callback mCallback;
+
+    /**
+     * @param camera プレビューの大きさを設定済みのカメラ
+     * @param width プレビューの横幅
+     * @param height プレビューの高さ
+     * @param frameRate プレビューのフレームレート
+     * @param bufferCount プレビューのバッファの数
+     */
+    public CameraVideoSource(Camera camera, int width, int height, double frameRate, int bufferCount) {
+        mCamera = camera;
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+        mBuffers = new byte[bufferCount][width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8];
+    }
+
+    /**
+     * プレビューを表示するテクスチャを設定する (開始する前に呼ぶ)
+     */
+    public void setPreviewTexture(SurfaceTexture surfaceTexture) {
+        mSurfaceTexture = surfaceTexture;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public double getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * プレビューを開始する
+     */
+    @Override
+    public void start(Callback callback) throws IOException {
+        mCallback = callback;
+        mCamera.stopPreview();
+        for (byte[] buffer : mBuffers) {
+            mCamera.addCallbackBuffer(buffer);
+        }
+        mCamera.setPreviewCallbackWithBuffer(this);
+        mCamera.setPreviewTexture(mSurfaceTexture);
+        mCamera.startPreview();
+    }
+
+    @Override
+    public void releaseBuffer(byte[] data) {
+        mCamera.addCallbackBuffer(data);
+    }
+
+    /**
+     * プレビューを止める
+     */
+    @Override
+    public void stop() {
+        mCamera.setPreviewCallbackWithBuffer(null);
+        mCamera.stopPreview();
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        mCallback.onFrame(data, System.nanoTime());
+    }
+}
@@ -0,0 +1,15 @@
+package com.unuuu.sample;
+
+/**
+ * 書き込む映像のフレームを撮影した時刻を受け取るレコーダー
+ *
+ * RecordSessionはレコーダーがこのインターフェースを実装している時、フレームを書き込む直前に時刻を渡す。
+ */
+public interface CaptureTimeAware {
+    /**
+     * 次に書き込む映像のフレームを撮影した時刻
+     *
+     * @param captureNanos 撮影した時刻 (System.nanoTime)
+     */
+    void setCaptureNanos(long captureNanos);
+}
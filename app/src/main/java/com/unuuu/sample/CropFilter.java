@@ -0,0 +1,115 @@
+package com.unuuu.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 中央で切り抜き、回転と左右反転をするフィルタ
+ *
+ * 回転と反転がない時は行毎にコピーする。
+ * それ以外はNv21Cropperを使うので、入力を作業用の配列に1回コピーしてから書き込む。
+ */
+public class CropFilter implements VideoFilter {
+    private final int mCropWidth;
+    private final int mCropHeight;
+    private final int mRotation;
+    private final boolean mMirror;
+
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private Nv21Cropper mCropper;
+    private byte[] mSource;
+
+    /**
+     * @param cropWidth 切り抜く横幅、0の時は入力の横幅
+     * @param cropHeight 切り抜く高さ、0の時は入力の高さ
+     */
+    public CropFilter(int cropWidth, int cropHeight) {
+        this(cropWidth, cropHeight, 0, false);
+    }
+
+    /**
+     * @param cropWidth 切り抜く横幅、0の時は入力の横幅
+     * @param cropHeight 切り抜く高さ、0の時は入力の高さ
+     * @param rotation 時計回りの回転角度 (0, 90, 180, 270)
+     * @param mirror 回転した後に左右反転するかどうか
+     */
+    public CropFilter(int cropWidth, int cropHeight, int rotation, boolean mirror) {
+        mCropWidth = cropWidth;
+        mCropHeight = cropHeight;
+        mRotation = rotation;
+        mMirror = mirror;
+    }
+
+    /**
+     * 切り抜かずに回転と左右反転だけをするフィルタを作る
+     */
+    public static CropFilter rotate(int rotation, boolean mirror) {
+        return new CropFilter(0, 0, rotation, mirror);
+    }
+
+    @Override
+    public String getName() {
+        return "crop(" + mCropWidth + "x" + mCropHeight + ", " + mRotation + (mMirror ? ", mirror" : "") + ")";
+    }
+
+    @Override
+    public void prepare(int width, int height) {
+        mSourceWidth = width;
+        mSourceHeight = height;
+        mCropper = new Nv21Cropper(width, height, mCropWidth > 0 ? mCropWidth : width,
+                mCropHeight > 0 ? mCropHeight : height, mRotation, mMirror);
+        mSource = isTransformed() ? new byte[width * height * 3 / 2] : null;
+    }
+
+    private boolean isTransformed() {
+        return mRotation != 0 || mMirror;
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return mCropper.getOutputWidth();
+    }
+
+    @Override
+    public int getOutputHeight() {
+        return mCropper.getOutputHeight();
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return false;
+    }
+
+    @Override
+    public boolean apply(ByteBuffer src, ByteBuffer dst) {
+        if (isTransformed()) {
+            src.get(mSource, 0, mSource.length);
+            mCropper.crop(mSource, dst);
+            return true;
+        }
+
+        int width = mCropper.getOutputWidth();
+        int height = mCropper.getOutputHeight();
+        int cropX = ((mSourceWidth - width) / 2) & ~1;
+        int cropY = ((mSourceHeight - height) / 2) & ~1;
+        for (int y = 0; y < height; y++) {
+            int start = (cropY + y) * mSourceWidth + cropX;
+            src.limit(start + width).position(start);
+            dst.put(src);
+        }
+        int chromaOffset = mSourceWidth * mSourceHeight;
+        for (int y = 0; y < height / 2; y++) {
+            int start = chromaOffset + (cropY / 2 + y) * mSourceWidth + cropX;
+            src.limit(start + width).position(start);
+            dst.put(src);
+        }
+        src.clear();
+        dst.flip();
+        return true;
+    }
+
+    @Override
+    public void release() {
+        mSource = null;
+    }
+}
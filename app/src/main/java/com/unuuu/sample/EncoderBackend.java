@@ -0,0 +1,11 @@
+package com.unuuu.sample;
+
+/**
+ * 録画に使うエンコーダーの実装
+ */
+public enum EncoderBackend {
+    /** JavaCVのFFmpegFrameRecorder (x264のソフトウェアエンコード) */
+    FFMPEG,
+    /** MediaCodecとMediaMuxer (端末のハードウェアエンコーダー) */
+    MEDIA_CODEC
+}
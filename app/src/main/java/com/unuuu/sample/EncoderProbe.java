@@ -0,0 +1,128 @@
+package com.unuuu.sample;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 端末のH.264のハードウェアエンコーダーを調べて、録画に使うエンコーダーを選ぶ
+ */
+public final class EncoderProbe {
+    private static final String LOG_TAG = "EncoderProbe";
+    static final String MIME_TYPE_AVC = "video/avc";
+
+    /**
+     * 録画に使えるハードウェアエンコーダー
+     */
+    public static class Capability {
+        private final String mCodecName;
+        private final int mColorFormat;
+
+        Capability(String codecName, int colorFormat) {
+            mCodecName = codecName;
+            mColorFormat = colorFormat;
+        }
+
+        public String getCodecName() {
+            return mCodecName;
+        }
+
+        /**
+         * MediaCodecInfo.CodecCapabilitiesのYUV420PlanarかYUV420SemiPlanar
+         */
+        public int getColorFormat() {
+            return mColorFormat;
+        }
+
+        @Override
+        public String toString() {
+            return "Capability{codec=" + mCodecName + ", colorFormat=" + mColorFormat + "}";
+        }
+    }
+
+    private EncoderProbe() {
+    }
+
+    /**
+     * 端末に合わせて録画に使うエンコーダーを選ぶ
+     *
+     * @param width 録画する映像の横幅
+     * @param height 録画する映像の高さ
+     * @return ハードウェアエンコーダーが使える時はMEDIA_CODEC、それ以外はFFMPEG
+     */
+    public static EncoderBackend selectBackend(int width, int height) {
+        return findAvcEncoder(width, height) != null ? EncoderBackend.MEDIA_CODEC : EncoderBackend.FFMPEG;
+    }
+
+    /**
+     * バイト列で入力できるH.264のハードウェアエンコーダーを探す
+     *
+     * MediaMuxerはAPI 18から使えるので、それより前の端末ではnullを返す。
+     * ソフトウェアエンコーダー (OMX.google.*) はx264より速くならないので使わない。
+     *
+     * @param width 録画する映像の横幅
+     * @param height 録画する映像の高さ
+     * @return エンコーダー、見つからない時はnull
+     */
+    public static Capability findAvcEncoder(int width, int height) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return null;
+        }
+        try {
+            return findAvcEncoderInCodecList(width, height);
+        } catch (RuntimeException e) {
+            // 一部の端末ではコーデックの一覧の取得に失敗するのでソフトウェアエンコードにする
+            Log.e(LOG_TAG, "コーデックの一覧を取得できません: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static Capability findAvcEncoderInCodecList(int width, int height) {
+        for (int i = 0; i < MediaCodecList.getCodecCount(); i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder() || info.getName().startsWith("OMX.google.") || !supportsType(info, MIME_TYPE_AVC)) {
+                continue;
+            }
+
+            MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(MIME_TYPE_AVC);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    && !capabilities.getVideoCapabilities().isSizeSupported(width, height)) {
+                continue;
+            }
+
+            int colorFormat = selectColorFormat(capabilities.colorFormats);
+            if (colorFormat != 0) {
+                return new Capability(info.getName(), colorFormat);
+            }
+        }
+        return null;
+    }
+
+    private static boolean supportsType(MediaCodecInfo info, String mimeType) {
+        for (String type : info.getSupportedTypes()) {
+            if (type.equalsIgnoreCase(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * NV21から詰め替えやすい色の形式を選ぶ、UとVを入れ替えるだけのSemiPlanarを優先する
+     */
+    private static int selectColorFormat(int[] colorFormats) {
+        int selected = 0;
+        for (int colorFormat : colorFormats) {
+            if (MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar == colorFormat) {
+                return colorFormat;
+            }
+            if (MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar == colorFormat) {
+                selected = colorFormat;
+            }
+        }
+        return selected;
+    }
+}
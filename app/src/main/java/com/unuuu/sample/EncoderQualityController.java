@@ -0,0 +1,302 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.util.Locale;
+
+/**
+ * エンコードにかかる時間とキューに溜まったフレーム数を見て、エンコーダーの設定を上げ下げする
+ *
+ * 一定のフレーム数毎に判定し、重すぎる時はすぐに1段階軽くする。
+ * 軽くなった後は余裕がある状態が続いた時だけ1段階重くして、設定が行ったり来たりしないようにする。
+ *
+ * フレームを間引く割合はすぐに反映される。
+ * x264のプリセットやビットレートはエンコーダーを開き直さないと変えられないので、
+ * 次にレコーダーを作る時にapplyToで反映する。
+ * ビットレートはレコーダーに設定済みの値に対する割合で下げるので、呼び出し側が決めたビットレートを上書きしない。
+ */
+public class EncoderQualityController {
+    /* 何フレーム毎に判定するか */
+    static final int EVALUATION_WINDOW = 30;
+    /* 重くする前に余裕がある状態が続く必要がある判定の回数 */
+    static final int UPGRADE_STABLE_WINDOWS = 3;
+    /* 設定を変えた後に判定を見送る回数 */
+    static final int COOLDOWN_WINDOWS = 1;
+
+    private static final double DOWNGRADE_BUDGET_RATIO = 0.85;
+    private static final double UPGRADE_BUDGET_RATIO = 0.5;
+    private static final int BACKLOG_HIGH = 5;
+    private static final int BACKLOG_LOW = 1;
+
+    /**
+     * エンコーダーの設定の段階
+     */
+    public static class Level {
+        private final String mPreset;
+        private final boolean mZeroLatency;
+        private final double mBitrateScale;
+        private final double mSkipRatio;
+
+        /**
+         * @param preset x264のプリセット、nullの時はx264の初期値
+         * @param zeroLatency tuneにzerolatencyを指定するかどうか
+         * @param bitrateScale レコーダーに設定済みのビットレートに掛ける割合 (0より大きい)
+         * @param skipRatio 間引くフレームの割合 (0 - 1未満)
+         */
+        public Level(String preset, boolean zeroLatency, double bitrateScale, double skipRatio) {
+            if (bitrateScale <= 0) {
+                throw new IllegalArgumentException("bitrateScale must be positive: " + bitrateScale);
+            }
+            if (skipRatio < 0 || skipRatio >= 1) {
+                throw new IllegalArgumentException("skipRatio must be in [0, 1): " + skipRatio);
+            }
+            mPreset = preset;
+            mZeroLatency = zeroLatency;
+            mBitrateScale = bitrateScale;
+            mSkipRatio = skipRatio;
+        }
+
+        public String getPreset() {
+            return mPreset;
+        }
+
+        public boolean isZeroLatency() {
+            return mZeroLatency;
+        }
+
+        public double getBitrateScale() {
+            return mBitrateScale;
+        }
+
+        public double getSkipRatio() {
+            return mSkipRatio;
+        }
+
+        /**
+         * レコーダーに設定する (ビットレートを設定した後、startする前に1度だけ呼ぶ)
+         */
+        public void applyTo(FrameRecorder recorder) {
+            if (mPreset != null) {
+                recorder.setVideoOption("preset", mPreset);
+            }
+            if (mZeroLatency) {
+                recorder.setVideoOption("tune", "zerolatency");
+            }
+            if (mBitrateScale != 1) {
+                recorder.setVideoBitrate((int) Math.round(recorder.getVideoBitrate() * mBitrateScale));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Level{preset=%s, zerolatency=%b, bitrate=x%.2f, skip=%.2f}",
+                    mPreset, mZeroLatency, mBitrateScale, mSkipRatio);
+        }
+    }
+
+    /**
+     * 初期の段階の並び、先頭が一番重い
+     * 先頭はRecorderRepositoryのこれまでの設定と同じ
+     * ビットレートは初期値の400kbpsの時に300kbps、250kbpsになる割合で下げる
+     */
+    public static final Level[] DEFAULT_LEVELS = {
+            new Level(null, false, 1, 0),
+            new Level("veryfast", false, 1, 0),
+            new Level("superfast", true, 1, 0),
+            new Level("ultrafast", true, 1, 0),
+            new Level("ultrafast", true, 0.75, 1.0 / 3),
+            new Level("ultrafast", true, 0.625, 0.5)
+    };
+
+    /**
+     * 判定の結果
+     */
+    public enum Action {
+        HOLD,
+        DOWNGRADE,
+        UPGRADE
+    }
+
+    /**
+     * 1回の判定の内容
+     */
+    public static class Decision {
+        private final Action mAction;
+        private final int mFromLevel;
+        private final int mToLevel;
+        private final long mAverageEncodeNanos;
+        private final int mMaxBacklog;
+        private final String mReason;
+
+        Decision(Action action, int fromLevel, int toLevel, long averageEncodeNanos, int maxBacklog, String reason) {
+            mAction = action;
+            mFromLevel = fromLevel;
+            mToLevel = toLevel;
+            mAverageEncodeNanos = averageEncodeNanos;
+            mMaxBacklog = maxBacklog;
+            mReason = reason;
+        }
+
+        public Action getAction() {
+            return mAction;
+        }
+
+        public int getFromLevel() {
+            return mFromLevel;
+        }
+
+        public int getToLevel() {
+            return mToLevel;
+        }
+
+        public long getAverageEncodeNanos() {
+            return mAverageEncodeNanos;
+        }
+
+        public int getMaxBacklog() {
+            return mMaxBacklog;
+        }
+
+        public String getReason() {
+            return mReason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s level %d -> %d (encode=%.2fms, backlog=%d): %s",
+                    mAction, mFromLevel, mToLevel, mAverageEncodeNanos / 1e6, mMaxBacklog, mReason);
+        }
+    }
+
+    /**
+     * 判定の度に呼ばれるリスナー
+     */
+    public interface OnDecisionListener {
+        void onDecision(Decision decision);
+    }
+
+    private final Level[] mLevels;
+    private final long mFrameBudgetNanos;
+    private volatile int mLevelIndex = 0;
+    private OnDecisionListener mListener;
+
+    /* 判定に使う値 (エンコードするスレッドからのみ触る) */
+    private long mWindowEncodeNanos = 0;
+    private int mWindowFrameCount = 0;
+    private int mWindowMaxBacklog = 0;
+    private int mStableWindowCount = 0;
+    private int mCooldownWindowCount = 0;
+
+    /* 間引く判定に使う値 (カメラのスレッドからのみ触る) */
+    private double mSkipAccumulator = 0;
+
+    /**
+     * @param levels 段階の並び、先頭が一番重い
+     * @param frameRate 目標のフレームレート
+     */
+    public EncoderQualityController(Level[] levels, double frameRate) {
+        if (levels == null || levels.length == 0) {
+            throw new IllegalArgumentException("levels must not be empty");
+        }
+        mLevels = levels.clone();
+        mFrameBudgetNanos = (long) (1000000000L / frameRate);
+    }
+
+    public void setOnDecisionListener(OnDecisionListener listener) {
+        mListener = listener;
+    }
+
+    public int getLevelIndex() {
+        return mLevelIndex;
+    }
+
+    public Level getLevel() {
+        return mLevels[mLevelIndex];
+    }
+
+    /**
+     * 次のフレームを間引くかどうか (カメラのスレッドから呼ぶ)
+     *
+     * @return 間引く時はtrue
+     */
+    public boolean shouldSkipFrame() {
+        double skipRatio = mLevels[mLevelIndex].getSkipRatio();
+        if (skipRatio <= 0) {
+            mSkipAccumulator = 0;
+            return false;
+        }
+        mSkipAccumulator += skipRatio;
+        if (mSkipAccumulator >= 1) {
+            mSkipAccumulator -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * フレームをエンコードした時に呼ぶ (エンコードするスレッドから呼ぶ)
+     *
+     * @param encodeNanos エンコードにかかった時間 (ナノ秒)
+     * @param backlog エンコード待ちのフレーム数
+     */
+    public void onFrameEncoded(long encodeNanos, int backlog) {
+        mWindowEncodeNanos += encodeNanos;
+        mWindowFrameCount += 1;
+        if (backlog > mWindowMaxBacklog) {
+            mWindowMaxBacklog = backlog;
+        }
+        if (mWindowFrameCount >= EVALUATION_WINDOW) {
+            evaluate();
+        }
+    }
+
+    private void evaluate() {
+        long averageEncodeNanos = mWindowEncodeNanos / mWindowFrameCount;
+        int maxBacklog = mWindowMaxBacklog;
+        mWindowEncodeNanos = 0;
+        mWindowFrameCount = 0;
+        mWindowMaxBacklog = 0;
+
+        int from = mLevelIndex;
+        // 間引いている時はその分だけ1フレームに使える時間が長い
+        double budget = mFrameBudgetNanos / (1 - mLevels[from].getSkipRatio());
+
+        Decision decision;
+        if (0 < mCooldownWindowCount) {
+            mCooldownWindowCount -= 1;
+            decision = new Decision(Action.HOLD, from, from, averageEncodeNanos, maxBacklog, "cooldown");
+        } else if (averageEncodeNanos > budget * DOWNGRADE_BUDGET_RATIO || maxBacklog >= BACKLOG_HIGH) {
+            mStableWindowCount = 0;
+            if (from < mLevels.length - 1) {
+                decision = changeLevel(Action.DOWNGRADE, from, from + 1, averageEncodeNanos, maxBacklog, "encoder is falling behind");
+            } else {
+                decision = new Decision(Action.HOLD, from, from, averageEncodeNanos, maxBacklog, "already at the lightest level");
+            }
+        } else if (averageEncodeNanos < budget * UPGRADE_BUDGET_RATIO && maxBacklog <= BACKLOG_LOW) {
+            mStableWindowCount += 1;
+            if (from == 0) {
+                decision = new Decision(Action.HOLD, from, from, averageEncodeNanos, maxBacklog, "already at the heaviest level");
+            } else if (mStableWindowCount >= UPGRADE_STABLE_WINDOWS) {
+                mStableWindowCount = 0;
+                decision = changeLevel(Action.UPGRADE, from, from - 1, averageEncodeNanos, maxBacklog, "encoder has headroom");
+            } else {
+                decision = new Decision(Action.HOLD, from, from, averageEncodeNanos, maxBacklog,
+                        "headroom " + mStableWindowCount + "/" + UPGRADE_STABLE_WINDOWS);
+            }
+        } else {
+            mStableWindowCount = 0;
+            decision = new Decision(Action.HOLD, from, from, averageEncodeNanos, maxBacklog, "within budget");
+        }
+
+        OnDecisionListener listener = mListener;
+        if (listener != null) {
+            listener.onDecision(decision);
+        }
+    }
+
+    private Decision changeLevel(Action action, int from, int to, long averageEncodeNanos, int maxBacklog, String reason) {
+        mLevelIndex = to;
+        mCooldownWindowCount = COOLDOWN_WINDOWS;
+        return new Decision(action, from, to, averageEncodeNanos, maxBacklog, reason);
+    }
+}
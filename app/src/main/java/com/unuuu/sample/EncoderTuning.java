@@ -0,0 +1,251 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.util.Locale;
+
+/**
+ * x264のスレッドと先読みの設定
+ *
+ * FFmpegのエンコーダーのスレッド数の初期値は1なので、指定しないとx264は1つのスレッドでエンコードする。
+ * フレームを並列にするとフレームのスレッドの数だけ出力が遅れ、スライスを並列にすると遅れない代わりに圧縮率が下がる。
+ * EncoderQualityController.Levelのプリセットとzerolatencyと一緒に使い、どちらかでzerolatencyを指定すれば付ける。
+ * 値が負の項目はFFmpegとx264の初期値のままにする。
+ */
+public class EncoderTuning {
+
+    /**
+     * 並列にする単位
+     */
+    public enum ThreadType {
+        /** 複数のフレームを並列にエンコードする */
+        FRAME,
+        /** 1つのフレームをスライスに分けて並列にエンコードする */
+        SLICE
+    }
+
+    /**
+     * 端末の区分
+     */
+    public enum DeviceClass {
+        /** 2コア以下 */
+        LOW_END,
+        /** 4コア以下 */
+        MID_RANGE,
+        /** 8コア以下 */
+        HIGH_END,
+        /** それより多い、デスクトップやサーバー */
+        WORKSTATION;
+
+        /**
+         * @param processors 使えるプロセッサーの数
+         * @return 端末の区分
+         */
+        public static DeviceClass of(int processors) {
+            if (processors <= 2) {
+                return LOW_END;
+            }
+            if (processors <= 4) {
+                return MID_RANGE;
+            }
+            if (processors <= 8) {
+                return HIGH_END;
+            }
+            return WORKSTATION;
+        }
+    }
+
+    /** 何も指定しない、これまでの設定と同じ */
+    public static final EncoderTuning DEFAULT = new EncoderTuning(-1, null, -1, -1, -1, false);
+
+    private final int mThreads;
+    private final ThreadType mThreadType;
+    private final int mLookahead;
+    private final int mBFrames;
+    private final int mGopSize;
+    private final boolean mZeroLatency;
+
+    /**
+     * @param threads スレッド数、0の時はx264が決める
+     * @param threadType 並列にする単位、nullの時はFFmpegの初期値 (フレーム)
+     * @param lookahead レート制御で先読みするフレーム数
+     * @param bFrames 連続するBフレームの最大数
+     * @param gopSize キーフレームの間隔 (フレーム数)
+     * @param zeroLatency tuneにzerolatencyを指定するかどうか
+     */
+    public EncoderTuning(int threads, ThreadType threadType, int lookahead, int bFrames, int gopSize,
+                         boolean zeroLatency) {
+        if (gopSize == 0) {
+            throw new IllegalArgumentException("gopSize must not be zero");
+        }
+        mThreads = threads;
+        mThreadType = threadType;
+        mLookahead = lookahead;
+        mBFrames = bFrames;
+        mGopSize = gopSize;
+        mZeroLatency = zeroLatency;
+    }
+
+    /**
+     * 端末の区分に合わせた設定
+     *
+     * 少ないコアではスライスで並列にして遅れをなくし、多いコアではフレームで並列にして先読みとBフレームで圧縮率を上げる。
+     * 先読みとBフレームの分だけ出力が遅れるので、トランスコードのように遅れてもよいエンコードに使う。
+     *
+     * @param deviceClass 端末の区分
+     * @param processors 使えるプロセッサーの数
+     * @return 設定
+     */
+    public static EncoderTuning forDeviceClass(DeviceClass deviceClass, int processors) {
+        int threads = Math.max(1, processors);
+        switch (deviceClass) {
+            case LOW_END:
+                return new EncoderTuning(threads, ThreadType.SLICE, 0, 0, 30, true);
+            case MID_RANGE:
+                return new EncoderTuning(threads, ThreadType.FRAME, 10, 0, 60, false);
+            case HIGH_END:
+                return new EncoderTuning(threads, ThreadType.FRAME, 20, 2, 60, false);
+            default:
+                return new EncoderTuning(0, ThreadType.FRAME, 40, 3, 120, false);
+        }
+    }
+
+    /**
+     * 動いている端末のプロセッサーの数から選んだ設定
+     */
+    public static EncoderTuning forThisDevice() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return forDeviceClass(DeviceClass.of(processors), processors);
+    }
+
+    /**
+     * toStringと同じ形式の文字列から読み込む
+     * "threads=4,thread_type=slice,lookahead=0,bframes=0,gop=30,zerolatency=true"の形式で、省いた項目は初期値にする
+     * JMHの-pのように,で区切れない所では;で区切ってもよい
+     * 端末の区分の名前 ("low_end"など) の時はこの端末のプロセッサーの数で区分の設定にする
+     *
+     * @param value 文字列
+     * @return 設定
+     */
+    public static EncoderTuning parse(String value) {
+        String trimmed = value.trim();
+        for (DeviceClass deviceClass : DeviceClass.values()) {
+            if (deviceClass.name().equalsIgnoreCase(trimmed)) {
+                return forDeviceClass(deviceClass, Runtime.getRuntime().availableProcessors());
+            }
+        }
+        if (trimmed.isEmpty() || "default".equalsIgnoreCase(trimmed)) {
+            return DEFAULT;
+        }
+
+        int threads = -1;
+        ThreadType threadType = null;
+        int lookahead = -1;
+        int bFrames = -1;
+        int gopSize = -1;
+        boolean zeroLatency = false;
+        for (String entry : trimmed.split("[,;]")) {
+            String[] pair = entry.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("invalid tuning entry: " + entry);
+            }
+            String key = pair[0].trim();
+            String option = pair[1].trim();
+            switch (key) {
+                case "threads":
+                    threads = Integer.parseInt(option);
+                    break;
+                case "thread_type":
+                    threadType = ThreadType.valueOf(option.toUpperCase(Locale.US));
+                    break;
+                case "lookahead":
+                    lookahead = Integer.parseInt(option);
+                    break;
+                case "bframes":
+                    bFrames = Integer.parseInt(option);
+                    break;
+                case "gop":
+                    gopSize = Integer.parseInt(option);
+                    break;
+                case "zerolatency":
+                    zeroLatency = Boolean.parseBoolean(option);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown tuning key: " + key);
+            }
+        }
+        return new EncoderTuning(threads, threadType, lookahead, bFrames, gopSize, zeroLatency);
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    public ThreadType getThreadType() {
+        return mThreadType;
+    }
+
+    public int getLookahead() {
+        return mLookahead;
+    }
+
+    public int getBFrames() {
+        return mBFrames;
+    }
+
+    public int getGopSize() {
+        return mGopSize;
+    }
+
+    public boolean isZeroLatency() {
+        return mZeroLatency;
+    }
+
+    /**
+     * レコーダーに設定する (startする前に呼ぶ)
+     */
+    public void applyTo(FrameRecorder recorder) {
+        if (mThreads >= 0) {
+            recorder.setVideoOption("threads", String.valueOf(mThreads));
+        }
+        if (mThreadType != null) {
+            recorder.setVideoOption("thread_type", mThreadType.name().toLowerCase(Locale.US));
+        }
+        if (mLookahead >= 0) {
+            recorder.setVideoOption("rc-lookahead", String.valueOf(mLookahead));
+        }
+        if (mBFrames >= 0) {
+            recorder.setVideoOption("bf", String.valueOf(mBFrames));
+        }
+        if (mGopSize > 0) {
+            recorder.setGopSize(mGopSize);
+        }
+        if (mZeroLatency) {
+            recorder.setVideoOption("tune", "zerolatency");
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        if (mThreads >= 0) {
+            builder.append(",threads=").append(mThreads);
+        }
+        if (mThreadType != null) {
+            builder.append(",thread_type=").append(mThreadType.name().toLowerCase(Locale.US));
+        }
+        if (mLookahead >= 0) {
+            builder.append(",lookahead=").append(mLookahead);
+        }
+        if (mBFrames >= 0) {
+            builder.append(",bframes=").append(mBFrames);
+        }
+        if (mGopSize > 0) {
+            builder.append(",gop=").append(mGopSize);
+        }
+        if (mZeroLatency) {
+            builder.append(",zerolatency=true");
+        }
+        return builder.length() == 0 ? "default" : builder.substring(1);
+    }
+}
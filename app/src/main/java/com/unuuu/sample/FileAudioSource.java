@@ -0,0 +1,153 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 動画のファイルの音声を読み込む音声の取得元
+ *
+ * 最初のチャンネルだけを16bitのPCMにして、AudioRecordと同じように読み込ませる。
+ * ファイルの最後まで読んだ後は少し待ってから0を返し、録音が止まるまで何も読み込まない。
+ */
+public class FileAudioSource implements AudioSource {
+    private static final long END_OF_STREAM_PARK_NANOS = 1000000L;
+
+    private final String mPath;
+    private FFmpegFrameGrabber mGrabber;
+    private int mSampleRate;
+    /* 読み込んだが渡していないサンプル */
+    private ShortBuffer mPending = ShortBuffer.allocate(0);
+    private volatile boolean mIsEndOfStream = false;
+    private volatile long mReadSampleCount = 0;
+
+    /**
+     * @param path 動画のファイル
+     */
+    public FileAudioSource(String path) {
+        mPath = path;
+    }
+
+    /**
+     * ファイルを開く、サンプルレートはこの後に取得できる
+     */
+    @Override
+    public void start() throws IOException {
+        mGrabber = new FFmpegFrameGrabber(mPath);
+        try {
+            mGrabber.start();
+        } catch (FrameGrabber.Exception e) {
+            mGrabber = null;
+            throw new IOException("failed to open " + mPath, e);
+        }
+        mSampleRate = mGrabber.getSampleRate();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        ShortBuffer dst = buffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+        int samples = Math.min(sizeInBytes / AudioBufferPool.BYTES_PER_SAMPLE, dst.remaining());
+        int written = 0;
+        try {
+            while (written < samples) {
+                if (!mPending.hasRemaining() && !grab()) {
+                    break;
+                }
+                int length = Math.min(samples - written, mPending.remaining());
+                int limit = mPending.limit();
+                mPending.limit(mPending.position() + length);
+                dst.put(mPending);
+                mPending.limit(limit);
+                written += length;
+            }
+        } catch (FrameGrabber.Exception e) {
+            return -1;
+        }
+        if (written == 0 && mIsEndOfStream) {
+            LockSupport.parkNanos(END_OF_STREAM_PARK_NANOS);
+        }
+        mReadSampleCount += written;
+        return written * AudioBufferPool.BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * 次の音声を読み込んで16bitのPCMにする
+     *
+     * @return 読み込めたかどうか、ファイルの最後の時はfalse
+     */
+    private boolean grab() throws FrameGrabber.Exception {
+        if (mIsEndOfStream) {
+            return false;
+        }
+        Frame frame = mGrabber.grabSamples();
+        if (frame == null || frame.samples == null) {
+            mIsEndOfStream = true;
+            return false;
+        }
+        // プレーナー形式の時はチャンネル毎にバッファが分かれている
+        Buffer samples = frame.samples[0];
+        int step = frame.samples.length > 1 ? 1 : Math.max(1, frame.audioChannels);
+        int count = samples.remaining() / step;
+        if (mPending.capacity() < count) {
+            mPending = ShortBuffer.allocate(count);
+        }
+        mPending.clear();
+        if (samples instanceof ShortBuffer) {
+            ShortBuffer src = (ShortBuffer) samples;
+            for (int i = 0, p = src.position(); i < count; i++, p += step) {
+                mPending.put(src.get(p));
+            }
+        } else if (samples instanceof FloatBuffer) {
+            FloatBuffer src = (FloatBuffer) samples;
+            for (int i = 0, p = src.position(); i < count; i++, p += step) {
+                float value = Math.max(-1f, Math.min(1f, src.get(p)));
+                mPending.put((short) (value * Short.MAX_VALUE));
+            }
+        } else {
+            throw new FrameGrabber.Exception("unsupported sample format: " + samples.getClass().getSimpleName());
+        }
+        mPending.flip();
+        return true;
+    }
+
+    /**
+     * ファイルの最後まで読み込んだかどうか
+     */
+    public boolean isEndOfStream() {
+        return mIsEndOfStream && !mPending.hasRemaining();
+    }
+
+    /**
+     * 読み込ませたサンプル数
+     */
+    public long getReadSampleCount() {
+        return mReadSampleCount;
+    }
+
+    @Override
+    public void stop() {
+        if (mGrabber == null) {
+            return;
+        }
+        try {
+            mGrabber.stop();
+            mGrabber.release();
+        } catch (FrameGrabber.Exception e) {
+            // 閉じられなくても読み込みは終わっているので続ける
+        }
+        mGrabber = null;
+    }
+}
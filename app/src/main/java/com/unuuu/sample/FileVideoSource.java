@@ -0,0 +1,188 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_NV21;
+
+/**
+ * 動画のファイルを読み込んでNV21のフレームを渡す映像の取得元
+ *
+ * カメラの代わりに同じ映像を何度でも録画できるようにする。
+ * 読み込みのスレッドからコールバックを呼び、バッファはカメラと同じように決まった数を使い回す。
+ * 空いているバッファがない時はカメラと同じようにそのフレームを渡さない。
+ */
+public class FileVideoSource implements VideoSource {
+    private final FFmpegFrameGrabber mGrabber;
+    private final int mWidth;
+    private final int mHeight;
+    private final double mFrameRate;
+    private final boolean mIsRealtime;
+    private final long mMaxFrameCount;
+    /* 読み込みのスレッドだけが使う */
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<>();
+
+    private Callback mCallback;
+    private volatile boolean mIsRunning = false;
+    private volatile long mDeliveredFrameCount = 0;
+    private volatile long mSkippedFrameCount = 0;
+    private Thread mThread;
+
+    /**
+     * ファイルを開いて映像の大きさを読み込む
+     *
+     * @param path 動画のファイル
+     * @param bufferCount 使い回すバッファの数
+     * @param isRealtime フレームレートに合わせて渡すかどうか、falseの時はできるだけ速く渡す
+     * @param maxFrameCount 渡すフレームの最大数、0以下の時はファイルの最後まで
+     */
+    public FileVideoSource(String path, int bufferCount, boolean isRealtime, long maxFrameCount) throws IOException {
+        mGrabber = new FFmpegFrameGrabber(path);
+        mGrabber.setPixelFormat(AV_PIX_FMT_NV21);
+        try {
+            mGrabber.start();
+        } catch (FrameGrabber.Exception e) {
+            throw new IOException("failed to open " + path, e);
+        }
+        // NV21は縦横が偶数でないと色差を切り抜けない
+        mWidth = mGrabber.getImageWidth() & ~1;
+        mHeight = mGrabber.getImageHeight() & ~1;
+        mFrameRate = mGrabber.getFrameRate();
+        mIsRealtime = isRealtime;
+        mMaxFrameCount = maxFrameCount > 0 ? maxFrameCount : Long.MAX_VALUE;
+        for (int i = 0; i < bufferCount; i++) {
+            mFreeBuffers.add(new byte[mWidth * mHeight * 3 / 2]);
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public double getFrameRate() {
+        return mFrameRate;
+    }
+
+    @Override
+    public void start(Callback callback) {
+        mCallback = callback;
+        mIsRunning = true;
+        mThread = new Thread(this::run, "FileVideoSource");
+        mThread.start();
+    }
+
+    @Override
+    public void releaseBuffer(byte[] data) {
+        mFreeBuffers.add(data);
+    }
+
+    /**
+     * 読み込みのスレッドを止めてファイルを閉じる
+     */
+    @Override
+    public void stop() {
+        mIsRunning = false;
+        if (mThread != null && mThread != Thread.currentThread()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mThread = null;
+        try {
+            mGrabber.stop();
+            mGrabber.release();
+        } catch (FrameGrabber.Exception e) {
+            // 閉じられなくても読み込みは終わっているので続ける
+        }
+    }
+
+    private void run() {
+        long startNanos = System.nanoTime();
+        long frameNanos = mFrameRate > 0 ? (long) (1000000000L / mFrameRate) : 0;
+        try {
+            long index = 0;
+            while (mIsRunning && index < mMaxFrameCount) {
+                Frame frame = mGrabber.grabImage();
+                if (frame == null) {
+                    break;
+                }
+                if (mIsRealtime) {
+                    long waitNanos = startNanos + index * frameNanos - System.nanoTime();
+                    if (waitNanos > 0) {
+                        LockSupport.parkNanos(waitNanos);
+                    }
+                }
+                index += 1;
+
+                byte[] buffer = mFreeBuffers.poll();
+                if (buffer == null) {
+                    mSkippedFrameCount += 1;
+                    continue;
+                }
+                copyNv21(frame, mWidth, mHeight, buffer);
+                mDeliveredFrameCount += 1;
+                mCallback.onFrame(buffer, System.nanoTime());
+            }
+            if (mIsRunning) {
+                mCallback.onEndOfStream();
+            }
+        } catch (FrameGrabber.Exception | RuntimeException e) {
+            // 読み込みのスレッドが黙って終わると、終わりを待っている側が止まってしまう
+            mCallback.onError(e);
+        }
+    }
+
+    /**
+     * 行の間に詰め物があるフレームから詰めてコピーする
+     *
+     * @param frame NV21で読み込んだフレーム
+     * @param width コピーする横幅
+     * @param height コピーする高さ
+     * @param buffer コピー先、width * height * 3 / 2バイト
+     */
+    public static void copyNv21(Frame frame, int width, int height, byte[] buffer) {
+        ByteBuffer src = ((ByteBuffer) frame.image[0]).duplicate();
+        // FFmpegFrameGrabberはlimitを輝度の面の終わりにしているので、色差まで読めるように広げる
+        src.limit(src.capacity());
+        int stride = frame.imageStride > 0 ? frame.imageStride : width;
+        int srcHeight = frame.imageHeight;
+        for (int y = 0; y < height; y++) {
+            src.position(y * stride);
+            src.get(buffer, y * width, width);
+        }
+        int chromaOffset = stride * srcHeight;
+        for (int y = 0; y < height / 2; y++) {
+            src.position(chromaOffset + y * stride);
+            src.get(buffer, width * height + y * width, width);
+        }
+    }
+
+    /**
+     * コールバックに渡したフレーム数
+     */
+    public long getDeliveredFrameCount() {
+        return mDeliveredFrameCount;
+    }
+
+    /**
+     * 空いているバッファがなく渡さなかったフレーム数
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+}
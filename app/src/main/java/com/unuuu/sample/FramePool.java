@@ -0,0 +1,137 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.Frame;
+
+/**
+ * 録画用のフレームを使い回すためのプール
+ *
+ * プレビューのコールバック毎にネイティブのバッファを確保しないように、
+ * 決められた数のフレームだけを確保して使い回す。
+ */
+public class FramePool {
+    private final int mWidth;
+    private final int mHeight;
+    private final int mCapacity;
+
+    private final PooledFrame[] mFreeFrames;
+    private int mFreeCount = 0;
+    private int mAllocatedCount = 0;
+
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mExhaustedCount = 0;
+
+    /**
+     * @param width フレームの横幅
+     * @param height フレームの高さ
+     * @param capacity 同時に確保するフレームの最大数
+     */
+    public FramePool(int width, int height, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mWidth = width;
+        mHeight = height;
+        mCapacity = capacity;
+        mFreeFrames = new PooledFrame[capacity];
+    }
+
+    /**
+     * プールからフレームを取得する
+     *
+     * @return フレーム、全てのフレームが使用中の時はnull
+     */
+    public synchronized PooledFrame acquire() {
+        if (0 < mFreeCount) {
+            mFreeCount -= 1;
+            PooledFrame frame = mFreeFrames[mFreeCount];
+            mFreeFrames[mFreeCount] = null;
+            mHitCount += 1;
+            frame.reset();
+            return frame;
+        }
+
+        if (mAllocatedCount < mCapacity) {
+            mAllocatedCount += 1;
+            mMissCount += 1;
+            PooledFrame frame = new PooledFrame(this, new Frame(mWidth, mHeight, Frame.DEPTH_UBYTE, 2));
+            frame.reset();
+            return frame;
+        }
+
+        mExhaustedCount += 1;
+        return null;
+    }
+
+    /**
+     * フレームをプールに戻す
+     *
+     * @param frame フレーム
+     */
+    synchronized void release(PooledFrame frame) {
+        if (mFreeCount >= mCapacity) {
+            throw new IllegalStateException("frame released more than once");
+        }
+        mFreeFrames[mFreeCount] = frame;
+        mFreeCount += 1;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * 全てのフレームを確保した時のバイト数
+     */
+    public long getMemoryBytes() {
+        return mCapacity * frameBytes(mWidth, mHeight);
+    }
+
+    /**
+     * 1フレームが確保するバイト数
+     *
+     * NV21のフレームは2チャンネルとして確保するので、横幅x高さx2になる。
+     */
+    public static long frameBytes(int width, int height) {
+        return (long) width * height * 2;
+    }
+
+    /**
+     * 使用中のフレーム数を取得する
+     *
+     * @return 使用中のフレーム数
+     */
+    public synchronized int getInUseCount() {
+        return mAllocatedCount - mFreeCount;
+    }
+
+    /**
+     * プールにあるフレームを再利用できた回数
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * プールが空でフレームを新たに確保した回数
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * 全てのフレームが使用中で取得できなかった回数
+     */
+    public synchronized long getExhaustedCount() {
+        return mExhaustedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FramePool{capacity=" + mCapacity
+                + ", allocated=" + mAllocatedCount
+                + ", hit=" + mHitCount
+                + ", miss=" + mMissCount
+                + ", exhausted=" + mExhaustedCount + "}";
+    }
+}
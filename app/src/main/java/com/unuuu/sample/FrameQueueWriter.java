@@ -0,0 +1,109 @@
+package com.unuuu.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 取得元から受け取ったNV21のデータをフレームにして録画のキューに追加する
+ *
+ * プールのフレームに切り抜いてキューに入れ、退避先がある時はキューが一杯なら退避先に書き込む。
+ * どちらにも入らない時はフレームを捨てて、理由を計測値に伝える。
+ * 1つのスレッドから呼ぶ。
+ */
+public class FrameQueueWriter {
+    private final FramePool mFramePool;
+    private final SpscRingBuffer<PooledFrame> mFrameQueue;
+    private final Nv21Cropper mCropper;
+    private final FrameSpill mFrameSpill;
+    private final RecordingMetrics mMetrics;
+    private long mDroppedFrameCount = 0;
+
+    /**
+     * @param framePool フレームのプール
+     * @param frameQueue 録画のキュー
+     * @param cropper 切り抜く処理、nullの時はそのままコピーする
+     * @param frameSpill フレームの退避先、nullの時は退避しない
+     * @param metrics 計測値の受け取り先
+     */
+    public FrameQueueWriter(FramePool framePool, SpscRingBuffer<PooledFrame> frameQueue, Nv21Cropper cropper,
+                            FrameSpill frameSpill, RecordingMetrics metrics) {
+        mFramePool = framePool;
+        mFrameQueue = frameQueue;
+        mCropper = cropper;
+        mFrameSpill = frameSpill;
+        mMetrics = metrics != null ? metrics : RecordingMetrics.NONE;
+    }
+
+    /**
+     * データをフレームにして録画のキューに追加する
+     * プールが空の時はエンコーダーが追いついていないのでフレームを捨てる
+     *
+     * @param data NV21のデータ
+     * @param timestamp 録画開始からの経過時間 (マイクロ秒)
+     * @param captureNanos 取得した時のSystem.nanoTime()
+     * @return フレームを捨てた時はfalse
+     */
+    public boolean write(byte[] data, long timestamp, long captureNanos) {
+        // 退避している間は順番が入れ替わらないように退避先に書き込み続ける
+        if (mFrameSpill != null && (!mFrameSpill.isEmpty() || mFrameQueue.size() >= mFrameQueue.getCapacity())) {
+            return spill(data, timestamp, captureNanos);
+        }
+
+        PooledFrame frame = mFramePool.acquire();
+        if (frame == null) {
+            if (mFrameSpill != null) {
+                return spill(data, timestamp, captureNanos);
+            }
+            return drop(RecordingMetrics.DropReason.POOL_EXHAUSTED);
+        }
+
+        frame.setCaptureNanos(captureNanos);
+        if (mCropper != null) {
+            mCropper.crop(data, (ByteBuffer) frame.getFrame().image[0]);
+        } else {
+            ((ByteBuffer) frame.getFrame().image[0].position(0)).put(data);
+        }
+        frame.setTimestamp(timestamp);
+        PooledFrame dropped = mFrameQueue.offer(frame);
+        if (dropped != null) {
+            dropped.release();
+            return drop(RecordingMetrics.DropReason.QUEUE_FULL);
+        }
+        return true;
+    }
+
+    /**
+     * データを退避先のファイルに書き込む
+     * 退避先も一杯の時はフレームを捨てる
+     */
+    private boolean spill(byte[] data, long timestamp, long captureNanos) {
+        ByteBuffer slot = mFrameSpill.beginWrite();
+        if (slot == null) {
+            return drop(RecordingMetrics.DropReason.SPILL_FULL);
+        }
+
+        int length;
+        if (mCropper != null) {
+            mCropper.crop(data, slot);
+            length = slot.limit();
+        } else {
+            slot.put(data);
+            length = data.length;
+        }
+        mFrameSpill.commitWrite(length, timestamp, captureNanos);
+        mMetrics.onFrameSpilled(length, mFrameSpill.size());
+        return true;
+    }
+
+    private boolean drop(RecordingMetrics.DropReason reason) {
+        mDroppedFrameCount += 1;
+        mMetrics.onFrameDropped(reason);
+        return false;
+    }
+
+    /**
+     * キューにも退避先にも入らずに捨てたフレーム数
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+}
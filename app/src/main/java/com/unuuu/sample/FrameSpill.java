@@ -0,0 +1,218 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * エンコーダーが追いつかない時にフレームを一時的に退避するファイル
+ *
+ * メモリマップしたファイルを固定長のスロットに分けたリングバッファで、
+ * 1つのスレッドが書き込み、1つのスレッドが読み出す。
+ * ヒープやネイティブのフレームを増やさずに、ファイルの大きさの分だけ遅れを吸収できる。
+ */
+public class FrameSpill {
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final int mFrameSize;
+    private final int mSlotCount;
+    private final ByteBuffer[] mSlots;
+
+    /* ヘッダはヒープに持ち、ファイルにはフレームのデータだけを書く */
+    private final long[] mTimestamps;
+    private final long[] mCaptureNanos;
+    private final int[] mLengths;
+
+    /* 読み出す側が進める位置 */
+    private final AtomicLong mHead = new AtomicLong();
+    /* 書き込む側が進める位置 */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private volatile long mSpilledBytes = 0;
+    private volatile int mHighWaterMark = 0;
+
+    /**
+     * @param file 退避先のファイル、既にある時は上書きする
+     * @param frameSize 1フレームの最大のバイト数
+     * @param capacityBytes ファイルの大きさの上限
+     * @throws IOException ファイルを作れない時
+     */
+    public FrameSpill(File file, int frameSize, long capacityBytes) throws IOException {
+        if (frameSize <= 0) {
+            throw new IllegalArgumentException("frameSize must be positive: " + frameSize);
+        }
+        long slotCount = capacityBytes / frameSize;
+        if (slotCount <= 0) {
+            throw new IllegalArgumentException("capacityBytes must be at least frameSize: " + capacityBytes);
+        }
+        if (slotCount * frameSize > Integer.MAX_VALUE) {
+            // 1つのMappedByteBufferで扱える大きさに収める
+            slotCount = Integer.MAX_VALUE / frameSize;
+        }
+
+        mFile = file;
+        mFrameSize = frameSize;
+        mSlotCount = (int) slotCount;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            long size = (long) mSlotCount * frameSize;
+            mRandomAccessFile.setLength(size);
+            MappedByteBuffer buffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mSlots = new ByteBuffer[mSlotCount];
+            for (int i = 0; i < mSlotCount; i++) {
+                buffer.limit((i + 1) * frameSize).position(i * frameSize);
+                mSlots[i] = buffer.slice();
+            }
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+        mTimestamps = new long[mSlotCount];
+        mCaptureNanos = new long[mSlotCount];
+        mLengths = new int[mSlotCount];
+    }
+
+    /**
+     * 次に書き込むスロットを取得する (書き込む側のスレッドからのみ呼ぶ)
+     *
+     * 書き込んだ後にcommitWriteを呼ぶまで読み出す側には見えない。
+     *
+     * @return 先頭から書き込むバッファ、一杯の時はnull
+     */
+    public ByteBuffer beginWrite() {
+        long tail = mTail.get();
+        if (tail - mHead.get() >= mSlotCount) {
+            return null;
+        }
+        ByteBuffer slot = mSlots[index(tail)];
+        slot.clear();
+        return slot;
+    }
+
+    /**
+     * beginWriteで取得したスロットへの書き込みを確定する (書き込む側のスレッドからのみ呼ぶ)
+     *
+     * @param length 書き込んだバイト数
+     * @param timestamp 録画開始からの経過時間
+     * @param captureNanos カメラから受け取った時のSystem.nanoTime()
+     */
+    public void commitWrite(int length, long timestamp, long captureNanos) {
+        if (length < 0 || length > mFrameSize) {
+            throw new IllegalArgumentException("length out of range: " + length);
+        }
+        long tail = mTail.get();
+        int index = index(tail);
+        mTimestamps[index] = timestamp;
+        mCaptureNanos[index] = captureNanos;
+        mLengths[index] = length;
+        mTail.lazySet(tail + 1);
+
+        mSpilledBytes += length;
+        int size = (int) (tail + 1 - mHead.get());
+        if (size > mHighWaterMark) {
+            mHighWaterMark = size;
+        }
+    }
+
+    /**
+     * 一番古いフレームをプールのフレームに読み出す (読み出す側のスレッドからのみ呼ぶ)
+     *
+     * @param frame 読み出し先のフレーム
+     * @return 読み出せた時はtrue、空の時はfalse
+     */
+    public boolean read(PooledFrame frame) {
+        long head = mHead.get();
+        if (head >= mTail.get()) {
+            return false;
+        }
+        int index = index(head);
+        ByteBuffer slot = mSlots[index];
+        slot.limit(mLengths[index]).position(0);
+
+        Frame dst = frame.getFrame();
+        ByteBuffer dstBuffer = (ByteBuffer) dst.image[0];
+        dstBuffer.clear();
+        dstBuffer.put(slot);
+        dstBuffer.position(0);
+        frame.setTimestamp(mTimestamps[index]);
+        frame.setCaptureNanos(mCaptureNanos[index]);
+
+        mHead.lazySet(head + 1);
+        return true;
+    }
+
+    /**
+     * 退避しているフレーム数
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    /**
+     * 退避できるフレームの最大数
+     */
+    public int getSlotCount() {
+        return mSlotCount;
+    }
+
+    /**
+     * これまでに退避したフレーム数
+     */
+    public long getSpilledCount() {
+        return mTail.get();
+    }
+
+    /**
+     * これまでに退避したバイト数
+     */
+    public long getSpilledBytes() {
+        return mSpilledBytes;
+    }
+
+    /**
+     * 同時に退避していたフレーム数の最大値
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * ファイルを閉じて削除する
+     *
+     * マップしたメモリはGCで回収されるまで残る。
+     *
+     * @throws IOException ファイルを閉じられなかった時 (ファイルは削除する)
+     */
+    public void close() throws IOException {
+        try {
+            mRandomAccessFile.close();
+        } finally {
+            if (!mFile.delete()) {
+                mFile.deleteOnExit();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FrameSpill{slots=" + mSlotCount
+                + ", frameSize=" + mFrameSize
+                + ", spilled=" + getSpilledCount()
+                + ", spilledBytes=" + mSpilledBytes
+                + ", highWaterMark=" + mHighWaterMark + "}";
+    }
+
+    private int index(long position) {
+        return (int) (position % mSlotCount);
+    }
+}
@@ -0,0 +1,128 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacpp.avutil;
+import org.bytedeco.javacv.FFmpegFrameFilter;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameFilter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * libavfilterのグラフの記述をそのまま使うフィルタ
+ *
+ * グラフは準備する時に1回だけ作り、録画の間使い続ける。
+ * 入力のフレームは作っておいたFrameにバッファを差し替えて渡す。
+ * 出力の大きさはグラフを動かすまでわからないので、変わる時は作る時に指定する。
+ */
+public class GraphVideoFilter implements VideoFilter {
+    private final String mDescription;
+    private final int mOutputWidth;
+    private final int mOutputHeight;
+
+    private int mWidth;
+    private int mHeight;
+    private FFmpegFrameFilter mFilter;
+    private Frame mInput;
+
+    /**
+     * 大きさを変えないグラフのフィルタを作る
+     *
+     * @param description グラフの記述 (例: "eq=brightness=0.1,unsharp")
+     */
+    public GraphVideoFilter(String description) {
+        this(description, 0, 0);
+    }
+
+    /**
+     * @param description グラフの記述 (例: "scale=240:240")
+     * @param outputWidth グラフの出力の横幅、0の時は入力と同じ
+     * @param outputHeight グラフの出力の高さ、0の時は入力と同じ
+     */
+    public GraphVideoFilter(String description, int outputWidth, int outputHeight) {
+        mDescription = description;
+        mOutputWidth = outputWidth;
+        mOutputHeight = outputHeight;
+    }
+
+    @Override
+    public String getName() {
+        return "graph(" + mDescription + ")";
+    }
+
+    @Override
+    public void prepare(int width, int height) throws IOException {
+        mWidth = width;
+        mHeight = height;
+        mFilter = new FFmpegFrameFilter(mDescription, width, height);
+        mFilter.setPixelFormat(avutil.AV_PIX_FMT_NV21);
+        try {
+            mFilter.start();
+        } catch (FrameFilter.Exception e) {
+            throw new IOException("failed to start graph: " + mDescription, e);
+        }
+        // FramePoolのフレームと同じ形にして、バッファだけを差し替える
+        mInput = new Frame(width, height, Frame.DEPTH_UBYTE, 2);
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return mOutputWidth > 0 ? mOutputWidth : mWidth;
+    }
+
+    @Override
+    public int getOutputHeight() {
+        return mOutputHeight > 0 ? mOutputHeight : mHeight;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return false;
+    }
+
+    @Override
+    public boolean apply(ByteBuffer src, ByteBuffer dst) throws IOException {
+        mInput.image[0] = src;
+        Frame filtered;
+        try {
+            mFilter.push(mInput);
+            filtered = mFilter.pull();
+        } catch (FrameFilter.Exception e) {
+            throw new IOException("failed to filter: " + mDescription, e);
+        }
+        if (filtered == null) {
+            return false;
+        }
+        if (filtered.imageWidth != getOutputWidth() || filtered.imageHeight != getOutputHeight()) {
+            throw new IOException("graph output " + filtered.imageWidth + "x" + filtered.imageHeight
+                    + " does not match " + getOutputWidth() + "x" + getOutputHeight() + ": " + mDescription);
+        }
+
+        // 行の間に詰め物があるので行毎に詰めてコピーする
+        ByteBuffer output = (ByteBuffer) filtered.image[0];
+        int width = getOutputWidth();
+        int rows = getOutputHeight() * 3 / 2;
+        int stride = filtered.imageStride;
+        for (int row = 0; row < rows; row++) {
+            output.limit(row * stride + width).position(row * stride);
+            dst.put(output);
+        }
+        output.clear();
+        dst.flip();
+        return true;
+    }
+
+    @Override
+    public void release() {
+        if (mFilter == null) {
+            return;
+        }
+        try {
+            mFilter.stop();
+            mFilter.release();
+        } catch (FrameFilter.Exception e) {
+            // 録画は終わっているので解放できなくても続ける
+        }
+        mFilter = null;
+    }
+}
@@ -1,53 +1,108 @@
 package com.unuuu.sample;
 
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
-import android.text.format.DateUtils;
 import android.util.Log;
 import android.view.TextureView;
 import android.view.ViewGroup;
 
-import org.bytedeco.javacpp.avutil;
-import org.bytedeco.javacv.FFmpegFrameFilter;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
-import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
 
-import java.nio.ByteBuffer;
-import java.nio.ShortBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
 
-public class HolaModel implements TextureView.SurfaceTextureListener, Camera.PreviewCallback {
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.schedulers.Schedulers;
+
+public class HolaModel implements TextureView.SurfaceTextureListener, VideoSource.Callback {
 
     private static final String CLASS_LABEL = "HolaModel";
     private static final String LOG_TAG = CLASS_LABEL;
     private static final String OUTPUT_PATH = "/mnt/sdcard/stream.mp4";
+    private static final String JOURNAL_PATH = "/mnt/sdcard/stream.ts";
+    private static final String SEGMENT_DIRECTORY = "/mnt/sdcard/segments";
+    private static final int DEFAULT_SEGMENT_SECONDS = 2;
     private static final int BASE_VIDEO_WIDTH = 480;
     private static final int BASE_VIDEO_HEIGHT = 480;
-    private static final int MAX_RECORD_SECONDS = 5;
+    private static final int DEFAULT_MAX_RECORD_SECONDS = 5;
+    private static final int DEFAULT_FRAME_QUEUE_CAPACITY = 10;
+    private static final int CALLBACK_BUFFER_COUNT = 3;
+    /* AACの1パケットのサンプル数 */
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final int DEFAULT_AUDIO_LATENCY_MILLIS = 100;
+    private static final int AUDIO_CHUNK_COUNT = 4;
 
     private CameraRepository mCameraRepository;
     private RecorderRepository mRecorderRepository;
 
     private Camera mCamera;
-    private FFmpegFrameRecorder mRecorder;
-    private long mStartTime = 0;
+    private FrameRecorder mRecorder;
 
-    /* audio data getting thread */
-    private AudioRecord mAudioRecord;
-    volatile boolean mIsRunRecordThread = false;
-    private RecordRunnable mRecordRunnable;
-    private Thread mRecordThread;
+    private MicAudioSource mAudioSource;
+    private RecordPipeline mRecordPipeline;
+    private RecordTimestamper mTimestamper;
 
     private boolean mIsRecording = false;
+    private long mRecordStartNanos;
+    private StartupTimer mStartupTimer;
+    private StartupTimer.Listener mStartupListener;
+    private long mStartupBudgetNanos = 0;
+    private Observable<Boolean> mNativeLoader;
+    private boolean mIsStarting = false;
+    private boolean mIsStartCancelled = false;
+    private long mCapturedFrameCount;
+    private long mDroppedFrameCount;
+    private RecordingMetrics mRecordingMetrics = RecordingMetrics.NONE;
+    private final EncoderQualityController mQualityController;
+    private int mMaxRecordSeconds = DEFAULT_MAX_RECORD_SECONDS;
     private int mMaxFrameIndex;
     private int mFrameIndex;
 
-    private List<Long> mQueueTimestamps;
-    private List<Frame> mQueueImageFrames;
+    private SpscRingBuffer<PooledFrame> mFrameQueue;
+    private int mFrameQueueCapacity = DEFAULT_FRAME_QUEUE_CAPACITY;
+    private SpscRingBuffer.BackpressurePolicy mBackpressurePolicy = SpscRingBuffer.BackpressurePolicy.DROP_OLDEST;
+    private FramePool mFramePool;
+    private CameraVideoSource mVideoSource;
+    private FrameQueueWriter mFrameWriter;
+
+    private int mAudioLatencyMillis = DEFAULT_AUDIO_LATENCY_MILLIS;
+
+    private long mFrameMemoryLimit = 0;
+    private File mSpillFile;
+    private long mSpillFileBytes = 0;
+    private FrameSpill mFrameSpill;
+
+    private RecordPipeline.CropEngine mCropEngine = RecordPipeline.CropEngine.JAVA;
+    private Nv21Cropper mCropper;
+    private int mVideoRotation = 0;
+    private boolean mVideoMirror = false;
+
+    /* アプリが終了されても録画を失わないように、索引を残しながら書き込む形式を既定にする */
+    private RecorderRepository.OutputMode mOutputMode = RecorderRepository.OutputMode.JOURNALED;
+    private EncoderBackend mEncoderBackend;
+    private EncoderTuning mEncoderTuning = EncoderTuning.DEFAULT;
+    private int mSegmentSeconds = DEFAULT_SEGMENT_SECONDS;
+    private SegmentedRecorder.OnSegmentListener mSegmentListener;
+
+    private int mPreRollSeconds = 0;
+    private int mPreRollBytes = 0;
+    private PacketRing mPreRoll;
+    private boolean mIsPreRolling = false;
+
+    private final List<ExtraOutput> mExtraOutputs = new ArrayList<>();
+    private final List<VideoFilter> mVideoFilters = new ArrayList<>();
+    private VideoFilterChain mFilterChain;
+    private int mMotionThreshold = 0;
+    private long mMotionStaticIntervalNanos = Long.MAX_VALUE;
+    private MotionDetector.Listener mMotionListener;
+    private MotionDetector mMotionDetector;
+    private RecordSessionManager mSessionManager;
 
     private int mPreviewWidth = 0;
     private int mPreviewHeight = 0;
@@ -62,26 +117,211 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
         void onStart();
         void onCancel();
         void onFinish();
+
+        /**
+         * 録画が終わった時に計測結果を受け取る (onFinish、onCancelの前に呼ばれる)
+         */
+        void onSummary(RecordingSummary summary);
     }
 
     private OnRecordInfoListener mRecordInfoListener;
 
     public HolaModel() {
-        mCameraRepository = new CameraRepository();
+        this(null);
+    }
+
+    /**
+     * @param capabilityCache カメラの情報のキャッシュ、nullの時は毎回カメラから取得する
+     */
+    public HolaModel(CameraCapabilityCache capabilityCache) {
+        mCameraRepository = new CameraRepository(capabilityCache);
         mRecorderRepository = new RecorderRepository();
+
+        // 録画をまたいで判定を引き継ぎ、プリセットなどは次のレコーダーを作る時に反映する
+        mQualityController = new EncoderQualityController(EncoderQualityController.DEFAULT_LEVELS, RecorderRepository.FRAME_RATE);
+        mQualityController.setOnDecisionListener(decision -> {
+            if (EncoderQualityController.Action.HOLD == decision.getAction()) {
+                Log.d(LOG_TAG, "エンコーダーの設定: " + decision);
+            } else {
+                Log.i(LOG_TAG, "エンコーダーの設定: " + decision);
+            }
+        });
     }
 
     /**
      * 録画を開始する
+     * プリロール中の時は溜めておいた直近の映像から書き込み始める
      *
      * @param textureView プレビューを表示するView
      */
     public void startRecording(TextureView textureView) {
+        if (mIsPreRolling) {
+            startRecordingFromPreRoll();
+            return;
+        }
+        open(textureView, false);
+    }
+
+    /**
+     * 録画を始める前からカメラとエンコーダーを動かし、直近のエンコード済みのパケットを溜めておく
+     * startRecordingを呼ぶと溜めた分から書き込み、cancelRecordingを呼ぶと何も書かずに止める
+     * ハードウェアエンコーダーが使えない時はプリロールせずに何もしない
+     *
+     * @param textureView プレビューを表示するView
+     */
+    public void startPreRoll(TextureView textureView) {
+        if (mIsRecording || mPreRollSeconds <= 0) {
+            return;
+        }
+        open(textureView, true);
+    }
+
+    /**
+     * カメラとエンコーダーを開始する
+     *
+     * @param textureView プレビューを表示するView
+     * @param isPreRoll プリロールとして開始するかどうか
+     */
+    private void open(TextureView textureView, boolean isPreRoll) {
+        mStartupTimer = new StartupTimer(MediaClock.SYSTEM, mStartupBudgetNanos, mStartupListener);
+        mStartupTimer.start();
+        if (!openCamera() || !prepareRecorder(isPreRoll)) {
+            return;
+        }
+        startRecorder();
+        showPreview(textureView, isPreRoll);
+    }
+
+    /**
+     * 録画を別のスレッドで開始する
+     *
+     * ネイティブライブラリの読み込みとカメラを開くのを並行して行い、
+     * レコーダーの開始まで終わったらメインスレッドでプレビューを開始する。
+     * カメラはLooperのないスレッドで開くので、プレビューのフレームはメインスレッドで受け取る。
+     * 各段階の時間はsetOnStartupListenerのリスナーに渡す。
+     * メインスレッドから呼ぶ。
+     *
+     * @param textureView プレビューを表示するView
+     */
+    public void startRecordingAsync(TextureView textureView) {
+        if (mIsPreRolling) {
+            startRecordingFromPreRoll();
+            return;
+        }
+        if (mIsStarting || mIsRecording) {
+            return;
+        }
+        mIsStarting = true;
+        mIsStartCancelled = false;
+
+        StartupTimer timer = new StartupTimer(MediaClock.SYSTEM, mStartupBudgetNanos, mStartupListener);
+        mStartupTimer = timer;
+        timer.start();
+
+        Observable<Boolean> natives = getNativeLoader()
+                .doOnNext(isLoaded -> timer.finishPhase(StartupTimer.Phase.LOAD_NATIVES, timer.getStartNanos()));
+        Observable<Boolean> camera = Observable.defer(() -> Observable.just(openCamera()))
+                .subscribeOn(Schedulers.io());
+
+        Observable.zip(natives, camera, (isLoaded, isOpened) -> {
+            if (!isLoaded) {
+                // FFmpegが使えないのでレコーダーを作らず、開いたカメラを閉じる
+                if (isOpened) {
+                    mCamera.release();
+                    mCamera = null;
+                }
+                return false;
+            }
+            return isOpened && prepareRecorder(false);
+        })
+                .observeOn(Schedulers.io())
+                .map(isPrepared -> {
+                    if (isPrepared) {
+                        startRecorder();
+                    }
+                    return isPrepared;
+                })
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(isPrepared -> {
+                    mIsStarting = false;
+                    if (!isPrepared) {
+                        return;
+                    }
+                    if (mIsStartCancelled) {
+                        // 開始中に中断されたので、開始したものを止める
+                        mIsPreRolling = false;
+                        cancelRecording();
+                        return;
+                    }
+                    showPreview(textureView, false);
+                }, e -> {
+                    mIsStarting = false;
+                    Log.e(LOG_TAG, "録画を開始できません: " + e.getMessage());
+                    if (mCamera != null && !mIsRecording) {
+                        mCamera.release();
+                        mCamera = null;
+                    }
+                });
+    }
+
+    /**
+     * FFmpegのネイティブライブラリを別のスレッドで読み込んでおく
+     * 録画を開始する前に呼んでおくと、開始する時に読み込みを待たない
+     */
+    public void prewarm() {
+        getNativeLoader().subscribe(isLoaded -> {
+        }, e -> Log.e(LOG_TAG, "ネイティブライブラリを読み込めません: " + e.getMessage()));
+    }
+
+    /**
+     * 前回の録画が停止しないまま終わっていた時は、別のスレッドで再生できる長さに切り詰める
+     * 録画を開始する前に呼ぶ
+     *
+     * @return 復旧の結果をメインスレッドで返すObservable、復旧するものがない時はnullを返す
+     */
+    public Observable<RecordingJournal.Recovery> recoverInterruptedRecording() {
+        return Observable.defer(() -> {
+            try {
+                return Observable.just(RecordingJournal.recover(new File(JOURNAL_PATH)));
+            } catch (IOException e) {
+                return Observable.<RecordingJournal.Recovery>error(e);
+            }
+        }).subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * ネイティブライブラリを1回だけ読み込み、読み込めたかどうかを返す
+     */
+    private synchronized Observable<Boolean> getNativeLoader() {
+        if (mNativeLoader == null) {
+            mNativeLoader = Observable.defer(() -> {
+                long startTime = System.nanoTime();
+                try {
+                    FFmpegFrameRecorder.tryLoad();
+                } catch (FrameRecorder.Exception e) {
+                    Log.e(LOG_TAG, "ネイティブライブラリを読み込めません: " + e.getMessage());
+                    return Observable.just(false);
+                }
+                // コーデックの一覧は最初の取得に時間がかかるので、ここで済ませておく
+                EncoderProbe.findAvcEncoder(BASE_VIDEO_WIDTH, BASE_VIDEO_HEIGHT);
+                Log.d(LOG_TAG, "ネイティブライブラリの読み込み: " + (System.nanoTime() - startTime) / 1000000L + "ms");
+                return Observable.just(true);
+            }).subscribeOn(Schedulers.io()).cache();
+        }
+        return mNativeLoader;
+    }
+
+    /**
+     * カメラを開いて録画する映像の大きさを決める
+     *
+     * @return カメラを開けたかどうか
+     */
+    private boolean openCamera() {
+        long startTime = mStartupTimer.now();
         mCamera = mCameraRepository.getCamera(CameraRepository.CameraType.REAR, BASE_VIDEO_WIDTH, BASE_VIDEO_HEIGHT);
         if (mCamera == null) {
-            return;
+            return false;
         }
-        textureView.setSurfaceTextureListener(this);
 
         Camera.Parameters parameters = mCamera.getParameters();
         Camera.Size previewSize = parameters.getPreviewSize();
@@ -96,18 +336,187 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
             mVideoWidth = mPreviewHeight;
             mVideoHeight = mPreviewHeight;
         }
+        mStartupTimer.finishPhase(StartupTimer.Phase.OPEN_CAMERA, startTime);
+        return true;
+    }
 
-        mRecorder = mRecorderRepository.getRecorder(OUTPUT_PATH, mVideoWidth, mVideoHeight);
+    /**
+     * レコーダーとフレームのプールを作る
+     *
+     * @param isPreRoll プリロールとして開始するかどうか
+     * @return 作れたかどうか、作れなかった時はカメラを解放する
+     */
+    private boolean prepareRecorder(boolean isPreRoll) {
+        // 90度、270度回転する時は録画する映像の縦横が入れ替わる
+        int outputWidth = mVideoWidth;
+        int outputHeight = mVideoHeight;
+        if (mVideoRotation == 90 || mVideoRotation == 270) {
+            outputWidth = mVideoHeight;
+            outputHeight = mVideoWidth;
+        }
 
-        mRecordRunnable = new RecordRunnable(mRecorder.getSampleRate());
-        mRecordThread = new Thread(mRecordRunnable);
-        mIsRunRecordThread = true;
+        File output;
+        if (RecorderRepository.OutputMode.SINGLE_FILE == mOutputMode) {
+            output = new File(OUTPUT_PATH);
+        } else if (RecorderRepository.OutputMode.JOURNALED == mOutputMode) {
+            output = new File(JOURNAL_PATH);
+        } else {
+            output = new File(SEGMENT_DIRECTORY);
+            if (!output.isDirectory() && !output.mkdirs()) {
+                Log.e(LOG_TAG, "出力先のディレクトリを作れません: " + output);
+                mCamera.release();
+                mCamera = null;
+                return false;
+            }
+        }
+        // フィルタで大きさが変わる時はフィルタの出力の大きさで録画する
+        int recordWidth = outputWidth;
+        int recordHeight = outputHeight;
+        mFilterChain = null;
+        if (!mVideoFilters.isEmpty()) {
+            try {
+                mFilterChain = new VideoFilterChain(outputWidth, outputHeight, mVideoFilters);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(LOG_TAG, "映像のフィルタを準備できません: " + e.getMessage());
+                mCamera.release();
+                mCamera = null;
+                return false;
+            }
+            recordWidth = mFilterChain.getOutputWidth();
+            recordHeight = mFilterChain.getOutputHeight();
+            Log.d(LOG_TAG, mFilterChain.toString());
+        }
+
+        mRecorder = createRecorder(output, recordWidth, recordHeight, isPreRoll);
+        if (mRecorder == null) {
+            releaseFilterChain();
+            mCamera.release();
+            mCamera = null;
+            return false;
+        }
+        Log.d(LOG_TAG, "エンコーダーの設定: " + mQualityController.getLevel());
+
+        // プリロールは書き込みを始めるまでファイルを作らないので、同時に録画する出力は使わない
+        mSessionManager = null;
+        if (!isPreRoll && !mExtraOutputs.isEmpty()) {
+            mSessionManager = new RecordSessionManager(recordWidth, recordHeight, mSessionCallback);
+            for (ExtraOutput extra : mExtraOutputs) {
+                RecorderRepository repository = new RecorderRepository(extra.mVideoBitrate);
+                repository.setEncoderTuning(mRecorderRepository.getEncoderTuning());
+                int width = Math.min(extra.mWidth, recordWidth);
+                int height = Math.min(extra.mHeight, recordHeight);
+                if (extra.mDestination != null) {
+                    try {
+                        mSessionManager.addSession("live-" + extra.mDestination.getPort(), repository.getLiveRecorder(
+                                extra.mDestination, width, height, LiveSender.DEFAULT_QUEUE_PACKETS),
+                                RecordSession.DEFAULT_QUEUE_CAPACITY);
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "配信の出力を準備できません: " + e.getMessage());
+                    }
+                    continue;
+                }
+                FFmpegFrameRecorder recorder = repository.getRecorder(extra.mFile.getAbsolutePath(), width, height);
+                mSessionManager.addSession(extra.mFile.getName(), recorder, RecordSession.DEFAULT_QUEUE_CAPACITY);
+            }
+        }
 
+        // プリロール中は録画を開始した時から数える
         mFrameIndex = 0;
-        mMaxFrameIndex = MAX_RECORD_SECONDS * (int)(mRecorder.getFrameRate());
+        mMaxFrameIndex = isPreRoll ? Integer.MAX_VALUE : getMaxFrameIndex();
+
+        // プレビューのフレームとカメラのバッファは録画中に使い回す
+        // キューの分に加えて書き込み中と録画中の分を確保する
+        int frameWidth;
+        int frameHeight;
+        int extraFrameCount;
+        if (RecordPipeline.CropEngine.JAVA == mCropEngine) {
+            // 切り抜いたフレームは書き込みのステージまでそのまま渡るのでその分も確保する
+            mCropper = new Nv21Cropper(mPreviewWidth, mPreviewHeight, mVideoWidth, mVideoHeight, mVideoRotation, mVideoMirror);
+            frameWidth = outputWidth;
+            frameHeight = outputHeight;
+            extraFrameCount = RecordPipeline.VIDEO_QUEUE_CAPACITY + 2
+                    + (mSessionManager != null ? mSessionManager.getHeldFrameCount() : 0);
+        } else {
+            mCropper = null;
+            frameWidth = mPreviewWidth;
+            frameHeight = mPreviewHeight;
+            extraFrameCount = 2;
+        }
+        int callbackBufferSize = mPreviewWidth * mPreviewHeight * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        mVideoSource = new CameraVideoSource(mCamera, mPreviewWidth, mPreviewHeight, mRecorder.getFrameRate(),
+                CALLBACK_BUFFER_COUNT);
+
+        mFrameSpill = null;
+        if (mSpillFile != null) {
+            int spillFrameSize = mCropper != null ? mCropper.getOutputSize() : callbackBufferSize;
+            try {
+                mFrameSpill = new FrameSpill(mSpillFile, spillFrameSize, mSpillFileBytes);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "フレームの退避先を作れません: " + e.getMessage());
+            }
+        }
 
-        mQueueTimestamps = new ArrayList<>();
-        mQueueImageFrames = new ArrayList<>();
+        // メモリの上限がある時は、退避したフレームを読み出す分も含めて上限に収まるキューの大きさにする
+        int frameQueueCapacity = mFrameQueueCapacity;
+        if (mFrameMemoryLimit > 0) {
+            long frameCount = mFrameMemoryLimit / FramePool.frameBytes(frameWidth, frameHeight) - extraFrameCount
+                    - (mFrameSpill != null ? RecordPipeline.SPILL_READ_FRAME_COUNT : 0);
+            if (frameCount < 1) {
+                Log.w(LOG_TAG, "フレームのメモリの上限が小さすぎます: " + mFrameMemoryLimit);
+            }
+            frameQueueCapacity = (int) Math.max(1, Math.min(frameCount, Integer.MAX_VALUE));
+        }
+
+        // 退避する時は一杯のキューに追加しないので、捨てずに追加しようとした要素を返すようにする
+        mFrameQueue = new SpscRingBuffer<>(frameQueueCapacity,
+                mFrameSpill != null ? SpscRingBuffer.BackpressurePolicy.DROP_NEWEST : mBackpressurePolicy);
+        mFramePool = new FramePool(frameWidth, frameHeight, frameQueueCapacity + extraFrameCount);
+        return true;
+    }
+
+    /**
+     * レコーダーを開始し、録画のパイプラインを開始する
+     */
+    private void startRecorder() {
+        long startTime = mStartupTimer.now();
+        try {
+            mRecorder.start();
+            mIsRecording = true;
+            startSessions();
+            mStartupTimer.finishPhase(StartupTimer.Phase.START_RECORDER, startTime);
+
+            startTime = mStartupTimer.now();
+            startRecordPipeline();
+            mStartupTimer.finishPhase(StartupTimer.Phase.START_PIPELINE, startTime);
+        } catch (FrameRecorder.Exception | IOException e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * 同時に録画する出力を開始する、開始できない時は録画する出力だけで続ける
+     */
+    private void startSessions() {
+        if (mSessionManager == null) {
+            return;
+        }
+        try {
+            mSessionManager.start();
+        } catch (FrameRecorder.Exception e) {
+            Log.e(LOG_TAG, "同時に録画する出力を開始できません: " + e.getMessage());
+            mSessionManager = null;
+        }
+    }
+
+    /**
+     * プレビューの大きさを合わせてプレビューを開始する、メインスレッドから呼ぶ
+     *
+     * @param textureView プレビューを表示するView
+     * @param isPreRoll プリロールとして開始したかどうか
+     */
+    private void showPreview(TextureView textureView, boolean isPreRoll) {
+        long startTime = mStartupTimer.now();
+        textureView.setSurfaceTextureListener(this);
 
         // SurfaceViewの縦横比をプレビューの縦横比に合わせる
         ViewGroup.MarginLayoutParams layoutParams = (ViewGroup.MarginLayoutParams)textureView.getLayoutParams();
@@ -130,33 +539,54 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
 
         Log.d(LOG_TAG, "TextureViewのサイズ: " + previewLayoutWidth + ", " + previewLayoutHeight);
 
-        try {
-            mRecorder.start();
-            mStartTime = System.currentTimeMillis();
-            mIsRecording = true;
-            mRecordThread.start();
-        } catch (FFmpegFrameRecorder.Exception e) {
-            Log.e(LOG_TAG, e.getMessage());
-        }
-
         if (textureView.isAvailable()) {
             startPreview(textureView.getSurfaceTexture());
         }
+        mStartupTimer.finishPhase(StartupTimer.Phase.START_PREVIEW, startTime);
 
+        if (isPreRoll) {
+            mIsPreRolling = mIsRecording;
+            return;
+        }
         if (mRecordInfoListener != null) {
             mRecordInfoListener.onStart();
         }
     }
 
+    /**
+     * プリロール中のレコーダーにファイルへの書き込みを始めさせる
+     * 切り替えは書き込みのスレッドで行われ、溜めたパケットは最初のキーフレームから書き込まれる
+     */
+    private void startRecordingFromPreRoll() {
+        mIsPreRolling = false;
+        mFrameIndex = 0;
+        mMaxFrameIndex = getMaxFrameIndex();
+        ((MediaCodecRecorder) mRecorder).requestOutput();
+
+        if (mRecordInfoListener != null) {
+            mRecordInfoListener.onStart();
+        }
+    }
+
+    private int getMaxFrameIndex() {
+        return mMaxRecordSeconds > 0 ? mMaxRecordSeconds * (int)(mRecorder.getFrameRate()) : Integer.MAX_VALUE;
+    }
+
     /**
      * 録画を中断する
      */
     public void cancelRecording() {
+        if (mIsStarting) {
+            // 開始し終わった時に止める
+            mIsStartCancelled = true;
+            return;
+        }
         if (mRecorder != null && mIsRecording) {
             mIsRecording = false;
+            mIsPreRolling = false;
 
             stopPreview();
-            releaseRecordThread();
+            releaseRecordPipeline();
             releaseRecorder();
 
             Log.v(LOG_TAG,"Finishing recording, calling stop and release on recorder");
@@ -171,11 +601,16 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
      * 録画を止める
      */
     public void stopRecording() {
+        if (mIsPreRolling) {
+            // 書き込みを始めていないので何も残さずに止める
+            cancelRecording();
+            return;
+        }
         if (mRecorder != null && mIsRecording) {
             mIsRecording = false;
 
             stopPreview();
-            releaseRecordThread();
+            releaseRecordPipeline();
             releaseRecorder();
 
             Log.v(LOG_TAG,"Finishing recording, calling stop and release on recorder");
@@ -187,115 +622,233 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
     }
 
     /**
-     * 録画のスレッドを解放する
+     * エンコーダーの実装を選んでレコーダーを作る
+     * MediaMuxerはフラグメント化したMP4とMPEG-TSを書けないので、区切る形式の時はFFmpegを使う
+     *
+     * @param output 出力先
+     * @param width 録画する映像の横幅
+     * @param height 録画する映像の高さ
+     * @param isPreRoll プリロールするかどうか
+     * @return レコーダー、プリロールするのにハードウェアエンコーダーが使えない時はnull
      */
-    private void releaseRecordThread() {
-        mIsRunRecordThread = false;
-        if (mRecordThread != null) {
-            try {
-                mRecordThread.join();
-            } catch (InterruptedException e) {
-                Log.e(LOG_TAG, e.toString());
+    private FrameRecorder createRecorder(File output, int width, int height, boolean isPreRoll) {
+        // MediaCodecで録画する時も同時に録画する出力はFFmpegなので先に決める
+        mRecorderRepository.setEncoderTuning(mEncoderTuning);
+        EncoderProbe.Capability capability = null;
+        if (RecorderRepository.OutputMode.SINGLE_FILE == mOutputMode && EncoderBackend.FFMPEG != mEncoderBackend) {
+            capability = EncoderProbe.findAvcEncoder(width, height);
+            if (capability == null && EncoderBackend.MEDIA_CODEC == mEncoderBackend) {
+                Log.w(LOG_TAG, "ハードウェアエンコーダーが使えないのでFFmpegで録画します");
             }
         }
-        mRecordRunnable = null;
-        mRecordThread = null;
-    }
 
-    /**
-     * レコーダーを解放する
-     */
-    private void releaseRecorder() {
-        try {
-            mRecorder.stop();
-            mRecorder.release();
-        } catch (FFmpegFrameRecorder.Exception e) {
-            Log.e(LOG_TAG, e.getMessage());
+        // FFmpegFrameRecorderはエンコードしたパケットを取り出せないので、プリロールはMediaCodecだけで行う
+        mPreRoll = null;
+        if (isPreRoll && capability == null) {
+            Log.w(LOG_TAG, "ハードウェアエンコーダーが使えないのでプリロールできません");
+            return null;
         }
-        mRecorder = null;
 
-        mCamera.release();
-        mCamera = null;
+        if (capability == null) {
+            Log.d(LOG_TAG, "エンコーダー: " + EncoderBackend.FFMPEG + " " + mRecorderRepository.getEncoderTuning());
+            return mRecorderRepository.getRecorder(mOutputMode, output, width, height,
+                    mQualityController.getLevel(), mSegmentSeconds, mSegmentListener);
+        }
+
+        Log.d(LOG_TAG, "エンコーダー: " + EncoderBackend.MEDIA_CODEC + " " + capability);
+        MediaCodecRecorder recorder = new MediaCodecRecorder(output.getAbsolutePath(), width, height, 1, capability);
+        mRecorderRepository.configure(recorder, mQualityController.getLevel());
+        if (isPreRoll) {
+            // キーフレームの間隔の分だけ長く持つので、パケットの数はその分と音声の分も含めて確保する
+            int packetsPerSecond = (int) Math.ceil(recorder.getFrameRate())
+                    + recorder.getSampleRate() / AAC_FRAME_SAMPLES + 1;
+            mPreRoll = new PacketRing(mPreRollBytes, packetsPerSecond * (mPreRollSeconds + 1) * 2,
+                    mPreRollSeconds * 1000000L);
+            recorder.setPreRoll(mPreRoll);
+        }
+        return recorder;
     }
 
     /**
-     * 録画録画するクラス
+     * 音声の録音を開始し、録画のパイプラインを開始する
      */
-    private class RecordRunnable implements Runnable {
-        private int mSamplingRate;
+    private void startRecordPipeline() throws IOException {
+        int sampleRate = mRecorder.getSampleRate();
+        int minBufferSize = MicAudioSource.getMinBufferSize(sampleRate);
+
+        // 1回には最小のバッファの半分を読み込み、遅延の目標に収まるだけまとめて書き込む
+        // 書き込みを待つ間にあふれないように、録音のバッファはまとめる分の2つ分にする
+        int readSamples = Math.max(1, minBufferSize / AudioBufferPool.BYTES_PER_SAMPLE / 2);
+        AudioBufferPool audioBuffers = new AudioBufferPool(readSamples,
+                AudioBufferPool.readsForLatency(sampleRate, readSamples, mAudioLatencyMillis), AUDIO_CHUNK_COUNT);
+        int bufferSize = Math.max(minBufferSize, audioBuffers.getChunkSamples() * AudioBufferPool.BYTES_PER_SAMPLE * 2);
+        Log.d(LOG_TAG, audioBuffers.toString());
+        mAudioSource = new MicAudioSource(sampleRate, bufferSize);
+
+        // 音声の最初のサンプルを録画の開始時刻にする
+        mTimestamper = new RecordTimestamper(MediaClock.SYSTEM, mRecorder.getFrameRate(), sampleRate);
+        mTimestamper.start();
+        mAudioSource.start();
 
-        public RecordRunnable(int samplingRate) {
-            mSamplingRate = samplingRate;
+        mRecordStartNanos = System.nanoTime();
+        mCapturedFrameCount = 0;
+        mDroppedFrameCount = 0;
+        mFrameWriter = new FrameQueueWriter(mFramePool, mFrameQueue, mCropper, mFrameSpill, mRecordingMetrics);
+        mMotionDetector = null;
+        if (mMotionThreshold > 0) {
+            mMotionDetector = new MotionDetector(mPreviewWidth, mPreviewHeight, mMotionThreshold,
+                    mMotionStaticIntervalNanos);
+            mMotionDetector.setListener(mMotionListener);
         }
 
-        @Override
-        public void run() {
-            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
-
-            int bufferSize = AudioRecord.getMinBufferSize(mSamplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
-            mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mSamplingRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
-            mAudioRecord.startRecording();
-
-            String command = String.format("crop=%d:%d:%d:%d", mVideoWidth, mVideoHeight,
-                    (mPreviewWidth - mVideoWidth) / 2, (mPreviewHeight - mVideoHeight) / 2);
-            FFmpegFrameFilter filter = new FFmpegFrameFilter(command, mPreviewWidth, mPreviewHeight);
-            filter.setPixelFormat(avutil.AV_PIX_FMT_NV21);
-
-            ShortBuffer audioData;
-            int bufferReadResult;
-            while (hasRecordingQueue()) {
-                if (0 < mQueueTimestamps.size()) {
-                    long t = mQueueTimestamps.get(0);
-                    if (t > mRecorder.getTimestamp()) {
-                        mRecorder.setTimestamp(t);
-                    }
-                    mQueueTimestamps.remove(0);
-                }
+        mRecordPipeline = new RecordPipeline(mRecorder, mFrameQueue, mAudioSource, audioBuffers,
+                mPreviewWidth, mPreviewHeight, mVideoWidth, mVideoHeight,
+                mCropEngine, mVideoRotation, mVideoMirror, mPipelineCallback);
+        mRecordPipeline.setRecordingMetrics(mRecordingMetrics);
+        mRecordPipeline.setQualityController(mQualityController);
+        mRecordPipeline.setFrameSpill(mFrameSpill);
+        mRecordPipeline.setTimestamper(mTimestamper);
+        mRecordPipeline.setSessionManager(mSessionManager);
+        mRecordPipeline.setFilterChain(mFilterChain);
+        mRecordPipeline.start();
+    }
 
-                if (0 < mQueueImageFrames.size()) {
-                    try {
-                        filter.start();
-                        filter.push(mQueueImageFrames.get(0));
-                        mRecorder.record(filter.pull());
-                        filter.stop();
-                    } catch (FFmpegFrameFilter.Exception | FFmpegFrameRecorder.Exception e) {
-                        Log.e(LOG_TAG, e.getMessage());
+    /**
+     * 録画のパイプラインを止めて音声の録音を解放する
+     */
+    private void releaseRecordPipeline() {
+        if (mRecordPipeline != null) {
+            try {
+                mRecordPipeline.stop();
+                if (mSessionManager != null) {
+                    mSessionManager.stop();
+                }
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, e.toString());
+            }
+            if (mSessionManager != null) {
+                for (RecordSession session : mSessionManager.getSessions()) {
+                    Log.d(LOG_TAG, session.toString());
+                    Log.d(LOG_TAG, session.getEncodeLatency().toString());
+                    if (session.getRecorder() instanceof LiveRecorder) {
+                        Log.d(LOG_TAG, ((LiveRecorder) session.getRecorder()).getSender().toString());
                     }
-                    mQueueImageFrames.remove(0);
                 }
-
-                if (!mIsRunRecordThread) {
-                    continue;
+                mSessionManager = null;
+            }
+            Log.d(LOG_TAG, mRecordPipeline.getAudioReadLatency().toString());
+            Log.d(LOG_TAG, mRecordPipeline.getVideoFilterLatency().toString());
+            Log.d(LOG_TAG, mRecordPipeline.getMuxVideoLatency().toString());
+            Log.d(LOG_TAG, mRecordPipeline.getMuxAudioLatency().toString());
+            Log.d(LOG_TAG, mRecordPipeline.getCaptureToEncodeLatency().toString());
+            if (mFilterChain != null) {
+                for (LatencyHistogram latency : mFilterChain.getFilterLatencies()) {
+                    Log.d(LOG_TAG, latency.toString());
                 }
+                Log.d(LOG_TAG, mFilterChain.getTotalLatency().toString());
+            }
+            Log.d(LOG_TAG, "音声: 書き込み" + mRecordPipeline.getAudioRecordCount()
+                    + "回, 読み捨て" + mRecordPipeline.getAudioOverrunCount()
+                    + "回 (" + mRecordPipeline.getDroppedAudioSampleCount() + "サンプル)");
+            Log.d(LOG_TAG, mTimestamper.toString());
+            if (mMotionDetector != null) {
+                Log.d(LOG_TAG, mMotionDetector.toString());
+            }
 
-                audioData = ShortBuffer.allocate(bufferSize);
-                audioData.position(0).limit(0);
+            RecordingSummary summary = new RecordingSummary(
+                    (System.nanoTime() - mRecordStartNanos) / 1000000L,
+                    mCapturedFrameCount, mRecordPipeline.getEncodedFrameCount(),
+                    mDroppedFrameCount + mRecordPipeline.getDroppedVideoFrameCount(),
+                    mRecorder.getFrameRate(), mRecordPipeline.getCaptureToEncodeLatency(),
+                    mFrameQueue.getHighWaterMark(), mRecordPipeline.getAudioOverrunCount(),
+                    getFrameMemoryBytes(), mFrameSpill,
+                    mStartupTimer.getTotalNanos() >= 0 ? mStartupTimer.getTotalNanos() / 1000000L : -1);
+            Log.d(LOG_TAG, summary.toString());
+            if (mRecordInfoListener != null) {
+                mRecordInfoListener.onSummary(summary);
+            }
+            mRecordPipeline = null;
+        }
 
-                bufferReadResult = mAudioRecord.read(audioData.array(), 0, audioData.capacity());
-                audioData.limit(bufferReadResult);
+        if (mPreRoll != null) {
+            Log.d(LOG_TAG, mPreRoll.toString());
+        }
 
-                try {
-                    mRecorder.recordSamples(audioData);
-                } catch (FFmpegFrameRecorder.Exception e) {
-                    Log.e(LOG_TAG, e.getMessage());
-                }
+        if (mFrameSpill != null) {
+            Log.d(LOG_TAG, mFrameSpill.toString());
+            try {
+                mFrameSpill.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "フレームの退避先を閉じられません: " + e.getMessage());
             }
+            mFrameSpill = null;
+        }
+        releaseFilterChain();
 
-            if (mAudioRecord != null) {
-                mAudioRecord.stop();
-                mAudioRecord.release();
-                mAudioRecord = null;
-            }
+        if (mAudioSource != null) {
+            mAudioSource.stop();
+            mAudioSource = null;
         }
+        mFrameWriter = null;
+        mMotionDetector = null;
     }
 
+    private void releaseFilterChain() {
+        if (mFilterChain != null) {
+            mFilterChain.release();
+            mFilterChain = null;
+        }
+    }
+
+    private final RecordPipeline.Callback mPipelineCallback = new RecordPipeline.Callback() {
+        @Override
+        public void onStageStarted(RecordPipeline.Stage stage) {
+            if (RecordPipeline.Stage.AUDIO_CAPTURE == stage) {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+            } else {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO);
+            }
+        }
+
+        @Override
+        public void onError(RecordPipeline.Stage stage, Exception e) {
+            Log.e(LOG_TAG, stage + ": " + e.getMessage());
+        }
+    };
+
+    private final RecordSessionManager.Callback mSessionCallback = new RecordSessionManager.Callback() {
+        @Override
+        public void onSessionStarted(RecordSession session) {
+            // 録画する出力の書き込みを優先する
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        }
+
+        @Override
+        public void onError(RecordSession session, Exception e) {
+            Log.e(LOG_TAG, session.getName() + ": " + e.getMessage());
+        }
+    };
+
     /**
-     * 録画のキューがあるかどうか
-     *
-     * @return 録画のキューがあるかどうか
+     * レコーダーを解放する
      */
-    private boolean hasRecordingQueue() {
-        return mIsRunRecordThread || 0 < mQueueImageFrames.size() || 0 < mQueueTimestamps.size();
+    private void releaseRecorder() {
+        if (mRecorder instanceof JournaledRecorder) {
+            Log.d(LOG_TAG, ((JournaledRecorder) mRecorder).getCheckpointLatency().toString());
+        }
+        try {
+            mRecorder.stop();
+            mRecorder.release();
+        } catch (FrameRecorder.Exception e) {
+            Log.e(LOG_TAG, e.getMessage());
+        }
+        mRecorder = null;
+
+        mCamera.release();
+        mCamera = null;
+        mVideoSource = null;
+
+        Log.d(LOG_TAG, mFramePool.toString());
     }
 
     @Override
@@ -324,17 +877,35 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
     }
 
     @Override
-    public void onPreviewFrame(byte[] data, Camera camera) {
-        if (mAudioRecord == null || mAudioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
-            mStartTime = System.currentTimeMillis();
+    public void onFrame(byte[] data, long captureNanos) {
+        if (mAudioSource == null || !mAudioSource.isRecording()) {
+            mVideoSource.releaseBuffer(data);
             return;
         }
 
-        // 録画のキューに追加する
-        mQueueTimestamps.add(DateUtils.SECOND_IN_MILLIS * (System.currentTimeMillis() - mStartTime));
-        Frame frame = new Frame(mPreviewWidth, mPreviewHeight, Frame.DEPTH_UBYTE, 2);
-        ((ByteBuffer) frame.image[0].position(0)).put(data);
-        mQueueImageFrames.add(frame);
+        // 同じ枠に入るフレームとエンコーダーの負荷が高い時は間引き、それ以外は録画のキューに追加する
+        if (mStartupTimer.getTotalNanos() < 0) {
+            mStartupTimer.finishPhase(StartupTimer.Phase.FIRST_FRAME, mStartupTimer.getStartNanos());
+            mStartupTimer.finish();
+            Log.d(LOG_TAG, mStartupTimer.toString());
+        }
+        mCapturedFrameCount += 1;
+        mRecordingMetrics.onQueueDepth(mFrameQueue.size());
+        long timestamp = mTimestamper.onVideoFrame(captureNanos);
+        if (RecordTimestamper.DROP == timestamp) {
+            mDroppedFrameCount += 1;
+            mRecordingMetrics.onFrameDropped(RecordingMetrics.DropReason.DUPLICATE_TIMESTAMP);
+        } else if (mQualityController.shouldSkipFrame()) {
+            mDroppedFrameCount += 1;
+            mRecordingMetrics.onFrameDropped(RecordingMetrics.DropReason.QUALITY_SKIP);
+        } else if (mMotionDetector != null && !mMotionDetector.shouldKeep(data, captureNanos)) {
+            // 取得した時刻から求めた時刻のまま次のフレームを書き込むので、外した分は間が空くだけになる
+            // 意図して外したので、捨てたフレームや前のフレームを表示し続けた枠には数えない
+            mTimestamper.onVideoFrameSkipped();
+            mRecordingMetrics.onFrameDropped(RecordingMetrics.DropReason.STATIC_SCENE);
+        } else if (!mFrameWriter.write(data, timestamp, captureNanos)) {
+            mDroppedFrameCount += 1;
+        }
 
         // 指定数の撮影が終了した時
         if (mFrameIndex >= mMaxFrameIndex) {
@@ -343,6 +914,31 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
         }
 
         mFrameIndex += 1;
+        mVideoSource.releaseBuffer(data);
+    }
+
+    @Override
+    public void onEndOfStream() {
+        stopRecording();
+    }
+
+    @Override
+    public void onError(Exception e) {
+        Log.e(LOG_TAG, e.getMessage());
+    }
+
+    /**
+     * 録画中のフレームに確保できるメモリの上限
+     */
+    private long getFrameMemoryBytes() {
+        long bytes = mFramePool.getMemoryBytes();
+        if (mRecordPipeline != null && mRecordPipeline.getSpillReadPool() != null) {
+            bytes += mRecordPipeline.getSpillReadPool().getMemoryBytes();
+        }
+        if (mRecordPipeline != null && mRecordPipeline.getFilterOutputPool() != null) {
+            bytes += mRecordPipeline.getFilterOutputPool().getMemoryBytes();
+        }
+        return bytes;
     }
 
     /**
@@ -350,11 +946,9 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
      * @param surface プレビューを表示するテクスチャ
      */
     private void startPreview(SurfaceTexture surface) {
-        mCamera.stopPreview();
         try {
-            mCamera.setPreviewCallback(this);
-            mCamera.setPreviewTexture(surface);
-            mCamera.startPreview();
+            mVideoSource.setPreviewTexture(surface);
+            mVideoSource.start(this);
         } catch (Exception e) {
             Log.e(LOG_TAG, e.getMessage());
         }
@@ -366,13 +960,274 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
      */
     private void stopPreview() {
         try {
-            mCamera.setPreviewCallback(null);
-            mCamera.stopPreview();
+            mVideoSource.stop();
         } catch (RuntimeException e) {
             Log.e(LOG_TAG, e.getMessage());
         }
     }
 
+    /**
+     * 録画用のフレームのプールを取得する
+     *
+     * @return フレームのプール、録画を開始していない時はnull
+     */
+    public FramePool getFramePool() {
+        return mFramePool;
+    }
+
+    /**
+     * 録画するフレームのキューの設定
+     * 次に録画を開始した時から反映される
+     *
+     * @param capacity キューに溜められるフレームの最大数
+     * @param policy キューが一杯の時の振る舞い
+     */
+    public void setFrameQueue(int capacity, SpscRingBuffer.BackpressurePolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mFrameQueueCapacity = capacity;
+        mBackpressurePolicy = policy;
+    }
+
+    /**
+     * 映像を切り抜く方法を設定する
+     * 次に録画を開始した時から反映される
+     *
+     * @param cropEngine 切り抜く方法
+     */
+    public void setCropEngine(RecordPipeline.CropEngine cropEngine) {
+        mCropEngine = cropEngine;
+    }
+
+    /**
+     * 録画する映像の向きを設定する
+     * 次に録画を開始した時から反映される
+     *
+     * @param rotation 時計回りの回転角度 (0, 90, 180, 270)
+     * @param mirror 左右反転するかどうか (フロントカメラの時など)
+     */
+    public void setVideoOrientation(int rotation, boolean mirror) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("unsupported rotation: " + rotation);
+        }
+        mVideoRotation = rotation;
+        mVideoMirror = mirror;
+    }
+
+    /**
+     * 長時間の録画の設定
+     * 次に録画を開始した時から反映される
+     *
+     * 録画中のフレームのメモリを上限に収め、エンコーダーが追いつかない時は
+     * フレームを捨てずにメモリマップしたファイルに退避して後から書き込む。
+     * メモリの上限を指定した時はsetFrameQueueのキューの大きさより優先する。
+     *
+     * @param maxRecordSeconds 録画する最大の秒数、0以下の時は止めるまで録画する
+     * @param frameMemoryLimit 録画中のフレームに確保するメモリの上限 (バイト)、0以下の時は上限を設けない
+     * @param spillFile フレームの退避先、nullの時は退避しない
+     * @param spillFileBytes 退避先のファイルの大きさの上限 (バイト)
+     */
+    public void setLongRecording(int maxRecordSeconds, long frameMemoryLimit, File spillFile, long spillFileBytes) {
+        if (spillFile != null && spillFileBytes <= 0) {
+            throw new IllegalArgumentException("spillFileBytes must be positive: " + spillFileBytes);
+        }
+        mMaxRecordSeconds = maxRecordSeconds;
+        mFrameMemoryLimit = frameMemoryLimit;
+        mSpillFile = spillFile;
+        mSpillFileBytes = spillFileBytes;
+    }
+
+    /**
+     * プリロールの設定
+     * 次にプリロールを開始した時から反映される
+     *
+     * 溜めるパケットは最初に確保したバッファに収め、入りきらない時は古いものから捨てるので、
+     * ビットレートが高い時は指定した秒数より短くなる。
+     *
+     * @param seconds 録画を開始する前に遡る秒数
+     * @param bufferBytes パケットを溜めるバッファの大きさ (バイト)
+     */
+    public void setPreRoll(int seconds, int bufferBytes) {
+        if (seconds <= 0) {
+            throw new IllegalArgumentException("seconds must be positive: " + seconds);
+        }
+        if (bufferBytes <= 0) {
+            throw new IllegalArgumentException("bufferBytes must be positive: " + bufferBytes);
+        }
+        mPreRollSeconds = seconds;
+        mPreRollBytes = bufferBytes;
+    }
+
+    /**
+     * プリロールのパケットに確保しているメモリ
+     *
+     * @return バイト数、プリロールしていない時は0
+     */
+    public int getPreRollMemoryBytes() {
+        return mPreRoll != null ? mPreRoll.getCapacity() : 0;
+    }
+
+    /**
+     * プリロール中かどうか
+     */
+    public boolean isPreRolling() {
+        return mIsPreRolling;
+    }
+
+    /**
+     * 録画の開始の各段階の時間を受け取るリスナーを設定する
+     * 次に録画を開始した時から反映される
+     *
+     * @param budgetMillis 開始してから最初のフレームまでにかけてよい時間 (ミリ秒)、0以下の時は比べない
+     * @param listener リスナー、段階を終えたスレッドから呼ばれる
+     */
+    public void setOnStartupListener(long budgetMillis, StartupTimer.Listener listener) {
+        mStartupBudgetNanos = budgetMillis * 1000000L;
+        mStartupListener = listener;
+    }
+
+    /**
+     * 録画に使うエンコーダーの実装を設定する
+     * 次に録画を開始した時から反映される
+     *
+     * @param backend エンコーダーの実装、nullの時は端末のハードウェアエンコーダーを調べて選ぶ
+     */
+    public void setEncoderBackend(EncoderBackend backend) {
+        mEncoderBackend = backend;
+    }
+
+    /**
+     * FFmpegで録画する時のx264のスレッドと先読みの設定
+     * 同時に録画する出力にも同じ設定を使う、次に録画を開始した時から反映される
+     * 先読みとBフレームはその分だけ出力が遅れるので、遅れてもよい時だけEncoderTuning.forThisDeviceなどを指定する
+     *
+     * @param tuning 設定、nullの時は何も指定しない (EncoderTuning.DEFAULT)
+     */
+    public void setEncoderTuning(EncoderTuning tuning) {
+        mEncoderTuning = tuning != null ? tuning : EncoderTuning.DEFAULT;
+    }
+
+    /**
+     * 出力の形式を設定する (既定はJOURNALED)
+     * 次に録画を開始した時から反映される
+     *
+     * @param outputMode 出力の形式
+     * @param segmentSeconds 1つのファイルの長さ (秒)、区切る形式の時だけ使う
+     */
+    public void setOutputMode(RecorderRepository.OutputMode outputMode, int segmentSeconds) {
+        if (segmentSeconds <= 0) {
+            throw new IllegalArgumentException("segmentSeconds must be positive: " + segmentSeconds);
+        }
+        mOutputMode = outputMode;
+        mSegmentSeconds = segmentSeconds;
+    }
+
+    /**
+     * 区切ったファイルの書き込みが終わった時のリスナー
+     * 書き込みのスレッドから呼ばれる、次に録画を開始した時から反映される
+     *
+     * @param listener リスナー
+     */
+    public void setOnSegmentListener(SegmentedRecorder.OnSegmentListener listener) {
+        mSegmentListener = listener;
+    }
+
+    /**
+     * 同じ映像を同時に録画する出力を追加する
+     * 録画する映像の中央を切り抜き、ビットレートを変えてFFmpegで書き込む
+     * 次に録画を開始した時から反映される
+     *
+     * @param output 出力先のファイル
+     * @param width 横幅、録画する映像より大きい時は録画する映像の横幅にする
+     * @param height 高さ、録画する映像より大きい時は録画する映像の高さにする
+     * @param videoBitrate 映像のビットレート
+     */
+    public void addOutput(File output, int width, int height, int videoBitrate) {
+        mExtraOutputs.add(new ExtraOutput(output, width, height, videoBitrate));
+    }
+
+    /**
+     * 同じ映像を同時にネットワークに送る出力を追加する
+     * MPEG-TSをUDPで送り、送信が詰まった時は参照されないフレームから捨てて録画を待たせない
+     * 次に録画を開始した時から反映される
+     *
+     * @param destination 送信先
+     * @param width 横幅、録画する映像より大きい時は録画する映像の横幅にする
+     * @param height 高さ、録画する映像より大きい時は録画する映像の高さにする
+     * @param videoBitrate 映像のビットレート
+     */
+    public void addLiveOutput(InetSocketAddress destination, int width, int height, int videoBitrate) {
+        mExtraOutputs.add(new ExtraOutput(destination, width, height, videoBitrate));
+    }
+
+    /**
+     * addOutputとaddLiveOutputで追加した出力を全て取り除く
+     */
+    public void clearOutputs() {
+        mExtraOutputs.clear();
+    }
+
+    /**
+     * 切り抜いた映像に掛けるフィルタを追加する
+     * 追加した順に掛け、大きさが変わる時は最後のフィルタの出力の大きさで録画する
+     * 次に録画を開始した時から反映される
+     *
+     * @param filter 映像のフィルタ
+     */
+    public void addVideoFilter(VideoFilter filter) {
+        mVideoFilters.add(filter);
+    }
+
+    /**
+     * addVideoFilterで追加したフィルタを全て取り除く
+     */
+    public void clearVideoFilters() {
+        mVideoFilters.clear();
+    }
+
+    /**
+     * 動きのないフレームを録画から外す
+     * プレビューの輝度を間引いて最後に録画したフレームと比べ、止まっている間は指定した間隔でだけ録画する
+     * リスナーはカメラのスレッドから呼ばれる、次に録画を開始した時から反映される
+     *
+     * @param thresholdPerMille 動いたとみなす変わった点の割合 (千分率)、0の時は外さない
+     * @param staticIntervalMillis 止まっている間に録画する間隔 (ミリ秒)、0未満の時は録画しない
+     * @param listener 動き始めと動き終わりを受け取るリスナー、nullの時は通知しない
+     */
+    public void setMotionGate(int thresholdPerMille, long staticIntervalMillis, MotionDetector.Listener listener) {
+        if (thresholdPerMille < 0 || thresholdPerMille > 1000) {
+            throw new IllegalArgumentException("thresholdPerMille must be in 0..1000: " + thresholdPerMille);
+        }
+        mMotionThreshold = thresholdPerMille;
+        mMotionStaticIntervalNanos = staticIntervalMillis < 0 ? Long.MAX_VALUE : staticIntervalMillis * 1000000L;
+        mMotionListener = listener;
+    }
+
+    /**
+     * 音声を読み込んでからレコーダーに書き込むまでに許す遅延
+     * 長くするとまとめて書き込む量が増え、書き込みの回数が減る
+     * 次に録画を開始した時から反映される
+     *
+     * @param latencyMillis 遅延 (ミリ秒)
+     */
+    public void setAudioLatency(int latencyMillis) {
+        if (latencyMillis <= 0) {
+            throw new IllegalArgumentException("latencyMillis must be positive: " + latencyMillis);
+        }
+        mAudioLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * 録画中の計測値の受け取り先を設定する
+     * 次に録画を開始した時から反映される
+     *
+     * @param metrics 計測値の受け取り先、nullの時は何もしない
+     */
+    public void setRecordingMetrics(RecordingMetrics metrics) {
+        mRecordingMetrics = metrics != null ? metrics : RecordingMetrics.NONE;
+    }
+
     /**
      * 録画に関するリスナー
      *
@@ -381,4 +1236,32 @@ public class HolaModel implements TextureView.SurfaceTextureListener, Camera.Pre
     public void setOnRecordInfoListener(OnRecordInfoListener listener) {
         mRecordInfoListener = listener;
     }
+
+    /**
+     * 同時に録画する出力の設定
+     */
+    private static class ExtraOutput {
+        private final File mFile;
+        /* ネットワークに送る時の送信先、ファイルに書き込む時はnull */
+        private final InetSocketAddress mDestination;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mVideoBitrate;
+
+        ExtraOutput(File file, int width, int height, int videoBitrate) {
+            this(file, null, width, height, videoBitrate);
+        }
+
+        ExtraOutput(InetSocketAddress destination, int width, int height, int videoBitrate) {
+            this(null, destination, width, height, videoBitrate);
+        }
+
+        private ExtraOutput(File file, InetSocketAddress destination, int width, int height, int videoBitrate) {
+            mFile = file;
+            mDestination = destination;
+            mWidth = width;
+            mHeight = height;
+            mVideoBitrate = videoBitrate;
+        }
+    }
 }
@@ -0,0 +1,151 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 途中で終了しても再生できるように、索引を残しながらMPEG-TSに書き込むレコーダー
+ *
+ * パケット毎にファイルに書き出すようにして、一定のフレーム毎に書き込み済みの長さを索引に記録する。
+ * 停止しないまま終了した時は、次に起動した時にRecordingJournal.recoverで切り詰めて再生できるようにする。
+ * 記録する度にファイルをディスクに書き出す分の時間が書き込みのスレッドにかかる。
+ */
+public class JournaledRecorder extends FrameRecorder {
+    /** 記録する間隔の既定値 (フレーム数) */
+    public static final int DEFAULT_CHECKPOINT_FRAMES = 30;
+
+    private final FFmpegFrameRecorder mRecorder;
+    private final File mFile;
+    private final int mCheckpointFrames;
+    private final LatencyHistogram mCheckpointLatency = new LatencyHistogram("checkpoint");
+    private RecordingJournal mJournal;
+    private int mFrameCount = 0;
+
+    /**
+     * @param recorder 開始していないMPEG-TSのレコーダー
+     * @param file レコーダーの出力先
+     * @param checkpointFrames 記録する間隔 (フレーム数)
+     */
+    public JournaledRecorder(FFmpegFrameRecorder recorder, File file, int checkpointFrames) {
+        if (checkpointFrames <= 0) {
+            throw new IllegalArgumentException("checkpointFrames must be positive: " + checkpointFrames);
+        }
+        mRecorder = recorder;
+        mFile = file;
+        mCheckpointFrames = checkpointFrames;
+
+        // 開始する前でもフレームレートなどを参照できるようにする
+        setImageWidth(recorder.getImageWidth());
+        setImageHeight(recorder.getImageHeight());
+        setFrameRate(recorder.getFrameRate());
+        setSampleRate(recorder.getSampleRate());
+        setAudioChannels(recorder.getAudioChannels());
+    }
+
+    @Override
+    public void start() throws Exception {
+        // 作った後に変えたフレームレートとサンプリングレートを反映する
+        mRecorder.setFrameRate(getFrameRate());
+        mRecorder.setSampleRate(getSampleRate());
+        mRecorder.start();
+        mFrameCount = 0;
+        try {
+            mJournal = new RecordingJournal(mFile);
+        } catch (IOException e) {
+            throw new Exception("failed to create journal: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void record(Frame frame) throws Exception {
+        if (mJournal == null) {
+            throw new Exception("JournaledRecorder is not started");
+        }
+        mRecorder.record(frame);
+        if (frame != null && frame.image != null) {
+            mFrameCount += 1;
+            if (mFrameCount % mCheckpointFrames == 0) {
+                long startNanos = System.nanoTime();
+                try {
+                    mJournal.checkpoint(mRecorder.getTimestamp(), mFrameCount);
+                } catch (IOException e) {
+                    throw new Exception("failed to write checkpoint: " + e.getMessage(), e);
+                }
+                mCheckpointLatency.record(System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mRecorder.getTimestamp();
+    }
+
+    @Override
+    public void setTimestamp(long timestamp) {
+        mRecorder.setTimestamp(timestamp);
+    }
+
+    /**
+     * 書き終わってから索引を消す
+     */
+    @Override
+    public void stop() throws Exception {
+        mRecorder.stop();
+        if (mJournal != null) {
+            RecordingJournal journal = mJournal;
+            mJournal = null;
+            try {
+                journal.finish();
+            } catch (IOException e) {
+                throw new Exception("failed to finish journal: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * 停止していない時は索引を残すので、次に起動した時に復旧する
+     * レコーダーと索引のどちらかを閉じられなかった時は両方を閉じてから最初の失敗を投げる
+     */
+    @Override
+    public void release() throws Exception {
+        Exception error = null;
+        try {
+            mRecorder.release();
+        } catch (Exception e) {
+            error = e;
+        }
+        if (mJournal != null) {
+            RecordingJournal journal = mJournal;
+            mJournal = null;
+            try {
+                journal.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = new Exception("failed to close journal: " + e.getMessage(), e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * 最後に記録した位置、記録していない時はnull
+     */
+    public RecordingJournal.Checkpoint getLastCheckpoint() {
+        return mJournal != null ? mJournal.getLastCheckpoint() : null;
+    }
+
+    /**
+     * 記録にかかった時間
+     */
+    public LatencyHistogram getCheckpointLatency() {
+        return mCheckpointLatency;
+    }
+}
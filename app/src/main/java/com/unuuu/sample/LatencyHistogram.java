@@ -0,0 +1,119 @@
+package com.unuuu.sample;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 処理時間の分布を記録するヒストグラム
+ *
+ * マイクロ秒単位で2のべき乗毎に8分割したバケットに数える。
+ * 1つのスレッドから記録し、集計は記録が終わった後に行うことを前提にしている。
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount = 0;
+    private long mTotalNanos = 0;
+    private long mMaxNanos = 0;
+
+    public LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * 処理時間を記録する
+     *
+     * @param nanos 処理時間 (ナノ秒)
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts[bucketOf(nanos / 1000)] += 1;
+        mCount += 1;
+        mTotalNanos += nanos;
+        if (nanos > mMaxNanos) {
+            mMaxNanos = nanos;
+        }
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    public long getMeanNanos() {
+        return mCount == 0 ? 0 : mTotalNanos / mCount;
+    }
+
+    /**
+     * 指定した割合の処理がこの時間以内に終わっている値を取得する
+     *
+     * @param percentile 割合 (0 - 100)
+     * @return 処理時間 (ナノ秒)、バケットの上限値を返す
+     */
+    public long getPercentileNanos(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(mCount * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        if (threshold < 1) {
+            threshold = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= threshold) {
+                return Math.min(mMaxNanos, upperBoundOf(i) * 1000);
+            }
+        }
+        return mMaxNanos;
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mTotalNanos = 0;
+        mMaxNanos = 0;
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKET_COUNT) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket + 1;
+        }
+        int exponent = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + sub + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s{count=%d, mean=%.2fms, p50=%.2fms, p99=%.2fms, max=%.2fms}",
+                mName, mCount, getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6,
+                getPercentileNanos(99) / 1e6, mMaxNanos / 1e6);
+    }
+}
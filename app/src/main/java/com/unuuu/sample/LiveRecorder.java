@@ -0,0 +1,110 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.IOException;
+
+/**
+ * エンコードした映像と音声をLiveSenderからネットワークに送るレコーダー
+ *
+ * 中のレコーダーはLiveSenderのループバックの受信口にMPEG-TSを書き込む。
+ * 送信が詰まってもこのレコーダーは待たないので、RecordSessionに載せると取得と他の出力を待たせない。
+ */
+public class LiveRecorder extends FrameRecorder implements CaptureTimeAware {
+    private final FFmpegFrameRecorder mRecorder;
+    private final LiveSender mSender;
+    private long mCaptureNanos = 0;
+    private boolean mIsSenderStopped = false;
+
+    /**
+     * @param recorder 開始していないレコーダー、出力先はsenderの受信口にする
+     * @param sender 送信するもの
+     */
+    public LiveRecorder(FFmpegFrameRecorder recorder, LiveSender sender) {
+        mRecorder = recorder;
+        mSender = sender;
+
+        // 開始する前でもフレームレートなどを参照できるようにする
+        setImageWidth(recorder.getImageWidth());
+        setImageHeight(recorder.getImageHeight());
+        setFrameRate(recorder.getFrameRate());
+        setSampleRate(recorder.getSampleRate());
+        setAudioChannels(recorder.getAudioChannels());
+    }
+
+    @Override
+    public void start() throws Exception {
+        mRecorder.setFrameRate(getFrameRate());
+        mRecorder.setSampleRate(getSampleRate());
+        mSender.start();
+        mRecorder.start();
+    }
+
+    @Override
+    public void setCaptureNanos(long captureNanos) {
+        mCaptureNanos = captureNanos;
+    }
+
+    @Override
+    public void record(Frame frame) throws Exception {
+        if (frame != null && frame.image != null) {
+            // 撮影した時刻が分からない時は書き込む時刻から計る
+            mSender.markCapture(mCaptureNanos != 0 ? mCaptureNanos : System.nanoTime());
+            mCaptureNanos = 0;
+        }
+        mRecorder.record(frame);
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mRecorder.getTimestamp();
+    }
+
+    @Override
+    public void setTimestamp(long timestamp) {
+        mRecorder.setTimestamp(timestamp);
+    }
+
+    /**
+     * 書き終わってから送信待ちの分を送って止める
+     */
+    @Override
+    public void stop() throws Exception {
+        try {
+            mRecorder.stop();
+        } finally {
+            stopSender();
+        }
+    }
+
+    @Override
+    public void release() throws Exception {
+        try {
+            mRecorder.release();
+        } finally {
+            stopSender();
+        }
+    }
+
+    private void stopSender() throws Exception {
+        // 開始していない時も受信口を閉じる
+        if (mIsSenderStopped) {
+            return;
+        }
+        mIsSenderStopped = true;
+        try {
+            mSender.stop();
+        } catch (IOException e) {
+            throw new Exception("live sender failed: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Exception("interrupted while stopping sender", e);
+        }
+    }
+
+    public LiveSender getSender() {
+        return mSender;
+    }
+}
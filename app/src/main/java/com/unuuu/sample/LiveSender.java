@@ -0,0 +1,559 @@
+package com.unuuu.sample;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * エンコードしたMPEG-TSを専用のスレッドからネットワークに送る
+ *
+ * FFmpegにはループバックのUDPに書き込ませ、受け取ったパケットを上限のあるキューに入れてから送り直す。
+ * 送信が詰まってもエンコードと取得は待たせず、キューの埋まり具合に応じてフレーム単位で捨てる。
+ * 捨てる順は参照されないフレーム、参照されるフレーム (次のキーフレームまで続けて捨てる)、音声の順。
+ * 映像のフレームはH.264のNALのnal_ref_idcとランダムアクセスの印で見分ける。
+ */
+public class LiveSender {
+    /** キューに入れるTSパケットの数の既定値 (400kbpsで約2秒分) */
+    public static final int DEFAULT_QUEUE_PACKETS = 512;
+    /** MPEG-TSのパケットの大きさ */
+    public static final int TS_PACKET_SIZE = 188;
+    /** 1つのデータグラムに入れるTSパケットの数 */
+    public static final int PACKETS_PER_DATAGRAM = 7;
+
+    /* キューの埋まり具合がこれ以上の時に捨て始める */
+    private static final float NON_REFERENCE_LIMIT = 0.5f;
+    private static final float REFERENCE_LIMIT = 0.75f;
+
+    private static final byte TS_SYNC_BYTE = 0x47;
+    private static final int PAT_PID = 0;
+    private static final int NULL_PID = 0x1fff;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR_SLICE = 5;
+    private static final int NAL_SPS = 7;
+    /* 撮影した時刻を覚えておくフレーム数、エンコーダーの遅延より大きくする */
+    private static final int CAPTURE_RING_SIZE = 64;
+    private static final int RECEIVE_TIMEOUT_MILLIS = 50;
+    private static final int RECEIVE_BUFFER_BYTES = 1 << 20;
+    private static final long IDLE_PARK_NANOS = 200000L;
+
+    /**
+     * 送信先
+     */
+    public interface Transport {
+        /**
+         * @param data 送るデータ、戻った後に書き換える
+         * @param length 長さ
+         */
+        void send(byte[] data, int length) throws IOException;
+
+        void close();
+    }
+
+    /**
+     * UDPで送る
+     */
+    public static class UdpTransport implements Transport {
+        private final DatagramSocket mSocket;
+        private final DatagramPacket mPacket;
+
+        public UdpTransport(InetSocketAddress destination) throws SocketException {
+            mSocket = new DatagramSocket();
+            mSocket.connect(destination);
+            mPacket = new DatagramPacket(new byte[0], 0, destination);
+        }
+
+        @Override
+        public void send(byte[] data, int length) throws IOException {
+            mPacket.setData(data, 0, length);
+            mSocket.send(mPacket);
+        }
+
+        @Override
+        public void close() {
+            mSocket.close();
+        }
+    }
+
+    /**
+     * 捨てる時に見分けるパケットの種類
+     */
+    public enum UnitType {
+        /** PATとPMTなどの表 */
+        TABLE,
+        AUDIO,
+        KEY_FRAME,
+        REFERENCE_FRAME,
+        NON_REFERENCE_FRAME
+    }
+
+    /**
+     * キューに入れるTSパケット、空きと送信待ちの2つのキューで使い回す
+     */
+    private static class Packet {
+        private final byte[] mData = new byte[TS_PACKET_SIZE];
+        private long mCaptureNanos;
+    }
+
+    private final Transport mTransport;
+    private final DatagramSocket mInput;
+    private final SpscRingBuffer<Packet> mFreePackets;
+    private final SpscRingBuffer<Packet> mQueue;
+
+    /* 撮影した時刻、レコーダーのスレッドが書き込み受信のスレッドが読む */
+    private final AtomicLongArray mCaptureNanos = new AtomicLongArray(CAPTURE_RING_SIZE);
+    private volatile long mCapturedFrameCount = 0;
+
+    /* 以下は受信のスレッド (offerを呼ぶスレッド) だけが使う */
+    private int mPmtPid = -1;
+    private int mVideoPid = -1;
+    private boolean mIsVideoH264 = false;
+    private long mVideoFrameCount = 0;
+    private boolean mIsDroppingVideo = false;
+    private boolean mIsWaitingForKeyFrame = false;
+    private UnitType mVideoUnitType = UnitType.KEY_FRAME;
+    private long mVideoCaptureNanos = 0;
+    private boolean mIsDroppingAudio = false;
+    private final AtomicLongArray mDroppedUnits = new AtomicLongArray(UnitType.values().length);
+    private volatile long mDroppedPacketCount = 0;
+    private volatile long mInvalidPacketCount = 0;
+
+    /* 以下は送信のスレッドだけが使う */
+    private final byte[] mDatagram = new byte[TS_PACKET_SIZE * PACKETS_PER_DATAGRAM];
+    private final long[] mDatagramCaptureNanos = new long[PACKETS_PER_DATAGRAM];
+    private final LatencyHistogram mGlassToWireLatency = new LatencyHistogram("glassToWire");
+    private volatile long mSentPacketCount = 0;
+    private volatile long mSendErrorCount = 0;
+    private volatile IOException mLastSendError;
+
+    /* 受信口が使えなくなって受信を止めた時の例外、stopで投げる */
+    private volatile IOException mReceiveError;
+
+    private volatile boolean mIsRunning = false;
+    private volatile boolean mIsReceiving = false;
+    private Thread mReceiveThread;
+    private Thread mSendThread;
+
+    /**
+     * ループバックの受信口を開く
+     *
+     * @param transport 送信先
+     * @param queuePackets キューに入れるTSパケットの最大数
+     */
+    public LiveSender(Transport transport, int queuePackets) throws IOException {
+        if (queuePackets < PACKETS_PER_DATAGRAM) {
+            throw new IllegalArgumentException("queuePackets must be at least " + PACKETS_PER_DATAGRAM + ": " + queuePackets);
+        }
+        mTransport = transport;
+        mFreePackets = new SpscRingBuffer<>(queuePackets, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        mQueue = new SpscRingBuffer<>(queuePackets, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        for (int i = 0; i < queuePackets; i++) {
+            mFreePackets.offer(new Packet());
+        }
+        mInput = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mInput.setReceiveBufferSize(RECEIVE_BUFFER_BYTES);
+        mInput.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * FFmpegの出力先にするループバックのURL
+     */
+    public String getInputUrl() {
+        return "udp://127.0.0.1:" + mInput.getLocalPort() + "?pkt_size=" + TS_PACKET_SIZE * PACKETS_PER_DATAGRAM;
+    }
+
+    /**
+     * 受信と送信のスレッドを開始する
+     */
+    public void start() {
+        mIsRunning = true;
+        mIsReceiving = true;
+        mReceiveThread = new Thread(this::receive, "LiveSender-receive");
+        mSendThread = new Thread(this::send, "LiveSender-send");
+        mReceiveThread.start();
+        mSendThread.start();
+    }
+
+    /**
+     * 受信口に残っている分とキューの分を送ってから止める
+     *
+     * @throws IOException 録画中に受信口が使えなくなり、途中から送れていなかった時 (止める処理は終わっている)
+     */
+    public void stop() throws IOException, InterruptedException {
+        mIsRunning = false;
+        if (mReceiveThread != null) {
+            mReceiveThread.join();
+            mReceiveThread = null;
+        }
+        if (mSendThread != null) {
+            mSendThread.join();
+            mSendThread = null;
+        }
+        mInput.close();
+        mTransport.close();
+        if (mReceiveError != null) {
+            throw new IOException("failed to receive from encoder: " + mReceiveError.getMessage(), mReceiveError);
+        }
+    }
+
+    /**
+     * レコーダーに映像のフレームを渡す直前に呼び、撮影してから送るまでの時間を計れるようにする
+     * 1つのスレッドからフレームの順に呼ぶ
+     *
+     * @param captureNanos 撮影した時刻 (System.nanoTime)
+     */
+    public void markCapture(long captureNanos) {
+        long count = mCapturedFrameCount;
+        mCaptureNanos.set((int) (count % CAPTURE_RING_SIZE), captureNanos);
+        mCapturedFrameCount = count + 1;
+    }
+
+    /**
+     * 受け取ったMPEG-TSを種類毎に見分けてキューに入れる (1つのスレッドからのみ呼ぶ)
+     * キューの埋まり具合によってはフレーム単位で捨てる
+     *
+     * @param data TSパケットを並べたデータ
+     * @param offset 先頭の位置
+     * @param length 長さ、TSパケットの大きさの倍数
+     */
+    public void offer(byte[] data, int offset, int length) {
+        for (int i = offset; i + TS_PACKET_SIZE <= offset + length; i += TS_PACKET_SIZE) {
+            if (data[i] != TS_SYNC_BYTE) {
+                mInvalidPacketCount += 1;
+                continue;
+            }
+            offerPacket(data, i);
+        }
+    }
+
+    private void offerPacket(byte[] data, int offset) {
+        int pid = ((data[offset + 1] & 0x1f) << 8) | (data[offset + 2] & 0xff);
+        boolean isUnitStart = (data[offset + 1] & 0x40) != 0;
+        if (pid == NULL_PID) {
+            return;
+        }
+
+        if (pid == PAT_PID || pid == mPmtPid) {
+            if (isUnitStart) {
+                parseTable(data, offset, pid == PAT_PID);
+            }
+            enqueue(data, offset, 0, UnitType.TABLE);
+            return;
+        }
+
+        if (pid == mVideoPid) {
+            if (isUnitStart) {
+                startVideoUnit(data, offset);
+            }
+            if (mIsDroppingVideo) {
+                mDroppedPacketCount += 1;
+                return;
+            }
+            if (!enqueue(data, offset, isUnitStart ? mVideoCaptureNanos : 0, mVideoUnitType)) {
+                // 途中で切れたフレームは壊れるので、参照されるフレームなら次のキーフレームまで待つ
+                dropVideoUnit();
+            }
+            return;
+        }
+
+        // 映像以外は音声として扱う
+        if (isUnitStart) {
+            mIsDroppingAudio = !hasRoom(1f);
+            if (mIsDroppingAudio) {
+                mDroppedUnits.incrementAndGet(UnitType.AUDIO.ordinal());
+            }
+        }
+        if (mIsDroppingAudio) {
+            mDroppedPacketCount += 1;
+            return;
+        }
+        if (!enqueue(data, offset, 0, UnitType.AUDIO)) {
+            mIsDroppingAudio = true;
+            mDroppedUnits.incrementAndGet(UnitType.AUDIO.ordinal());
+        }
+    }
+
+    /**
+     * 映像のフレームの先頭で種類を見分け、キューの埋まり具合からフレームごと捨てるかを決める
+     */
+    private void startVideoUnit(byte[] data, int offset) {
+        mVideoUnitType = classifyVideo(data, offset);
+        long frameIndex = mVideoFrameCount++;
+        long capturedCount = mCapturedFrameCount;
+        mVideoCaptureNanos = frameIndex < capturedCount && frameIndex >= capturedCount - CAPTURE_RING_SIZE
+                ? mCaptureNanos.get((int) (frameIndex % CAPTURE_RING_SIZE)) : 0;
+
+        mIsDroppingVideo = false;
+        switch (mVideoUnitType) {
+            case KEY_FRAME:
+                mIsWaitingForKeyFrame = false;
+                mIsDroppingVideo = !hasRoom(1f);
+                break;
+            case REFERENCE_FRAME:
+                mIsDroppingVideo = mIsWaitingForKeyFrame || !hasRoom(REFERENCE_LIMIT);
+                break;
+            default:
+                mIsDroppingVideo = mIsWaitingForKeyFrame || !hasRoom(NON_REFERENCE_LIMIT);
+                break;
+        }
+        if (mIsDroppingVideo) {
+            dropVideoUnit();
+        }
+    }
+
+    private void dropVideoUnit() {
+        mIsDroppingVideo = true;
+        mDroppedUnits.incrementAndGet(mVideoUnitType.ordinal());
+        if (UnitType.NON_REFERENCE_FRAME != mVideoUnitType) {
+            mIsWaitingForKeyFrame = true;
+        }
+    }
+
+    private boolean hasRoom(float limit) {
+        return mQueue.size() < mQueue.getCapacity() * limit;
+    }
+
+    private boolean enqueue(byte[] data, int offset, long captureNanos, UnitType type) {
+        Packet packet = mFreePackets.poll();
+        if (packet == null) {
+            mDroppedPacketCount += 1;
+            if (UnitType.TABLE == type) {
+                mDroppedUnits.incrementAndGet(UnitType.TABLE.ordinal());
+            }
+            return false;
+        }
+        System.arraycopy(data, offset, packet.mData, 0, TS_PACKET_SIZE);
+        packet.mCaptureNanos = captureNanos;
+        mQueue.offer(packet);
+        return true;
+    }
+
+    /**
+     * 映像のフレームの最初のTSパケットから種類を見分ける
+     * 最初のパケットにスライスがない時は、SPSかランダムアクセスの印があればキーフレームとし、それ以外は参照されるものとする
+     */
+    private UnitType classifyVideo(byte[] data, int offset) {
+        int adaptationControl = (data[offset + 3] >> 4) & 0x3;
+        int payload = offset + 4;
+        boolean isRandomAccess = false;
+        if ((adaptationControl & 0x2) != 0) {
+            int adaptationLength = data[offset + 4] & 0xff;
+            if (adaptationLength > 0) {
+                isRandomAccess = (data[offset + 5] & 0x40) != 0;
+            }
+            payload += 1 + adaptationLength;
+        }
+        if (isRandomAccess) {
+            return UnitType.KEY_FRAME;
+        }
+        int end = offset + TS_PACKET_SIZE;
+        // PESのヘッダーを飛ばす
+        if ((adaptationControl & 0x1) == 0 || payload + 9 > end
+                || data[payload] != 0 || data[payload + 1] != 0 || data[payload + 2] != 1) {
+            return UnitType.REFERENCE_FRAME;
+        }
+        int es = payload + 9 + (data[payload + 8] & 0xff);
+        if (!mIsVideoH264) {
+            return UnitType.REFERENCE_FRAME;
+        }
+        for (int i = es; i + 3 < end; i++) {
+            if (data[i] != 0 || data[i + 1] != 0 || data[i + 2] != 1) {
+                continue;
+            }
+            int header = data[i + 3] & 0xff;
+            int nalType = header & 0x1f;
+            if (nalType == NAL_IDR_SLICE || nalType == NAL_SPS) {
+                return UnitType.KEY_FRAME;
+            }
+            if (nalType == NAL_SLICE) {
+                return (header & 0x60) == 0 ? UnitType.NON_REFERENCE_FRAME : UnitType.REFERENCE_FRAME;
+            }
+            i += 3;
+        }
+        return UnitType.REFERENCE_FRAME;
+    }
+
+    /**
+     * PATからPMTのPIDを、PMTから映像のPIDを読む (表が1つのTSパケットに収まる前提)
+     */
+    private void parseTable(byte[] data, int offset, boolean isPat) {
+        int adaptationControl = (data[offset + 3] >> 4) & 0x3;
+        int payload = offset + 4;
+        if ((adaptationControl & 0x2) != 0) {
+            payload += 1 + (data[offset + 4] & 0xff);
+        }
+        int end = offset + TS_PACKET_SIZE;
+        if (payload >= end) {
+            return;
+        }
+        int section = payload + 1 + (data[payload] & 0xff);
+        if (section + 12 > end) {
+            return;
+        }
+        int sectionEnd = Math.min(end, section + 3 + (((data[section + 1] & 0x0f) << 8) | (data[section + 2] & 0xff)) - 4);
+        if (isPat) {
+            for (int i = section + 8; i + 4 <= sectionEnd; i += 4) {
+                int program = ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+                if (program != 0) {
+                    mPmtPid = ((data[i + 2] & 0x1f) << 8) | (data[i + 3] & 0xff);
+                    return;
+                }
+            }
+            return;
+        }
+        int programInfoLength = ((data[section + 10] & 0x0f) << 8) | (data[section + 11] & 0xff);
+        for (int i = section + 12 + programInfoLength; i + 5 <= sectionEnd; ) {
+            int streamType = data[i] & 0xff;
+            int pid = ((data[i + 1] & 0x1f) << 8) | (data[i + 2] & 0xff);
+            if (isVideoStreamType(streamType)) {
+                mVideoPid = pid;
+                mIsVideoH264 = streamType == STREAM_TYPE_H264;
+                return;
+            }
+            i += 5 + (((data[i + 3] & 0x0f) << 8) | (data[i + 4] & 0xff));
+        }
+    }
+
+    private static boolean isVideoStreamType(int streamType) {
+        // MPEG-1/2、MPEG-4、H.264、HEVC
+        return streamType == 0x01 || streamType == 0x02 || streamType == 0x10
+                || streamType == STREAM_TYPE_H264 || streamType == 0x24;
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[65536];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            try {
+                packet.setLength(buffer.length);
+                mInput.receive(packet);
+                offer(buffer, 0, packet.getLength());
+            } catch (SocketTimeoutException e) {
+                // 止めた後は受信口が空になるまで受け取る
+                if (!mIsRunning) {
+                    break;
+                }
+            } catch (IOException e) {
+                if (mIsRunning) {
+                    mReceiveError = e;
+                }
+                break;
+            }
+        }
+        mIsReceiving = false;
+    }
+
+    private void send() {
+        int count = 0;
+        while (true) {
+            Packet packet = mQueue.poll();
+            if (packet == null) {
+                // 溜まるのを待たずに送り、遅延を増やさない
+                if (count > 0) {
+                    flush(count);
+                    count = 0;
+                    continue;
+                }
+                if (!mIsReceiving && mQueue.isEmpty()) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            System.arraycopy(packet.mData, 0, mDatagram, count * TS_PACKET_SIZE, TS_PACKET_SIZE);
+            mDatagramCaptureNanos[count] = packet.mCaptureNanos;
+            mFreePackets.offer(packet);
+            count += 1;
+            if (count == PACKETS_PER_DATAGRAM) {
+                flush(count);
+                count = 0;
+            }
+        }
+    }
+
+    private void flush(int count) {
+        try {
+            mTransport.send(mDatagram, count * TS_PACKET_SIZE);
+            mSentPacketCount += count;
+        } catch (IOException e) {
+            // UDPの送信の失敗は一時的なことが多いので、数えて次のデータグラムを送り続ける
+            mSendErrorCount += 1;
+            mLastSendError = e;
+            return;
+        }
+        long now = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (mDatagramCaptureNanos[i] != 0) {
+                mGlassToWireLatency.record(now - mDatagramCaptureNanos[i]);
+            }
+        }
+    }
+
+    /**
+     * 撮影してからフレームの先頭を送るまでの時間
+     */
+    public LatencyHistogram getGlassToWireLatency() {
+        return mGlassToWireLatency;
+    }
+
+    /**
+     * 種類毎の捨てた数、映像と音声はフレームの数、表はパケットの数
+     */
+    public long getDroppedUnitCount(UnitType type) {
+        return mDroppedUnits.get(type.ordinal());
+    }
+
+    public long getDroppedPacketCount() {
+        return mDroppedPacketCount;
+    }
+
+    public long getSentPacketCount() {
+        return mSentPacketCount;
+    }
+
+    public long getSendErrorCount() {
+        return mSendErrorCount;
+    }
+
+    /**
+     * 最後に送れなかった時の例外、送信に失敗していない時はnull
+     */
+    public IOException getLastSendError() {
+        return mLastSendError;
+    }
+
+    /**
+     * 受信口が使えなくなって受信を止めた時の例外、止めていない時はnull
+     */
+    public IOException getReceiveError() {
+        return mReceiveError;
+    }
+
+    /**
+     * 同期バイトがなく読み飛ばしたパケットの数
+     */
+    public long getInvalidPacketCount() {
+        return mInvalidPacketCount;
+    }
+
+    public int getQueueHighWaterMark() {
+        return mQueue.getHighWaterMark();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "LiveSender{sent=%d, dropped=%d (nonRef=%d, ref=%d, key=%d, audio=%d), errors=%d, queueHighWater=%d/%d, %s}",
+                mSentPacketCount, mDroppedPacketCount, getDroppedUnitCount(UnitType.NON_REFERENCE_FRAME),
+                getDroppedUnitCount(UnitType.REFERENCE_FRAME), getDroppedUnitCount(UnitType.KEY_FRAME),
+                getDroppedUnitCount(UnitType.AUDIO), mSendErrorCount, mQueue.getHighWaterMark(),
+                mQueue.getCapacity(), mGlassToWireLatency);
+    }
+}
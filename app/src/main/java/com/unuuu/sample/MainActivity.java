@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.pm.ActivityInfo;
 import android.net.Uri;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.TextureView;
 import android.view.View;
 import android.widget.Button;
@@ -13,10 +14,18 @@ import android.widget.RelativeLayout;
 import com.devbrackets.android.exomedia.EMVideoView;
 
 import java.io.File;
+import java.util.Arrays;
 
 public class MainActivity extends Activity {
 
-    private static final String OUTPUT_PATH = "/mnt/sdcard/stream.mp4";
+    private static final String LOG_TAG = MainActivity.class.getSimpleName();
+    /* HolaModelは既定で索引を残しながらMPEG-TSに書き込む */
+    private static final String OUTPUT_PATH = "/mnt/sdcard/stream.ts";
+    private static final String SMALL_OUTPUT_PATH = "/mnt/sdcard/stream_small.mp4";
+    private static final String THUMBNAIL_PATH = "/mnt/sdcard/stream_thumbnail.jpg";
+    private static final String PREVIEW_PATH = "/mnt/sdcard/stream_preview.gif";
+    private static final int POST_PROCESS_THREAD_COUNT = 2;
+    private static final long STARTUP_BUDGET_MILLIS = 500;
 
     private TextureView mTextureView;
     private Button mRecordButton;
@@ -24,6 +33,8 @@ public class MainActivity extends Activity {
     private RelativeLayout mVideoLayout;
     private EMVideoView mVideoView;
     private HolaModel mHolaModel;
+    private PostProcessor mPostProcessor;
+    private PostProcessor.Job mPostProcessJob;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -31,7 +42,30 @@ public class MainActivity extends Activity {
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
         setContentView(R.layout.activity_main);
 
-        mHolaModel = new HolaModel();
+        // カメラを開く前にカメラの情報を読み込んでおき、録画の開始を速くする
+        CameraCapabilityCache capabilityCache = CameraCapabilityCache.getInstance(this);
+        capabilityCache.warmUpAsync();
+        mHolaModel = new HolaModel(capabilityCache);
+        mHolaModel.prewarm();
+        // 前回の録画が途中で終わっていた時は再生できるように直す
+        mHolaModel.recoverInterruptedRecording().subscribe(recovery -> {
+            if (recovery != null) {
+                Log.i(LOG_TAG, "Recovered interrupted recording: " + recovery);
+            }
+        }, e -> Log.e(LOG_TAG, "Failed to recover interrupted recording", e));
+        mHolaModel.setOnStartupListener(STARTUP_BUDGET_MILLIS, new StartupTimer.Listener() {
+            @Override
+            public void onPhaseFinished(StartupTimer.Phase phase, long durationNanos) {
+                Log.v(LOG_TAG, "Startup " + phase + ": " + durationNanos / 1000000L + "ms");
+            }
+
+            @Override
+            public void onStartupFinished(long totalNanos, boolean isOverBudget) {
+                if (isOverBudget) {
+                    Log.w(LOG_TAG, "Startup took " + totalNanos / 1000000L + "ms");
+                }
+            }
+        });
         mHolaModel.setOnRecordInfoListener(new HolaModel.OnRecordInfoListener() {
             @Override
             public void onStart() {
@@ -46,6 +80,16 @@ public class MainActivity extends Activity {
             @Override
             public void onFinish() {
                 showVideoView();
+                startPostProcess();
+            }
+
+            @Override
+            public void onSummary(RecordingSummary summary) {
+                if (summary.getDroppedFrameCount() > 0) {
+                    Log.w(LOG_TAG, "Dropped " + summary.getDroppedFrameCount() + " of "
+                            + summary.getCapturedFrameCount() + " frames");
+                }
+                Log.i(LOG_TAG, "Recording summary: " + summary);
             }
         });
 
@@ -55,8 +99,11 @@ public class MainActivity extends Activity {
         mVideoView = (EMVideoView) findViewById(R.id.activity_main_video);
 
         mRecordButton = (Button) findViewById(R.id.activity_main_button_record);
+        mPostProcessor = new PostProcessor(POST_PROCESS_THREAD_COUNT);
+
         mRecordButton.setOnClickListener(v -> {
-            mHolaModel.startRecording(mTextureView);
+            cancelPostProcess();
+            mHolaModel.startRecordingAsync(mTextureView);
             hideVideoView();
         });
 
@@ -93,9 +140,56 @@ public class MainActivity extends Activity {
         mVideoView.setVideoURI(Uri.parse(OUTPUT_PATH));
     }
 
+    /**
+     * 録画したビデオからアップロード用の縮小版、サムネイル、プレビューを作る
+     */
+    private void startPostProcess() {
+        cancelPostProcess();
+        // 大きさは上限で、録画の縦横比 (正方形) のまま縮小する
+        mPostProcessJob = mPostProcessor.process(OUTPUT_PATH, Arrays.asList(
+                new TranscodeSink(SMALL_OUTPUT_PATH, 320, 320, 200000),
+                new ThumbnailSink(THUMBNAIL_PATH, 320, 320, 1000000),
+                new AnimatedPreviewSink(PREVIEW_PATH, AnimatedPreviewSink.Format.GIF, 160, 160, 10, 0, 3000000)
+        ), new PostProcessor.Listener() {
+            @Override
+            public void onProgress(float progress) {
+                Log.v(LOG_TAG, "Post process progress: " + progress);
+            }
+
+            @Override
+            public void onSinkFinished(PostProcessor.Sink sink, Exception error) {
+                if (error != null) {
+                    Log.e(LOG_TAG, "Post process failed: " + ((RecorderSink) sink).getOutputPath(), error);
+                }
+            }
+
+            @Override
+            public void onInputError(Exception error) {
+                Log.e(LOG_TAG, "Failed to close post process input: " + OUTPUT_PATH, error);
+            }
+
+            @Override
+            public void onFinish(boolean isCancelled) {
+                Log.v(LOG_TAG, "Post process finished, cancelled: " + isCancelled);
+            }
+        });
+    }
+
+    /**
+     * 録画したビデオの処理を中断する
+     */
+    private void cancelPostProcess() {
+        if (mPostProcessJob != null) {
+            mPostProcessJob.cancel();
+            mPostProcessJob = null;
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
         mHolaModel.cancelRecording();
+        cancelPostProcess();
+        mPostProcessor.shutdown();
     }
 }
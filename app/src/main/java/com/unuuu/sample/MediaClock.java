@@ -0,0 +1,19 @@
+package com.unuuu.sample;
+
+/**
+ * 録画のタイムスタンプの元になる単調増加する時計
+ *
+ * 壁時計は端末の時刻合わせで飛ぶので使わない。
+ */
+public interface MediaClock {
+
+    /**
+     * System.nanoTime()を使う時計
+     */
+    MediaClock SYSTEM = System::nanoTime;
+
+    /**
+     * 現在の時刻 (ナノ秒)、値の起点は決まっていない
+     */
+    long nanoTime();
+}
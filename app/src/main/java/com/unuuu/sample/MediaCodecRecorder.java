@@ -0,0 +1,428 @@
+package com.unuuu.sample;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MediaCodecのハードウェアエンコーダーとMediaMuxerでMP4に書き込むレコーダー
+ *
+ * FFmpegFrameRecorderと同じようにNV21のフレームと16bitの音声を受け取るので、
+ * 録画のパイプラインはどちらのレコーダーでも変わらない。
+ * NV21はエンコーダーが受け付ける色の形式に詰め替えて入力する。
+ *
+ * プリロールを設定した時は、requestOutputが呼ばれるまでエンコードしたパケットをPacketRingに溜め、
+ * 呼ばれたら溜めたパケットを再エンコードせずにファイルの先頭に書き込む。
+ * ファイルは映像のキーフレームから始まり、その時間を0にずらして書き込む。
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaCodecRecorder extends FrameRecorder {
+    private static final String MIME_TYPE_AAC = "audio/mp4a-latm";
+    private static final int I_FRAME_INTERVAL = 1;
+    private static final int DEFAULT_AUDIO_BITRATE = 64000;
+    private static final long TIMEOUT_USEC = 10000;
+    private static final int MAX_INPUT_RETRIES = 100;
+    private static final long END_OF_STREAM_TIMEOUT_NANOS = 2000000000L;
+
+    private final String mOutputPath;
+    private final EncoderProbe.Capability mCapability;
+
+    private MediaCodec mVideoEncoder;
+    private MediaCodec mAudioEncoder;
+    private MediaMuxer mMuxer;
+    private int mVideoTrack = -1;
+    private int mAudioTrack = -1;
+    private boolean mIsMuxerStarted = false;
+    private final List<PendingSample> mPendingSamples = new ArrayList<>();
+    private MediaFormat mVideoFormat;
+    private MediaFormat mAudioFormat;
+
+    private PacketRing mPreRoll;
+    private volatile boolean mIsOutputRequested = true;
+    private boolean mIsOutputStarted = false;
+    private long mTimestampOffset = -1;
+
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private byte[] mVideoInput;
+    private long mAudioSampleCount = 0;
+
+    /**
+     * @param outputPath 出力先
+     * @param width 横幅
+     * @param height 高さ
+     * @param audioChannels 音声のチャンネル数
+     * @param capability 使用するハードウェアエンコーダー
+     */
+    public MediaCodecRecorder(String outputPath, int width, int height, int audioChannels,
+                              EncoderProbe.Capability capability) {
+        mOutputPath = outputPath;
+        mCapability = capability;
+        this.imageWidth = width;
+        this.imageHeight = height;
+        this.audioChannels = audioChannels;
+    }
+
+    /**
+     * 書き込みを始めるまでエンコードしたパケットを溜めておく、startの前に呼ぶ
+     *
+     * @param preRoll パケットを溜めるリングバッファ、nullの時はすぐに書き込む
+     */
+    public void setPreRoll(PacketRing preRoll) {
+        mPreRoll = preRoll;
+    }
+
+    public PacketRing getPreRoll() {
+        return mPreRoll;
+    }
+
+    /**
+     * 溜めたパケットと以降のパケットのファイルへの書き込みを始める
+     * 他のスレッドから呼べて、次にrecordが呼ばれた時に書き込みのスレッドで切り替える
+     */
+    public void requestOutput() {
+        mIsOutputRequested = true;
+    }
+
+    @Override
+    public void start() throws Exception {
+        try {
+            MediaFormat videoFormat = MediaFormat.createVideoFormat(EncoderProbe.MIME_TYPE_AVC, imageWidth, imageHeight);
+            videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, mCapability.getColorFormat());
+            videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
+            videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, (int) Math.round(frameRate));
+            videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+            mVideoEncoder = MediaCodec.createByCodecName(mCapability.getCodecName());
+            mVideoEncoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            MediaFormat audioFormat = MediaFormat.createAudioFormat(MIME_TYPE_AAC, sampleRate, audioChannels);
+            audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+            audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, audioBitrate > 0 ? audioBitrate : DEFAULT_AUDIO_BITRATE);
+            mAudioEncoder = MediaCodec.createEncoderByType(MIME_TYPE_AAC);
+            mAudioEncoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+
+            mVideoEncoder.start();
+            mAudioEncoder.start();
+        } catch (IOException | RuntimeException e) {
+            release();
+            throw new Exception("failed to start MediaCodec encoder: " + e.getMessage(), e);
+        }
+        mVideoInput = new byte[imageWidth * imageHeight * 3 / 2];
+        mAudioSampleCount = 0;
+        timestamp = 0;
+        mTimestampOffset = -1;
+        mIsOutputStarted = false;
+        mIsOutputRequested = mPreRoll == null;
+        if (mIsOutputRequested) {
+            try {
+                startOutput();
+            } catch (Exception e) {
+                release();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void record(Frame frame) throws Exception {
+        if (mVideoEncoder == null) {
+            throw new Exception("MediaCodecRecorder is not started");
+        }
+        try {
+            if (mIsOutputRequested && !mIsOutputStarted) {
+                startOutput();
+            }
+            if (frame != null && frame.image != null) {
+                encodeVideo((ByteBuffer) frame.image[0]);
+            }
+            if (frame != null && frame.samples != null) {
+                encodeAudio((ShortBuffer) frame.samples[0]);
+            }
+        } catch (RuntimeException e) {
+            // MediaCodecは状態の異常をIllegalStateExceptionで通知する
+            throw new Exception("MediaCodec encoder failed: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (mVideoEncoder == null) {
+            return;
+        }
+        try {
+            signalEndOfStream(mVideoEncoder, timestamp);
+            signalEndOfStream(mAudioEncoder, mAudioSampleCount * 1000000L / sampleRate);
+            drain(mVideoEncoder, true);
+            drain(mAudioEncoder, true);
+            if (mIsMuxerStarted) {
+                mMuxer.stop();
+            }
+        } catch (RuntimeException e) {
+            throw new Exception("failed to stop MediaCodec encoder: " + e.getMessage(), e);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void release() throws Exception {
+        if (mVideoEncoder != null) {
+            releaseCodec(mVideoEncoder);
+            mVideoEncoder = null;
+        }
+        if (mAudioEncoder != null) {
+            releaseCodec(mAudioEncoder);
+            mAudioEncoder = null;
+        }
+        if (mMuxer != null) {
+            mMuxer.release();
+            mMuxer = null;
+        }
+        mVideoTrack = -1;
+        mAudioTrack = -1;
+        mIsMuxerStarted = false;
+        mPendingSamples.clear();
+        mVideoFormat = null;
+        mAudioFormat = null;
+        if (mPreRoll != null) {
+            mPreRoll.clear();
+        }
+    }
+
+    /**
+     * MediaMuxerを作り、溜めたパケットを書き込む
+     */
+    private void startOutput() throws Exception {
+        try {
+            mMuxer = new MediaMuxer(mOutputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException e) {
+            throw new Exception("failed to create MediaMuxer: " + e.getMessage(), e);
+        }
+        mIsOutputStarted = true;
+        startMuxerIfReady();
+        if (mPreRoll != null) {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            mPreRoll.drainTo((track, data, presentationTimeUs, isKeyFrame) -> {
+                info.set(data.position(), data.remaining(), presentationTimeUs,
+                        isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                writeOutput(PacketRing.TRACK_VIDEO == track, data, info);
+            });
+        }
+    }
+
+    /**
+     * NV21のフレームをエンコーダーの色の形式に詰め替えて入力する
+     */
+    private void encodeVideo(ByteBuffer image) throws Exception {
+        int index = dequeueInputBuffer(mVideoEncoder);
+        ByteBuffer input = mVideoEncoder.getInputBuffers()[index];
+
+        int ySize = imageWidth * imageHeight;
+        int chromaSize = ySize / 4;
+        // 同時に書き込む他のレコーダーとpositionを共有しないように、複製したバッファから読む
+        ByteBuffer src = image.duplicate();
+        src.clear();
+        src.get(mVideoInput, 0, mVideoInput.length);
+
+        input.clear();
+        input.put(mVideoInput, 0, ySize);
+        if (MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar == mCapability.getColorFormat()) {
+            // NV21はVUの順に並んでいるので、NV12のUVの順に入れ替える
+            for (int i = ySize; i < mVideoInput.length; i += 2) {
+                byte v = mVideoInput[i];
+                mVideoInput[i] = mVideoInput[i + 1];
+                mVideoInput[i + 1] = v;
+            }
+            input.put(mVideoInput, ySize, chromaSize * 2);
+        } else {
+            for (int i = 0; i < chromaSize; i++) {
+                input.put(mVideoInput[ySize + i * 2 + 1]);
+            }
+            for (int i = 0; i < chromaSize; i++) {
+                input.put(mVideoInput[ySize + i * 2]);
+            }
+        }
+        mVideoEncoder.queueInputBuffer(index, 0, input.position(), timestamp, 0);
+
+        // FFmpegFrameRecorderと同じように次のフレームの時間に進める
+        timestamp += Math.round(1000000L / frameRate);
+        drain(mVideoEncoder, false);
+    }
+
+    /**
+     * 音声を入力する、タイムスタンプは入力したサンプル数から求める
+     */
+    private void encodeAudio(ShortBuffer samples) throws Exception {
+        int channels = Math.max(1, audioChannels);
+        while (samples.hasRemaining()) {
+            int index = dequeueInputBuffer(mAudioEncoder);
+            ByteBuffer input = mAudioEncoder.getInputBuffers()[index];
+            input.clear();
+            int count = Math.min(samples.remaining(), input.capacity() / 2);
+
+            int limit = samples.limit();
+            samples.limit(samples.position() + count);
+            input.order(ByteOrder.nativeOrder()).asShortBuffer().put(samples);
+            samples.limit(limit);
+
+            long presentationTimeUs = mAudioSampleCount * 1000000L / sampleRate;
+            mAudioEncoder.queueInputBuffer(index, 0, count * 2, presentationTimeUs, 0);
+            mAudioSampleCount += count / channels;
+            drain(mAudioEncoder, false);
+        }
+    }
+
+    /**
+     * 入力のバッファが空くまで出力を取り出しながら待つ
+     */
+    private int dequeueInputBuffer(MediaCodec codec) throws Exception {
+        for (int i = 0; i < MAX_INPUT_RETRIES; i++) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_USEC);
+            if (index >= 0) {
+                return index;
+            }
+            drain(mVideoEncoder, false);
+            drain(mAudioEncoder, false);
+        }
+        throw new Exception("MediaCodec input buffer timed out");
+    }
+
+    private void signalEndOfStream(MediaCodec codec, long presentationTimeUs) throws Exception {
+        int index = dequeueInputBuffer(codec);
+        codec.queueInputBuffer(index, 0, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    /**
+     * エンコーダーの出力をMediaMuxerに書き込む
+     *
+     * @param codec エンコーダー
+     * @param isEndOfStream 最後まで出力されるのを待つかどうか
+     */
+    private void drain(MediaCodec codec, boolean isEndOfStream) throws Exception {
+        long deadline = System.nanoTime() + END_OF_STREAM_TIMEOUT_NANOS;
+        ByteBuffer[] outputs = codec.getOutputBuffers();
+        while (true) {
+            int index = codec.dequeueOutputBuffer(mBufferInfo, isEndOfStream ? TIMEOUT_USEC : 0);
+            if (MediaCodec.INFO_TRY_AGAIN_LATER == index) {
+                if (!isEndOfStream) {
+                    return;
+                }
+                if (System.nanoTime() > deadline) {
+                    throw new Exception("MediaCodec end of stream timed out");
+                }
+            } else if (MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED == index) {
+                outputs = codec.getOutputBuffers();
+            } else if (MediaCodec.INFO_OUTPUT_FORMAT_CHANGED == index) {
+                if (codec == mVideoEncoder) {
+                    mVideoFormat = codec.getOutputFormat();
+                } else {
+                    mAudioFormat = codec.getOutputFormat();
+                }
+                startMuxerIfReady();
+            } else if (index >= 0) {
+                // SPSとPPSは出力の形式に含まれているので書き込まない
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && mBufferInfo.size > 0) {
+                    ByteBuffer data = outputs[index];
+                    data.limit(mBufferInfo.offset + mBufferInfo.size).position(mBufferInfo.offset);
+                    if (mIsOutputStarted) {
+                        writeOutput(codec == mVideoEncoder, data, mBufferInfo);
+                    } else {
+                        mPreRoll.write(codec == mVideoEncoder ? PacketRing.TRACK_VIDEO : PacketRing.TRACK_AUDIO, data,
+                                mBufferInfo.presentationTimeUs,
+                                (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+                    }
+                }
+                codec.releaseOutputBuffer(index, false);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 映像と音声の両方の形式が決まってからMediaMuxerを開始する
+     */
+    private void startMuxerIfReady() {
+        if (mMuxer == null || mIsMuxerStarted || mVideoFormat == null || mAudioFormat == null) {
+            return;
+        }
+        mVideoTrack = mMuxer.addTrack(mVideoFormat);
+        mAudioTrack = mMuxer.addTrack(mAudioFormat);
+        mMuxer.start();
+        mIsMuxerStarted = true;
+
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (PendingSample sample : mPendingSamples) {
+            info.set(0, sample.mData.remaining(), sample.mPresentationTimeUs, sample.mFlags);
+            mMuxer.writeSampleData(sample.mIsVideo ? mVideoTrack : mAudioTrack, sample.mData, info);
+        }
+        mPendingSamples.clear();
+    }
+
+    /**
+     * 最初の映像のキーフレームの時間を0にずらしてファイルに書き込む
+     * キーフレームより前のパケットは再生できないので捨てる
+     */
+    private void writeOutput(boolean isVideo, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (mTimestampOffset < 0) {
+            if (!isVideo || (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                return;
+            }
+            mTimestampOffset = info.presentationTimeUs;
+        }
+        if (info.presentationTimeUs < mTimestampOffset) {
+            return;
+        }
+        long presentationTimeUs = info.presentationTimeUs - mTimestampOffset;
+
+        if (mIsMuxerStarted) {
+            info.set(info.offset, info.size, presentationTimeUs, info.flags);
+            mMuxer.writeSampleData(isVideo ? mVideoTrack : mAudioTrack, data, info);
+            return;
+        }
+        // もう片方の形式が決まるまではコピーして取っておく
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data);
+        copy.flip();
+        mPendingSamples.add(new PendingSample(isVideo, copy, presentationTimeUs, info.flags));
+    }
+
+    private static void releaseCodec(MediaCodec codec) {
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            // 開始していないエンコーダーは止められないので解放だけする
+        }
+        codec.release();
+    }
+
+    /**
+     * MediaMuxerを開始する前に出力されたデータ
+     */
+    private static class PendingSample {
+        private final boolean mIsVideo;
+        private final ByteBuffer mData;
+        private final long mPresentationTimeUs;
+        private final int mFlags;
+
+        PendingSample(boolean isVideo, ByteBuffer data, long presentationTimeUs, int flags) {
+            mIsVideo = isVideo;
+            mData = data;
+            mPresentationTimeUs = presentationTimeUs;
+            mFlags = flags;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.unuuu.sample;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * マイクから録音する音声の取得元
+ */
+public class MicAudioSource implements AudioSource {
+    private final int mSampleRate;
+    private final int mBufferSizeInBytes;
+    private AudioRecord mAudioRecord;
+
+    /**
+     * @param sampleRate サンプルレート
+     * @param bufferSizeInBytes 録音のバッファのバイト数、getMinBufferSize以上にする
+     */
+    public MicAudioSource(int sampleRate, int bufferSizeInBytes) {
+        mSampleRate = sampleRate;
+        mBufferSizeInBytes = bufferSizeInBytes;
+    }
+
+    /**
+     * 録音に必要な最小のバッファのバイト数
+     */
+    public static int getMinBufferSize(int sampleRate) {
+        return AudioRecord.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public void start() throws IOException {
+        mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mSampleRate, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, mBufferSizeInBytes);
+        try {
+            mAudioRecord.startRecording();
+        } catch (IllegalStateException e) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+            throw new IOException("failed to start recording: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 録音中かどうか
+     */
+    public boolean isRecording() {
+        return mAudioRecord != null && mAudioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        return mAudioRecord.read(buffer, sizeInBytes);
+    }
+
+    @Override
+    public void stop() {
+        if (mAudioRecord != null) {
+            mAudioRecord.stop();
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+}
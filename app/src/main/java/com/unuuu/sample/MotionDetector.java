@@ -0,0 +1,249 @@
+package com.unuuu.sample;
+
+import java.util.Locale;
+
+/**
+ * NV21の輝度を間引いて前に残したフレームと比べ、動きのないフレームを録画から外す
+ *
+ * 格子状に間引いた点ごとに2x2の輝度の平均を取り、差が大きい点の割合 (千分率) を動きの量にする。
+ * 閾値以上の時は動き始めたとみなし、閾値を下回るフレームが続いた後に動き終わったとみなす。
+ * 動いている間は全てのフレームを残し、止まっている間は指定した間隔で1枚だけ残す。
+ * 比べるのは最後に残したフレームなので、ゆっくりした変化も溜まれば動きになる。
+ * 作った後はメモリを確保しない。カメラのスレッドから呼び、リスナーもそのスレッドで呼ばれる。
+ */
+public class MotionDetector {
+    /** 間引く間隔 (ピクセル) */
+    public static final int DEFAULT_STEP = 8;
+    /** 変わったとみなす輝度の差 */
+    public static final int DEFAULT_PIXEL_DELTA = 24;
+    /** 動いたとみなす変わった点の割合 (千分率) */
+    public static final int DEFAULT_THRESHOLD_PER_MILLE = 10;
+    /** 動き終わったとみなすまでに閾値を下回るフレーム数 */
+    public static final int DEFAULT_HOLD_FRAMES = 15;
+
+    /**
+     * 動き始めと動き終わりを受け取るリスナー
+     */
+    public interface Listener {
+        /**
+         * @param captureNanos 動き始めたフレームを取得した時刻 (System.nanoTime)
+         * @param score 動きの量 (千分率)
+         */
+        void onMotionStart(long captureNanos, int score);
+
+        /**
+         * @param captureNanos 動き終わったとみなしたフレームを取得した時刻 (System.nanoTime)
+         * @param durationNanos 動き始めてからの時間 (ナノ秒)
+         */
+        void onMotionEnd(long captureNanos, long durationNanos);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStep;
+    private final int mColumns;
+    private final int mRows;
+    private final int mPixelDelta;
+    private final int mThresholdPerMille;
+    private final int mHoldFrames;
+    private final long mStaticIntervalNanos;
+    private Listener mListener;
+
+    /* 最後に残したフレームと今のフレームの間引いた輝度、残した時に入れ替える */
+    private byte[] mReference;
+    private byte[] mCurrent;
+    private boolean mHasReference = false;
+
+    private boolean mIsMoving = false;
+    private int mStillFrameCount = 0;
+    private long mMotionStartNanos = 0;
+    private long mLastKeptNanos = 0;
+    private int mLastScore = 0;
+    private int mMaxScore = 0;
+    private long mFrameCount = 0;
+    private long mSkippedFrameCount = 0;
+    private long mMotionCount = 0;
+
+    /**
+     * @param width フレームの横幅
+     * @param height フレームの高さ
+     * @param thresholdPerMille 動いたとみなす変わった点の割合 (千分率)
+     * @param staticIntervalNanos 止まっている間にフレームを残す間隔 (ナノ秒)、Long.MAX_VALUEの時は残さない
+     */
+    public MotionDetector(int width, int height, int thresholdPerMille, long staticIntervalNanos) {
+        this(width, height, DEFAULT_STEP, DEFAULT_PIXEL_DELTA, thresholdPerMille, DEFAULT_HOLD_FRAMES,
+                staticIntervalNanos);
+    }
+
+    /**
+     * @param width フレームの横幅
+     * @param height フレームの高さ
+     * @param step 間引く間隔 (ピクセル)、2以上
+     * @param pixelDelta 変わったとみなす輝度の差
+     * @param thresholdPerMille 動いたとみなす変わった点の割合 (千分率)
+     * @param holdFrames 動き終わったとみなすまでに閾値を下回るフレーム数
+     * @param staticIntervalNanos 止まっている間にフレームを残す間隔 (ナノ秒)、Long.MAX_VALUEの時は残さない
+     */
+    public MotionDetector(int width, int height, int step, int pixelDelta, int thresholdPerMille, int holdFrames,
+                          long staticIntervalNanos) {
+        if (step < 2 || width < step || height < step) {
+            throw new IllegalArgumentException("invalid step " + step + " for " + width + "x" + height);
+        }
+        if (thresholdPerMille <= 0 || thresholdPerMille > 1000) {
+            throw new IllegalArgumentException("thresholdPerMille must be in 1..1000: " + thresholdPerMille);
+        }
+        if (holdFrames < 0 || staticIntervalNanos < 0) {
+            throw new IllegalArgumentException("holdFrames and staticIntervalNanos must not be negative");
+        }
+        mWidth = width;
+        mHeight = height;
+        mStep = step;
+        mColumns = width / step;
+        mRows = height / step;
+        mPixelDelta = pixelDelta;
+        mThresholdPerMille = thresholdPerMille;
+        mHoldFrames = holdFrames;
+        mStaticIntervalNanos = staticIntervalNanos;
+        mReference = new byte[mColumns * mRows];
+        mCurrent = new byte[mColumns * mRows];
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * フレームを録画に残すかどうか
+     * 残す時はこのフレームを次に比べるフレームにする
+     *
+     * @param nv21 NV21のデータ
+     * @param captureNanos 取得した時刻 (System.nanoTime)
+     * @return 残す時はtrue
+     */
+    public boolean shouldKeep(byte[] nv21, long captureNanos) {
+        mFrameCount += 1;
+        int score = measure(nv21);
+        mLastScore = score;
+        if (score > mMaxScore) {
+            mMaxScore = score;
+        }
+
+        // 最初のフレームは比べるものがないので必ず残す
+        if (!mHasReference) {
+            mHasReference = true;
+            keep(captureNanos);
+            return true;
+        }
+
+        if (score >= mThresholdPerMille) {
+            mStillFrameCount = 0;
+            if (!mIsMoving) {
+                mIsMoving = true;
+                mMotionStartNanos = captureNanos;
+                mMotionCount += 1;
+                if (mListener != null) {
+                    mListener.onMotionStart(captureNanos, score);
+                }
+            }
+        } else if (mIsMoving) {
+            // 動きの終わりを切らないように、止まってからしばらくは残す
+            mStillFrameCount += 1;
+            if (mStillFrameCount > mHoldFrames) {
+                mIsMoving = false;
+                if (mListener != null) {
+                    mListener.onMotionEnd(captureNanos, captureNanos - mMotionStartNanos);
+                }
+            }
+        }
+
+        if (mIsMoving || captureNanos - mLastKeptNanos >= mStaticIntervalNanos) {
+            keep(captureNanos);
+            return true;
+        }
+        mSkippedFrameCount += 1;
+        return false;
+    }
+
+    /**
+     * 今のフレームの輝度を間引いて取り出し、最後に残したフレームから変わった点の割合を求める
+     *
+     * @return 変わった点の割合 (千分率)
+     */
+    private int measure(byte[] nv21) {
+        byte[] current = mCurrent;
+        byte[] reference = mReference;
+        int width = mWidth;
+        int step = mStep;
+        int delta = mPixelDelta;
+        int changed = 0;
+        int i = 0;
+        for (int row = 0; row < mRows; row++) {
+            int offset = row * step * width;
+            for (int column = 0; column < mColumns; column++) {
+                int top = offset + column * step;
+                int bottom = top + width;
+                int luma = ((nv21[top] & 0xff) + (nv21[top + 1] & 0xff)
+                        + (nv21[bottom] & 0xff) + (nv21[bottom + 1] & 0xff)) >> 2;
+                int diff = luma - (reference[i] & 0xff);
+                if (diff >= delta || -diff >= delta) {
+                    changed += 1;
+                }
+                current[i] = (byte) luma;
+                i += 1;
+            }
+        }
+        return changed * 1000 / i;
+    }
+
+    private void keep(long captureNanos) {
+        byte[] reference = mReference;
+        mReference = mCurrent;
+        mCurrent = reference;
+        mLastKeptNanos = captureNanos;
+    }
+
+    /**
+     * 動いているとみなしているかどうか
+     */
+    public boolean isMoving() {
+        return mIsMoving;
+    }
+
+    /**
+     * 最後に調べたフレームの動きの量 (千分率)
+     */
+    public int getLastScore() {
+        return mLastScore;
+    }
+
+    public int getMaxScore() {
+        return mMaxScore;
+    }
+
+    /**
+     * 調べたフレーム数
+     */
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * 動きがないので録画から外したフレーム数
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+
+    /**
+     * 動き始めた回数
+     */
+    public long getMotionCount() {
+        return mMotionCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "MotionDetector(%dx%d step=%d threshold=%d‰): frames=%d skipped=%d motions=%d maxScore=%d‰",
+                mWidth, mHeight, mStep, mThresholdPerMille, mFrameCount, mSkippedFrameCount, mMotionCount, mMaxScore);
+    }
+}
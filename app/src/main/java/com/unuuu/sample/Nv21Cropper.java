@@ -0,0 +1,192 @@
+package com.unuuu.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * NV21のデータを中央で切り抜く
+ *
+ * カメラから受け取ったbyte[]から、Yと交互に並んだVUの面を行毎に直接書き込む。
+ * 回転と左右反転も切り抜きと同時に行う。
+ * 切り抜く位置と大きさは色差の間引きに合わせて偶数に揃える。
+ */
+public class Nv21Cropper {
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final int mCropWidth;
+    private final int mCropHeight;
+    private final int mCropX;
+    private final int mCropY;
+    private final int mRotation;
+    private final boolean mMirror;
+    private final int mOutputWidth;
+    private final int mOutputHeight;
+
+    /* 回転させる時に1行分を組み立てる */
+    private final byte[] mRowBuffer;
+
+    /**
+     * @param sourceWidth 元のデータの横幅
+     * @param sourceHeight 元のデータの高さ
+     * @param cropWidth 切り抜く横幅
+     * @param cropHeight 切り抜く高さ
+     * @param rotation 時計回りの回転角度 (0, 90, 180, 270)
+     * @param mirror 回転した後に左右反転するかどうか
+     */
+    public Nv21Cropper(int sourceWidth, int sourceHeight, int cropWidth, int cropHeight, int rotation, boolean mirror) {
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("unsupported rotation: " + rotation);
+        }
+        if (cropWidth > sourceWidth || cropHeight > sourceHeight) {
+            throw new IllegalArgumentException("crop size " + cropWidth + "x" + cropHeight
+                    + " exceeds source size " + sourceWidth + "x" + sourceHeight);
+        }
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mCropWidth = cropWidth & ~1;
+        mCropHeight = cropHeight & ~1;
+        mCropX = ((sourceWidth - mCropWidth) / 2) & ~1;
+        mCropY = ((sourceHeight - mCropHeight) / 2) & ~1;
+        mRotation = rotation;
+        mMirror = mirror;
+
+        if (rotation == 90 || rotation == 270) {
+            mOutputWidth = mCropHeight;
+            mOutputHeight = mCropWidth;
+        } else {
+            mOutputWidth = mCropWidth;
+            mOutputHeight = mCropHeight;
+        }
+        mRowBuffer = new byte[mOutputWidth];
+    }
+
+    public int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    public int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+    /**
+     * 切り抜いた結果のバイト数
+     */
+    public int getOutputSize() {
+        return mOutputWidth * mOutputHeight * 3 / 2;
+    }
+
+    /**
+     * 切り抜いてdstの先頭から書き込む
+     *
+     * 1つのインスタンスを複数のスレッドから同時に使うことはできない。
+     *
+     * @param src 元のNV21のデータ
+     * @param dst 書き込み先、getOutputSize()以上の空きが必要
+     */
+    public void crop(byte[] src, ByteBuffer dst) {
+        dst.clear();
+        if (mRotation == 0 && !mMirror) {
+            copyRows(src, dst);
+        } else {
+            transformPlane(src, dst, 0, mCropWidth, mCropHeight, mCropX, mCropY, mSourceWidth, 1);
+            transformPlane(src, dst, mSourceWidth * mSourceHeight, mCropWidth / 2, mCropHeight / 2,
+                    mCropX / 2, mCropY / 2, mSourceWidth / 2, 2);
+        }
+        dst.flip();
+    }
+
+    /**
+     * 回転も反転もしない時は行毎にまとめてコピーする
+     */
+    private void copyRows(byte[] src, ByteBuffer dst) {
+        for (int y = 0; y < mCropHeight; y++) {
+            dst.put(src, (mCropY + y) * mSourceWidth + mCropX, mCropWidth);
+        }
+        int chromaOffset = mSourceWidth * mSourceHeight;
+        for (int y = 0; y < mCropHeight / 2; y++) {
+            dst.put(src, chromaOffset + (mCropY / 2 + y) * mSourceWidth + mCropX, mCropWidth);
+        }
+    }
+
+    /**
+     * 1つの面を回転、反転しながら書き込む
+     *
+     * 色差の面はVUの2バイトを1画素として扱う。
+     *
+     * @param planeOffset 面の開始位置
+     * @param width 切り抜く面の画素数 (横)
+     * @param height 切り抜く面の画素数 (縦)
+     * @param cropX 面の中での切り抜く位置 (横)
+     * @param cropY 面の中での切り抜く位置 (縦)
+     * @param stride 面の1行の画素数
+     * @param pixelSize 1画素のバイト数
+     */
+    private void transformPlane(byte[] src, ByteBuffer dst, int planeOffset, int width, int height,
+                                int cropX, int cropY, int stride, int pixelSize) {
+        boolean isTransposed = mRotation == 90 || mRotation == 270;
+        int outWidth = isTransposed ? height : width;
+        int outHeight = isTransposed ? width : height;
+        int rowBytes = outWidth * pixelSize;
+
+        for (int oy = 0; oy < outHeight; oy++) {
+            // 出力の1行の中では元の位置が一定の間隔で動く
+            int sx = sourceX(0, oy, outWidth, width);
+            int sy = sourceY(0, oy, outWidth, height);
+            int stepX = sourceX(1, oy, outWidth, width) - sx;
+            int stepY = sourceY(1, oy, outWidth, height) - sy;
+            int index = planeOffset + ((cropY + sy) * stride + cropX + sx) * pixelSize;
+            int stepBytes = (stepY * stride + stepX) * pixelSize;
+
+            if (pixelSize == 1) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    mRowBuffer[ox] = src[index];
+                    index += stepBytes;
+                }
+            } else {
+                for (int ox = 0; ox < rowBytes; ox += 2) {
+                    mRowBuffer[ox] = src[index];
+                    mRowBuffer[ox + 1] = src[index + 1];
+                    index += stepBytes;
+                }
+            }
+            dst.put(mRowBuffer, 0, rowBytes);
+        }
+    }
+
+    /**
+     * 出力の位置に対応する切り抜き範囲の中の横の位置
+     */
+    private int sourceX(int ox, int oy, int outWidth, int width) {
+        if (mMirror) {
+            ox = outWidth - 1 - ox;
+        }
+        switch (mRotation) {
+            case 90:
+                return oy;
+            case 180:
+                return width - 1 - ox;
+            case 270:
+                return width - 1 - oy;
+            default:
+                return ox;
+        }
+    }
+
+    /**
+     * 出力の位置に対応する切り抜き範囲の中の縦の位置
+     */
+    private int sourceY(int ox, int oy, int outWidth, int height) {
+        if (mMirror) {
+            ox = outWidth - 1 - ox;
+        }
+        switch (mRotation) {
+            case 90:
+                return height - 1 - ox;
+            case 180:
+                return height - 1 - oy;
+            case 270:
+                return ox;
+            default:
+                return oy;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.unuuu.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * エンコード済みのパケットを直近の一定時間分だけ持っておくリングバッファ
+ *
+ * データは最初に確保した1つのバッファに詰めて書き込み、足りない時は古いパケットから捨てるので、
+ * 使うメモリは確保した大きさを超えない。
+ * 取り出す時は映像のキーフレームから始めるので、そのまま別のファイルの先頭に書き込める。
+ * 1つのスレッドから使う。
+ */
+public class PacketRing {
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    /**
+     * 取り出したパケットを受け取る
+     */
+    public interface PacketConsumer {
+        /**
+         * @param track TRACK_VIDEOかTRACK_AUDIO
+         * @param data パケットのデータ、呼び出しが終わった後は使えない
+         * @param timestamp パケットの時間 (マイクロ秒)
+         * @param isKeyFrame キーフレームかどうか
+         */
+        void onPacket(int track, ByteBuffer data, long timestamp, boolean isKeyFrame);
+    }
+
+    private final ByteBuffer mData;
+    private final ByteBuffer mWriteBuffer;
+    private final ByteBuffer mReadBuffer;
+    private final long mMaxDuration;
+
+    /* パケット毎のヘッダ、mHeadから順にmCount個が有効 */
+    private final int[] mTracks;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mTimestamps;
+    private final boolean[] mKeyFrames;
+    private int mHead = 0;
+    private int mCount = 0;
+
+    /* 次のデータを書き込む位置 */
+    private int mWritePosition = 0;
+    private int mUsedBytes = 0;
+    private long mNewestVideoTimestamp = -1;
+
+    private long mEvictedCount = 0;
+    private long mRejectedCount = 0;
+    private int mHighWaterMark = 0;
+
+    /**
+     * @param capacityBytes データを書き込むバッファの大きさ
+     * @param maxPackets 持っておけるパケットの最大数
+     * @param maxDuration 持っておく時間 (マイクロ秒)、0の時はバッファに入るだけ持つ
+     */
+    public PacketRing(int capacityBytes, int maxPackets, long maxDuration) {
+        if (capacityBytes <= 0) {
+            throw new IllegalArgumentException("capacityBytes must be positive: " + capacityBytes);
+        }
+        if (maxPackets <= 0) {
+            throw new IllegalArgumentException("maxPackets must be positive: " + maxPackets);
+        }
+        mData = ByteBuffer.allocateDirect(capacityBytes);
+        mWriteBuffer = mData.duplicate();
+        mReadBuffer = mData.duplicate();
+        mMaxDuration = maxDuration;
+        mTracks = new int[maxPackets];
+        mOffsets = new int[maxPackets];
+        mSizes = new int[maxPackets];
+        mTimestamps = new long[maxPackets];
+        mKeyFrames = new boolean[maxPackets];
+    }
+
+    /**
+     * パケットをコピーして追加する、入りきらない時は古いパケットを捨てる
+     *
+     * @param track TRACK_VIDEOかTRACK_AUDIO
+     * @param data パケットのデータ、positionからlimitまでをコピーする
+     * @param timestamp パケットの時間 (マイクロ秒)
+     * @param isKeyFrame キーフレームかどうか
+     * @return バッファより大きくて追加できない時はfalse
+     */
+    public boolean write(int track, ByteBuffer data, long timestamp, boolean isKeyFrame) {
+        int size = data.remaining();
+        if (size > mData.capacity()) {
+            mRejectedCount += 1;
+            return false;
+        }
+
+        int offset;
+        while ((offset = findSpace(size)) < 0) {
+            evictHead();
+        }
+
+        int index = (mHead + mCount) % mTracks.length;
+        mTracks[index] = track;
+        mOffsets[index] = offset;
+        mSizes[index] = size;
+        mTimestamps[index] = timestamp;
+        mKeyFrames[index] = isKeyFrame;
+        mCount += 1;
+
+        mWriteBuffer.limit(offset + size).position(offset);
+        mWriteBuffer.put(data.duplicate());
+        mWritePosition = offset + size;
+        mUsedBytes += size;
+        mHighWaterMark = Math.max(mHighWaterMark, mUsedBytes);
+
+        if (TRACK_VIDEO == track) {
+            mNewestVideoTimestamp = timestamp;
+            if (mMaxDuration > 0) {
+                trimToDuration(timestamp - mMaxDuration);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 最初の映像のキーフレームから順にパケットを渡し、空にする
+     * キーフレームより前の時間の音声は渡さない
+     *
+     * @param consumer パケットを受け取る
+     * @return 渡したパケットの数、キーフレームがない時は0
+     */
+    public int drainTo(PacketConsumer consumer) {
+        int first = findFirstKeyFrame(0);
+        int drained = 0;
+        if (first >= 0) {
+            long keyFrameTimestamp = mTimestamps[index(first)];
+            for (int i = first; i < mCount; i++) {
+                int index = index(i);
+                if (TRACK_AUDIO == mTracks[index] && mTimestamps[index] < keyFrameTimestamp) {
+                    continue;
+                }
+                mReadBuffer.limit(mOffsets[index] + mSizes[index]).position(mOffsets[index]);
+                consumer.onPacket(mTracks[index], mReadBuffer, mTimestamps[index], mKeyFrames[index]);
+                drained += 1;
+            }
+        }
+        clear();
+        return drained;
+    }
+
+    /**
+     * 全てのパケットを捨てる、バッファは解放しない
+     */
+    public void clear() {
+        mHead = 0;
+        mCount = 0;
+        mWritePosition = 0;
+        mUsedBytes = 0;
+        mNewestVideoTimestamp = -1;
+    }
+
+    /**
+     * 確保しているバッファの大きさ
+     */
+    public int getCapacity() {
+        return mData.capacity();
+    }
+
+    /**
+     * 持っているパケットのバイト数
+     */
+    public int getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    public int getPacketCount() {
+        return mCount;
+    }
+
+    /**
+     * 取り出した時に書き込まれる長さ (マイクロ秒)
+     */
+    public long getDuration() {
+        int first = findFirstKeyFrame(0);
+        if (first < 0) {
+            return 0;
+        }
+        return mNewestVideoTimestamp - mTimestamps[index(first)];
+    }
+
+    /**
+     * 入りきらずに捨てたパケットの数
+     */
+    public long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * バッファより大きくて追加できなかったパケットの数
+     */
+    public long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    /**
+     * 持っていたパケットのバイト数の最大値
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    @Override
+    public String toString() {
+        return "PacketRing{capacity=" + getCapacity()
+                + ", used=" + mUsedBytes
+                + ", packets=" + mCount
+                + ", duration=" + getDuration()
+                + ", evicted=" + mEvictedCount
+                + ", rejected=" + mRejectedCount
+                + ", highWaterMark=" + mHighWaterMark + "}";
+    }
+
+    /**
+     * 古いパケットを捨てずに書き込める位置を探す
+     *
+     * @return 書き込む位置、空きがない時は-1
+     */
+    private int findSpace(int size) {
+        if (mCount == mTracks.length) {
+            return -1;
+        }
+        if (mCount == 0) {
+            return 0;
+        }
+        int head = mOffsets[mHead];
+        if (mWritePosition > head) {
+            // 末尾に入らない時は先頭に戻る、末尾の余りは使わない
+            if (size <= mData.capacity() - mWritePosition) {
+                return mWritePosition;
+            }
+            return size <= head ? 0 : -1;
+        }
+        return size <= head - mWritePosition ? mWritePosition : -1;
+    }
+
+    private void evictHead() {
+        mUsedBytes -= mSizes[mHead];
+        mHead = (mHead + 1) % mTracks.length;
+        mCount -= 1;
+        mEvictedCount += 1;
+        if (mCount == 0) {
+            mWritePosition = 0;
+        }
+    }
+
+    /**
+     * 指定した時間以前で最後のキーフレームより前のパケットを捨てる
+     * 残ったパケットは必ず指定した時間より前のキーフレームから始まる
+     */
+    private void trimToDuration(long threshold) {
+        int keep = -1;
+        for (int i = findFirstKeyFrame(0); i >= 0 && mTimestamps[index(i)] <= threshold; i = findFirstKeyFrame(i + 1)) {
+            keep = i;
+        }
+        for (int i = 0; i < keep; i++) {
+            evictHead();
+        }
+    }
+
+    /**
+     * @param from 探し始める位置 (先頭からの数)
+     * @return 先頭からの数、見つからない時は-1
+     */
+    private int findFirstKeyFrame(int from) {
+        for (int i = from; i < mCount; i++) {
+            int index = index(i);
+            if (TRACK_VIDEO == mTracks[index] && mKeyFrames[index]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int index(int position) {
+        return (mHead + position) % mTracks.length;
+    }
+}
@@ -0,0 +1,82 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.Frame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FramePoolから取得したフレーム
+ *
+ * 参照カウントを持ち、複数のスレッドでコピーせずに共有できる。
+ * 取得した時は1で、全ての参照を解放した時にプールに戻る。
+ */
+public class PooledFrame {
+    private final FramePool mPool;
+    private final Frame mFrame;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private long mTimestamp;
+    private long mCaptureNanos;
+
+    PooledFrame(FramePool pool, Frame frame) {
+        mPool = pool;
+        mFrame = frame;
+    }
+
+    public Frame getFrame() {
+        return mFrame;
+    }
+
+    /**
+     * 録画開始からの経過時間 (マイクロ秒)
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * カメラから受け取った時のSystem.nanoTime()
+     */
+    public long getCaptureNanos() {
+        return mCaptureNanos;
+    }
+
+    public void setCaptureNanos(long captureNanos) {
+        mCaptureNanos = captureNanos;
+    }
+
+    /**
+     * プールから取得した時に参照カウントを1にする
+     */
+    void reset() {
+        mRefCount.set(1);
+    }
+
+    /**
+     * 参照を1つ増やす、増やした分だけreleaseを呼ぶ
+     */
+    public void retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("frame already released");
+        }
+    }
+
+    /**
+     * 参照を1つ解放し、最後の参照だった時はフレームをプールに戻す
+     */
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            mPool.release(this);
+        } else if (refCount < 0) {
+            throw new IllegalStateException("frame released more than once");
+        }
+    }
+
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+}
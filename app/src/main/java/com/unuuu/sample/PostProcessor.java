@@ -0,0 +1,614 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 録画したファイルを1回だけデコードし、複数の出力に並列で渡す
+ *
+ * デコードは処理毎のスレッドで行い、各出力はExecutorのスレッドで順番にフレームを処理する。
+ * 出力毎のキューは上限があるので、一番遅い出力に合わせてデコードが待つ。
+ * フレームは全ての出力で共有し、全ての出力が処理し終わったら使い回す。
+ */
+public class PostProcessor {
+    /** 出力毎に溜められるフレームの最大数 */
+    public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+    private static final long POLL_TIMEOUT_MILLIS = 10;
+
+    /**
+     * デコードしたフレームを受け取る出力
+     *
+     * 1つの出力のメソッドは同時に呼ばれることはないが、呼ばれるスレッドは変わることがある。
+     */
+    public interface Sink {
+        /**
+         * 最初のフレームを渡す前に呼ばれる
+         *
+         * @param source 入力のファイルの情報
+         */
+        void start(SourceInfo source) throws Exception;
+
+        /**
+         * デコードしたフレームを受け取る、フレームは呼び出しが終わった後に使い回される
+         *
+         * @param frame 映像か音声のフレーム
+         * @param timestamp フレームの時間 (マイクロ秒)
+         * @return これ以上フレームが必要ない時はtrue
+         */
+        boolean onFrame(Frame frame, long timestamp) throws Exception;
+
+        /**
+         * 全てのフレームを渡し終わったか、onFrameがtrueを返した後に呼ばれる
+         */
+        void finish() throws Exception;
+
+        /**
+         * 中断した時か失敗した時に呼ばれる、書きかけの出力を削除する
+         */
+        void abort() throws Exception;
+    }
+
+    /**
+     * 処理の状態を受け取るリスナー
+     */
+    public interface Listener {
+        /**
+         * デコードが進んだ時にデコードのスレッドから呼ばれる
+         *
+         * @param progress 0から1の進み具合
+         */
+        void onProgress(float progress);
+
+        /**
+         * 出力が終わった時に呼ばれる
+         *
+         * @param sink 出力
+         * @param error 失敗した時の例外、成功した時はnull
+         */
+        void onSinkFinished(Sink sink, Exception error);
+
+        /**
+         * 全ての出力が終わった後に入力のファイルを閉じられなかった時にデコードのスレッドから呼ばれる
+         *
+         * @param error 閉じる時の例外
+         */
+        void onInputError(Exception error);
+
+        /**
+         * 全ての出力が終わった時にデコードのスレッドから呼ばれる
+         *
+         * @param isCancelled 中断したかどうか
+         */
+        void onFinish(boolean isCancelled);
+    }
+
+    /**
+     * 入力のファイルの情報
+     */
+    public static class SourceInfo {
+        private final int mImageWidth;
+        private final int mImageHeight;
+        private final double mFrameRate;
+        private final int mSampleRate;
+        private final int mAudioChannels;
+        private final long mLengthInTime;
+
+        public SourceInfo(int imageWidth, int imageHeight, double frameRate, int sampleRate, int audioChannels,
+                          long lengthInTime) {
+            mImageWidth = imageWidth;
+            mImageHeight = imageHeight;
+            mFrameRate = frameRate;
+            mSampleRate = sampleRate;
+            mAudioChannels = audioChannels;
+            mLengthInTime = lengthInTime;
+        }
+
+        public int getImageWidth() {
+            return mImageWidth;
+        }
+
+        public int getImageHeight() {
+            return mImageHeight;
+        }
+
+        public double getFrameRate() {
+            return mFrameRate;
+        }
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        public int getAudioChannels() {
+            return mAudioChannels;
+        }
+
+        /**
+         * ファイルの長さ (マイクロ秒)
+         */
+        public long getLengthInTime() {
+            return mLengthInTime;
+        }
+    }
+
+    private final ExecutorService mExecutor;
+    private final boolean mIsOwnExecutor;
+    private final int mQueueCapacity;
+
+    /**
+     * @param threadCount 出力を処理するスレッドの数
+     */
+    public PostProcessor(int threadCount) {
+        mExecutor = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "PostProcessor-sink");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mIsOwnExecutor = true;
+        mQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+    }
+
+    /**
+     * @param executor 出力を処理するExecutor、出力の処理は途中でブロックしないのでスレッドの数はいくつでもよい
+     * @param queueCapacity 出力毎に溜められるフレームの最大数
+     */
+    public PostProcessor(ExecutorService executor, int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        mExecutor = executor;
+        mIsOwnExecutor = false;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * ファイルのデコードを開始する
+     *
+     * @param inputPath 入力のファイル
+     * @param sinks 出力
+     * @param listener リスナー、nullの時は通知しない
+     * @return 処理を中断したり終わるのを待つためのオブジェクト
+     */
+    public Job process(String inputPath, List<? extends Sink> sinks, Listener listener) {
+        Job job = new Job(inputPath, sinks, listener);
+        Thread thread = new Thread(job::run, "PostProcessor-decode");
+        thread.start();
+        return job;
+    }
+
+    /**
+     * 出力を処理するスレッドを止める、Executorを渡した時は何もしない
+     */
+    public void shutdown() {
+        if (mIsOwnExecutor) {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 1つのファイルの処理
+     */
+    public class Job {
+        private final String mInputPath;
+        private final List<SinkRunner> mRunners = new ArrayList<>();
+        private final Listener mListener;
+        private final ArrayBlockingQueue<SharedFrame> mFreeFrames;
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private volatile boolean mIsCancelled = false;
+        private CountDownLatch mSinksFinished;
+
+        Job(String inputPath, List<? extends Sink> sinks, Listener listener) {
+            mInputPath = inputPath;
+            mListener = listener;
+            for (Sink sink : sinks) {
+                mRunners.add(new SinkRunner(sink));
+            }
+            // 全ての出力のキューが一杯の時と、各出力が処理中の分を確保する
+            int frameCount = mQueueCapacity + 2;
+            mFreeFrames = new ArrayBlockingQueue<>(frameCount);
+            for (int i = 0; i < frameCount; i++) {
+                mFreeFrames.offer(new SharedFrame(mFreeFrames));
+            }
+        }
+
+        /**
+         * 処理を中断する、書きかけの出力は削除される
+         */
+        public void cancel() {
+            mIsCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        /**
+         * 全ての出力が終わるまで待つ
+         */
+        public void await() throws InterruptedException {
+            mFinished.await();
+        }
+
+        /**
+         * 全ての出力が終わるまで待つ
+         *
+         * @return 時間内に終わった時はtrue
+         */
+        public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+            return mFinished.await(timeout, unit);
+        }
+
+        private void run() {
+            FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(mInputPath);
+            mSinksFinished = new CountDownLatch(mRunners.size());
+            try {
+                grabber.start();
+                SourceInfo source = new SourceInfo(grabber.getImageWidth(), grabber.getImageHeight(),
+                        grabber.getFrameRate(), grabber.getSampleRate(), grabber.getAudioChannels(),
+                        grabber.getLengthInTime());
+                for (SinkRunner runner : mRunners) {
+                    runner.start(source);
+                }
+                decode(grabber, source);
+            } catch (Exception e) {
+                for (SinkRunner runner : mRunners) {
+                    runner.fail(e);
+                }
+            } finally {
+                for (SinkRunner runner : mRunners) {
+                    runner.endOfInput();
+                }
+                try {
+                    mSinksFinished.await();
+                } catch (InterruptedException e) {
+                    mIsCancelled = true;
+                    Thread.currentThread().interrupt();
+                }
+                try {
+                    grabber.stop();
+                    grabber.release();
+                } catch (FrameGrabber.Exception e) {
+                    if (mListener != null) {
+                        mListener.onInputError(e);
+                    }
+                }
+                if (mListener != null) {
+                    mListener.onFinish(mIsCancelled);
+                }
+                mFinished.countDown();
+            }
+        }
+
+        private void decode(FFmpegFrameGrabber grabber, SourceInfo source) throws Exception {
+            float lastProgress = -1;
+            while (!mIsCancelled && hasActiveSinks()) {
+                Frame frame = grabber.grab();
+                if (frame == null) {
+                    break;
+                }
+                long timestamp = grabber.getTimestamp();
+                SharedFrame shared = acquireFrame();
+                if (shared == null) {
+                    break;
+                }
+                shared.copyFrom(frame, timestamp);
+
+                // 先に参照数を決めてから渡し、処理中に他の出力が使い回さないようにする
+                List<SinkRunner> targets = new ArrayList<>(mRunners.size());
+                for (SinkRunner runner : mRunners) {
+                    if (!runner.isDone()) {
+                        targets.add(runner);
+                    }
+                }
+                shared.retain(targets.size() + 1);
+                for (SinkRunner runner : targets) {
+                    runner.offer(shared);
+                }
+                shared.release();
+
+                if (mListener != null && source.getLengthInTime() > 0) {
+                    float progress = Math.min(1f, (float) timestamp / source.getLengthInTime());
+                    if (progress - lastProgress >= 0.01f) {
+                        lastProgress = progress;
+                        mListener.onProgress(progress);
+                    }
+                }
+            }
+            if (mListener != null && !mIsCancelled) {
+                mListener.onProgress(1f);
+            }
+        }
+
+        private boolean hasActiveSinks() {
+            for (SinkRunner runner : mRunners) {
+                if (!runner.isDone()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 使い回せるフレームが空くまで待つ、中断した時はnull
+         */
+        private SharedFrame acquireFrame() throws InterruptedException {
+            while (!mIsCancelled) {
+                SharedFrame frame = mFreeFrames.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame != null) {
+                    return frame;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 1つの出力にフレームを順番に渡す
+         *
+         * キューにフレームがある間だけExecutorで実行し、空になったらスレッドを返す。
+         */
+        private class SinkRunner implements Runnable {
+            private final Sink mSink;
+            private final SpscRingBuffer<SharedFrame> mQueue =
+                    new SpscRingBuffer<>(mQueueCapacity, SpscRingBuffer.BackpressurePolicy.BLOCK);
+            private final AtomicBoolean mIsScheduled = new AtomicBoolean(false);
+            private volatile boolean mIsInputEnded = false;
+            private volatile boolean mIsDone = false;
+            private Exception mError;
+            private boolean mIsCompleted = false;
+
+            SinkRunner(Sink sink) {
+                mSink = sink;
+            }
+
+            boolean isDone() {
+                return mIsDone;
+            }
+
+            void start(SourceInfo source) {
+                try {
+                    mSink.start(source);
+                } catch (Exception e) {
+                    fail(e);
+                }
+            }
+
+            /**
+             * デコードのスレッドから呼ぶ
+             */
+            void fail(Exception e) {
+                if (!mIsDone) {
+                    mError = e;
+                    mIsDone = true;
+                }
+            }
+
+            void offer(SharedFrame frame) {
+                SharedFrame rejected = mQueue.offer(frame);
+                if (rejected != null) {
+                    // 待機中に割り込まれた
+                    rejected.release();
+                    mIsCancelled = true;
+                }
+                schedule();
+            }
+
+            void endOfInput() {
+                mIsInputEnded = true;
+                schedule();
+            }
+
+            private void schedule() {
+                if (mIsScheduled.compareAndSet(false, true)) {
+                    mExecutor.execute(this);
+                }
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    SharedFrame frame;
+                    while ((frame = mQueue.poll()) != null) {
+                        process(frame);
+                    }
+                    if (mIsInputEnded && mQueue.isEmpty()) {
+                        complete();
+                        return;
+                    }
+                    mIsScheduled.set(false);
+                    // 手放した後に追加されたフレームを取りこぼさないように確かめる
+                    if (mQueue.isEmpty() && !mIsInputEnded) {
+                        return;
+                    }
+                    if (!mIsScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                }
+            }
+
+            private void process(SharedFrame frame) {
+                try {
+                    if (!mIsDone && !mIsCancelled && mSink.onFrame(frame.getFrame(), frame.getTimestamp())) {
+                        mIsDone = true;
+                    }
+                } catch (Exception e) {
+                    mError = e;
+                    mIsDone = true;
+                } finally {
+                    frame.release();
+                }
+            }
+
+            private void complete() {
+                if (mIsCompleted) {
+                    return;
+                }
+                mIsCompleted = true;
+                mIsDone = true;
+
+                if (mError == null && !mIsCancelled) {
+                    try {
+                        mSink.finish();
+                    } catch (Exception e) {
+                        mError = e;
+                    }
+                }
+                if (mError != null || mIsCancelled) {
+                    try {
+                        mSink.abort();
+                    } catch (Exception e) {
+                        // 出力の失敗を優先し、中断した時だけ削除の失敗を返す
+                        if (mError == null) {
+                            mError = e;
+                        }
+                    }
+                }
+                if (mListener != null) {
+                    mListener.onSinkFinished(mSink, mError);
+                }
+                mSinksFinished.countDown();
+            }
+        }
+    }
+
+    /**
+     * 全ての出力で共有するフレームのコピー
+     */
+    private static class SharedFrame {
+        private final ArrayBlockingQueue<SharedFrame> mPool;
+        private final Frame mFrame = new Frame();
+        private final AtomicInteger mRefCount = new AtomicInteger();
+        private Buffer[] mImage;
+        private Buffer[] mSamples;
+        private long mTimestamp;
+
+        SharedFrame(ArrayBlockingQueue<SharedFrame> pool) {
+            mPool = pool;
+        }
+
+        Frame getFrame() {
+            return mFrame;
+        }
+
+        long getTimestamp() {
+            return mTimestamp;
+        }
+
+        void retain(int count) {
+            mRefCount.set(count);
+        }
+
+        void release() {
+            if (mRefCount.decrementAndGet() == 0) {
+                mPool.offer(this);
+            }
+        }
+
+        /**
+         * デコーダーが使い回すフレームの内容をコピーする
+         */
+        void copyFrom(Frame src, long timestamp) {
+            mTimestamp = timestamp;
+            mFrame.keyFrame = src.keyFrame;
+            if (src.image != null) {
+                mImage = copyBuffers(src.image, mImage);
+                mFrame.image = mImage;
+                mFrame.imageWidth = src.imageWidth;
+                mFrame.imageHeight = src.imageHeight;
+                mFrame.imageDepth = src.imageDepth;
+                mFrame.imageChannels = src.imageChannels;
+                mFrame.imageStride = src.imageStride;
+            } else {
+                mFrame.image = null;
+            }
+            if (src.samples != null) {
+                mSamples = copyBuffers(src.samples, mSamples);
+                mFrame.samples = mSamples;
+                mFrame.sampleRate = src.sampleRate;
+                mFrame.audioChannels = src.audioChannels;
+            } else {
+                mFrame.samples = null;
+            }
+        }
+
+        private static Buffer[] copyBuffers(Buffer[] src, Buffer[] dst) {
+            if (dst == null || dst.length != src.length) {
+                dst = new Buffer[src.length];
+            }
+            for (int i = 0; i < src.length; i++) {
+                dst[i] = copyBuffer(src[i], dst[i]);
+            }
+            return dst;
+        }
+
+        /**
+         * バッファの型を保ったまま先頭からlimitまでをコピーする
+         * ネイティブに渡すので、足りない時はダイレクトバッファを確保し直す
+         */
+        private static Buffer copyBuffer(Buffer src, Buffer dst) {
+            int length = src.limit();
+            if (dst == null || dst.capacity() < length || dst.getClass() != src.getClass()) {
+                dst = allocateLike(src, length);
+            }
+            dst.clear();
+            if (src instanceof ByteBuffer) {
+                ByteBuffer from = ((ByteBuffer) src).duplicate();
+                from.position(0);
+                ((ByteBuffer) dst).put(from);
+            } else if (src instanceof ShortBuffer) {
+                ShortBuffer from = ((ShortBuffer) src).duplicate();
+                from.position(0);
+                ((ShortBuffer) dst).put(from);
+            } else if (src instanceof FloatBuffer) {
+                FloatBuffer from = ((FloatBuffer) src).duplicate();
+                from.position(0);
+                ((FloatBuffer) dst).put(from);
+            } else if (src instanceof IntBuffer) {
+                IntBuffer from = ((IntBuffer) src).duplicate();
+                from.position(0);
+                ((IntBuffer) dst).put(from);
+            } else if (src instanceof DoubleBuffer) {
+                DoubleBuffer from = ((DoubleBuffer) src).duplicate();
+                from.position(0);
+                ((DoubleBuffer) dst).put(from);
+            } else {
+                throw new IllegalArgumentException("unsupported buffer: " + src.getClass());
+            }
+            dst.flip();
+            return dst;
+        }
+
+        private static Buffer allocateLike(Buffer src, int length) {
+            if (src instanceof ByteBuffer) {
+                return ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            } else if (src instanceof ShortBuffer) {
+                return ByteBuffer.allocateDirect(length * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+            } else if (src instanceof FloatBuffer) {
+                return ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+            } else if (src instanceof IntBuffer) {
+                return ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+            } else if (src instanceof DoubleBuffer) {
+                return ByteBuffer.allocateDirect(length * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+            throw new IllegalArgumentException("unsupported buffer: " + src.getClass());
+        }
+    }
+}
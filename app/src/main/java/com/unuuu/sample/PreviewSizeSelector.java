@@ -0,0 +1,90 @@
+package com.unuuu.sample;
+
+import java.util.List;
+
+/**
+ * プレビューのサイズを選ぶ
+ *
+ * Camera.SizeはAndroidの外では作れないので、サイズの型は問わずに横幅と高さの取り出し方を受け取る。
+ */
+public class PreviewSizeSelector {
+
+    /**
+     * サイズから横幅と高さを取り出す
+     *
+     * @param <T> サイズの型
+     */
+    public interface SizeAccessor<T> {
+        int getWidth(T size);
+        int getHeight(T size);
+    }
+
+    private PreviewSizeSelector() {
+    }
+
+    /**
+     * 指定された横幅、高さに近いサイズをリストから取得する
+     * @param sizes サイズのリスト
+     * @param w 横幅
+     * @param h 高さ
+     * @param accessor 横幅と高さの取り出し方
+     * @return サイズ
+     */
+    public static <T> T getOptimalSize(List<T> sizes, int w, int h, SizeAccessor<T> accessor) {
+        if (sizes == null) {
+            return null;
+        }
+        int index = indexOfOptimalSize(sizes, w, h, accessor);
+        return index >= 0 ? sizes.get(index) : null;
+    }
+
+    /**
+     * 指定された横幅、高さに近いサイズの位置を取得する
+     *
+     * カメラを開くたびに呼ばれるので、イテレーターやラムダを作らずにリストを添字で辿る。
+     * 縦横比が近いサイズの中で指定した大きさ以上かつ高さが近いものを選び、
+     * 縦横比が近いサイズがない時は全てのサイズから選ぶ。
+     *
+     * @param sizes サイズのリスト
+     * @param w 横幅
+     * @param h 高さ
+     * @param accessor 横幅と高さの取り出し方
+     * @return 位置、リストが空の時は-1
+     */
+    public static <T> int indexOfOptimalSize(List<T> sizes, int w, int h, SizeAccessor<T> accessor) {
+        double targetRatio = (double) w / h;
+        int optimal = -1;
+        for (int i = 0; i < sizes.size(); i++) {
+            T size = sizes.get(i);
+            double ratio = (double) accessor.getWidth(size) / accessor.getHeight(size);
+            if (Math.abs(ratio - targetRatio) <= 0.1f) {
+                optimal = selectCloser(sizes, optimal, i, w, h, accessor);
+            }
+        }
+        if (optimal < 0) {
+            for (int i = 0; i < sizes.size(); i++) {
+                optimal = selectCloser(sizes, optimal, i, w, h, accessor);
+            }
+        }
+        return optimal;
+    }
+
+    /**
+     * 今の候補と比べて、指定した大きさ以上で高さが近い方を選ぶ
+     * 候補がない時は比べずに新しいサイズを候補にする
+     */
+    private static <T> int selectCloser(List<T> sizes, int optimal, int index, int w, int h,
+                                        SizeAccessor<T> accessor) {
+        if (optimal < 0) {
+            return index;
+        }
+        T size = sizes.get(index);
+        if (w > accessor.getWidth(size) || h > accessor.getHeight(size)) {
+            return optimal;
+        }
+        if (Math.abs(accessor.getHeight(size) - h) < Math.abs(accessor.getHeight(sizes.get(optimal)) - h)) {
+            return index;
+        }
+        return optimal;
+    }
+}
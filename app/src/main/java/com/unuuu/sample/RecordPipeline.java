@@ -0,0 +1,791 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacpp.avutil;
+import org.bytedeco.javacv.FFmpegFrameFilter;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 録画の処理をステージ毎のスレッドに分けて行うパイプライン
+ *
+ * 音声の取得、映像の切り抜き、レコーダーへの書き込みを別々のスレッドで行い、
+ * ステージの間は上限のあるキューでつなぐ。
+ * レコーダーを呼び出すのは書き込みのステージだけになる。
+ */
+public class RecordPipeline {
+    /** 映像のステージから書き込みのステージに渡すフレームの最大数 */
+    public static final int VIDEO_QUEUE_CAPACITY = 4;
+    /** 退避したフレームを読み出すために確保するフレーム数 */
+    public static final int SPILL_READ_FRAME_COUNT = 2;
+
+    private static final long IDLE_PARK_NANOS = 1000000L;
+
+    /**
+     * パイプラインのステージ
+     */
+    public enum Stage {
+        AUDIO_CAPTURE,
+        VIDEO,
+        MUX
+    }
+
+    /**
+     * 映像を切り抜く方法
+     */
+    public enum CropEngine {
+        /** 映像のステージでlibavfilterのcropフィルタを使う */
+        LIBAVFILTER,
+        /** カメラのスレッドでNv21Cropperを使い、キューには切り抜き済みのフレームが入る */
+        JAVA
+    }
+
+    /**
+     * 音声を読み込む
+     */
+    public interface AudioReader {
+        /**
+         * AudioRecord#read(ByteBuffer, int)と同じようにバッファの先頭から書き込む
+         *
+         * @param buffer 書き込み先のダイレクトバッファ
+         * @param sizeInBytes 読み込むバイト数
+         * @return 読み込んだバイト数、エラーの時は負の値
+         */
+        int read(ByteBuffer buffer, int sizeInBytes);
+    }
+
+    /**
+     * パイプラインの状態を受け取るコールバック
+     */
+    public interface Callback {
+        /**
+         * ステージのスレッドが開始した時にそのスレッドから呼ばれる
+         */
+        void onStageStarted(Stage stage);
+
+        void onError(Stage stage, Exception e);
+    }
+
+    private final FrameRecorder mRecorder;
+    private final SpscRingBuffer<PooledFrame> mFrameQueue;
+    private final AudioReader mAudioReader;
+    private final Callback mCallback;
+
+    private final int mPreviewWidth;
+    private final int mPreviewHeight;
+    private final int mVideoWidth;
+    private final int mVideoHeight;
+    private final CropEngine mCropEngine;
+    private final int mRotation;
+    private final boolean mMirror;
+
+    /* 音声のバッファは空きのプールと録音済みのキューで回す */
+    private final AudioBufferPool mAudioBuffers;
+    private final SpscRingBuffer<AudioBufferPool.Chunk> mAudioQueue;
+    private final ByteBuffer mDiscardAudioBuffer;
+    private final ShortBuffer mSilence;
+    // 音声もFrameで渡して、ファイルを区切るレコーダーでも同じ経路で書き込めるようにする
+    private final Frame mAudioFrame = new Frame();
+    private final Buffer[] mAudioSamples = new Buffer[1];
+
+    private FramePool mVideoOutputPool;
+    private final SpscRingBuffer<PooledFrame> mVideoQueue;
+
+    private FrameSpill mFrameSpill;
+    private FramePool mSpillReadPool;
+    private RecordTimestamper mTimestamper;
+    private RecordSessionManager mSessionManager;
+    private VideoFilterChain mFilterChain;
+    private FramePool mFilterOutputPool;
+
+    private final LatencyHistogram mAudioReadLatency = new LatencyHistogram("audioRead");
+    private final LatencyHistogram mVideoFilterLatency = new LatencyHistogram("videoFilter");
+    private final LatencyHistogram mMuxVideoLatency = new LatencyHistogram("muxVideo");
+    private final LatencyHistogram mMuxAudioLatency = new LatencyHistogram("muxAudio");
+    private final LatencyHistogram mCaptureToEncodeLatency = new LatencyHistogram("captureToEncode");
+
+    private RecordingMetrics mMetrics = RecordingMetrics.NONE;
+    private EncoderQualityController mQualityController;
+
+    private volatile boolean mIsRunning = false;
+    private volatile boolean mIsAudioFinished = false;
+    private volatile boolean mIsVideoFinished = false;
+    private volatile long mAudioOverrunCount = 0;
+    private volatile long mDroppedAudioSampleCount = 0;
+    private volatile long mAudioRecordCount = 0;
+    private volatile long mEncodedFrameCount = 0;
+    private volatile long mDroppedVideoFrameCount = 0;
+
+    private Thread mAudioThread;
+    private Thread mVideoThread;
+    private Thread mMuxThread;
+
+    /**
+     * @param recorder 開始済みのレコーダー
+     * @param frameQueue カメラから取得したフレームのキュー
+     * @param audioReader 音声を読み込む処理
+     * @param audioBuffers 音声を読み込むバッファ、この大きさ毎にレコーダーに書き込む
+     * @param previewWidth プレビューの横幅
+     * @param previewHeight プレビューの高さ
+     * @param videoWidth 切り抜く横幅
+     * @param videoHeight 切り抜く高さ
+     * @param cropEngine 切り抜く方法
+     * @param rotation 時計回りの回転角度、LIBAVFILTERの時だけ使う
+     * @param mirror 左右反転するかどうか、LIBAVFILTERの時だけ使う
+     * @param callback コールバック
+     */
+    public RecordPipeline(FrameRecorder recorder, SpscRingBuffer<PooledFrame> frameQueue,
+                          AudioReader audioReader, AudioBufferPool audioBuffers,
+                          int previewWidth, int previewHeight, int videoWidth, int videoHeight,
+                          CropEngine cropEngine, int rotation, boolean mirror,
+                          Callback callback) {
+        mRecorder = recorder;
+        mFrameQueue = frameQueue;
+        mAudioReader = audioReader;
+        mCallback = callback;
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
+        mVideoWidth = videoWidth;
+        mVideoHeight = videoHeight;
+        mCropEngine = cropEngine;
+        mRotation = rotation;
+        mMirror = mirror;
+
+        // バッファの数とキューの大きさを揃えているので追加に失敗することはない
+        mAudioBuffers = audioBuffers;
+        mAudioQueue = new SpscRingBuffer<>(audioBuffers.getChunkCount(), SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        mDiscardAudioBuffer = ByteBuffer.allocateDirect(audioBuffers.getReadBytes()).order(ByteOrder.nativeOrder());
+        mSilence = ByteBuffer.allocateDirect(audioBuffers.getChunkSamples() * AudioBufferPool.BYTES_PER_SAMPLE)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+        mAudioFrame.samples = mAudioSamples;
+
+        mVideoOutputPool = createVideoOutputPool(0);
+        mVideoQueue = new SpscRingBuffer<>(VIDEO_QUEUE_CAPACITY, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+    }
+
+    /**
+     * 計測値の受け取り先を設定する (開始する前に呼ぶ)
+     *
+     * @param metrics 計測値の受け取り先
+     */
+    public void setRecordingMetrics(RecordingMetrics metrics) {
+        mMetrics = metrics != null ? metrics : RecordingMetrics.NONE;
+    }
+
+    /**
+     * 読み込んだ音声のサンプル数を伝える先を設定する (開始する前に呼ぶ)
+     *
+     * @param timestamper 音声の時計に映像を合わせるクラス、nullの時は伝えない
+     */
+    public void setTimestamper(RecordTimestamper timestamper) {
+        mTimestamper = timestamper;
+    }
+
+    /**
+     * 書き込むフレームと音声を配る先を設定する (開始する前に呼ぶ)
+     *
+     * フレームはレコーダーに書き込む前にセッションに配り、セッションが持っている間はプールに戻らない。
+     * その分だけ書き込み待ちと退避したフレームを読み出すプールを大きくする。
+     * 止めた後にRecordSessionManager#stopを呼ぶ。
+     *
+     * @param sessionManager 配る先、nullの時は配らない
+     */
+    public void setSessionManager(RecordSessionManager sessionManager) {
+        mSessionManager = sessionManager;
+        mVideoOutputPool = createVideoOutputPool(getSessionHeldFrameCount());
+        if (mFrameSpill != null) {
+            mSpillReadPool = createSpillReadPool();
+        }
+        if (mFilterOutputPool != null) {
+            mFilterOutputPool = createFilterOutputPool();
+        }
+    }
+
+    /**
+     * 書き込む前に掛ける映像のフィルタを設定する (開始する前に呼ぶ)
+     *
+     * 切り抜いた後のフレームに映像のステージで掛ける。
+     * 大きさが変わる時はチェインの出力の大きさのフレームを書き込むので、レコーダーもその大きさにする。
+     * チェインの解放は呼び出し側で行う。
+     *
+     * @param chain フィルタのチェイン、入力は切り抜いた後の大きさにする、nullの時は掛けない
+     */
+    public void setFilterChain(VideoFilterChain chain) {
+        if (chain != null) {
+            boolean isTransposed = mRotation == 90 || mRotation == 270;
+            int width = isTransposed ? mVideoHeight : mVideoWidth;
+            int height = isTransposed ? mVideoWidth : mVideoHeight;
+            if (chain.getInputWidth() != width || chain.getInputHeight() != height) {
+                throw new IllegalArgumentException("filter chain input " + chain.getInputWidth() + "x"
+                        + chain.getInputHeight() + " does not match video size " + width + "x" + height);
+            }
+        }
+        mFilterChain = chain;
+        mFilterOutputPool = chain != null && !chain.isInPlace() ? createFilterOutputPool() : null;
+    }
+
+    private FramePool createFilterOutputPool() {
+        // 書き込み待ちと書き込み中とフィルタを掛けている分
+        return new FramePool(mFilterChain.getOutputWidth(), mFilterChain.getOutputHeight(),
+                VIDEO_QUEUE_CAPACITY + 2 + getSessionHeldFrameCount());
+    }
+
+    /**
+     * フィルタを掛けたフレームのプール
+     *
+     * @return プール、フィルタを掛けない時と全てのフィルタがその場で書き換える時はnull
+     */
+    public FramePool getFilterOutputPool() {
+        return mFilterOutputPool;
+    }
+
+    /**
+     * フレームの退避先を設定する (開始する前に呼ぶ)
+     *
+     * キューのフレームを全て処理してから退避したフレームを読み出すので、順番は入れ替わらない。
+     *
+     * @param spill フレームの退避先、nullの時は退避しない
+     */
+    public void setFrameSpill(FrameSpill spill) {
+        mFrameSpill = spill;
+        mSpillReadPool = spill != null ? createSpillReadPool() : null;
+    }
+
+    private FramePool createSpillReadPool() {
+        // キューに入るフレームと同じ大きさにする、切り抜き済みのフレームはそのままセッションに渡る
+        if (CropEngine.JAVA == mCropEngine) {
+            boolean isTransposed = mRotation == 90 || mRotation == 270;
+            return new FramePool(isTransposed ? mVideoHeight : mVideoWidth,
+                    isTransposed ? mVideoWidth : mVideoHeight, SPILL_READ_FRAME_COUNT + getSessionHeldFrameCount());
+        }
+        return new FramePool(mPreviewWidth, mPreviewHeight, SPILL_READ_FRAME_COUNT);
+    }
+
+    private FramePool createVideoOutputPool(int extraFrameCount) {
+        boolean isTransposed = mRotation == 90 || mRotation == 270;
+        return new FramePool(isTransposed ? mVideoHeight : mVideoWidth,
+                isTransposed ? mVideoWidth : mVideoHeight, VIDEO_QUEUE_CAPACITY + extraFrameCount);
+    }
+
+    private int getSessionHeldFrameCount() {
+        return mSessionManager != null ? mSessionManager.getHeldFrameCount() : 0;
+    }
+
+    /**
+     * 退避したフレームを読み出すためのフレームのプール
+     *
+     * @return プール、退避しない時はnull
+     */
+    public FramePool getSpillReadPool() {
+        return mSpillReadPool;
+    }
+
+    /**
+     * エンコードにかかった時間を伝える先を設定する (開始する前に呼ぶ)
+     *
+     * @param controller エンコーダーの設定を調整するクラス、nullの時は伝えない
+     */
+    public void setQualityController(EncoderQualityController controller) {
+        mQualityController = controller;
+    }
+
+    /**
+     * 各ステージのスレッドを開始する
+     */
+    public void start() {
+        mIsRunning = true;
+        mAudioThread = new Thread(this::runAudioCapture, "RecordPipeline-audio");
+        mVideoThread = new Thread(this::runVideo, "RecordPipeline-video");
+        mMuxThread = new Thread(this::runMux, "RecordPipeline-mux");
+        mAudioThread.start();
+        mVideoThread.start();
+        mMuxThread.start();
+    }
+
+    /**
+     * 音声の取得を止め、キューに残っているフレームを書き込んでから全てのスレッドを止める
+     */
+    public void stop() throws InterruptedException {
+        mIsRunning = false;
+        if (mAudioThread != null) {
+            mAudioThread.join();
+        }
+        if (mVideoThread != null) {
+            mVideoThread.join();
+        }
+        if (mMuxThread != null) {
+            mMuxThread.join();
+        }
+        mAudioThread = null;
+        mVideoThread = null;
+        mMuxThread = null;
+    }
+
+    private void runAudioCapture() {
+        mCallback.onStageStarted(Stage.AUDIO_CAPTURE);
+        int readBytes = mAudioBuffers.getReadBytes();
+        int silenceSampleCount = 0;
+        try {
+            while (mIsRunning) {
+                AudioBufferPool.Chunk chunk = mAudioBuffers.acquire();
+                if (chunk == null) {
+                    // 書き込みが追いついていないので読み捨てて録音のバッファがあふれないようにする
+                    // 読み捨てた分は無音にして、音声の時間が映像より短くならないようにする
+                    int discarded = mAudioReader.read(mDiscardAudioBuffer, readBytes) / AudioBufferPool.BYTES_PER_SAMPLE;
+                    if (discarded > 0) {
+                        silenceSampleCount += discarded;
+                        mDroppedAudioSampleCount += discarded;
+                        if (mTimestamper != null) {
+                            mTimestamper.onAudioRead(discarded);
+                        }
+                    }
+                    mAudioOverrunCount += 1;
+                    mMetrics.onAudioOverrun();
+                    continue;
+                }
+
+                // 続けて読み込んだ分をまとめて1回で書き込む、足りない時はそこまでで区切る
+                int sampleCount = 0;
+                for (int i = 0; i < mAudioBuffers.getReadsPerChunk() && mIsRunning; i++) {
+                    long startTime = System.nanoTime();
+                    int bytes = mAudioReader.read(chunk.getReadBuffer(i), readBytes);
+                    mAudioReadLatency.record(System.nanoTime() - startTime);
+                    if (bytes <= 0) {
+                        break;
+                    }
+                    int samples = bytes / AudioBufferPool.BYTES_PER_SAMPLE;
+                    if (mTimestamper != null) {
+                        mTimestamper.onAudioRead(samples);
+                    }
+                    sampleCount += samples;
+                    if (bytes < readBytes) {
+                        break;
+                    }
+                }
+                if (sampleCount == 0) {
+                    mAudioBuffers.release(chunk);
+                    continue;
+                }
+                chunk.setSampleCount(sampleCount);
+                chunk.setSilenceBefore(silenceSampleCount);
+                silenceSampleCount = 0;
+                mAudioQueue.offer(chunk);
+            }
+        } finally {
+            mIsAudioFinished = true;
+        }
+    }
+
+    private void runVideo() {
+        mCallback.onStageStarted(Stage.VIDEO);
+        if (CropEngine.JAVA == mCropEngine) {
+            forwardCroppedFrames();
+            return;
+        }
+
+        // フィルタのグラフは録画の間作り直さずに使い続ける
+        FFmpegFrameFilter filter = createCropFilter(mPreviewWidth, mPreviewHeight, mVideoWidth, mVideoHeight,
+                mRotation, mMirror);
+        boolean isFilterStarted = startFilter(filter);
+        long lastTimestamp = 0;
+        long lastCaptureNanos = 0;
+
+        try {
+            while (mIsRunning || hasPendingFrames()) {
+                PooledFrame frame = pollFrame();
+                if (frame == null) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+
+                long startTime = System.nanoTime();
+                try {
+                    if (isFilterStarted) {
+                        lastTimestamp = frame.getTimestamp();
+                        lastCaptureNanos = frame.getCaptureNanos();
+                        filter.push(frame.getFrame());
+                        pullFilteredFrames(filter, lastTimestamp, lastCaptureNanos);
+                    }
+                } catch (FFmpegFrameFilter.Exception e) {
+                    mCallback.onError(Stage.VIDEO, e);
+                    // 壊れたグラフを使い続けないように作り直す
+                    stopFilter(filter);
+                    isFilterStarted = startFilter(filter);
+                } finally {
+                    frame.release();
+                }
+                mVideoFilterLatency.record(System.nanoTime() - startTime);
+            }
+
+            // グラフに残っているフレームを書き出してから閉じる
+            if (isFilterStarted) {
+                try {
+                    pullFilteredFrames(filter, lastTimestamp, lastCaptureNanos);
+                } catch (FFmpegFrameFilter.Exception e) {
+                    mCallback.onError(Stage.VIDEO, e);
+                }
+                stopFilter(filter);
+            }
+        } finally {
+            try {
+                filter.release();
+            } catch (FFmpegFrameFilter.Exception e) {
+                mCallback.onError(Stage.VIDEO, e);
+            }
+            mIsVideoFinished = true;
+        }
+    }
+
+    /**
+     * 切り抜き済みのフレームをそのまま書き込みのキューに渡す
+     */
+    private void forwardCroppedFrames() {
+        try {
+            while (mIsRunning || hasPendingFrames()) {
+                PooledFrame frame = pollFrame();
+                if (frame == null) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                if (mFilterChain != null) {
+                    long startTime = System.nanoTime();
+                    frame = applyFilters(frame);
+                    mVideoFilterLatency.record(System.nanoTime() - startTime);
+                    if (frame == null) {
+                        continue;
+                    }
+                }
+                offerVideo(frame);
+            }
+        } finally {
+            mIsVideoFinished = true;
+        }
+    }
+
+    /**
+     * 書き込みのキューに空きができるまで待ってから渡す
+     * 書き込みのキューに入れるのはこのステージだけなので、待った後に追加できないことはないが、
+     * 追加できなかった時はフレームを解放して捨てた数に数える
+     */
+    private void offerVideo(PooledFrame frame) {
+        while (mVideoQueue.size() >= mVideoQueue.getCapacity()) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        PooledFrame rejected = mVideoQueue.offer(frame);
+        if (rejected != null) {
+            rejected.release();
+            mDroppedVideoFrameCount += 1;
+            mMetrics.onFrameDropped(RecordingMetrics.DropReason.QUEUE_FULL);
+        }
+    }
+
+    /**
+     * キューか退避先に処理していないフレームがあるかどうか
+     */
+    private boolean hasPendingFrames() {
+        return !mFrameQueue.isEmpty() || (mFrameSpill != null && !mFrameSpill.isEmpty());
+    }
+
+    /**
+     * キューからフレームを取り出し、キューが空の時は退避したフレームを読み出す
+     *
+     * @return フレーム、どちらも空か読み出し用のフレームが足りない時はnull
+     */
+    private PooledFrame pollFrame() {
+        PooledFrame frame = mFrameQueue.poll();
+        if (frame != null || mFrameSpill == null || mFrameSpill.isEmpty()) {
+            return frame;
+        }
+        frame = mSpillReadPool.acquire();
+        if (frame == null) {
+            return null;
+        }
+        if (!mFrameSpill.read(frame)) {
+            frame.release();
+            return null;
+        }
+        return frame;
+    }
+
+    /**
+     * 中央で切り抜くフィルタを作る
+     *
+     * @param previewWidth プレビューの横幅
+     * @param previewHeight プレビューの高さ
+     * @param videoWidth 切り抜く横幅
+     * @param videoHeight 切り抜く高さ
+     * @param rotation 時計回りの回転角度 (0, 90, 180, 270)
+     * @param mirror 回転した後に左右反転するかどうか
+     * @return NV21のフレームを中央で切り抜くフィルタ
+     */
+    public static FFmpegFrameFilter createCropFilter(int previewWidth, int previewHeight, int videoWidth, int videoHeight,
+                                                     int rotation, boolean mirror) {
+        StringBuilder command = new StringBuilder(String.format("crop=%d:%d:%d:%d", videoWidth, videoHeight,
+                (previewWidth - videoWidth) / 2, (previewHeight - videoHeight) / 2));
+        switch (rotation) {
+            case 90:
+                command.append(",transpose=clock");
+                break;
+            case 180:
+                command.append(",hflip,vflip");
+                break;
+            case 270:
+                command.append(",transpose=cclock");
+                break;
+            default:
+                break;
+        }
+        if (mirror) {
+            command.append(",hflip");
+        }
+        FFmpegFrameFilter filter = new FFmpegFrameFilter(command.toString(), previewWidth, previewHeight);
+        filter.setPixelFormat(avutil.AV_PIX_FMT_NV21);
+        return filter;
+    }
+
+    private boolean startFilter(FFmpegFrameFilter filter) {
+        try {
+            filter.start();
+            return true;
+        } catch (FFmpegFrameFilter.Exception e) {
+            mCallback.onError(Stage.VIDEO, e);
+        }
+        return false;
+    }
+
+    private void stopFilter(FFmpegFrameFilter filter) {
+        try {
+            filter.stop();
+        } catch (FFmpegFrameFilter.Exception e) {
+            mCallback.onError(Stage.VIDEO, e);
+        }
+    }
+
+    /**
+     * フィルタから取り出せるフレームを全て書き込みのキューに渡す
+     *
+     * @param timestamp 最後に入れたフレームのタイムスタンプ
+     * @param captureNanos 最後に入れたフレームを取得した時刻、取得から書き込みまでの時間を計るのに使う
+     */
+    private void pullFilteredFrames(FFmpegFrameFilter filter, long timestamp, long captureNanos)
+            throws FFmpegFrameFilter.Exception {
+        Frame filtered;
+        while ((filtered = filter.pull()) != null) {
+            PooledFrame output = acquire(mVideoOutputPool);
+            copyNv21(filtered, output.getFrame());
+            output.setTimestamp(timestamp);
+            output.setCaptureNanos(captureNanos);
+            output = applyFilters(output);
+            if (output != null) {
+                offerVideo(output);
+            }
+        }
+    }
+
+    /**
+     * フィルタのチェインを掛ける
+     *
+     * @param frame 切り抜いたフレーム
+     * @return 書き込むフレーム、チェインが出力しなかった時はnull (渡したフレームは解放する)
+     */
+    private PooledFrame applyFilters(PooledFrame frame) {
+        if (mFilterChain == null) {
+            return frame;
+        }
+        PooledFrame output = mFilterChain.isInPlace() ? frame : acquire(mFilterOutputPool);
+        try {
+            if (mFilterChain.process((ByteBuffer) frame.getFrame().image[0], (ByteBuffer) output.getFrame().image[0])) {
+                if (output != frame) {
+                    output.setTimestamp(frame.getTimestamp());
+                    output.setCaptureNanos(frame.getCaptureNanos());
+                    frame.release();
+                }
+                return output;
+            }
+        } catch (IOException e) {
+            mCallback.onError(Stage.VIDEO, e);
+        }
+        if (output != frame) {
+            output.release();
+        }
+        frame.release();
+        mDroppedVideoFrameCount += 1;
+        mMetrics.onFrameDropped(RecordingMetrics.DropReason.FILTER_FAILED);
+        return null;
+    }
+
+    /**
+     * プールに空きができるまで待つ
+     */
+    private PooledFrame acquire(FramePool pool) {
+        PooledFrame output = pool.acquire();
+        while (output == null) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+            output = pool.acquire();
+        }
+        return output;
+    }
+
+    /**
+     * NV21のフレームを行毎に詰めてコピーする
+     */
+    private static void copyNv21(Frame src, Frame dst) {
+        ByteBuffer srcBuffer = (ByteBuffer) src.image[0];
+        ByteBuffer dstBuffer = (ByteBuffer) dst.image[0];
+        int width = dst.imageWidth;
+        int rows = dst.imageHeight * 3 / 2;
+        int srcStride = src.imageStride;
+
+        dstBuffer.clear();
+        for (int row = 0; row < rows; row++) {
+            srcBuffer.limit(row * srcStride + width).position(row * srcStride);
+            dstBuffer.put(srcBuffer);
+        }
+        srcBuffer.clear();
+    }
+
+    private void runMux() {
+        mCallback.onStageStarted(Stage.MUX);
+        while (true) {
+            boolean isIdle = true;
+
+            PooledFrame frame = mVideoQueue.poll();
+            if (frame != null) {
+                isIdle = false;
+                long startTime = System.nanoTime();
+                try {
+                    // 先に配ってセッションのスレッドと並行して書き込む
+                    if (mSessionManager != null) {
+                        mSessionManager.offerFrame(frame);
+                    }
+                    long t = frame.getTimestamp();
+                    if (t > mRecorder.getTimestamp()) {
+                        mRecorder.setTimestamp(t);
+                    }
+                    mRecorder.record(frame.getFrame());
+                    if (mQualityController != null) {
+                        mQualityController.onFrameEncoded(System.nanoTime() - startTime,
+                                mFrameQueue.size() + mVideoQueue.size());
+                    }
+
+                    long latency = System.nanoTime() - frame.getCaptureNanos();
+                    mCaptureToEncodeLatency.record(latency);
+                    mEncodedFrameCount += 1;
+                    mMetrics.onFrameEncoded(latency);
+                } catch (FrameRecorder.Exception e) {
+                    mCallback.onError(Stage.MUX, e);
+                } finally {
+                    frame.release();
+                }
+                mMuxVideoLatency.record(System.nanoTime() - startTime);
+            }
+
+            AudioBufferPool.Chunk audioChunk = mAudioQueue.poll();
+            if (audioChunk != null) {
+                isIdle = false;
+                long startTime = System.nanoTime();
+                try {
+                    for (int remaining = audioChunk.getSilenceBefore(); remaining > 0; ) {
+                        int length = Math.min(remaining, mSilence.capacity());
+                        mSilence.position(0).limit(length);
+                        offerAudio(mSilence);
+                        recordAudio(mSilence);
+                        remaining -= length;
+                    }
+                    offerAudio(audioChunk.getSamples());
+                    recordAudio(audioChunk.getSamples());
+                } catch (FrameRecorder.Exception e) {
+                    mCallback.onError(Stage.MUX, e);
+                } finally {
+                    mAudioBuffers.release(audioChunk);
+                }
+                mMuxAudioLatency.record(System.nanoTime() - startTime);
+            }
+
+            if (isIdle) {
+                if (mIsAudioFinished && mIsVideoFinished && mVideoQueue.isEmpty() && mAudioQueue.isEmpty()) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void offerAudio(ShortBuffer samples) {
+        if (mSessionManager != null) {
+            mSessionManager.offerAudio(samples);
+        }
+    }
+
+    private void recordAudio(ShortBuffer samples) throws FrameRecorder.Exception {
+        mAudioSamples[0] = samples;
+        mAudioFrame.sampleRate = mRecorder.getSampleRate();
+        mAudioFrame.audioChannels = mRecorder.getAudioChannels();
+        mRecorder.record(mAudioFrame);
+        mAudioRecordCount += 1;
+    }
+
+    /**
+     * 書き込みが追いつかず読み捨てた音声のバッファ数
+     */
+    public long getAudioOverrunCount() {
+        return mAudioOverrunCount;
+    }
+
+    /**
+     * 書き込みが追いつかず読み捨てて無音にしたサンプル数
+     */
+    public long getDroppedAudioSampleCount() {
+        return mDroppedAudioSampleCount;
+    }
+
+    /**
+     * レコーダーに音声を書き込んだ回数
+     */
+    public long getAudioRecordCount() {
+        return mAudioRecordCount;
+    }
+
+    /**
+     * レコーダーに書き込んだフレーム数
+     */
+    public long getEncodedFrameCount() {
+        return mEncodedFrameCount;
+    }
+
+    /**
+     * 書き込みのキューに入れられなかったり、フィルタに失敗したりしてパイプラインの中で捨てたフレーム数
+     */
+    public long getDroppedVideoFrameCount() {
+        return mDroppedVideoFrameCount;
+    }
+
+    /**
+     * カメラから受け取ってから書き込み終わるまでの時間
+     */
+    public LatencyHistogram getCaptureToEncodeLatency() {
+        return mCaptureToEncodeLatency;
+    }
+
+    public LatencyHistogram getAudioReadLatency() {
+        return mAudioReadLatency;
+    }
+
+    public LatencyHistogram getVideoFilterLatency() {
+        return mVideoFilterLatency;
+    }
+
+    public LatencyHistogram getMuxVideoLatency() {
+        return mMuxVideoLatency;
+    }
+
+    public LatencyHistogram getMuxAudioLatency() {
+        return mMuxAudioLatency;
+    }
+}
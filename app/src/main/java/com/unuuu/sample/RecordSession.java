@@ -0,0 +1,340 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * RecordSessionManagerから渡されたフレームと音声を1つのレコーダーに書き込むセッション
+ *
+ * セッション毎にキューと書き込みのスレッドを持つので、遅いセッションが他のセッションを待たせない。
+ * 映像のフレームはコピーせずに参照カウントを増やして受け取り、書き込んだ後に解放する。
+ * 録画のスレッドと同時に同じバッファを読むので、positionを共有しないように複製したバッファで書き込む。
+ * キューが一杯の時は一番古いフレームを捨てる。
+ */
+public class RecordSession {
+    /** 書き込み待ちのフレームの最大数の既定値 */
+    public static final int DEFAULT_QUEUE_CAPACITY = 2;
+
+    private static final long IDLE_PARK_NANOS = 1000000L;
+    private static final int AUDIO_BUFFER_COUNT = 16;
+    private static final int AUDIO_BUFFER_SAMPLES = 2048;
+
+    private final String mName;
+    private final FrameRecorder mRecorder;
+    /* 撮影した時刻を受け取らないレコーダーの時はnull */
+    private final CaptureTimeAware mCaptureTimeAware;
+    private final SpscRingBuffer<PooledFrame> mVideoQueue;
+
+    /* 元のフレームより小さい時は中央で切り抜く */
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final FramePool mCropPool;
+    /* 受け取ったフレームと同じ形で、バッファだけを複製して差し替える (書き込みのスレッドだけが使う) */
+    private final Frame mVideoFrame = new Frame();
+    private final Buffer[] mVideoImage = new Buffer[1];
+
+    /* 音声は小さいのでセッション毎にコピーし、空きと録音済みの2つのキューで回す */
+    private final SpscRingBuffer<AudioChunk> mFreeAudioBuffers;
+    private final SpscRingBuffer<AudioChunk> mAudioQueue;
+    private final ShortBuffer mSilence = ShortBuffer.allocate(AUDIO_BUFFER_SAMPLES);
+    private final Frame mAudioFrame = new Frame();
+    private final Buffer[] mAudioSamples = new Buffer[1];
+    /* 空きがなく捨てた音声のサンプル数、次の音声の前に無音として書き込む (追加する側だけが使う) */
+    private int mPendingSilence = 0;
+
+    private final LatencyHistogram mEncodeLatency;
+
+    private RecordSessionManager.Callback mCallback;
+    private volatile boolean mIsRunning = false;
+    private volatile long mEncodedFrameCount = 0;
+    private volatile long mDroppedAudioSampleCount = 0;
+    private Thread mThread;
+
+    /**
+     * @param name ログとスレッドに付ける名前
+     * @param recorder 開始していないレコーダー、映像の大きさは元のフレーム以下にする
+     *                 CaptureTimeAwareを実装している時は書き込む度に撮影した時刻を渡す
+     * @param sourceWidth 渡されるフレームの横幅
+     * @param sourceHeight 渡されるフレームの高さ
+     * @param queueCapacity 書き込み待ちのフレームの最大数
+     */
+    RecordSession(String name, FrameRecorder recorder, int sourceWidth, int sourceHeight, int queueCapacity) {
+        int width = recorder.getImageWidth();
+        int height = recorder.getImageHeight();
+        if (width > sourceWidth || height > sourceHeight) {
+            throw new IllegalArgumentException("session size " + width + "x" + height
+                    + " exceeds source size " + sourceWidth + "x" + sourceHeight);
+        }
+        mName = name;
+        mRecorder = recorder;
+        mCaptureTimeAware = recorder instanceof CaptureTimeAware ? (CaptureTimeAware) recorder : null;
+        mVideoQueue = new SpscRingBuffer<>(queueCapacity, SpscRingBuffer.BackpressurePolicy.DROP_OLDEST);
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        // 切り抜いたフレームは書き込みのスレッドの中だけで使う
+        mCropPool = width < sourceWidth || height < sourceHeight ? new FramePool(width & ~1, height & ~1, 1) : null;
+
+        // バッファの数とキューの大きさを揃えているので追加に失敗することはない
+        mFreeAudioBuffers = new SpscRingBuffer<>(AUDIO_BUFFER_COUNT, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        mAudioQueue = new SpscRingBuffer<>(AUDIO_BUFFER_COUNT, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        for (int i = 0; i < AUDIO_BUFFER_COUNT; i++) {
+            mFreeAudioBuffers.offer(new AudioChunk(ShortBuffer.allocate(AUDIO_BUFFER_SAMPLES)));
+        }
+        mVideoFrame.image = mVideoImage;
+        mAudioFrame.samples = mAudioSamples;
+        mEncodeLatency = new LatencyHistogram(name + ".encode");
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public FrameRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    public int getQueueCapacity() {
+        return mVideoQueue.getCapacity();
+    }
+
+    /**
+     * レコーダーを開始して書き込みのスレッドを開始する
+     */
+    void start(RecordSessionManager.Callback callback) throws FrameRecorder.Exception {
+        mCallback = callback;
+        mRecorder.start();
+        mIsRunning = true;
+        mThread = new Thread(this::run, "RecordSession-" + mName);
+        mThread.start();
+    }
+
+    /**
+     * キューに残っているフレームと音声を書き込んでからレコーダーを止めて解放する
+     */
+    void stop() throws InterruptedException {
+        mIsRunning = false;
+        if (mThread != null) {
+            mThread.join();
+            mThread = null;
+        }
+        try {
+            mRecorder.stop();
+            mRecorder.release();
+        } catch (FrameRecorder.Exception e) {
+            mCallback.onError(this, e);
+        }
+        // 止めた後に渡されたフレームも解放する
+        PooledFrame frame;
+        while ((frame = mVideoQueue.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    /**
+     * フレームの参照を増やして書き込みのキューに入れる (1つのスレッドからのみ呼ぶ)
+     *
+     * @param frame 書き込むフレーム、呼び出し側の参照はそのまま残る
+     */
+    void offerFrame(PooledFrame frame) {
+        frame.retain();
+        PooledFrame dropped = mVideoQueue.offer(frame);
+        if (dropped != null) {
+            dropped.release();
+        }
+    }
+
+    /**
+     * 音声のサンプルをコピーして書き込みのキューに入れる (offerFrameと同じスレッドから呼ぶ)
+     *
+     * @param samples positionからlimitまでを書き込む、positionは変えない
+     */
+    void offerAudio(ShortBuffer samples) {
+        int position = samples.position();
+        int limit = samples.limit();
+        for (int offset = position; offset < limit; ) {
+            int length = Math.min(limit - offset, AUDIO_BUFFER_SAMPLES);
+            AudioChunk chunk = mFreeAudioBuffers.poll();
+            if (chunk == null) {
+                // 書き込みが追いついていないので無音に置き換えて、映像との時間をずらさない
+                mPendingSilence += length;
+                mDroppedAudioSampleCount += length;
+            } else {
+                samples.limit(offset + length).position(offset);
+                chunk.mSamples.clear();
+                chunk.mSamples.put(samples);
+                chunk.mSamples.flip();
+                chunk.mSilenceBefore = mPendingSilence;
+                mPendingSilence = 0;
+                mAudioQueue.offer(chunk);
+            }
+            offset += length;
+        }
+        samples.limit(limit).position(position);
+    }
+
+    private void run() {
+        mCallback.onSessionStarted(this);
+        while (true) {
+            boolean isIdle = true;
+
+            PooledFrame frame = mVideoQueue.poll();
+            if (frame != null) {
+                isIdle = false;
+                long startTime = System.nanoTime();
+                try {
+                    long t = frame.getTimestamp();
+                    if (t > mRecorder.getTimestamp()) {
+                        mRecorder.setTimestamp(t);
+                    }
+                    if (mCaptureTimeAware != null) {
+                        mCaptureTimeAware.setCaptureNanos(frame.getCaptureNanos());
+                    }
+                    if (mCropPool != null) {
+                        PooledFrame cropped = mCropPool.acquire();
+                        try {
+                            cropCenter(frame.getFrame(), cropped.getFrame());
+                            mRecorder.record(cropped.getFrame());
+                        } finally {
+                            cropped.release();
+                        }
+                    } else {
+                        mRecorder.record(share(frame.getFrame()));
+                    }
+                    mEncodedFrameCount += 1;
+                } catch (FrameRecorder.Exception e) {
+                    mCallback.onError(this, e);
+                } finally {
+                    frame.release();
+                }
+                mEncodeLatency.record(System.nanoTime() - startTime);
+            }
+
+            AudioChunk chunk = mAudioQueue.poll();
+            if (chunk != null) {
+                isIdle = false;
+                try {
+                    for (int remaining = chunk.mSilenceBefore; remaining > 0; ) {
+                        int length = Math.min(remaining, mSilence.capacity());
+                        mSilence.position(0).limit(length);
+                        recordAudio(mSilence);
+                        remaining -= length;
+                    }
+                    recordAudio(chunk.mSamples);
+                } catch (FrameRecorder.Exception e) {
+                    mCallback.onError(this, e);
+                } finally {
+                    mFreeAudioBuffers.offer(chunk);
+                }
+            }
+
+            if (isIdle) {
+                if (!mIsRunning && mVideoQueue.isEmpty() && mAudioQueue.isEmpty()) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * 同じバッファを指し、positionとlimitは別に持つフレームにする
+     */
+    private Frame share(Frame src) {
+        mVideoFrame.imageWidth = src.imageWidth;
+        mVideoFrame.imageHeight = src.imageHeight;
+        mVideoFrame.imageDepth = src.imageDepth;
+        mVideoFrame.imageChannels = src.imageChannels;
+        mVideoFrame.imageStride = src.imageStride;
+        mVideoFrame.keyFrame = src.keyFrame;
+        mVideoImage[0] = ((ByteBuffer) src.image[0]).duplicate();
+        return mVideoFrame;
+    }
+
+    private void recordAudio(ShortBuffer samples) throws FrameRecorder.Exception {
+        mAudioSamples[0] = samples;
+        mAudioFrame.sampleRate = mRecorder.getSampleRate();
+        mAudioFrame.audioChannels = mRecorder.getAudioChannels();
+        mRecorder.record(mAudioFrame);
+    }
+
+    /**
+     * NV21のフレームの中央を行毎にコピーする
+     */
+    private void cropCenter(Frame src, Frame dst) {
+        ByteBuffer srcBuffer = ((ByteBuffer) src.image[0]).duplicate();
+        ByteBuffer dstBuffer = (ByteBuffer) dst.image[0];
+        int width = dst.imageWidth;
+        int height = dst.imageHeight;
+        int cropX = ((mSourceWidth - width) / 2) & ~1;
+        int cropY = ((mSourceHeight - height) / 2) & ~1;
+
+        dstBuffer.clear();
+        for (int y = 0; y < height; y++) {
+            int start = (cropY + y) * mSourceWidth + cropX;
+            srcBuffer.limit(start + width).position(start);
+            dstBuffer.put(srcBuffer);
+        }
+        int chromaOffset = mSourceWidth * mSourceHeight;
+        for (int y = 0; y < height / 2; y++) {
+            int start = chromaOffset + (cropY / 2 + y) * mSourceWidth + cropX;
+            srcBuffer.limit(start + width).position(start);
+            dstBuffer.put(srcBuffer);
+        }
+        dstBuffer.clear();
+    }
+
+    /**
+     * 書き込んだフレーム数
+     */
+    public long getEncodedFrameCount() {
+        return mEncodedFrameCount;
+    }
+
+    /**
+     * 書き込みが追いつかず捨てたフレーム数
+     */
+    public long getDroppedFrameCount() {
+        return mVideoQueue.getDroppedCount();
+    }
+
+    /**
+     * 書き込みが追いつかず無音に置き換えた音声のサンプル数
+     */
+    public long getDroppedAudioSampleCount() {
+        return mDroppedAudioSampleCount;
+    }
+
+    /**
+     * 1フレームの書き込みにかかった時間
+     */
+    public LatencyHistogram getEncodeLatency() {
+        return mEncodeLatency;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordSession{name=" + mName
+                + ", size=" + mRecorder.getImageWidth() + "x" + mRecorder.getImageHeight()
+                + ", encoded=" + mEncodedFrameCount
+                + ", dropped=" + getDroppedFrameCount()
+                + ", droppedAudioSamples=" + mDroppedAudioSampleCount
+                + ", queueHighWaterMark=" + mVideoQueue.getHighWaterMark() + "}";
+    }
+
+    /**
+     * 音声のバッファと、その前に無音にするサンプル数
+     */
+    private static class AudioChunk {
+        private final ShortBuffer mSamples;
+        private int mSilenceBefore;
+
+        AudioChunk(ShortBuffer samples) {
+            mSamples = samples;
+        }
+    }
+}
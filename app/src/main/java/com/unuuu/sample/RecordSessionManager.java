@@ -0,0 +1,135 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 1つの取得元のフレームと音声を複数のセッションに配る
+ *
+ * 高画質の保存用と低ビットレートのプレビュー用のように、同じ映像を設定の違う複数のファイルに同時に録画する。
+ * フレームは参照カウントを増やして各セッションのキューに入れるだけで、コピーしない。
+ * セッションは開始する前に追加し、録画中は増減しない。
+ */
+public class RecordSessionManager {
+
+    /**
+     * セッションの状態を受け取るコールバック
+     */
+    public interface Callback {
+        /**
+         * セッションの書き込みのスレッドが開始した時にそのスレッドから呼ばれる
+         */
+        void onSessionStarted(RecordSession session);
+
+        void onError(RecordSession session, Exception e);
+    }
+
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final Callback mCallback;
+    private final List<RecordSession> mSessions = new ArrayList<>();
+    private int mStartedCount = 0;
+
+    /**
+     * @param sourceWidth 配るフレームの横幅
+     * @param sourceHeight 配るフレームの高さ
+     * @param callback コールバック
+     */
+    public RecordSessionManager(int sourceWidth, int sourceHeight, Callback callback) {
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mCallback = callback;
+    }
+
+    /**
+     * セッションを追加する (開始する前に呼ぶ)
+     *
+     * @param name ログとスレッドに付ける名前
+     * @param recorder 開始していないレコーダー、映像の大きさが元のフレームより小さい時は中央で切り抜く
+     * @param queueCapacity 書き込み待ちのフレームの最大数
+     * @return 追加したセッション
+     */
+    public RecordSession addSession(String name, FrameRecorder recorder, int queueCapacity) {
+        if (mStartedCount > 0) {
+            throw new IllegalStateException("sessions cannot be added after start");
+        }
+        RecordSession session = new RecordSession(name, recorder, mSourceWidth, mSourceHeight, queueCapacity);
+        mSessions.add(session);
+        return session;
+    }
+
+    public List<RecordSession> getSessions() {
+        return Collections.unmodifiableList(mSessions);
+    }
+
+    /**
+     * セッションのキューが同時に持つフレームの最大数
+     * フレームのプールはこの分だけ多く確保する
+     */
+    public int getHeldFrameCount() {
+        int count = 0;
+        for (int i = 0; i < mSessions.size(); i++) {
+            count += mSessions.get(i).getQueueCapacity();
+        }
+        return count;
+    }
+
+    /**
+     * 全てのセッションを開始する、開始できないセッションがある時は開始したセッションを止める
+     */
+    public void start() throws FrameRecorder.Exception {
+        try {
+            for (; mStartedCount < mSessions.size(); mStartedCount++) {
+                mSessions.get(mStartedCount).start(mCallback);
+            }
+        } catch (FrameRecorder.Exception e) {
+            try {
+                stop();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * フレームを全てのセッションに配る (1つのスレッドからのみ呼ぶ)
+     *
+     * @param frame 配るフレーム、呼び出し側の参照はそのまま残る
+     */
+    public void offerFrame(PooledFrame frame) {
+        for (int i = 0; i < mStartedCount; i++) {
+            mSessions.get(i).offerFrame(frame);
+        }
+    }
+
+    /**
+     * 音声を全てのセッションに配る (offerFrameと同じスレッドから呼ぶ)
+     *
+     * @param samples positionからlimitまでを配る、positionは変えない
+     */
+    public void offerAudio(ShortBuffer samples) {
+        for (int i = 0; i < mStartedCount; i++) {
+            mSessions.get(i).offerAudio(samples);
+        }
+    }
+
+    /**
+     * 全てのセッションのキューを書き込んでから止める、配る側を止めた後に呼ぶ
+     */
+    public void stop() throws InterruptedException {
+        for (int i = 0; i < mStartedCount; i++) {
+            mSessions.get(i).stop();
+        }
+        mStartedCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordSessionManager{sessions=" + mSessions + "}";
+    }
+}
@@ -0,0 +1,171 @@
+package com.unuuu.sample;
+
+import java.util.Locale;
+
+/**
+ * 録画の映像と音声のタイムスタンプを決める
+ *
+ * 音声は読み込んだサンプル数から時間を求め、これを録画の基準の時計にする。
+ * 映像はカメラから受け取った時刻を音声の時計に合わせてずれを補正し、フレームレートの枠に揃える。
+ * 同じ枠に2枚目が来たフレームを捨てるか、枠が空いた時に前のフレームを表示し続けるかはここで決める。
+ *
+ * 音声と映像は別々のスレッドから呼ばれるが、それぞれのメソッドは1つのスレッドからのみ呼ぶ。
+ */
+public class RecordTimestamper {
+    /** 映像を捨てる時に返す値 */
+    public static final long DROP = -1;
+
+    /* 音声の時計と単調時計の差を平滑化する割合 (1/16) */
+    private static final int DRIFT_SMOOTHING_SHIFT = 4;
+
+    private final MediaClock mClock;
+    private final double mFrameRate;
+    private final int mSampleRate;
+
+    private volatile long mStartNanos;
+
+    /* 音声のスレッドだけが書き込む */
+    private volatile long mAudioSampleCount = 0;
+    private volatile long mDriftNanos = 0;
+    private boolean mHasDrift = false;
+
+    /* 映像のスレッドだけが書き込む */
+    private long mNextFrameIndex = 0;
+    private long mDroppedFrameCount = 0;
+    private long mHeldFrameCount = 0;
+    private long mSkippedFrameCount = 0;
+
+    /**
+     * @param clock 単調増加する時計
+     * @param frameRate 映像のフレームレート
+     * @param sampleRate 音声のサンプルレート
+     */
+    public RecordTimestamper(MediaClock clock, double frameRate, int sampleRate) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("frameRate must be positive: " + frameRate);
+        }
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sampleRate must be positive: " + sampleRate);
+        }
+        mClock = clock;
+        mFrameRate = frameRate;
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * 録画の開始時刻を現在の時刻にする (音声の録音を開始する直前に呼ぶ)
+     */
+    public void start() {
+        mAudioSampleCount = 0;
+        mDriftNanos = 0;
+        mHasDrift = false;
+        mNextFrameIndex = 0;
+        mDroppedFrameCount = 0;
+        mHeldFrameCount = 0;
+        mSkippedFrameCount = 0;
+        mStartNanos = mClock.nanoTime();
+    }
+
+    /**
+     * 音声を読み込んだ時に呼ぶ (音声のスレッドからのみ呼ぶ)
+     *
+     * 書き込めずに読み捨てたサンプルも数えて、音声の時計を実際の時間に合わせる。
+     *
+     * @param sampleCount 読み込んだサンプル数
+     * @return 読み込んだ音声の先頭のタイムスタンプ (マイクロ秒)
+     */
+    public long onAudioRead(int sampleCount) {
+        long timestamp = samplesToMicros(mAudioSampleCount);
+        mAudioSampleCount += sampleCount;
+
+        // 読み込みが終わった時刻に、読み込んだ最後のサンプルが録音されたとみなす
+        long elapsedNanos = mClock.nanoTime() - mStartNanos;
+        long drift = elapsedNanos - mAudioSampleCount * 1000000000L / mSampleRate;
+        if (mHasDrift) {
+            mDriftNanos += (drift - mDriftNanos) >> DRIFT_SMOOTHING_SHIFT;
+        } else {
+            mDriftNanos = drift;
+            mHasDrift = true;
+        }
+        return timestamp;
+    }
+
+    /**
+     * 映像のフレームのタイムスタンプを決める (映像を受け取るスレッドからのみ呼ぶ)
+     *
+     * @param captureNanos カメラから受け取った時刻、MediaClockの値
+     * @return フレームレートの枠に揃えたタイムスタンプ (マイクロ秒)、捨てる時はDROP
+     */
+    public long onVideoFrame(long captureNanos) {
+        long mediaNanos = captureNanos - mStartNanos - mDriftNanos;
+        long frameIndex = Math.round(mediaNanos * mFrameRate / 1e9);
+        if (frameIndex < mNextFrameIndex) {
+            // 前のフレームと同じ枠に入るか、補正で時間が戻った
+            mDroppedFrameCount += 1;
+            return DROP;
+        }
+        // 空いた枠はレコーダーが前のフレームを表示し続ける
+        mHeldFrameCount += frameIndex - mNextFrameIndex;
+        mNextFrameIndex = frameIndex + 1;
+        return frameIndexToMicros(frameIndex);
+    }
+
+    /**
+     * onVideoFrameで枠を決めたフレームを意図して録画から外した時に呼ぶ (映像を受け取るスレッドからのみ呼ぶ)
+     *
+     * 外した枠もフレームが来た枠として進めるので、前のフレームを表示し続けた枠には数えない。
+     */
+    public void onVideoFrameSkipped() {
+        mSkippedFrameCount += 1;
+    }
+
+    /**
+     * 読み込んだ音声の長さ (マイクロ秒)
+     */
+    public long getAudioTimestamp() {
+        return samplesToMicros(mAudioSampleCount);
+    }
+
+    /**
+     * 単調時計に対する音声の時計の遅れ (ナノ秒)
+     */
+    public long getDriftNanos() {
+        return mDriftNanos;
+    }
+
+    /**
+     * 同じ枠に入ったので捨てたフレーム数
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * フレームが来ずに前のフレームを表示し続けた枠の数
+     */
+    public long getHeldFrameCount() {
+        return mHeldFrameCount;
+    }
+
+    /**
+     * 枠を決めた後に意図して録画から外したフレーム数
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "RecordTimestamper{audio=%.3fs, drift=%.1fms, dropped=%d, held=%d, skipped=%d}",
+                getAudioTimestamp() / 1e6, mDriftNanos / 1e6, mDroppedFrameCount, mHeldFrameCount,
+                mSkippedFrameCount);
+    }
+
+    private long samplesToMicros(long sampleCount) {
+        return sampleCount * 1000000L / mSampleRate;
+    }
+
+    private long frameIndexToMicros(long frameIndex) {
+        return Math.round(frameIndex * 1e6 / mFrameRate);
+    }
+}
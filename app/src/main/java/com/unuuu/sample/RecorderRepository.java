@@ -1,24 +1,202 @@
 package com.unuuu.sample;
 
 import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Locale;
 
 import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_AAC;
 import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
 
 public class RecorderRepository {
+
+    /**
+     * 出力の形式
+     */
+    public enum OutputMode {
+        /** 停止した時に書き終わる1つのMP4 */
+        SINGLE_FILE,
+        /** 一定の時間毎に区切ったフラグメント化したMP4 */
+        FRAGMENTED_MP4,
+        /** 一定の時間毎に区切ったMPEG-TSとHLSのプレイリスト */
+        HLS,
+        /** 途中で終了しても復旧できるように、索引を残しながら書き込む1つのMPEG-TS */
+        JOURNALED
+    }
+
     private static final int SAMPLE_AUDIO_RATE = 44100;
-    private static final int FRAME_RATE = 30;
+    static final int FRAME_RATE = 30;
     private static final String VIDEO_FORMAT = "mp4";
     private static final int VIDEO_BITRATE  = 400000;
+    private static final String SEGMENT_PREFIX = "segment";
+    private static final String PLAYLIST_NAME = "playlist.m3u8";
+
+    private final int mVideoBitrate;
+    private EncoderTuning mTuning = EncoderTuning.DEFAULT;
+
+    public RecorderRepository() {
+        this(VIDEO_BITRATE);
+    }
+
+    /**
+     * @param videoBitrate 映像のビットレート
+     */
+    public RecorderRepository(int videoBitrate) {
+        mVideoBitrate = videoBitrate;
+    }
+
+    /**
+     * FFmpegのレコーダーに反映するx264のスレッドと先読みの設定
+     * 区切る形式と配信ではキーフレームの間隔をこの設定より優先する
+     *
+     * @param tuning 設定、nullの時はFFmpegの初期値のままにする
+     */
+    public void setEncoderTuning(EncoderTuning tuning) {
+        mTuning = tuning != null ? tuning : EncoderTuning.DEFAULT;
+    }
+
+    public EncoderTuning getEncoderTuning() {
+        return mTuning;
+    }
 
     public FFmpegFrameRecorder getRecorder(String outputPath, int width, int height) {
         FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputPath, width, height, 1);
         recorder.setFormat(VIDEO_FORMAT);
         recorder.setVideoCodec(AV_CODEC_ID_H264);
-        recorder.setFrameRate(FRAME_RATE);
         recorder.setAudioCodec(AV_CODEC_ID_AAC);
+        configure(recorder);
+        mTuning.applyTo(recorder);
+        return recorder;
+    }
+
+    /**
+     * エンコーダーの実装によらない設定をレコーダーに反映する
+     *
+     * @param recorder レコーダー
+     * @param quality エンコーダーの設定の段階
+     */
+    public void configure(FrameRecorder recorder, EncoderQualityController.Level quality) {
+        configure(recorder);
+        quality.applyTo(recorder);
+    }
+
+    private void configure(FrameRecorder recorder) {
+        recorder.setFrameRate(FRAME_RATE);
+        recorder.setSampleRate(SAMPLE_AUDIO_RATE);
+        recorder.setVideoBitrate(mVideoBitrate);
+    }
+
+    /**
+     * エンコーダーの設定の段階を反映したレコーダーを取得する
+     *
+     * @param outputPath 出力先
+     * @param width 横幅
+     * @param height 高さ
+     * @param quality エンコーダーの設定の段階
+     * @return レコーダー
+     */
+    public FFmpegFrameRecorder getRecorder(String outputPath, int width, int height, EncoderQualityController.Level quality) {
+        FFmpegFrameRecorder recorder = getRecorder(outputPath, width, height);
+        quality.applyTo(recorder);
+        return recorder;
+    }
+
+    /**
+     * 出力の形式に合わせたレコーダーを取得する
+     *
+     * 区切る形式の時はキーフレームの間隔を1秒にして、フラグメントを細かくする。
+     *
+     * @param outputMode 出力の形式
+     * @param output SINGLE_FILEとJOURNALEDの時は出力先のファイル、それ以外は出力先のディレクトリ
+     * @param width 横幅
+     * @param height 高さ
+     * @param quality エンコーダーの設定の段階
+     * @param segmentSeconds 1つのファイルの長さ (秒)、区切る形式の時だけ使う
+     * @param listener 書き込みが終わったファイルを受け取るリスナー、区切る形式の時だけ使う
+     * @return レコーダー
+     */
+    public FrameRecorder getRecorder(OutputMode outputMode, File output, int width, int height,
+                                     EncoderQualityController.Level quality, int segmentSeconds,
+                                     SegmentedRecorder.OnSegmentListener listener) {
+        if (OutputMode.SINGLE_FILE == outputMode) {
+            return getRecorder(output.getAbsolutePath(), width, height, quality);
+        }
+        if (OutputMode.JOURNALED == outputMode) {
+            return getJournaledRecorder(output, width, height, quality, JournaledRecorder.DEFAULT_CHECKPOINT_FRAMES);
+        }
+
+        boolean isHls = OutputMode.HLS == outputMode;
+        SegmentedRecorder recorder = new SegmentedRecorder(output, SEGMENT_PREFIX, isHls ? "ts" : "mp4",
+                segmentSeconds * 1000000L, (path, startTimestamp) -> {
+            FFmpegFrameRecorder segment = getRecorder(path, width, height, quality);
+            segment.setGopSize(FRAME_RATE);
+            if (isHls) {
+                // ファイルを続けて再生できるように録画の開始からの時間をずらして書き込む
+                segment.setFormat("mpegts");
+                segment.setOption("output_ts_offset", String.format(Locale.US, "%.6f", startTimestamp / 1e6));
+            } else {
+                // moovを先頭に置いて、キーフレーム毎にフラグメントを書き出す
+                segment.setOption("movflags", "frag_keyframe+empty_moov");
+            }
+            return segment;
+        });
+        // 開始する前でもフレームレートなどを参照できるようにする
+        recorder.setImageWidth(width);
+        recorder.setImageHeight(height);
+        recorder.setFrameRate(FRAME_RATE);
         recorder.setSampleRate(SAMPLE_AUDIO_RATE);
-        recorder.setVideoBitrate(VIDEO_BITRATE);
+        recorder.setAudioChannels(1);
+        recorder.setOnSegmentListener(listener);
+        if (isHls) {
+            recorder.setPlaylistFile(new File(output, PLAYLIST_NAME));
+        }
         return recorder;
     }
+
+    /**
+     * 索引を残しながらMPEG-TSに書き込むレコーダーを取得する
+     *
+     * 書き込み済みの長さが正しくなるように、パケット毎にファイルに書き出す。
+     *
+     * @param output 出力先のファイル
+     * @param width 横幅
+     * @param height 高さ
+     * @param quality エンコーダーの設定の段階
+     * @param checkpointFrames 索引に記録する間隔 (フレーム数)
+     * @return レコーダー
+     */
+    public JournaledRecorder getJournaledRecorder(File output, int width, int height,
+                                                  EncoderQualityController.Level quality, int checkpointFrames) {
+        FFmpegFrameRecorder recorder = getRecorder(output.getAbsolutePath(), width, height, quality);
+        recorder.setFormat("mpegts");
+        recorder.setOption("fflags", "flush_packets");
+        return new JournaledRecorder(recorder, output, checkpointFrames);
+    }
+
+    /**
+     * ネットワークに送るレコーダーを取得する
+     *
+     * 遅延を減らすためにエンコーダーは先読みせず、MPEG-TSの多重化も待たせない。
+     * 捨てたフレームから早く戻れるように、キーフレームの間隔を1秒にする。
+     *
+     * @param destination UDPの送信先
+     * @param width 横幅
+     * @param height 高さ
+     * @param queuePackets 送信待ちのTSパケットの最大数
+     * @return レコーダー
+     */
+    public LiveRecorder getLiveRecorder(InetSocketAddress destination, int width, int height, int queuePackets)
+            throws IOException {
+        LiveSender sender = new LiveSender(new LiveSender.UdpTransport(destination), queuePackets);
+        FFmpegFrameRecorder recorder = getRecorder(sender.getInputUrl(), width, height);
+        recorder.setFormat("mpegts");
+        recorder.setGopSize(FRAME_RATE);
+        recorder.setVideoOption("preset", "ultrafast");
+        recorder.setVideoOption("tune", "zerolatency");
+        recorder.setOption("max_delay", "0");
+        return new LiveRecorder(recorder, sender);
+    }
 }
@@ -0,0 +1,108 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.File;
+
+/**
+ * FFmpegFrameRecorderに書き込む出力
+ *
+ * レコーダーは最初に書き込む時に開始するので、何も書かずに終わった時はファイルを作らない。
+ * 映像の大きさは上限として受け取り、入力の縦横比を保って収まる大きさで書き出す。
+ */
+public abstract class RecorderSink implements PostProcessor.Sink {
+    private final String mOutputPath;
+    private PostProcessor.SourceInfo mSource;
+    private FFmpegFrameRecorder mRecorder;
+
+    protected RecorderSink(String outputPath) {
+        mOutputPath = outputPath;
+    }
+
+    public String getOutputPath() {
+        return mOutputPath;
+    }
+
+    @Override
+    public void start(PostProcessor.SourceInfo source) throws Exception {
+        mSource = source;
+    }
+
+    /**
+     * 開始していないレコーダーを作る
+     *
+     * @param outputPath 出力先
+     * @param source 入力のファイルの情報
+     * @return レコーダー
+     */
+    protected abstract FFmpegFrameRecorder createRecorder(String outputPath, PostProcessor.SourceInfo source);
+
+    /**
+     * 入力の縦横比を保ったまま、指定した大きさに収まる大きさを求める
+     * FFmpegFrameRecorderは横幅を16の倍数に切り上げて縮小し、縦横比が崩れるので、横幅は16の倍数に切り下げる
+     * 高さはYUV420で書き出せるように偶数にする
+     *
+     * @param source 入力のファイルの情報
+     * @param maxWidth 横幅の上限
+     * @param maxHeight 高さの上限
+     * @return 横幅と高さ
+     */
+    protected static int[] fitSize(PostProcessor.SourceInfo source, int maxWidth, int maxHeight) {
+        int width = source.getImageWidth();
+        int height = source.getImageHeight();
+        if (width <= 0 || height <= 0) {
+            return new int[]{maxWidth, maxHeight};
+        }
+        int fitWidth = (int) Math.min(maxWidth, (long) maxHeight * width / height);
+        int outputWidth = Math.max(16, fitWidth & ~15);
+        int outputHeight = Math.max(2, (int) ((long) outputWidth * height / width) & ~1);
+        return new int[]{outputWidth, outputHeight};
+    }
+
+    /**
+     * 開始したレコーダーを取得する、初めて呼んだ時に開始する
+     */
+    protected FFmpegFrameRecorder getRecorder() throws FrameRecorder.Exception {
+        if (mRecorder == null) {
+            FFmpegFrameRecorder recorder = createRecorder(mOutputPath, mSource);
+            recorder.start();
+            mRecorder = recorder;
+        }
+        return mRecorder;
+    }
+
+    protected boolean isStarted() {
+        return mRecorder != null;
+    }
+
+    @Override
+    public void finish() throws Exception {
+        if (mRecorder == null) {
+            return;
+        }
+        try {
+            mRecorder.stop();
+        } finally {
+            mRecorder.release();
+            mRecorder = null;
+        }
+    }
+
+    @Override
+    public void abort() throws Exception {
+        FFmpegFrameRecorder recorder = mRecorder;
+        mRecorder = null;
+        try {
+            if (recorder != null) {
+                recorder.release();
+            }
+        } finally {
+            // 解放に失敗しても書きかけのファイルは消す
+            File file = new File(mOutputPath);
+            if (file.exists() && !file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.unuuu.sample;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * 録画中のMPEG-TSの書き込み済みの位置を記録する索引
+ *
+ * 索引は録画のファイルの横に置き、一定のフレーム毎に書き込み済みの長さを追記する。
+ * 正常に停止した時は索引を消すので、索引が残っている時は録画が途中で終わったことを表す。
+ * 復旧する時は最後の記録から後ろだけを読み、壊れたパケットの手前で切り詰める。
+ * MPEG-TSは途中で切れても読めるので、切り詰めたファイルはそのまま再生できる。
+ */
+public class RecordingJournal {
+    /** 索引のファイルの拡張子 */
+    public static final String INDEX_SUFFIX = ".idx";
+    /** MPEG-TSのパケットの大きさ */
+    public static final int TS_PACKET_SIZE = 188;
+
+    private static final byte TS_SYNC_BYTE = 0x47;
+    private static final int MAGIC = 0x524a4e31;
+    private static final int HEADER_SIZE = 8;
+    /* 書き込み済みの長さ、タイムスタンプ、フレーム数、CRC32 */
+    private static final int RECORD_SIZE = 24;
+    private static final int RECORD_CRC_OFFSET = 20;
+    /* 復旧する時に一度に読む大きさ */
+    private static final int SCAN_PACKETS = 256;
+
+    /**
+     * 索引に記録した位置
+     */
+    public static class Checkpoint {
+        private final long mOffset;
+        private final long mTimestamp;
+        private final int mFrameCount;
+
+        Checkpoint(long offset, long timestamp, int frameCount) {
+            mOffset = offset;
+            mTimestamp = timestamp;
+            mFrameCount = frameCount;
+        }
+
+        /**
+         * この位置までのパケットは書き込み済み
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * 記録した時のレコーダーのタイムスタンプ (マイクロ秒)
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        /**
+         * 記録した時までにレコーダーに渡した映像のフレーム数
+         */
+        public int getFrameCount() {
+            return mFrameCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Checkpoint{offset=%d, timestamp=%.3fs, frames=%d}",
+                    mOffset, mTimestamp / 1e6, mFrameCount);
+        }
+    }
+
+    /**
+     * 復旧の結果
+     */
+    public static class Recovery {
+        private final Checkpoint mCheckpoint;
+        private final long mLength;
+        private final long mScannedBytes;
+        private final long mDiscardedBytes;
+        private final long mDurationNanos;
+
+        Recovery(Checkpoint checkpoint, long length, long scannedBytes, long discardedBytes, long durationNanos) {
+            mCheckpoint = checkpoint;
+            mLength = length;
+            mScannedBytes = scannedBytes;
+            mDiscardedBytes = discardedBytes;
+            mDurationNanos = durationNanos;
+        }
+
+        /**
+         * 最後の正しい記録、記録する前に終わった時はnull
+         */
+        public Checkpoint getCheckpoint() {
+            return mCheckpoint;
+        }
+
+        /**
+         * 切り詰めた後のファイルの長さ
+         */
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * 記録の後ろから読んで確かめた大きさ
+         */
+        public long getScannedBytes() {
+            return mScannedBytes;
+        }
+
+        /**
+         * 末尾から切り捨てた大きさ
+         */
+        public long getDiscardedBytes() {
+            return mDiscardedBytes;
+        }
+
+        public long getDurationNanos() {
+            return mDurationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Recovery{%s, length=%d, scanned=%d, discarded=%d, %.2fms}",
+                    mCheckpoint, mLength, mScannedBytes, mDiscardedBytes, mDurationNanos / 1e6);
+        }
+    }
+
+    private final File mFile;
+    private final RandomAccessFile mIndex;
+    private final FileChannel mIndexChannel;
+    private final ByteBuffer mRecord = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 mCrc = new CRC32();
+    private RandomAccessFile mJournal;
+    private Checkpoint mLastCheckpoint;
+
+    /**
+     * 索引を作り直して記録を始める
+     *
+     * @param file 録画のファイル、レコーダーを開始した後に渡す
+     */
+    public RecordingJournal(File file) throws IOException {
+        mFile = file;
+        mIndex = new RandomAccessFile(getIndexFile(file), "rw");
+        mIndexChannel = mIndex.getChannel();
+        mIndex.setLength(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(TS_PACKET_SIZE).flip();
+        mIndexChannel.write(header);
+        mIndexChannel.force(true);
+    }
+
+    /**
+     * 録画のファイルの索引のファイル
+     */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + INDEX_SUFFIX);
+    }
+
+    /**
+     * 今のファイルの長さまでを書き込み済みとして記録する
+     * 録画のファイルをディスクに書き出してから記録するので、記録した位置までは電源が切れても残る
+     *
+     * @param timestamp レコーダーのタイムスタンプ (マイクロ秒)
+     * @param frameCount レコーダーに渡した映像のフレーム数
+     * @return 記録した位置
+     */
+    public Checkpoint checkpoint(long timestamp, int frameCount) throws IOException {
+        if (mJournal == null) {
+            mJournal = new RandomAccessFile(mFile, "rw");
+        }
+        mJournal.getChannel().force(false);
+        long offset = mJournal.length() / TS_PACKET_SIZE * TS_PACKET_SIZE;
+
+        mRecord.clear();
+        mRecord.putLong(offset).putLong(timestamp).putInt(frameCount);
+        mCrc.reset();
+        mCrc.update(mRecord.array(), 0, RECORD_CRC_OFFSET);
+        mRecord.putInt((int) mCrc.getValue());
+        mRecord.flip();
+        mIndexChannel.write(mRecord, mIndexChannel.size());
+        mIndexChannel.force(false);
+
+        mLastCheckpoint = new Checkpoint(offset, timestamp, frameCount);
+        return mLastCheckpoint;
+    }
+
+    /**
+     * 最後に記録した位置、記録していない時はnull
+     */
+    public Checkpoint getLastCheckpoint() {
+        return mLastCheckpoint;
+    }
+
+    /**
+     * 録画が正常に終わったので索引を消す
+     */
+    public void finish() throws IOException {
+        close();
+        deleteIndex(getIndexFile(mFile));
+    }
+
+    /**
+     * 索引を残したまま閉じる
+     */
+    public void close() throws IOException {
+        try {
+            if (mJournal != null) {
+                mJournal.close();
+                mJournal = null;
+            }
+        } finally {
+            mIndex.close();
+        }
+    }
+
+    /**
+     * 索引が残っている録画のファイルを再生できる長さに切り詰めて、索引を消す
+     *
+     * 最後の正しい記録の位置からパケットの先頭の同期バイトを確かめ、最初に壊れたパケットの手前で切る。
+     * 読む大きさは最後の記録から後ろの分だけなので、録画の長さによらない。
+     *
+     * @param file 録画のファイル
+     * @return 復旧の結果、索引がない時はnull
+     */
+    public static Recovery recover(File file) throws IOException {
+        File index = getIndexFile(file);
+        if (!index.exists()) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        if (!file.exists()) {
+            // 書き込み始める前に終わった
+            deleteIndex(index);
+            return new Recovery(null, 0, 0, 0, System.nanoTime() - startNanos);
+        }
+
+        RandomAccessFile journal = new RandomAccessFile(file, "rw");
+        try {
+            long length = journal.length();
+            Checkpoint checkpoint = readLastCheckpoint(index, length);
+            long start = checkpoint != null ? checkpoint.getOffset() : 0;
+            long end = scanPackets(journal.getChannel(), start, length);
+            if (end < length) {
+                journal.setLength(end);
+            }
+            journal.getChannel().force(true);
+            deleteIndex(index);
+            return new Recovery(checkpoint, end, length - start, length - end, System.nanoTime() - startNanos);
+        } finally {
+            journal.close();
+        }
+    }
+
+    /**
+     * 索引の後ろから読み、CRCが合っていてファイルの長さを越えない最初の記録を返す
+     */
+    private static Checkpoint readLastCheckpoint(File index, long journalLength) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(index, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+            buffer.limit(HEADER_SIZE);
+            if (channel.read(buffer, 0) < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != TS_PACKET_SIZE) {
+                return null;
+            }
+
+            CRC32 crc = new CRC32();
+            long count = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+            for (long i = count - 1; i >= 0; i--) {
+                buffer.clear();
+                if (channel.read(buffer, HEADER_SIZE + i * RECORD_SIZE) < RECORD_SIZE) {
+                    continue;
+                }
+                crc.reset();
+                crc.update(buffer.array(), 0, RECORD_CRC_OFFSET);
+                long offset = buffer.getLong(0);
+                if ((int) crc.getValue() != buffer.getInt(RECORD_CRC_OFFSET)
+                        || offset > journalLength || offset % TS_PACKET_SIZE != 0) {
+                    continue;
+                }
+                return new Checkpoint(offset, buffer.getLong(8), buffer.getInt(16));
+            }
+            return null;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * startから後ろの揃ったパケットを確かめ、正しいパケットが続く最後の位置を返す
+     */
+    private static long scanPackets(FileChannel channel, long start, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TS_PACKET_SIZE * SCAN_PACKETS);
+        long position = start;
+        while (position + TS_PACKET_SIZE <= length) {
+            buffer.clear();
+            int read = 0;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, position + read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            int packets = read / TS_PACKET_SIZE;
+            if (packets == 0) {
+                break;
+            }
+            for (int i = 0; i < packets; i++) {
+                if (buffer.get(i * TS_PACKET_SIZE) != TS_SYNC_BYTE) {
+                    return position + i * (long) TS_PACKET_SIZE;
+                }
+            }
+            position += packets * (long) TS_PACKET_SIZE;
+        }
+        return position;
+    }
+
+    private static void deleteIndex(File index) throws IOException {
+        if (!index.delete() && index.exists()) {
+            throw new IOException("failed to delete " + index);
+        }
+    }
+}
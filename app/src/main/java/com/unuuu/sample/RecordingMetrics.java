@@ -0,0 +1,85 @@
+package com.unuuu.sample;
+
+/**
+ * 録画中の計測値を受け取る
+ *
+ * カメラ、音声、書き込みのそれぞれのスレッドから呼ばれるので、実装はスレッドセーフにする。
+ * 録画の処理を止めないように、重い処理は別のスレッドで行う。
+ */
+public interface RecordingMetrics {
+
+    /**
+     * フレームを捨てた理由
+     */
+    enum DropReason {
+        /** フレームのプールが空だった */
+        POOL_EXHAUSTED,
+        /** フレームのキューが一杯だった */
+        QUEUE_FULL,
+        /** エンコーダーの負荷を下げるために間引いた */
+        QUALITY_SKIP,
+        /** 退避先のファイルが一杯だった */
+        SPILL_FULL,
+        /** 前のフレームと同じフレームレートの枠に入った */
+        DUPLICATE_TIMESTAMP,
+        /** 映像のフィルタが出力しなかった */
+        FILTER_FAILED,
+        /** 前に残したフレームから動きがなかった */
+        STATIC_SCENE
+    }
+
+    /**
+     * 何もしない実装
+     */
+    RecordingMetrics NONE = new RecordingMetrics() {
+        @Override
+        public void onFrameEncoded(long captureToEncodeNanos) {
+        }
+
+        @Override
+        public void onFrameDropped(DropReason reason) {
+        }
+
+        @Override
+        public void onQueueDepth(int depth) {
+        }
+
+        @Override
+        public void onAudioOverrun() {
+        }
+
+        @Override
+        public void onFrameSpilled(int bytes, int spillDepth) {
+        }
+    };
+
+    /**
+     * フレームをレコーダーに書き込んだ時
+     *
+     * @param captureToEncodeNanos カメラから受け取ってから書き込み終わるまでの時間 (ナノ秒)
+     */
+    void onFrameEncoded(long captureToEncodeNanos);
+
+    /**
+     * フレームを捨てた時
+     */
+    void onFrameDropped(DropReason reason);
+
+    /**
+     * カメラからフレームを受け取った時のキューに溜まっているフレーム数
+     */
+    void onQueueDepth(int depth);
+
+    /**
+     * 書き込みが追いつかず音声を読み捨てた時
+     */
+    void onAudioOverrun();
+
+    /**
+     * エンコーダーが追いつかずフレームをファイルに退避した時
+     *
+     * @param bytes 退避したバイト数
+     * @param spillDepth 退避しているフレーム数
+     */
+    void onFrameSpilled(int bytes, int spillDepth);
+}
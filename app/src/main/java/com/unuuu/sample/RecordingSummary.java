@@ -0,0 +1,139 @@
+package com.unuuu.sample;
+
+import java.util.Locale;
+
+/**
+ * 1回の録画の計測結果
+ */
+public class RecordingSummary {
+    private final long mDurationMillis;
+    private final long mCapturedFrameCount;
+    private final long mEncodedFrameCount;
+    private final long mDroppedFrameCount;
+    private final double mTargetFrameRate;
+    private final long mLatencyP50Nanos;
+    private final long mLatencyP99Nanos;
+    private final long mLatencyMaxNanos;
+    private final int mMaxQueueDepth;
+    private final long mAudioOverrunCount;
+    private final long mFrameMemoryBytes;
+    private final long mSpilledFrameCount;
+    private final long mSpilledBytes;
+    private final int mMaxSpillDepth;
+    private final long mTimeToFirstFrameMillis;
+
+    /**
+     * @param durationMillis 録画していた時間
+     * @param capturedFrameCount カメラから受け取ったフレーム数
+     * @param encodedFrameCount レコーダーに書き込んだフレーム数
+     * @param droppedFrameCount 捨てたフレーム数
+     * @param targetFrameRate レコーダーに設定したフレームレート
+     * @param latency カメラから受け取ってから書き込むまでの時間
+     * @param maxQueueDepth キューに溜まったフレーム数の最大値
+     * @param audioOverrunCount 読み捨てた音声のバッファ数
+     * @param frameMemoryBytes 録画中のフレームに確保できるメモリの上限
+     * @param spill フレームの退避先、退避しなかった時はnull
+     * @param timeToFirstFrameMillis 録画を開始してからカメラの最初のフレームを受け取るまでの時間、受け取れなかった時は-1
+     */
+    public RecordingSummary(long durationMillis, long capturedFrameCount, long encodedFrameCount, long droppedFrameCount,
+                            double targetFrameRate, LatencyHistogram latency, int maxQueueDepth, long audioOverrunCount,
+                            long frameMemoryBytes, FrameSpill spill, long timeToFirstFrameMillis) {
+        mDurationMillis = durationMillis;
+        mCapturedFrameCount = capturedFrameCount;
+        mEncodedFrameCount = encodedFrameCount;
+        mDroppedFrameCount = droppedFrameCount;
+        mTargetFrameRate = targetFrameRate;
+        mLatencyP50Nanos = latency.getPercentileNanos(50);
+        mLatencyP99Nanos = latency.getPercentileNanos(99);
+        mLatencyMaxNanos = latency.getMaxNanos();
+        mMaxQueueDepth = maxQueueDepth;
+        mAudioOverrunCount = audioOverrunCount;
+        mFrameMemoryBytes = frameMemoryBytes;
+        mSpilledFrameCount = spill != null ? spill.getSpilledCount() : 0;
+        mSpilledBytes = spill != null ? spill.getSpilledBytes() : 0;
+        mMaxSpillDepth = spill != null ? spill.getHighWaterMark() : 0;
+        mTimeToFirstFrameMillis = timeToFirstFrameMillis;
+    }
+
+    public long getDurationMillis() {
+        return mDurationMillis;
+    }
+
+    public long getCapturedFrameCount() {
+        return mCapturedFrameCount;
+    }
+
+    public long getEncodedFrameCount() {
+        return mEncodedFrameCount;
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    public double getTargetFrameRate() {
+        return mTargetFrameRate;
+    }
+
+    /**
+     * 実際に書き込めたフレームレート
+     */
+    public double getEncodedFrameRate() {
+        return mDurationMillis == 0 ? 0 : mEncodedFrameCount * 1000.0 / mDurationMillis;
+    }
+
+    public long getLatencyP50Nanos() {
+        return mLatencyP50Nanos;
+    }
+
+    public long getLatencyP99Nanos() {
+        return mLatencyP99Nanos;
+    }
+
+    public long getLatencyMaxNanos() {
+        return mLatencyMaxNanos;
+    }
+
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public long getAudioOverrunCount() {
+        return mAudioOverrunCount;
+    }
+
+    public long getFrameMemoryBytes() {
+        return mFrameMemoryBytes;
+    }
+
+    public long getSpilledFrameCount() {
+        return mSpilledFrameCount;
+    }
+
+    public long getSpilledBytes() {
+        return mSpilledBytes;
+    }
+
+    public int getMaxSpillDepth() {
+        return mMaxSpillDepth;
+    }
+
+    /**
+     * 録画を開始してからカメラの最初のフレームを受け取るまでの時間、受け取れなかった時は-1
+     */
+    public long getTimeToFirstFrameMillis() {
+        return mTimeToFirstFrameMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "RecordingSummary{duration=%dms, captured=%d, encoded=%d, dropped=%d, "
+                        + "fps=%.1f/%.1f, latency p50=%.1fms p99=%.1fms max=%.1fms, maxQueueDepth=%d, audioOverrun=%d, "
+                        + "frameMemory=%.1fMB, spilled=%d (%.1fMB), maxSpillDepth=%d, timeToFirstFrame=%dms}",
+                mDurationMillis, mCapturedFrameCount, mEncodedFrameCount, mDroppedFrameCount,
+                getEncodedFrameRate(), mTargetFrameRate, mLatencyP50Nanos / 1e6, mLatencyP99Nanos / 1e6,
+                mLatencyMaxNanos / 1e6, mMaxQueueDepth, mAudioOverrunCount,
+                mFrameMemoryBytes / 1048576.0, mSpilledFrameCount, mSpilledBytes / 1048576.0, mMaxSpillDepth,
+                mTimeToFirstFrameMillis);
+    }
+}
@@ -0,0 +1,135 @@
+package com.unuuu.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 顔などの範囲をモザイクでぼかすフィルタ
+ *
+ * 範囲はブロック毎の平均で塗りつぶす。範囲は録画中に別のスレッドから差し替えられる。
+ */
+public class RegionBlurFilter implements VideoFilter {
+    /** ブロックの大きさの既定値 */
+    public static final int DEFAULT_BLOCK_SIZE = 16;
+
+    private final int mBlockSize;
+    /* x, y, 横幅, 高さの順に並べた範囲、差し替える時は新しい配列にする */
+    private volatile int[] mRegions = new int[0];
+
+    private int mWidth;
+    private int mHeight;
+
+    /**
+     * @param blockSize モザイクのブロックの大きさ、偶数に揃える
+     */
+    public RegionBlurFilter(int blockSize) {
+        if (blockSize < 2) {
+            throw new IllegalArgumentException("blockSize must be at least 2: " + blockSize);
+        }
+        mBlockSize = blockSize & ~1;
+    }
+
+    /**
+     * ぼかす範囲を差し替える
+     * 顔検出の座標はフィルタの入力の座標に変換してから渡す
+     *
+     * @param regions x, y, 横幅, 高さの順に並べた範囲、渡した後は書き換えない
+     */
+    public void setRegions(int[] regions) {
+        if (regions.length % 4 != 0) {
+            throw new IllegalArgumentException("regions must be x, y, width, height tuples: " + regions.length);
+        }
+        mRegions = regions;
+    }
+
+    @Override
+    public String getName() {
+        return "regionBlur(" + mBlockSize + ")";
+    }
+
+    @Override
+    public void prepare(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getOutputHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return true;
+    }
+
+    @Override
+    public boolean apply(ByteBuffer src, ByteBuffer dst) {
+        int[] regions = mRegions;
+        for (int i = 0; i < regions.length; i += 4) {
+            // 色差の位置がずれないように偶数に揃えて、画面の中に収める
+            int left = Math.max(0, regions[i]) & ~1;
+            int top = Math.max(0, regions[i + 1]) & ~1;
+            int right = Math.min(mWidth, regions[i] + regions[i + 2]) & ~1;
+            int bottom = Math.min(mHeight, regions[i + 1] + regions[i + 3]) & ~1;
+            for (int y = top; y < bottom; y += mBlockSize) {
+                for (int x = left; x < right; x += mBlockSize) {
+                    int blockRight = Math.min(right, x + mBlockSize);
+                    int blockBottom = Math.min(bottom, y + mBlockSize);
+                    fillLuma(src, x, y, blockRight, blockBottom);
+                    fillChroma(src, x / 2, y / 2, blockRight / 2, blockBottom / 2);
+                }
+            }
+        }
+        return true;
+    }
+
+    private void fillLuma(ByteBuffer buffer, int left, int top, int right, int bottom) {
+        int sum = 0;
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                sum += buffer.get(y * mWidth + x) & 0xff;
+            }
+        }
+        byte average = (byte) (sum / ((right - left) * (bottom - top)));
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                buffer.put(y * mWidth + x, average);
+            }
+        }
+    }
+
+    /**
+     * 色差の面の範囲をVUそれぞれの平均で塗りつぶす、座標は色差の面の画素
+     */
+    private void fillChroma(ByteBuffer buffer, int left, int top, int right, int bottom) {
+        int offset = mWidth * mHeight;
+        int sumV = 0;
+        int sumU = 0;
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                int index = offset + y * mWidth + x * 2;
+                sumV += buffer.get(index) & 0xff;
+                sumU += buffer.get(index + 1) & 0xff;
+            }
+        }
+        int count = (right - left) * (bottom - top);
+        byte v = (byte) (sumV / count);
+        byte u = (byte) (sumU / count);
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                int index = offset + y * mWidth + x * 2;
+                buffer.put(index, v);
+                buffer.put(index + 1, u);
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,109 @@
+package com.unuuu.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 最近傍で拡大縮小するフィルタ
+ *
+ * 出力の各画素がどの画素から来るかは最初に表にしておき、毎フレーム計算しない。
+ * 色差の面はVUの2バイトを1画素として扱う。
+ */
+public class ScaleFilter implements VideoFilter {
+    private final int mOutputWidth;
+    private final int mOutputHeight;
+
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private int[] mLumaX;
+    private int[] mLumaY;
+    private int[] mChromaX;
+    private int[] mChromaY;
+    private byte[] mSourceRow;
+    private byte[] mOutputRow;
+
+    /**
+     * @param outputWidth 出力の横幅、偶数に揃える
+     * @param outputHeight 出力の高さ、偶数に揃える
+     */
+    public ScaleFilter(int outputWidth, int outputHeight) {
+        if (outputWidth < 2 || outputHeight < 2) {
+            throw new IllegalArgumentException("invalid output size: " + outputWidth + "x" + outputHeight);
+        }
+        mOutputWidth = outputWidth & ~1;
+        mOutputHeight = outputHeight & ~1;
+    }
+
+    @Override
+    public String getName() {
+        return "scale(" + mOutputWidth + "x" + mOutputHeight + ")";
+    }
+
+    @Override
+    public void prepare(int width, int height) {
+        mSourceWidth = width;
+        mSourceHeight = height;
+        mLumaX = createMap(width, mOutputWidth);
+        mLumaY = createMap(height, mOutputHeight);
+        mChromaX = createMap(width / 2, mOutputWidth / 2);
+        mChromaY = createMap(height / 2, mOutputHeight / 2);
+        mSourceRow = new byte[width];
+        mOutputRow = new byte[mOutputWidth];
+    }
+
+    /**
+     * 出力の位置毎に、元の画素の中心に最も近い位置を求める
+     */
+    private static int[] createMap(int sourceSize, int outputSize) {
+        int[] map = new int[outputSize];
+        for (int i = 0; i < outputSize; i++) {
+            map[i] = Math.min(sourceSize - 1, (int) (((long) i * 2 + 1) * sourceSize / (outputSize * 2L)));
+        }
+        return map;
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    @Override
+    public int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return false;
+    }
+
+    @Override
+    public boolean apply(ByteBuffer src, ByteBuffer dst) {
+        for (int oy = 0; oy < mOutputHeight; oy++) {
+            src.position(mLumaY[oy] * mSourceWidth);
+            src.get(mSourceRow, 0, mSourceWidth);
+            for (int ox = 0; ox < mOutputWidth; ox++) {
+                mOutputRow[ox] = mSourceRow[mLumaX[ox]];
+            }
+            dst.put(mOutputRow, 0, mOutputWidth);
+        }
+        int chromaOffset = mSourceWidth * mSourceHeight;
+        for (int oy = 0; oy < mOutputHeight / 2; oy++) {
+            src.position(chromaOffset + mChromaY[oy] * mSourceWidth);
+            src.get(mSourceRow, 0, mSourceWidth);
+            for (int ox = 0; ox < mOutputWidth / 2; ox++) {
+                int sx = mChromaX[ox] * 2;
+                mOutputRow[ox * 2] = mSourceRow[sx];
+                mOutputRow[ox * 2 + 1] = mSourceRow[sx + 1];
+            }
+            dst.put(mOutputRow, 0, mOutputWidth);
+        }
+        dst.flip();
+        return true;
+    }
+
+    @Override
+    public void release() {
+        mSourceRow = null;
+        mOutputRow = null;
+    }
+}
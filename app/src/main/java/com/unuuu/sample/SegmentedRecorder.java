@@ -0,0 +1,276 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 一定の時間毎にファイルを分けて書き込むレコーダー
+ *
+ * 区切りを越えた最初の映像のフレームで新しいレコーダーを開くので、各ファイルはキーフレームから始まる。
+ * 閉じたファイルはすぐにリスナーに渡すので、録画中にアップロードを始められる。
+ * 区切る時に書き込みのスレッドでレコーダーを閉じて開き直す分の時間がかかる。
+ */
+public class SegmentedRecorder extends FrameRecorder {
+
+    /**
+     * 区切ったファイル毎のレコーダーを作る
+     */
+    public interface RecorderFactory {
+        /**
+         * @param path 出力先
+         * @param startTimestamp このファイルの開始時間 (マイクロ秒)
+         * @return 開始していないレコーダー
+         */
+        FFmpegFrameRecorder create(String path, long startTimestamp);
+    }
+
+    /**
+     * 書き込みが終わったファイルを受け取る
+     *
+     * 書き込みのスレッドから呼ばれるので、時間がかかる処理は別のスレッドで行う。
+     */
+    public interface OnSegmentListener {
+        void onSegmentClosed(Segment segment);
+    }
+
+    /**
+     * 書き込みが終わったファイル
+     */
+    public static class Segment {
+        private final int mIndex;
+        private final File mFile;
+        private final long mStartTimestamp;
+        private final long mDuration;
+
+        Segment(int index, File file, long startTimestamp, long duration) {
+            mIndex = index;
+            mFile = file;
+            mStartTimestamp = startTimestamp;
+            mDuration = duration;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * 録画の開始からの時間 (マイクロ秒)
+         */
+        public long getStartTimestamp() {
+            return mStartTimestamp;
+        }
+
+        /**
+         * ファイルの長さ (マイクロ秒)
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Segment{index=%d, file=%s, start=%.3fs, duration=%.3fs}",
+                    mIndex, mFile.getName(), mStartTimestamp / 1e6, mDuration / 1e6);
+        }
+    }
+
+    private final File mDirectory;
+    private final String mPrefix;
+    private final String mExtension;
+    private final long mSegmentDuration;
+    private final RecorderFactory mFactory;
+    private OnSegmentListener mListener;
+    private File mPlaylistFile;
+
+    private FFmpegFrameRecorder mCurrent;
+    private File mCurrentFile;
+    private int mSegmentIndex = 0;
+    private long mSegmentStartTimestamp = 0;
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    /**
+     * @param directory 出力先のディレクトリ
+     * @param prefix ファイル名の先頭
+     * @param extension 拡張子
+     * @param segmentDuration 1つのファイルの長さ (マイクロ秒)
+     * @param factory ファイル毎のレコーダーを作る処理
+     */
+    public SegmentedRecorder(File directory, String prefix, String extension, long segmentDuration, RecorderFactory factory) {
+        if (segmentDuration <= 0) {
+            throw new IllegalArgumentException("segmentDuration must be positive: " + segmentDuration);
+        }
+        mDirectory = directory;
+        mPrefix = prefix;
+        mExtension = extension;
+        mSegmentDuration = segmentDuration;
+        mFactory = factory;
+    }
+
+    public void setOnSegmentListener(OnSegmentListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * ファイルを閉じる度にHLSのプレイリストを書き出す (開始する前に呼ぶ)
+     *
+     * @param playlistFile プレイリストの出力先
+     */
+    public void setPlaylistFile(File playlistFile) {
+        mPlaylistFile = playlistFile;
+    }
+
+    @Override
+    public void start() throws Exception {
+        mSegmentIndex = 0;
+        mSegments.clear();
+        openSegment(0);
+    }
+
+    @Override
+    public void record(Frame frame) throws Exception {
+        if (mCurrent == null) {
+            throw new Exception("SegmentedRecorder is not started");
+        }
+        if (frame != null && frame.image != null) {
+            long timestamp = Math.max(super.getTimestamp(), getTimestamp());
+            if (timestamp - mSegmentStartTimestamp >= mSegmentDuration) {
+                closeSegment();
+                mSegmentIndex += 1;
+                openSegment(timestamp);
+            }
+            long relative = timestamp - mSegmentStartTimestamp;
+            if (relative > mCurrent.getTimestamp()) {
+                mCurrent.setTimestamp(relative);
+            }
+        }
+        mCurrent.record(frame);
+    }
+
+    /**
+     * 録画の開始からの時間 (マイクロ秒)
+     */
+    @Override
+    public long getTimestamp() {
+        if (mCurrent == null) {
+            return super.getTimestamp();
+        }
+        return mSegmentStartTimestamp + mCurrent.getTimestamp();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if (mCurrent != null) {
+            closeSegment();
+            writePlaylist(true);
+        }
+    }
+
+    @Override
+    public void release() throws Exception {
+        if (mCurrent != null) {
+            mCurrent.release();
+            mCurrent = null;
+        }
+    }
+
+    /**
+     * 書き込みが終わったファイルの一覧
+     */
+    public List<Segment> getSegments() {
+        return new ArrayList<>(mSegments);
+    }
+
+    private void openSegment(long startTimestamp) throws Exception {
+        mSegmentStartTimestamp = startTimestamp;
+        mCurrentFile = new File(mDirectory, String.format(Locale.US, "%s%05d.%s", mPrefix, mSegmentIndex, mExtension));
+        mCurrent = mFactory.create(mCurrentFile.getAbsolutePath(), startTimestamp);
+
+        // 全てのファイルで同じ設定を返せるように最初のレコーダーの値を持っておく
+        setImageWidth(mCurrent.getImageWidth());
+        setImageHeight(mCurrent.getImageHeight());
+        setFrameRate(mCurrent.getFrameRate());
+        setSampleRate(mCurrent.getSampleRate());
+        setAudioChannels(mCurrent.getAudioChannels());
+
+        mCurrent.start();
+    }
+
+    private void closeSegment() throws Exception {
+        FFmpegFrameRecorder recorder = mCurrent;
+        long duration = recorder.getTimestamp();
+        mCurrent = null;
+        try {
+            recorder.stop();
+        } finally {
+            recorder.release();
+        }
+
+        Segment segment = new Segment(mSegmentIndex, mCurrentFile, mSegmentStartTimestamp, duration);
+        mSegments.add(segment);
+        writePlaylist(false);
+        if (mListener != null) {
+            mListener.onSegmentClosed(segment);
+        }
+    }
+
+    private void writePlaylist(boolean isFinished) throws Exception {
+        if (mPlaylistFile == null) {
+            return;
+        }
+        long maxDuration = 0;
+        for (Segment segment : mSegments) {
+            maxDuration = Math.max(maxDuration, segment.getDuration());
+        }
+
+        StringBuilder playlist = new StringBuilder();
+        playlist.append("#EXTM3U\n");
+        playlist.append("#EXT-X-VERSION:3\n");
+        playlist.append("#EXT-X-TARGETDURATION:").append((maxDuration + 999999) / 1000000).append('\n');
+        playlist.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        for (Segment segment : mSegments) {
+            playlist.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.getDuration() / 1e6));
+            playlist.append(segment.getFile().getName()).append('\n');
+        }
+        if (isFinished) {
+            playlist.append("#EXT-X-ENDLIST\n");
+        }
+
+        // 読み込み中のプレイヤーが途中の内容を読まないように書き終わってから置き換える
+        File temporary = new File(mPlaylistFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+            writer.write(playlist.toString());
+            // 閉じる時に書き出しに失敗したプレイリストで置き換えないように、ここで閉じて失敗を返す
+            writer.close();
+            writer = null;
+        } catch (IOException e) {
+            throw new Exception("failed to write playlist: " + e.getMessage(), e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // 書き込みの失敗を返すので、閉じる時の失敗は無視する
+                }
+            }
+        }
+        if (!temporary.renameTo(mPlaylistFile)) {
+            throw new Exception("failed to replace playlist " + mPlaylistFile);
+        }
+    }
+}
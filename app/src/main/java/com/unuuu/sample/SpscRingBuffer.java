@@ -0,0 +1,172 @@
+package com.unuuu.sample;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 1つのスレッドが追加し、1つのスレッドが取り出すロックフリーのリングバッファ
+ *
+ * 取り出した要素のスロットは次に上書きされるまで参照を保持したままになる。
+ * プールで使い回すオブジェクトを渡すことを前提にしている。
+ *
+ * @param <E> 要素の型
+ */
+public class SpscRingBuffer<E> {
+    private static final long BLOCK_PARK_NANOS = 100000L;
+
+    /**
+     * バッファが一杯の時の振る舞い
+     */
+    public enum BackpressurePolicy {
+        /** 一番古い要素を捨てて追加する */
+        DROP_OLDEST,
+        /** 追加しようとした要素を捨てる */
+        DROP_NEWEST,
+        /** 空きができるまで待つ */
+        BLOCK
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    private final BackpressurePolicy mPolicy;
+    private final AtomicReferenceArray<E> mBuffer;
+
+    /* 取り出す側が進める位置 */
+    private final AtomicLong mHead = new AtomicLong();
+    /* 追加する側が進める位置 */
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile int mHighWaterMark = 0;
+
+    /**
+     * @param capacity 保持できる要素の最大数
+     * @param policy バッファが一杯の時の振る舞い
+     */
+    public SpscRingBuffer(int capacity, BackpressurePolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        mCapacity = capacity;
+        mPolicy = policy;
+
+        int length = Integer.highestOneBit(capacity);
+        if (length < capacity) {
+            length <<= 1;
+        }
+        mMask = length - 1;
+        mBuffer = new AtomicReferenceArray<>(length);
+    }
+
+    /**
+     * 要素を追加する (追加する側のスレッドからのみ呼ぶ)
+     *
+     * BLOCKの時に待機中に割り込まれた場合は追加せずに要素をそのまま返す。
+     *
+     * @param element 追加する要素
+     * @return 捨てられた要素、捨てられた要素がない時はnull
+     */
+    public E offer(E element) {
+        long tail = mTail.get();
+        E dropped = null;
+
+        while (tail - mHead.get() >= mCapacity) {
+            if (BackpressurePolicy.DROP_NEWEST == mPolicy) {
+                mDroppedCount.incrementAndGet();
+                return element;
+            }
+
+            if (BackpressurePolicy.DROP_OLDEST == mPolicy) {
+                long head = mHead.get();
+                if (tail - head < mCapacity) {
+                    continue;
+                }
+                // 取り出す側と同じ位置を奪い合うのでCASで確定させる
+                E oldest = mBuffer.get(index(head));
+                if (mHead.compareAndSet(head, head + 1)) {
+                    mDroppedCount.incrementAndGet();
+                    dropped = oldest;
+                    break;
+                }
+                continue;
+            }
+
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                return element;
+            }
+        }
+
+        mBuffer.lazySet(index(tail), element);
+        mTail.lazySet(tail + 1);
+
+        int size = (int) (tail + 1 - mHead.get());
+        if (size > mHighWaterMark) {
+            mHighWaterMark = size;
+        }
+        return dropped;
+    }
+
+    /**
+     * 一番古い要素を取り出す (取り出す側のスレッドからのみ呼ぶ)
+     *
+     * @return 要素、空の時はnull
+     */
+    public E poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head >= mTail.get()) {
+                return null;
+            }
+            E element = mBuffer.get(index(head));
+            if (mHead.compareAndSet(head, head + 1)) {
+                return element;
+            }
+        }
+    }
+
+    private int index(long position) {
+        return (int) (position & mMask);
+    }
+
+    /**
+     * 保持している要素数を取得する
+     *
+     * @return 要素数
+     */
+    public int size() {
+        long head = mHead.get();
+        long tail = mTail.get();
+        return (int) Math.max(0, tail - head);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public BackpressurePolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * バッファが一杯で捨てた要素数
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * これまでに保持した要素数の最大値
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+}
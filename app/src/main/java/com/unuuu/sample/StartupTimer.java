@@ -0,0 +1,154 @@
+package com.unuuu.sample;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * 録画を開始してから最初のフレームを受け取るまでの各段階の時間を計る
+ *
+ * 段階は別々のスレッドで並行して進むので、段階毎に開始した時刻を受け取って時間を求める。
+ * 最初のフレームを受け取った時に全体の時間を予算と比べてリスナーに渡す。
+ */
+public class StartupTimer {
+
+    /**
+     * 開始の段階
+     */
+    public enum Phase {
+        /** FFmpegのネイティブライブラリの読み込みを待つ */
+        LOAD_NATIVES,
+        /** カメラを開いてプレビューのサイズを設定する */
+        OPEN_CAMERA,
+        /** レコーダーを作って出力先を開く */
+        START_RECORDER,
+        /** 音声の録音と録画のパイプラインを開始する */
+        START_PIPELINE,
+        /** カメラのプレビューを開始する */
+        START_PREVIEW,
+        /** カメラから最初のフレームを受け取る */
+        FIRST_FRAME
+    }
+
+    /**
+     * 段階毎の時間を受け取る
+     * 段階を終えたスレッドから呼ばれる
+     */
+    public interface Listener {
+        /**
+         * @param phase 終えた段階
+         * @param durationNanos 段階にかかった時間 (ナノ秒)
+         */
+        void onPhaseFinished(Phase phase, long durationNanos);
+
+        /**
+         * 最初のフレームを受け取った時に呼ばれる
+         *
+         * @param totalNanos 開始してからの時間 (ナノ秒)
+         * @param isOverBudget 予算を超えたかどうか
+         */
+        void onStartupFinished(long totalNanos, boolean isOverBudget);
+    }
+
+    private final MediaClock mClock;
+    private final long mBudgetNanos;
+    private final Listener mListener;
+    private final long[] mDurations = new long[Phase.values().length];
+    private long mStartNanos;
+    private long mTotalNanos = -1;
+
+    /**
+     * @param clock 時刻の取得元
+     * @param budgetNanos 最初のフレームまでにかけてよい時間 (ナノ秒)、0以下の時は比べない
+     * @param listener リスナー、nullの時は通知しない
+     */
+    public StartupTimer(MediaClock clock, long budgetNanos, Listener listener) {
+        mClock = clock;
+        mBudgetNanos = budgetNanos;
+        mListener = listener;
+        Arrays.fill(mDurations, -1);
+    }
+
+    /**
+     * 計り始める
+     */
+    public synchronized void start() {
+        mStartNanos = mClock.nanoTime();
+        mTotalNanos = -1;
+        Arrays.fill(mDurations, -1);
+    }
+
+    /**
+     * 段階を始める時刻を取得する
+     */
+    public long now() {
+        return mClock.nanoTime();
+    }
+
+    /**
+     * startを呼んだ時刻
+     */
+    public synchronized long getStartNanos() {
+        return mStartNanos;
+    }
+
+    /**
+     * 段階を終えた時に呼ぶ
+     *
+     * @param phase 終えた段階
+     * @param phaseStartNanos nowで取得した段階を始めた時刻
+     */
+    public void finishPhase(Phase phase, long phaseStartNanos) {
+        long duration = mClock.nanoTime() - phaseStartNanos;
+        synchronized (this) {
+            mDurations[phase.ordinal()] = duration;
+        }
+        if (mListener != null) {
+            mListener.onPhaseFinished(phase, duration);
+        }
+    }
+
+    /**
+     * 最初のフレームを受け取った時に呼ぶ、2回目以降は何もしない
+     */
+    public void finish() {
+        long total;
+        synchronized (this) {
+            if (mTotalNanos >= 0) {
+                return;
+            }
+            total = mClock.nanoTime() - mStartNanos;
+            mTotalNanos = total;
+        }
+        if (mListener != null) {
+            mListener.onStartupFinished(total, isOverBudget());
+        }
+    }
+
+    /**
+     * @return 段階にかかった時間 (ナノ秒)、終えていない時は-1
+     */
+    public synchronized long getDurationNanos(Phase phase) {
+        return mDurations[phase.ordinal()];
+    }
+
+    /**
+     * @return 最初のフレームまでの時間 (ナノ秒)、受け取っていない時は-1
+     */
+    public synchronized long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    public synchronized boolean isOverBudget() {
+        return mBudgetNanos > 0 && mTotalNanos > mBudgetNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("StartupTimer{");
+        for (Phase phase : Phase.values()) {
+            builder.append(String.format(Locale.US, "%s=%.1fms, ", phase, mDurations[phase.ordinal()] / 1e6));
+        }
+        return builder.append(String.format(Locale.US, "total=%.1fms, budget=%.1fms}",
+                mTotalNanos / 1e6, mBudgetNanos / 1e6)).toString();
+    }
+}
@@ -0,0 +1,67 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_MJPEG;
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_YUVJ420P;
+
+/**
+ * 指定した時間の映像のフレームを1枚のJPEGに書き出す出力
+ */
+public class ThumbnailSink extends RecorderSink {
+    private final int mImageWidth;
+    private final int mImageHeight;
+    private final long mTimestamp;
+    private long mTargetTimestamp;
+
+    /**
+     * @param outputPath 出力先
+     * @param imageWidth 横幅の上限
+     * @param imageHeight 高さの上限
+     * @param timestamp 切り出す時間 (マイクロ秒)、ファイルより長い時は先頭のフレームを使う
+     */
+    public ThumbnailSink(String outputPath, int imageWidth, int imageHeight, long timestamp) {
+        super(outputPath);
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        mTimestamp = timestamp;
+    }
+
+    @Override
+    public void start(PostProcessor.SourceInfo source) throws Exception {
+        super.start(source);
+        mTargetTimestamp = mTimestamp < source.getLengthInTime() ? mTimestamp : 0;
+    }
+
+    @Override
+    protected FFmpegFrameRecorder createRecorder(String outputPath, PostProcessor.SourceInfo source) {
+        int[] size = fitSize(source, mImageWidth, mImageHeight);
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputPath, size[0], size[1], 0);
+        recorder.setFormat("image2");
+        recorder.setVideoCodec(AV_CODEC_ID_MJPEG);
+        recorder.setPixelFormat(AV_PIX_FMT_YUVJ420P);
+        recorder.setFrameRate(1);
+        // 連番にせず指定したファイル名で書き出す
+        recorder.setOption("update", "1");
+        return recorder;
+    }
+
+    @Override
+    public boolean onFrame(Frame frame, long timestamp) throws Exception {
+        if (frame.image == null || timestamp < mTargetTimestamp) {
+            return false;
+        }
+        getRecorder().record(frame);
+        return true;
+    }
+
+    @Override
+    public void finish() throws Exception {
+        if (!isStarted()) {
+            throw new FrameRecorder.Exception("No video frame at " + mTargetTimestamp);
+        }
+        super.finish();
+    }
+}
@@ -0,0 +1,57 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_AAC;
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_H264;
+
+/**
+ * 解像度とビットレートを下げたMP4を書き出す出力
+ *
+ * 映像の縮小はレコーダーの中でswscaleが行う。
+ */
+public class TranscodeSink extends RecorderSink {
+    private final int mImageWidth;
+    private final int mImageHeight;
+    private final int mVideoBitrate;
+
+    /**
+     * @param outputPath 出力先
+     * @param imageWidth 横幅の上限
+     * @param imageHeight 高さの上限
+     * @param videoBitrate 映像のビットレート
+     */
+    public TranscodeSink(String outputPath, int imageWidth, int imageHeight, int videoBitrate) {
+        super(outputPath);
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        mVideoBitrate = videoBitrate;
+    }
+
+    @Override
+    protected FFmpegFrameRecorder createRecorder(String outputPath, PostProcessor.SourceInfo source) {
+        int[] size = fitSize(source, mImageWidth, mImageHeight);
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(outputPath, size[0], size[1],
+                source.getAudioChannels());
+        recorder.setFormat("mp4");
+        recorder.setVideoCodec(AV_CODEC_ID_H264);
+        recorder.setAudioCodec(AV_CODEC_ID_AAC);
+        recorder.setFrameRate(source.getFrameRate());
+        recorder.setSampleRate(source.getSampleRate());
+        recorder.setVideoBitrate(mVideoBitrate);
+        // 先頭から再生を始められるようにmoovを先頭に置く
+        recorder.setOption("movflags", "faststart");
+        return recorder;
+    }
+
+    @Override
+    public boolean onFrame(Frame frame, long timestamp) throws Exception {
+        FFmpegFrameRecorder recorder = getRecorder();
+        if (frame.image != null && timestamp > recorder.getTimestamp()) {
+            recorder.setTimestamp(timestamp);
+        }
+        recorder.record(frame);
+        return false;
+    }
+}
@@ -0,0 +1,49 @@
+package com.unuuu.sample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 録画するNV21のフレームに毎フレーム掛けるフィルタ
+ *
+ * VideoFilterChainに並べて使う。作業用のバッファはprepareで確保し、applyでは確保しない。
+ * 1つのインスタンスを複数のチェインで同時に使うことはできない。
+ */
+public interface VideoFilter {
+
+    /**
+     * 計測結果に付ける名前
+     */
+    String getName();
+
+    /**
+     * 入力の大きさを受け取って作業用のバッファを確保する、チェインを組み立てる時に1回だけ呼ばれる
+     *
+     * @param width 入力の横幅
+     * @param height 入力の高さ
+     */
+    void prepare(int width, int height) throws IOException;
+
+    int getOutputWidth();
+
+    int getOutputHeight();
+
+    /**
+     * 入力をその場で書き換えるかどうか、trueの時は出力の大きさが入力と同じになる
+     */
+    boolean isInPlace();
+
+    /**
+     * フィルタを掛ける
+     *
+     * @param src 入力、先頭からNV21のデータが入っている、positionとlimitは戻さなくてよい
+     * @param dst 書き込み先、isInPlaceの時はsrcと同じバッファが渡される
+     * @return 出力したかどうか、falseの時はこのフレームを捨てる
+     */
+    boolean apply(ByteBuffer src, ByteBuffer dst) throws IOException;
+
+    /**
+     * 確保したものを解放する
+     */
+    void release();
+}
@@ -0,0 +1,175 @@
+package com.unuuu.sample;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 映像のフィルタを順に掛けるチェイン
+ *
+ * 組み立てる時に各フィルタの大きさを決めて途中のバッファを確保し、録画中は確保しない。
+ * その場で書き換えるフィルタは前の出力をそのまま書き換え、大きさが変わるフィルタだけが次のバッファに書き込む。
+ * 最後に大きさが変わるフィルタは呼び出し側の出力に直接書き込むので、最後にコピーし直すことはない。
+ * フィルタ毎にかかった時間を計り、重いフィルタを見つけられるようにする。
+ * 1つのスレッドから呼ぶ。
+ */
+public class VideoFilterChain {
+    private final int mInputWidth;
+    private final int mInputHeight;
+    private final int mOutputWidth;
+    private final int mOutputHeight;
+    private final VideoFilter[] mFilters;
+    /* 大きさが変わるフィルタの書き込み先、最後に大きさが変わるフィルタとその場で書き換えるフィルタはnull */
+    private final ByteBuffer[] mBuffers;
+    private final int mLastResizeIndex;
+    private final LatencyHistogram[] mLatencies;
+    private final LatencyHistogram mTotalLatency = new LatencyHistogram("filterChain");
+
+    /**
+     * フィルタを順に準備してチェインを組み立てる
+     *
+     * @param width 入力の横幅
+     * @param height 入力の高さ
+     * @param filters 掛ける順に並べたフィルタ
+     */
+    public VideoFilterChain(int width, int height, List<VideoFilter> filters) throws IOException {
+        mInputWidth = width;
+        mInputHeight = height;
+        mFilters = filters.toArray(new VideoFilter[filters.size()]);
+        mBuffers = new ByteBuffer[mFilters.length];
+        mLatencies = new LatencyHistogram[mFilters.length];
+
+        int lastResizeIndex = -1;
+        for (int i = 0; i < mFilters.length; i++) {
+            VideoFilter filter = mFilters[i];
+            try {
+                filter.prepare(width, height);
+            } catch (IOException | RuntimeException e) {
+                for (int j = 0; j < i; j++) {
+                    mFilters[j].release();
+                }
+                throw e;
+            }
+            if (!filter.isInPlace()) {
+                lastResizeIndex = i;
+            }
+            width = filter.getOutputWidth();
+            height = filter.getOutputHeight();
+            mLatencies[i] = new LatencyHistogram(i + ":" + filter.getName());
+        }
+        mLastResizeIndex = lastResizeIndex;
+        mOutputWidth = width;
+        mOutputHeight = height;
+
+        for (int i = 0; i < mLastResizeIndex; i++) {
+            VideoFilter filter = mFilters[i];
+            if (!filter.isInPlace()) {
+                mBuffers[i] = ByteBuffer.allocateDirect(filter.getOutputWidth() * filter.getOutputHeight() * 3 / 2)
+                        .order(ByteOrder.nativeOrder());
+            }
+        }
+    }
+
+    public int getInputWidth() {
+        return mInputWidth;
+    }
+
+    public int getInputHeight() {
+        return mInputHeight;
+    }
+
+    public int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    public int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+    /**
+     * 全てのフィルタがその場で書き換えるかどうか
+     * trueの時は入力のフレームをそのまま出力として使える
+     */
+    public boolean isInPlace() {
+        return mLastResizeIndex < 0;
+    }
+
+    /**
+     * 順にフィルタを掛ける
+     *
+     * @param input 入力、その場で書き換えるフィルタがあると書き換わる
+     * @param output 書き込み先、isInPlaceの時は使わずにinputを書き換える
+     * @return 出力したかどうか、途中のフィルタが出力しなかった時はfalse
+     */
+    public boolean process(ByteBuffer input, ByteBuffer output) throws IOException {
+        long chainStartTime = System.nanoTime();
+        ByteBuffer current = input;
+        for (int i = 0; i < mFilters.length; i++) {
+            VideoFilter filter = mFilters[i];
+            ByteBuffer dst;
+            if (filter.isInPlace()) {
+                dst = current;
+            } else if (i == mLastResizeIndex) {
+                dst = output;
+            } else {
+                dst = mBuffers[i];
+            }
+
+            long startTime = System.nanoTime();
+            current.clear();
+            if (dst != current) {
+                dst.clear();
+            }
+            boolean isApplied = filter.apply(current, dst);
+            mLatencies[i].record(System.nanoTime() - startTime);
+            if (!isApplied) {
+                return false;
+            }
+            current = dst;
+        }
+        current.position(0);
+        mTotalLatency.record(System.nanoTime() - chainStartTime);
+        return true;
+    }
+
+    /**
+     * フィルタ毎に1フレームにかかった時間、名前は順番とフィルタの名前
+     */
+    public List<LatencyHistogram> getFilterLatencies() {
+        List<LatencyHistogram> latencies = new ArrayList<>(mLatencies.length);
+        Collections.addAll(latencies, mLatencies);
+        return latencies;
+    }
+
+    /**
+     * チェイン全体で1フレームにかかった時間
+     */
+    public LatencyHistogram getTotalLatency() {
+        return mTotalLatency;
+    }
+
+    /**
+     * 全てのフィルタを解放する
+     */
+    public void release() {
+        for (VideoFilter filter : mFilters) {
+            filter.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder names = new StringBuilder();
+        for (VideoFilter filter : mFilters) {
+            if (names.length() > 0) {
+                names.append(" -> ");
+            }
+            names.append(filter.getName());
+        }
+        return "VideoFilterChain{" + mInputWidth + "x" + mInputHeight + " -> " + mOutputWidth + "x" + mOutputHeight
+                + ", filters=[" + names + "]}";
+    }
+}
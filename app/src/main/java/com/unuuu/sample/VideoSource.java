@@ -0,0 +1,53 @@
+package com.unuuu.sample;
+
+import java.io.IOException;
+
+/**
+ * 録画する映像の取得元
+ *
+ * カメラのプレビューと同じように、取得元のスレッドからNV21のデータをコールバックに渡す。
+ * 渡したバッファはreleaseBufferで返されるまで使い回さない。
+ */
+public interface VideoSource {
+
+    /**
+     * 取得したフレームを受け取るコールバック
+     */
+    interface Callback {
+        /**
+         * @param data NV21のデータ、使い終わったらreleaseBufferで返す
+         * @param captureNanos 取得した時のSystem.nanoTime()
+         */
+        void onFrame(byte[] data, long captureNanos);
+
+        /**
+         * 最後のフレームを渡した後に呼ばれる、カメラの時は呼ばれない
+         */
+        void onEndOfStream();
+
+        void onError(Exception e);
+    }
+
+    int getWidth();
+
+    int getHeight();
+
+    double getFrameRate();
+
+    /**
+     * フレームを渡し始める
+     *
+     * @param callback コールバック
+     */
+    void start(Callback callback) throws IOException;
+
+    /**
+     * onFrameで渡したバッファを返す (onFrameを呼んだスレッドから呼ぶ)
+     */
+    void releaseBuffer(byte[] data);
+
+    /**
+     * フレームを渡すのを止める
+     */
+    void stop();
+}
@@ -0,0 +1,110 @@
+package com.unuuu.sample;
+
+import java.nio.ByteBuffer;
+
+/**
+ * NV21の画像を半透明で重ねるフィルタ
+ *
+ * 重ねる範囲の行だけを読み書きし、それ以外の画素には触らない。
+ */
+public class WatermarkFilter implements VideoFilter {
+    private final byte[] mImage;
+    private final int mImageWidth;
+    private final int mImageHeight;
+    private final int mX;
+    private final int mY;
+    /* 0 - 256、256の時は画像で置き換える */
+    private final int mAlpha;
+
+    private int mWidth;
+    private int mHeight;
+    private int mLeft;
+    private int mTop;
+    private byte[] mRow;
+
+    /**
+     * @param image 重ねるNV21の画像
+     * @param imageWidth 画像の横幅 (偶数)
+     * @param imageHeight 画像の高さ (偶数)
+     * @param x 重ねる位置 (横)、負の時は右端から-xだけ離す
+     * @param y 重ねる位置 (縦)、負の時は下端から-yだけ離す
+     * @param alpha 不透明度 (0 - 255)
+     */
+    public WatermarkFilter(byte[] image, int imageWidth, int imageHeight, int x, int y, int alpha) {
+        if ((imageWidth & 1) != 0 || (imageHeight & 1) != 0) {
+            throw new IllegalArgumentException("image size must be even: " + imageWidth + "x" + imageHeight);
+        }
+        if (image.length < imageWidth * imageHeight * 3 / 2) {
+            throw new IllegalArgumentException("image is smaller than " + imageWidth + "x" + imageHeight);
+        }
+        mImage = image;
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+        mX = x;
+        mY = y;
+        mAlpha = alpha >= 255 ? 256 : Math.max(0, alpha);
+    }
+
+    @Override
+    public String getName() {
+        return "watermark(" + mImageWidth + "x" + mImageHeight + ")";
+    }
+
+    @Override
+    public void prepare(int width, int height) {
+        // 色差の位置がずれないように偶数に揃える
+        mLeft = (mX >= 0 ? mX : width - mImageWidth + mX) & ~1;
+        mTop = (mY >= 0 ? mY : height - mImageHeight + mY) & ~1;
+        if (mLeft < 0 || mTop < 0 || mLeft + mImageWidth > width || mTop + mImageHeight > height) {
+            throw new IllegalArgumentException("watermark " + mImageWidth + "x" + mImageHeight + " at ("
+                    + mLeft + ", " + mTop + ") does not fit in " + width + "x" + height);
+        }
+        mWidth = width;
+        mHeight = height;
+        mRow = new byte[mImageWidth];
+    }
+
+    @Override
+    public int getOutputWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getOutputHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return true;
+    }
+
+    @Override
+    public boolean apply(ByteBuffer src, ByteBuffer dst) {
+        for (int y = 0; y < mImageHeight; y++) {
+            blendRow(src, (mTop + y) * mWidth + mLeft, y * mImageWidth);
+        }
+        int chromaOffset = mWidth * mHeight;
+        int imageChromaOffset = mImageWidth * mImageHeight;
+        for (int y = 0; y < mImageHeight / 2; y++) {
+            blendRow(src, chromaOffset + (mTop / 2 + y) * mWidth + mLeft, imageChromaOffset + y * mImageWidth);
+        }
+        return true;
+    }
+
+    private void blendRow(ByteBuffer buffer, int offset, int imageOffset) {
+        buffer.position(offset);
+        buffer.get(mRow, 0, mImageWidth);
+        int inverse = 256 - mAlpha;
+        for (int x = 0; x < mImageWidth; x++) {
+            mRow[x] = (byte) (((mImage[imageOffset + x] & 0xff) * mAlpha + (mRow[x] & 0xff) * inverse) >> 8);
+        }
+        buffer.position(offset);
+        buffer.put(mRow, 0, mImageWidth);
+    }
+
+    @Override
+    public void release() {
+        mRow = null;
+    }
+}
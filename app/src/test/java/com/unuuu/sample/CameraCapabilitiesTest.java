@@ -0,0 +1,63 @@
+package com.unuuu.sample;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CameraCapabilitiesTest {
+    private static final List<int[]> SIZES = Arrays.asList(
+            new int[]{1920, 1080}, new int[]{1280, 720}, new int[]{960, 720}, new int[]{640, 480},
+            new int[]{480, 320}, new int[]{320, 240});
+
+    @Test
+    public void encodeAndDecodeKeepEveryField() {
+        CameraCapabilities capabilities = new CameraCapabilities(1, CameraCapabilities.FACING_FRONT, 270, SIZES);
+
+        CameraCapabilities decoded = CameraCapabilities.decode(capabilities.encode());
+
+        assertNotNull(decoded);
+        assertEquals(1, decoded.getCameraId());
+        assertEquals(CameraCapabilities.FACING_FRONT, decoded.getFacing());
+        assertEquals(270, decoded.getOrientation());
+        assertEquals(SIZES.size(), decoded.getPreviewSizes().size());
+        for (int i = 0; i < SIZES.size(); i++) {
+            assertArrayEquals(SIZES.get(i), decoded.getPreviewSizes().get(i));
+        }
+    }
+
+    @Test
+    public void decodeWithoutSizes() {
+        CameraCapabilities capabilities = new CameraCapabilities(0, CameraCapabilities.FACING_BACK, 90,
+                Collections.<int[]>emptyList());
+
+        CameraCapabilities decoded = CameraCapabilities.decode(capabilities.encode());
+
+        assertNotNull(decoded);
+        assertTrue(decoded.getPreviewSizes().isEmpty());
+        assertNull(decoded.getOptimalPreviewSize(480, 480));
+    }
+
+    @Test
+    public void decodeRejectsMalformedValues() {
+        assertNull(CameraCapabilities.decode(null));
+        assertNull(CameraCapabilities.decode(""));
+        assertNull(CameraCapabilities.decode("0;0;90"));
+        assertNull(CameraCapabilities.decode("0;0;90;640"));
+        assertNull(CameraCapabilities.decode("0;0;90;640xabc"));
+        assertNull(CameraCapabilities.decode("a;0;90;640x480"));
+    }
+
+    @Test
+    public void optimalPreviewSizeMatchesCameraSelection() {
+        CameraCapabilities capabilities = new CameraCapabilities(0, CameraCapabilities.FACING_BACK, 90, SIZES);
+
+        // 正方形に近いサイズはないので全てのサイズから480x480以上で高さが近いものを選ぶ
+        assertArrayEquals(new int[]{640, 480}, capabilities.getOptimalPreviewSize(480, 480));
+        assertArrayEquals(new int[]{1280, 720}, capabilities.getOptimalPreviewSize(1280, 720));
+        assertArrayEquals(new int[]{640, 480}, capabilities.getOptimalPreviewSize(640, 480));
+    }
+}
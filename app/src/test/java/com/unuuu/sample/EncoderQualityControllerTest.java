@@ -0,0 +1,150 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EncoderQualityControllerTest {
+    private static final double FRAME_RATE = 30;
+    private static final long FRAME_BUDGET_NANOS = (long) (1000000000L / FRAME_RATE);
+
+    private EncoderQualityController mController;
+    private List<EncoderQualityController.Decision> mDecisions;
+
+    @Before
+    public void setUp() throws Exception {
+        mController = new EncoderQualityController(EncoderQualityController.DEFAULT_LEVELS, FRAME_RATE);
+        mDecisions = new ArrayList<>();
+        mController.setOnDecisionListener(mDecisions::add);
+    }
+
+    @Test
+    public void slowEncoderStepsDownOneLevelPerWindow() throws Exception {
+        SlowEncoder encoder = new SlowEncoder(FRAME_BUDGET_NANOS * 2);
+        encoder.run(EncoderQualityController.EVALUATION_WINDOW);
+        assertEquals(1, mController.getLevelIndex());
+        assertEquals(EncoderQualityController.Action.DOWNGRADE, last().getAction());
+
+        // 直後の判定は見送る
+        encoder.run(EncoderQualityController.EVALUATION_WINDOW);
+        assertEquals(1, mController.getLevelIndex());
+        assertEquals("cooldown", last().getReason());
+
+        encoder.run(EncoderQualityController.EVALUATION_WINDOW);
+        assertEquals(2, mController.getLevelIndex());
+    }
+
+    @Test
+    public void slowEncoderEndsAtLightestLevelAndSkipsFrames() throws Exception {
+        SlowEncoder encoder = new SlowEncoder(FRAME_BUDGET_NANOS * 3);
+        encoder.run(EncoderQualityController.EVALUATION_WINDOW * 40);
+
+        int lightest = EncoderQualityController.DEFAULT_LEVELS.length - 1;
+        assertEquals(lightest, mController.getLevelIndex());
+        assertEquals("already at the lightest level", last().getReason());
+        assertTrue(encoder.mSkippedFrames > 0);
+    }
+
+    @Test
+    public void backlogAloneTriggersDowngrade() throws Exception {
+        for (int i = 0; i < EncoderQualityController.EVALUATION_WINDOW; i++) {
+            mController.onFrameEncoded(FRAME_BUDGET_NANOS / 10, i == 10 ? 8 : 0);
+        }
+        assertEquals(1, mController.getLevelIndex());
+    }
+
+    @Test
+    public void upgradeRequiresSeveralStableWindows() throws Exception {
+        new SlowEncoder(FRAME_BUDGET_NANOS * 2).run(EncoderQualityController.EVALUATION_WINDOW);
+        assertEquals(1, mController.getLevelIndex());
+
+        SlowEncoder fast = new SlowEncoder(FRAME_BUDGET_NANOS / 10);
+        // 見送りの1回と余裕がある状態の判定が揃うまでは上げない
+        fast.run(EncoderQualityController.EVALUATION_WINDOW * EncoderQualityController.UPGRADE_STABLE_WINDOWS);
+        assertEquals(1, mController.getLevelIndex());
+
+        fast.run(EncoderQualityController.EVALUATION_WINDOW);
+        assertEquals(0, mController.getLevelIndex());
+        assertEquals(EncoderQualityController.Action.UPGRADE, last().getAction());
+    }
+
+    @Test
+    public void loadNearThresholdDoesNotOscillate() throws Exception {
+        new SlowEncoder(FRAME_BUDGET_NANOS * 2).run(EncoderQualityController.EVALUATION_WINDOW);
+        int level = mController.getLevelIndex();
+
+        // 上げる条件と下げる条件の間の負荷では動かない
+        SlowEncoder moderate = new SlowEncoder((long) (FRAME_BUDGET_NANOS * 0.7));
+        moderate.run(EncoderQualityController.EVALUATION_WINDOW * 20);
+        assertEquals(level, mController.getLevelIndex());
+    }
+
+    @Test
+    public void everyEvaluationIsReported() throws Exception {
+        new SlowEncoder(FRAME_BUDGET_NANOS / 2).run(EncoderQualityController.EVALUATION_WINDOW * 5);
+        assertEquals(5, mDecisions.size());
+    }
+
+    @Test
+    public void skipRatioIsAppliedExactly() throws Exception {
+        EncoderQualityController.Level[] levels = {new EncoderQualityController.Level("ultrafast", true, 0.625, 0.5)};
+        EncoderQualityController controller = new EncoderQualityController(levels, FRAME_RATE);
+        int skipped = 0;
+        for (int i = 0; i < 100; i++) {
+            if (controller.shouldSkipFrame()) {
+                skipped += 1;
+            }
+        }
+        assertEquals(50, skipped);
+    }
+
+    @Test
+    public void levelScalesConfiguredBitrate() throws Exception {
+        // 呼び出し側が決めたビットレートを段階の値で上書きしない
+        FFmpegFrameRecorder recorder = new FFmpegFrameRecorder("out.mp4", 240, 240, 1);
+        new RecorderRepository(1000000).configure(recorder, EncoderQualityController.DEFAULT_LEVELS[0]);
+        assertEquals(1000000, recorder.getVideoBitrate());
+
+        int lightest = EncoderQualityController.DEFAULT_LEVELS.length - 1;
+        new RecorderRepository(1000000).configure(recorder, EncoderQualityController.DEFAULT_LEVELS[lightest]);
+        assertEquals(625000, recorder.getVideoBitrate());
+    }
+
+    private EncoderQualityController.Decision last() {
+        return mDecisions.get(mDecisions.size() - 1);
+    }
+
+    /**
+     * 1フレームに決まった時間がかかるエンコーダー
+     *
+     * 30fpsでフレームが届くとして、エンコードが間に合わない分だけ溜まったフレーム数を報告する。
+     */
+    private class SlowEncoder {
+        private final long mEncodeNanos;
+        private long mBacklogNanos = 0;
+        private int mSkippedFrames = 0;
+
+        SlowEncoder(long encodeNanos) {
+            mEncodeNanos = encodeNanos;
+        }
+
+        void run(int frames) {
+            int encoded = 0;
+            while (encoded < frames) {
+                if (mController.shouldSkipFrame()) {
+                    mSkippedFrames += 1;
+                    mBacklogNanos = Math.max(0, mBacklogNanos - FRAME_BUDGET_NANOS);
+                    continue;
+                }
+                mBacklogNanos = Math.max(0, mBacklogNanos + mEncodeNanos - FRAME_BUDGET_NANOS);
+                mController.onFrameEncoded(mEncodeNanos, (int) Math.min(10, mBacklogNanos / FRAME_BUDGET_NANOS));
+                encoded += 1;
+            }
+        }
+    }
+}
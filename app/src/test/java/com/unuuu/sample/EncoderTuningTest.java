@@ -0,0 +1,81 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EncoderTuningTest {
+
+    @Test
+    public void choosesDeviceClassByProcessorCount() throws Exception {
+        assertEquals(EncoderTuning.DeviceClass.LOW_END, EncoderTuning.DeviceClass.of(1));
+        assertEquals(EncoderTuning.DeviceClass.LOW_END, EncoderTuning.DeviceClass.of(2));
+        assertEquals(EncoderTuning.DeviceClass.MID_RANGE, EncoderTuning.DeviceClass.of(4));
+        assertEquals(EncoderTuning.DeviceClass.HIGH_END, EncoderTuning.DeviceClass.of(8));
+        assertEquals(EncoderTuning.DeviceClass.WORKSTATION, EncoderTuning.DeviceClass.of(16));
+    }
+
+    @Test
+    public void lowEndUsesSliceThreadsWithoutDelay() throws Exception {
+        EncoderTuning tuning = EncoderTuning.forDeviceClass(EncoderTuning.DeviceClass.LOW_END, 2);
+        assertEquals(2, tuning.getThreads());
+        assertEquals(EncoderTuning.ThreadType.SLICE, tuning.getThreadType());
+        assertEquals(0, tuning.getLookahead());
+        assertEquals(0, tuning.getBFrames());
+        assertTrue(tuning.isZeroLatency());
+    }
+
+    @Test
+    public void parsesWhatToStringWrites() throws Exception {
+        EncoderTuning tuning = new EncoderTuning(4, EncoderTuning.ThreadType.SLICE, 0, 2, 30, true);
+        assertEquals("threads=4,thread_type=slice,lookahead=0,bframes=2,gop=30,zerolatency=true", tuning.toString());
+        assertEquals(tuning.toString(), EncoderTuning.parse(tuning.toString()).toString());
+        assertEquals(tuning.toString(), EncoderTuning.parse(tuning.toString().replace(',', ';')).toString());
+
+        assertSame(EncoderTuning.DEFAULT, EncoderTuning.parse("default"));
+        assertEquals("default", EncoderTuning.DEFAULT.toString());
+        assertEquals("threads=0", EncoderTuning.parse(" threads = 0 ").toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownKey() throws Exception {
+        EncoderTuning.parse("threads=2,sliced=true");
+    }
+
+    @Test
+    public void appliesOnlySpecifiedOptions() throws Exception {
+        FrameRecorder recorder = new TestRecorder();
+        EncoderTuning.DEFAULT.applyTo(recorder);
+        assertNull(recorder.getVideoOption("threads"));
+        assertNull(recorder.getVideoOption("tune"));
+        assertEquals(-1, recorder.getGopSize());
+
+        EncoderTuning.parse("threads=0,thread_type=frame,lookahead=20,bframes=2,gop=60").applyTo(recorder);
+        assertEquals("0", recorder.getVideoOption("threads"));
+        assertEquals("frame", recorder.getVideoOption("thread_type"));
+        assertEquals("20", recorder.getVideoOption("rc-lookahead"));
+        assertEquals("2", recorder.getVideoOption("bf"));
+        assertEquals(60, recorder.getGopSize());
+        assertNull(recorder.getVideoOption("tune"));
+    }
+
+    private static class TestRecorder extends FrameRecorder {
+        @Override
+        public void start() throws Exception {
+        }
+
+        @Override
+        public void stop() throws Exception {
+        }
+
+        @Override
+        public void record(Frame frame) throws Exception {
+        }
+
+        @Override
+        public void release() throws Exception {
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.Frame;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class FileVideoSourceTest {
+
+    @Test
+    public void copiesChromaBeyondLumaLimit() throws Exception {
+        // FFmpegFrameGrabberと同じく、行の間に2バイトの詰め物があり、limitが輝度の面の終わりになっている
+        int width = 4;
+        int height = 2;
+        int stride = 6;
+        Frame frame = new Frame(width, height, Frame.DEPTH_UBYTE, 2);
+        ByteBuffer image = ByteBuffer.allocateDirect(stride * height * 3 / 2);
+        for (int i = 0; i < image.capacity(); i++) {
+            image.put(i, (byte) i);
+        }
+        image.limit(stride * height);
+        frame.image[0] = image;
+        frame.imageStride = stride;
+
+        byte[] buffer = new byte[width * height * 3 / 2];
+        FileVideoSource.copyNv21(frame, width, height, buffer);
+        assertArrayEquals(new byte[]{0, 1, 2, 3, 6, 7, 8, 9, 12, 13, 14, 15}, buffer);
+        assertEquals(stride * height, image.limit());
+    }
+}
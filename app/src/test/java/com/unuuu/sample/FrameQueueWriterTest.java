@@ -0,0 +1,132 @@
+package com.unuuu.sample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 取得元のデータがキューと退避先に入り、入らない時は理由を付けて捨てられることを確かめる
+ */
+public class FrameQueueWriterTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 2;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+    private File mFile;
+    private final List<RecordingMetrics.DropReason> mDropReasons = new ArrayList<>();
+    private int mSpilledCount = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("spill", ".tmp");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void writesCroppedFrameWithTimestamps() throws Exception {
+        FramePool pool = new FramePool(2, 2, 1);
+        SpscRingBuffer<PooledFrame> queue = new SpscRingBuffer<>(1, SpscRingBuffer.BackpressurePolicy.DROP_OLDEST);
+        Nv21Cropper cropper = new Nv21Cropper(WIDTH, HEIGHT, 2, 2, 0, false);
+        FrameQueueWriter writer = new FrameQueueWriter(pool, queue, cropper, null, mMetrics);
+
+        assertTrue(writer.write(data(0), 33333L, 100L));
+        PooledFrame frame = queue.poll();
+        assertEquals(33333L, frame.getTimestamp());
+        assertEquals(100L, frame.getCaptureNanos());
+        // 8x2の中央の2x2は2列目から始まる
+        assertEquals(2, ((ByteBuffer) frame.getFrame().image[0]).get(0));
+        assertEquals(0, writer.getDroppedFrameCount());
+    }
+
+    @Test
+    public void dropsWhenPoolIsExhausted() throws Exception {
+        FramePool pool = new FramePool(WIDTH, HEIGHT, 1);
+        SpscRingBuffer<PooledFrame> queue = new SpscRingBuffer<>(4, SpscRingBuffer.BackpressurePolicy.DROP_OLDEST);
+        FrameQueueWriter writer = new FrameQueueWriter(pool, queue, null, null, mMetrics);
+
+        assertTrue(writer.write(data(1), 0, 0));
+        assertFalse(writer.write(data(2), 1, 1));
+        assertEquals(1, writer.getDroppedFrameCount());
+        assertEquals(RecordingMetrics.DropReason.POOL_EXHAUSTED, mDropReasons.get(0));
+        assertEquals(1, ((ByteBuffer) queue.poll().getFrame().image[0]).get(0));
+    }
+
+    @Test
+    public void dropsOldestWhenQueueIsFull() throws Exception {
+        FramePool pool = new FramePool(WIDTH, HEIGHT, 3);
+        SpscRingBuffer<PooledFrame> queue = new SpscRingBuffer<>(1, SpscRingBuffer.BackpressurePolicy.DROP_OLDEST);
+        FrameQueueWriter writer = new FrameQueueWriter(pool, queue, null, null, mMetrics);
+
+        assertTrue(writer.write(data(1), 0, 0));
+        assertFalse(writer.write(data(2), 1, 1));
+        assertEquals(RecordingMetrics.DropReason.QUEUE_FULL, mDropReasons.get(0));
+        // 捨てたフレームはプールに戻る
+        assertEquals(1, pool.getInUseCount());
+        assertEquals(2, ((ByteBuffer) queue.poll().getFrame().image[0]).get(0));
+    }
+
+    @Test
+    public void spillsInOrderOnceQueueIsFull() throws Exception {
+        FramePool pool = new FramePool(WIDTH, HEIGHT, 3);
+        SpscRingBuffer<PooledFrame> queue = new SpscRingBuffer<>(1, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        FrameSpill spill = new FrameSpill(mFile, FRAME_SIZE, FRAME_SIZE);
+        FrameQueueWriter writer = new FrameQueueWriter(pool, queue, null, spill, mMetrics);
+
+        assertTrue(writer.write(data(1), 0, 0));
+        assertTrue(writer.write(data(2), 1, 1));
+        assertEquals(1, mSpilledCount);
+        // キューが空いても退避先が空になるまでは退避先に書き込む
+        queue.poll().release();
+        assertFalse(writer.write(data(3), 2, 2));
+        assertEquals(RecordingMetrics.DropReason.SPILL_FULL, mDropReasons.get(0));
+        assertTrue(queue.isEmpty());
+
+        PooledFrame frame = pool.acquire();
+        assertTrue(spill.read(frame));
+        assertEquals(2, ((ByteBuffer) frame.getFrame().image[0]).get(0));
+        spill.close();
+    }
+
+    private static byte[] data(int marker) {
+        byte[] data = new byte[FRAME_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (marker + i);
+        }
+        return data;
+    }
+
+    private final RecordingMetrics mMetrics = new RecordingMetrics() {
+        @Override
+        public void onFrameEncoded(long captureToEncodeNanos) {
+        }
+
+        @Override
+        public void onFrameDropped(DropReason reason) {
+            mDropReasons.add(reason);
+        }
+
+        @Override
+        public void onQueueDepth(int depth) {
+        }
+
+        @Override
+        public void onAudioOverrun() {
+        }
+
+        @Override
+        public void onFrameSpilled(int bytes, int spillDepth) {
+            mSpilledCount += 1;
+        }
+    };
+}
@@ -0,0 +1,143 @@
+package com.unuuu.sample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameSpillTest {
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+    private static final int HAMMER_COUNT = 100000;
+
+    private File mFile;
+    private FramePool mPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("spill", ".tmp");
+        mPool = new FramePool(WIDTH, HEIGHT, 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void readReturnsWrittenFramesInOrder() throws Exception {
+        FrameSpill spill = new FrameSpill(mFile, FRAME_SIZE, FRAME_SIZE * 3);
+        assertEquals(3, spill.getSlotCount());
+        assertTrue(spill.isEmpty());
+
+        write(spill, 1);
+        write(spill, 2);
+        assertEquals(2, spill.size());
+
+        assertRead(spill, 1);
+        assertRead(spill, 2);
+        assertTrue(spill.isEmpty());
+        assertFalse(spill.read(mPool.acquire()));
+        spill.close();
+    }
+
+    @Test
+    public void beginWriteReturnsNullWhenFull() throws Exception {
+        FrameSpill spill = new FrameSpill(mFile, FRAME_SIZE, FRAME_SIZE * 2);
+        write(spill, 1);
+        write(spill, 2);
+        assertNull(spill.beginWrite());
+        assertEquals(2, spill.getHighWaterMark());
+
+        assertRead(spill, 1);
+        write(spill, 3);
+        assertRead(spill, 2);
+        assertRead(spill, 3);
+        assertEquals(3, spill.getSpilledCount());
+        assertEquals(FRAME_SIZE * 3, spill.getSpilledBytes());
+        spill.close();
+    }
+
+    @Test
+    public void closeDeletesFile() throws Exception {
+        FrameSpill spill = new FrameSpill(mFile, FRAME_SIZE, FRAME_SIZE);
+        assertEquals(FRAME_SIZE, mFile.length());
+        spill.close();
+        assertFalse(mFile.exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCapacitySmallerThanFrame() throws Exception {
+        new FrameSpill(mFile, FRAME_SIZE, FRAME_SIZE - 1);
+    }
+
+    @Test
+    public void neverDuplicatesOrReordersAcrossThreads() throws Exception {
+        FrameSpill spill = new FrameSpill(mFile, FRAME_SIZE, FRAME_SIZE * 8);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread consumer = new Thread(() -> {
+            try {
+                PooledFrame frame = mPool.acquire();
+                for (int expected = 0; expected < HAMMER_COUNT; ) {
+                    if (!spill.read(frame)) {
+                        Thread.yield();
+                        continue;
+                    }
+                    assertEquals(expected, frame.getTimestamp());
+                    assertEquals((byte) expected, ((ByteBuffer) frame.getFrame().image[0]).get(FRAME_SIZE - 1));
+                    expected += 1;
+                }
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        consumer.start();
+
+        for (int i = 0; i < HAMMER_COUNT; ) {
+            ByteBuffer slot = spill.beginWrite();
+            if (slot == null) {
+                Thread.yield();
+                continue;
+            }
+            for (int j = 0; j < FRAME_SIZE; j++) {
+                slot.put((byte) i);
+            }
+            spill.commitWrite(FRAME_SIZE, i, 0);
+            i += 1;
+        }
+        consumer.join();
+
+        assertNull(error.get());
+        assertTrue(spill.isEmpty());
+        spill.close();
+    }
+
+    private static void write(FrameSpill spill, int value) {
+        ByteBuffer slot = spill.beginWrite();
+        assertNotNull(slot);
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            slot.put((byte) (value + i));
+        }
+        spill.commitWrite(FRAME_SIZE, value * 1000L, value);
+    }
+
+    private void assertRead(FrameSpill spill, int value) {
+        PooledFrame frame = mPool.acquire();
+        assertTrue(spill.read(frame));
+        assertEquals(value * 1000L, frame.getTimestamp());
+        assertEquals(value, frame.getCaptureNanos());
+
+        ByteBuffer buffer = (ByteBuffer) frame.getFrame().image[0];
+        for (int i = 0; i < FRAME_SIZE; i++) {
+            assertEquals((byte) (value + i), buffer.get(i));
+        }
+        frame.release();
+    }
+}
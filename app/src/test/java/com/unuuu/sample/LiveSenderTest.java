@@ -0,0 +1,184 @@
+package com.unuuu.sample;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 送信が詰まった時に参照されないフレームから捨て、壊れたフレームの後はキーフレームまで待つことを確かめる
+ */
+public class LiveSenderTest {
+    private static final int PACKET = LiveSender.TS_PACKET_SIZE;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x100;
+    private static final int AUDIO_PID = 0x101;
+    /* nal_ref_idcとnal_unit_type */
+    private static final int IDR = 0x65;
+    private static final int REFERENCE = 0x41;
+    private static final int NON_REFERENCE = 0x01;
+
+    private final List<byte[]> mDatagrams = new ArrayList<>();
+
+    @Test
+    public void dropsNonReferenceFramesFirst() throws Exception {
+        LiveSender sender = new LiveSender(mTransport, 20);
+        offer(sender, pat(), pmt());
+        offerFrame(sender, IDR, true, 4);
+        offerFrame(sender, NON_REFERENCE, false, 2);
+        offerFrame(sender, REFERENCE, false, 2);
+        // 半分まで埋まったので参照されないフレームは捨てる
+        offerFrame(sender, NON_REFERENCE, false, 2);
+        offerFrame(sender, REFERENCE, false, 2);
+        offerFrame(sender, REFERENCE, false, 2);
+        offerFrame(sender, REFERENCE, false, 2);
+        offerFrame(sender, NON_REFERENCE, false, 2);
+        offer(sender, audio(true));
+        // 4分の3まで埋まったので参照されるフレームも捨て、次のキーフレームまで待つ
+        offerFrame(sender, REFERENCE, false, 2);
+        offer(sender, audio(true));
+        offerFrame(sender, REFERENCE, false, 1);
+        offerFrame(sender, IDR, true, 2);
+        offer(sender, audio(true));
+        offer(sender, new byte[PACKET]);
+
+        assertEquals(2, sender.getDroppedUnitCount(LiveSender.UnitType.NON_REFERENCE_FRAME));
+        assertEquals(2, sender.getDroppedUnitCount(LiveSender.UnitType.REFERENCE_FRAME));
+        assertEquals(0, sender.getDroppedUnitCount(LiveSender.UnitType.KEY_FRAME));
+        assertEquals(1, sender.getDroppedUnitCount(LiveSender.UnitType.AUDIO));
+        assertEquals(0, sender.getDroppedUnitCount(LiveSender.UnitType.TABLE));
+        assertEquals(1, sender.getInvalidPacketCount());
+        assertEquals(20, sender.getQueueHighWaterMark());
+
+        sender.start();
+        sender.stop();
+        assertEquals(20, sender.getSentPacketCount());
+        assertEquals(3, mDatagrams.size());
+        assertEquals(7 * PACKET, mDatagrams.get(0).length);
+        assertEquals(6 * PACKET, mDatagrams.get(2).length);
+        assertArrayEquals(pat(), Arrays.copyOfRange(mDatagrams.get(0), 0, PACKET));
+    }
+
+    @Test
+    public void waitsForKeyFrameAfterTruncatedFrame() throws Exception {
+        LiveSender sender = new LiveSender(mTransport, 8);
+        offer(sender, pat(), pmt());
+        offerFrame(sender, IDR, true, 3);
+        // 1つ入らずに途中で切れる
+        offerFrame(sender, REFERENCE, false, 4);
+        offerFrame(sender, REFERENCE, false, 1);
+        offerFrame(sender, IDR, true, 1);
+
+        assertEquals(2, sender.getDroppedUnitCount(LiveSender.UnitType.REFERENCE_FRAME));
+        assertEquals(1, sender.getDroppedUnitCount(LiveSender.UnitType.KEY_FRAME));
+        assertEquals(3, sender.getDroppedPacketCount());
+
+        sender.start();
+        sender.stop();
+        // 送った後は空いたので次のキーフレームから入る
+        offerFrame(sender, REFERENCE, false, 1);
+        offerFrame(sender, IDR, true, 1);
+        assertEquals(3, sender.getDroppedUnitCount(LiveSender.UnitType.REFERENCE_FRAME));
+        assertEquals(1, sender.getDroppedUnitCount(LiveSender.UnitType.KEY_FRAME));
+    }
+
+    @Test
+    public void measuresCaptureToSendLatency() throws Exception {
+        LiveSender sender = new LiveSender(mTransport, 16);
+        long captureNanos = System.nanoTime() - 5000000L;
+        sender.markCapture(captureNanos);
+        sender.markCapture(captureNanos);
+        offer(sender, pat(), pmt());
+        offerFrame(sender, IDR, true, 2);
+        offerFrame(sender, REFERENCE, false, 1);
+        offer(sender, audio(true));
+
+        sender.start();
+        sender.stop();
+        assertEquals(2, sender.getGlassToWireLatency().getCount());
+        assertTrue(sender.getGlassToWireLatency().getMaxNanos() >= 5000000L);
+    }
+
+    private static void offer(LiveSender sender, byte[]... packets) {
+        for (byte[] packet : packets) {
+            sender.offer(packet, 0, packet.length);
+        }
+    }
+
+    private static void offerFrame(LiveSender sender, int nalHeader, boolean isRandomAccess, int packets) {
+        offer(sender, video(nalHeader, isRandomAccess));
+        for (int i = 1; i < packets; i++) {
+            byte[] packet = header(VIDEO_PID, false);
+            packet[3] = 0x10;
+            offer(sender, packet);
+        }
+    }
+
+    private static byte[] header(int pid, boolean isUnitStart) {
+        byte[] packet = new byte[PACKET];
+        packet[0] = 0x47;
+        packet[1] = (byte) ((isUnitStart ? 0x40 : 0) | (pid >> 8));
+        packet[2] = (byte) pid;
+        packet[3] = 0x10;
+        return packet;
+    }
+
+    private static byte[] pat() {
+        byte[] packet = header(0, true);
+        put(packet, 4, 0x00, 0x00, 0xb0, 0x0d, 0x00, 0x01, 0xc1, 0x00, 0x00,
+                0x00, 0x01, 0xe0 | (PMT_PID >> 8), PMT_PID & 0xff);
+        return packet;
+    }
+
+    private static byte[] pmt() {
+        byte[] packet = header(PMT_PID, true);
+        put(packet, 4, 0x00, 0x02, 0xb0, 0x17, 0x00, 0x01, 0xc1, 0x00, 0x00, 0xe1, 0x00, 0xf0, 0x00,
+                0x1b, 0xe0 | (VIDEO_PID >> 8), VIDEO_PID & 0xff, 0xf0, 0x00,
+                0x0f, 0xe0 | (AUDIO_PID >> 8), AUDIO_PID & 0xff, 0xf0, 0x00);
+        return packet;
+    }
+
+    /**
+     * PESの先頭とアクセスユニットの区切りのNALの後にスライスのNALを置く
+     */
+    private static byte[] video(int nalHeader, boolean isRandomAccess) {
+        byte[] packet = header(VIDEO_PID, true);
+        int offset = 4;
+        if (isRandomAccess) {
+            packet[3] = 0x30;
+            put(packet, 4, 0x01, 0x40);
+            offset = 6;
+        }
+        put(packet, offset, 0x00, 0x00, 0x01, 0xe0, 0x00, 0x00, 0x80, 0x80, 0x05, 0x21, 0x00, 0x01, 0x00, 0x01,
+                0x00, 0x00, 0x00, 0x01, 0x09, 0xf0, 0x00, 0x00, 0x00, 0x01, nalHeader);
+        return packet;
+    }
+
+    private static byte[] audio(boolean isUnitStart) {
+        byte[] packet = header(AUDIO_PID, isUnitStart);
+        put(packet, 4, 0x00, 0x00, 0x01, 0xc0);
+        return packet;
+    }
+
+    private static void put(byte[] packet, int offset, int... values) {
+        for (int i = 0; i < values.length; i++) {
+            packet[offset + i] = (byte) values[i];
+        }
+    }
+
+    private final LiveSender.Transport mTransport = new LiveSender.Transport() {
+        @Override
+        public void send(byte[] data, int length) {
+            synchronized (mDatagrams) {
+                mDatagrams.add(Arrays.copyOf(data, length));
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+}
@@ -0,0 +1,130 @@
+package com.unuuu.sample;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 最後に残したフレームと比べて動きのないフレームを外し、動き始めと動き終わりを伝えることを確かめる
+ */
+public class MotionDetectorTest {
+    /* 8ピクセルおきに間引くと4x2の点になり、1点変わると125‰になる */
+    private static final int WIDTH = 32;
+    private static final int HEIGHT = 16;
+    private static final int STEP = 8;
+    private static final int PIXEL_DELTA = 24;
+    private static final int THRESHOLD = 100;
+    private static final int HOLD_FRAMES = 2;
+
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Test
+    public void keepsFirstFrameAndSkipsStaticFrames() throws Exception {
+        MotionDetector detector = create(Long.MAX_VALUE);
+        byte[] frame = frame(100, 100);
+
+        assertTrue(detector.shouldKeep(frame, 0));
+        assertFalse(detector.shouldKeep(frame, 1));
+        assertFalse(detector.shouldKeep(frame, 2));
+        assertEquals(3, detector.getFrameCount());
+        assertEquals(2, detector.getSkippedFrameCount());
+        assertTrue(mEvents.isEmpty());
+    }
+
+    @Test
+    public void reportsMotionAndKeepsFramesUntilHoldEnds() throws Exception {
+        MotionDetector detector = create(Long.MAX_VALUE);
+        byte[] still = frame(100, 100);
+        byte[] moved = frame(100, 200);
+
+        assertTrue(detector.shouldKeep(still, 0));
+        assertTrue(detector.shouldKeep(moved, 10));
+        assertEquals(125, detector.getLastScore());
+        assertTrue(detector.isMoving());
+        // 止まってからも指定したフレーム数は残す
+        assertTrue(detector.shouldKeep(moved, 20));
+        assertTrue(detector.shouldKeep(moved, 30));
+        assertFalse(detector.shouldKeep(moved, 40));
+        assertFalse(detector.isMoving());
+
+        assertEquals(Arrays.asList("start 10 125", "end 40 30"), mEvents);
+        assertEquals(1, detector.getMotionCount());
+        assertEquals(1, detector.getSkippedFrameCount());
+    }
+
+    @Test
+    public void keepsStaticFramesAtInterval() throws Exception {
+        MotionDetector detector = create(100);
+        byte[] frame = frame(100, 100);
+
+        assertTrue(detector.shouldKeep(frame, 0));
+        assertFalse(detector.shouldKeep(frame, 50));
+        assertTrue(detector.shouldKeep(frame, 100));
+        assertFalse(detector.shouldKeep(frame, 150));
+        assertTrue(detector.shouldKeep(frame, 200));
+        assertTrue(mEvents.isEmpty());
+    }
+
+    @Test
+    public void accumulatesSlowChangeSinceLastKeptFrame() throws Exception {
+        MotionDetector detector = create(Long.MAX_VALUE);
+
+        assertTrue(detector.shouldKeep(frame(100, 100), 0));
+        // 1フレームずつでは閾値に届かないが、残したフレームからの差は溜まる
+        assertFalse(detector.shouldKeep(frame(100, 110), 1));
+        assertFalse(detector.shouldKeep(frame(100, 120), 2));
+        assertTrue(detector.shouldKeep(frame(100, 130), 3));
+        assertEquals(Arrays.asList("start 3 125"), mEvents);
+    }
+
+    @Test
+    public void averagesNeighbouringPixels() throws Exception {
+        MotionDetector detector = create(Long.MAX_VALUE);
+        byte[] frame = frame(100, 100);
+
+        assertTrue(detector.shouldKeep(frame, 0));
+        // 2x2の1ピクセルだけの変化は平均すると小さい
+        frame[0] = (byte) 180;
+        assertFalse(detector.shouldKeep(frame, 1));
+        assertEquals(0, detector.getLastScore());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStepSmallerThanAveragedBlock() throws Exception {
+        new MotionDetector(WIDTH, HEIGHT, 1, PIXEL_DELTA, THRESHOLD, HOLD_FRAMES, 0);
+    }
+
+    private MotionDetector create(long staticIntervalNanos) {
+        MotionDetector detector = new MotionDetector(WIDTH, HEIGHT, STEP, PIXEL_DELTA, THRESHOLD, HOLD_FRAMES,
+                staticIntervalNanos);
+        detector.setListener(new MotionDetector.Listener() {
+            @Override
+            public void onMotionStart(long captureNanos, int score) {
+                mEvents.add("start " + captureNanos + " " + score);
+            }
+
+            @Override
+            public void onMotionEnd(long captureNanos, long durationNanos) {
+                mEvents.add("end " + captureNanos + " " + durationNanos);
+            }
+        });
+        return detector;
+    }
+
+    /**
+     * 左上の8x8だけ輝度を変えたNV21のデータを作る
+     */
+    private static byte[] frame(int luma, int cornerLuma) {
+        byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+        Arrays.fill(data, 0, WIDTH * HEIGHT, (byte) luma);
+        Arrays.fill(data, WIDTH * HEIGHT, data.length, (byte) 128);
+        for (int y = 0; y < STEP; y++) {
+            Arrays.fill(data, y * WIDTH, y * WIDTH + STEP, (byte) cornerLuma);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,145 @@
+package com.unuuu.sample;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Nv21CropperTest {
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    @Test
+    public void cropsCenterSquareWithoutRotation() throws Exception {
+        // 6x2のY面と6x1のVU面から中央の2x2を切り抜く
+        byte[] src = {
+                0, 1, 2, 3, 4, 5,
+                6, 7, 8, 9, 10, 11,
+                20, 21, 22, 23, 24, 25
+        };
+        Nv21Cropper cropper = new Nv21Cropper(6, 2, 2, 2, 0, false);
+        assertArrayEquals(new byte[]{2, 3, 8, 9, 22, 23}, crop(cropper, src));
+    }
+
+    @Test
+    public void rotatesQuarterTurnClockwise() throws Exception {
+        byte[] src = {
+                1, 2,
+                3, 4,
+                10, 11
+        };
+        Nv21Cropper cropper = new Nv21Cropper(2, 2, 2, 2, 90, false);
+        assertArrayEquals(new byte[]{3, 1, 4, 2, 10, 11}, crop(cropper, src));
+    }
+
+    @Test
+    public void matchesReferenceForAllRotationsAndMirroring() throws Exception {
+        int[][] sizes = {{16, 10, 10, 10}, {10, 16, 10, 10}, {640, 480, 480, 480}, {24, 18, 12, 8}, {6, 4, 2, 2}};
+        Random random = new Random(1);
+        for (int[] size : sizes) {
+            byte[] src = new byte[size[0] * size[1] * 3 / 2];
+            random.nextBytes(src);
+            for (int rotation : ROTATIONS) {
+                for (boolean mirror : new boolean[]{false, true}) {
+                    Nv21Cropper cropper = new Nv21Cropper(size[0], size[1], size[2], size[3], rotation, mirror);
+                    byte[] expected = reference(src, size[0], size[1], size[2], size[3], rotation, mirror);
+                    assertArrayEquals(size[0] + "x" + size[1] + " rotation=" + rotation + " mirror=" + mirror,
+                            expected, crop(cropper, src));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void swapsOutputSizeWhenTransposed() throws Exception {
+        Nv21Cropper cropper = new Nv21Cropper(640, 480, 400, 300, 270, false);
+        assertEquals(300, cropper.getOutputWidth());
+        assertEquals(400, cropper.getOutputHeight());
+        assertEquals(300 * 400 * 3 / 2, cropper.getOutputSize());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnsupportedRotation() throws Exception {
+        new Nv21Cropper(640, 480, 480, 480, 45, false);
+    }
+
+    private static byte[] crop(Nv21Cropper cropper, byte[] src) {
+        ByteBuffer dst = ByteBuffer.allocateDirect(cropper.getOutputSize() + 16);
+        cropper.crop(src, dst);
+        assertEquals(cropper.getOutputSize(), dst.remaining());
+        byte[] result = new byte[dst.remaining()];
+        dst.get(result);
+        return result;
+    }
+
+    /**
+     * 1画素ずつ座標を変換する素直な実装
+     */
+    private static byte[] reference(byte[] src, int srcWidth, int srcHeight, int cropWidth, int cropHeight,
+                                    int rotation, boolean mirror) {
+        cropWidth &= ~1;
+        cropHeight &= ~1;
+        int cropX = ((srcWidth - cropWidth) / 2) & ~1;
+        int cropY = ((srcHeight - cropHeight) / 2) & ~1;
+        boolean transposed = rotation == 90 || rotation == 270;
+        int outWidth = transposed ? cropHeight : cropWidth;
+        int outHeight = transposed ? cropWidth : cropHeight;
+        byte[] out = new byte[outWidth * outHeight * 3 / 2];
+
+        for (int y = 0; y < cropHeight; y++) {
+            for (int x = 0; x < cropWidth; x++) {
+                int[] o = transform(x, y, cropWidth, cropHeight, rotation, mirror);
+                out[o[1] * outWidth + o[0]] = src[(cropY + y) * srcWidth + cropX + x];
+            }
+        }
+
+        int chromaSrc = srcWidth * srcHeight;
+        int chromaOut = outWidth * outHeight;
+        for (int y = 0; y < cropHeight / 2; y++) {
+            for (int x = 0; x < cropWidth / 2; x++) {
+                int[] o = transform(x, y, cropWidth / 2, cropHeight / 2, rotation, mirror);
+                int from = chromaSrc + (cropY / 2 + y) * srcWidth + cropX + x * 2;
+                int to = chromaOut + o[1] * outWidth + o[0] * 2;
+                out[to] = src[from];
+                out[to + 1] = src[from + 1];
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 切り抜き範囲の中の位置を時計回りに回転させてから左右反転した位置
+     */
+    private static int[] transform(int x, int y, int width, int height, int rotation, boolean mirror) {
+        int ox;
+        int oy;
+        int outWidth;
+        switch (rotation) {
+            case 90:
+                ox = height - 1 - y;
+                oy = x;
+                outWidth = height;
+                break;
+            case 180:
+                ox = width - 1 - x;
+                oy = height - 1 - y;
+                outWidth = width;
+                break;
+            case 270:
+                ox = y;
+                oy = width - 1 - x;
+                outWidth = height;
+                break;
+            default:
+                ox = x;
+                oy = y;
+                outWidth = width;
+                break;
+        }
+        if (mirror) {
+            ox = outWidth - 1 - ox;
+        }
+        return new int[]{ox, oy};
+    }
+}
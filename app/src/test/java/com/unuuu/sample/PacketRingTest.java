@@ -0,0 +1,182 @@
+package com.unuuu.sample;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PacketRingTest {
+    private static final long FRAME_MICROS = 33333;
+    private static final int GOP_SIZE = 30;
+
+    @Test
+    public void drainStartsAtFirstVideoKeyFrame() {
+        PacketRing ring = new PacketRing(1024, 16, 0);
+        write(ring, PacketRing.TRACK_AUDIO, 0, false, 4);
+        write(ring, PacketRing.TRACK_VIDEO, 0, false, 8);
+        write(ring, PacketRing.TRACK_AUDIO, 20000, false, 4);
+        write(ring, PacketRing.TRACK_VIDEO, 33333, true, 16);
+        write(ring, PacketRing.TRACK_AUDIO, 23000, false, 4);
+        write(ring, PacketRing.TRACK_AUDIO, 43000, false, 4);
+        write(ring, PacketRing.TRACK_VIDEO, 66666, false, 8);
+
+        List<Packet> packets = drain(ring);
+
+        assertEquals(3, packets.size());
+        assertPacket(packets.get(0), PacketRing.TRACK_VIDEO, 33333, true, 16);
+        assertPacket(packets.get(1), PacketRing.TRACK_AUDIO, 43000, false, 4);
+        assertPacket(packets.get(2), PacketRing.TRACK_VIDEO, 66666, false, 8);
+        assertEquals(0, ring.getPacketCount());
+        assertEquals(0, ring.getUsedBytes());
+    }
+
+    @Test
+    public void drainWithoutKeyFrameWritesNothing() {
+        PacketRing ring = new PacketRing(1024, 16, 0);
+        write(ring, PacketRing.TRACK_VIDEO, 0, false, 8);
+        write(ring, PacketRing.TRACK_AUDIO, 0, false, 4);
+
+        assertEquals(0, drain(ring).size());
+        assertEquals(0, ring.getDuration());
+    }
+
+    @Test
+    public void usedBytesNeverExceedCapacity() {
+        int capacity = 1000;
+        PacketRing ring = new PacketRing(capacity, 64, 0);
+        for (int i = 0; i < 1000; i++) {
+            // 大きさをばらばらにして末尾の余りと先頭に戻る場合を通す
+            int size = 10 + (i * 37) % 190;
+            assertTrue(ring.write(PacketRing.TRACK_VIDEO, packet(i, size), i * FRAME_MICROS, i % GOP_SIZE == 0));
+            assertTrue(ring.getUsedBytes() <= capacity);
+        }
+        assertTrue(ring.getHighWaterMark() <= capacity);
+        assertTrue(ring.getEvictedCount() > 0);
+    }
+
+    @Test
+    public void wrappedPacketsKeepTheirData() {
+        PacketRing ring = new PacketRing(100, 16, 0);
+        for (int i = 0; i < 50; i++) {
+            ring.write(PacketRing.TRACK_VIDEO, packet(i, 30), i * FRAME_MICROS, true);
+        }
+
+        List<Packet> packets = drain(ring);
+
+        assertEquals(3, packets.size());
+        for (int i = 0; i < packets.size(); i++) {
+            Packet packet = packets.get(i);
+            int index = 47 + i;
+            assertEquals(index * FRAME_MICROS, packet.mTimestamp);
+            assertArrayEquals(packet(index, 30).array(), packet.mData);
+        }
+    }
+
+    @Test
+    public void packetLargerThanCapacityIsRejected() {
+        PacketRing ring = new PacketRing(100, 16, 0);
+        write(ring, PacketRing.TRACK_VIDEO, 0, true, 50);
+
+        assertFalse(ring.write(PacketRing.TRACK_VIDEO, packet(1, 101), FRAME_MICROS, true));
+        assertEquals(1, ring.getRejectedCount());
+        assertEquals(1, ring.getPacketCount());
+    }
+
+    @Test
+    public void packetCountLimitEvictsOldest() {
+        PacketRing ring = new PacketRing(1024, 4, 0);
+        for (int i = 0; i < 6; i++) {
+            write(ring, PacketRing.TRACK_VIDEO, i * FRAME_MICROS, true, 8);
+        }
+
+        assertEquals(4, ring.getPacketCount());
+        assertEquals(2, ring.getEvictedCount());
+        assertEquals(2 * FRAME_MICROS, drain(ring).get(0).mTimestamp);
+    }
+
+    @Test
+    public void durationTrimKeepsAtLeastDurationFromKeyFrame() {
+        long maxDuration = 2000000;
+        PacketRing ring = new PacketRing(1 << 20, 1024, maxDuration);
+        for (int i = 0; i < 300; i++) {
+            write(ring, PacketRing.TRACK_VIDEO, i * FRAME_MICROS, i % GOP_SIZE == 0, 100);
+            write(ring, PacketRing.TRACK_AUDIO, i * FRAME_MICROS + 1000, false, 10);
+
+            long duration = ring.getDuration();
+            if (i * FRAME_MICROS >= maxDuration) {
+                // 区切りのキーフレームまで残すので1つのGOPの分だけ長くなることがある
+                assertTrue(duration >= maxDuration);
+                assertTrue(duration < maxDuration + GOP_SIZE * FRAME_MICROS);
+            }
+        }
+
+        List<Packet> packets = drain(ring);
+
+        assertTrue(packets.get(0).mIsKeyFrame);
+        assertEquals(PacketRing.TRACK_VIDEO, packets.get(0).mTrack);
+        assertEquals(0, packets.get(0).mTimestamp % (GOP_SIZE * FRAME_MICROS));
+        for (Packet packet : packets) {
+            assertTrue(packet.mTimestamp >= packets.get(0).mTimestamp);
+        }
+    }
+
+    @Test
+    public void evictionWithoutDurationStillStartsAtKeyFrame() {
+        PacketRing ring = new PacketRing(1000, 1024, 0);
+        for (int i = 0; i < 100; i++) {
+            write(ring, PacketRing.TRACK_VIDEO, i * FRAME_MICROS, i % 10 == 0, i % 10 == 0 ? 100 : 20);
+        }
+
+        List<Packet> packets = drain(ring);
+
+        assertTrue(packets.get(0).mIsKeyFrame);
+        assertEquals(99 * FRAME_MICROS, packets.get(packets.size() - 1).mTimestamp);
+    }
+
+    private static void write(PacketRing ring, int track, long timestamp, boolean isKeyFrame, int size) {
+        assertTrue(ring.write(track, packet((int) timestamp, size), timestamp, isKeyFrame));
+    }
+
+    private static ByteBuffer packet(int seed, int size) {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            data.put((byte) (seed + i));
+        }
+        data.flip();
+        return data;
+    }
+
+    private static List<Packet> drain(PacketRing ring) {
+        List<Packet> packets = new ArrayList<>();
+        ring.drainTo((track, data, timestamp, isKeyFrame) -> {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            packets.add(new Packet(track, bytes, timestamp, isKeyFrame));
+        });
+        return packets;
+    }
+
+    private static void assertPacket(Packet packet, int track, long timestamp, boolean isKeyFrame, int size) {
+        assertEquals(track, packet.mTrack);
+        assertEquals(timestamp, packet.mTimestamp);
+        assertEquals(isKeyFrame, packet.mIsKeyFrame);
+        assertEquals(size, packet.mData.length);
+    }
+
+    private static class Packet {
+        private final int mTrack;
+        private final byte[] mData;
+        private final long mTimestamp;
+        private final boolean mIsKeyFrame;
+
+        Packet(int track, byte[] data, long timestamp, boolean isKeyFrame) {
+            mTrack = track;
+            mData = data;
+            mTimestamp = timestamp;
+            mIsKeyFrame = isKeyFrame;
+        }
+    }
+}
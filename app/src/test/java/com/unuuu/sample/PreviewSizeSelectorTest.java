@@ -0,0 +1,53 @@
+package com.unuuu.sample;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PreviewSizeSelectorTest {
+    private static final PreviewSizeSelector.SizeAccessor<int[]> ACCESSOR = new PreviewSizeSelector.SizeAccessor<int[]>() {
+        @Override
+        public int getWidth(int[] size) {
+            return size[0];
+        }
+
+        @Override
+        public int getHeight(int[] size) {
+            return size[1];
+        }
+    };
+
+    @Test
+    public void selectsClosestHeightWithSameRatio() {
+        List<int[]> sizes = Arrays.asList(new int[]{1920, 1080}, new int[]{1280, 720}, new int[]{640, 480},
+                new int[]{854, 480});
+
+        assertArrayEquals(new int[]{854, 480}, PreviewSizeSelector.getOptimalSize(sizes, 800, 450, ACCESSOR));
+    }
+
+    @Test
+    public void fallsBackToAllSizesWhenNoRatioMatches() {
+        List<int[]> sizes = Arrays.asList(new int[]{1920, 1080}, new int[]{640, 480}, new int[]{800, 600});
+
+        assertArrayEquals(new int[]{640, 480}, PreviewSizeSelector.getOptimalSize(sizes, 480, 480, ACCESSOR));
+    }
+
+    @Test
+    public void keepsFirstCandidateEvenWhenSmaller() {
+        // 最初の候補は大きさを比べずに選ぶので、それより大きくて高さが遠いサイズには替わらない
+        List<int[]> sizes = Arrays.asList(new int[]{320, 240}, new int[]{1920, 1440});
+
+        assertArrayEquals(new int[]{320, 240}, PreviewSizeSelector.getOptimalSize(sizes, 640, 480, ACCESSOR));
+    }
+
+    @Test
+    public void emptyOrNullListReturnsNull() {
+        assertNull(PreviewSizeSelector.getOptimalSize(null, 640, 480, ACCESSOR));
+        assertNull(PreviewSizeSelector.getOptimalSize(Collections.<int[]>emptyList(), 640, 480, ACCESSOR));
+        assertEquals(-1, PreviewSizeSelector.indexOfOptimalSize(Collections.<int[]>emptyList(), 640, 480, ACCESSOR));
+    }
+}
@@ -0,0 +1,224 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 端末やエンコーダーなしで、録画のパイプラインがレコーダーに渡す内容を確かめる
+ */
+public class RecordPipelineTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 8;
+    private static final int FRAME_COUNT = 30;
+    private static final int AUDIO_BUFFER_SIZE = 256;
+    private static final int AUDIO_READS_PER_CHUNK = 4;
+    private static final double FRAME_RATE = 30;
+
+    private FakeRecorder mRecorder;
+    private FramePool mPool;
+    private SpscRingBuffer<PooledFrame> mFrameQueue;
+    private FakeAudioReader mAudioReader;
+    private final List<Exception> mErrors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mRecorder = new FakeRecorder();
+        mRecorder.setFrameRate(FRAME_RATE);
+        mRecorder.setSampleRate(44100);
+        mPool = new FramePool(WIDTH, HEIGHT, FRAME_COUNT);
+        mFrameQueue = new SpscRingBuffer<>(FRAME_COUNT, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        mAudioReader = new FakeAudioReader();
+    }
+
+    @Test
+    public void recordsEveryQueuedFrameInOrderWithTimestamps() throws Exception {
+        RecordPipeline pipeline = createPipeline();
+        pipeline.start();
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            PooledFrame frame = mPool.acquire();
+            ((ByteBuffer) frame.getFrame().image[0]).put(0, (byte) i);
+            frame.setTimestamp(frameMicros(i));
+            frame.setCaptureNanos(System.nanoTime());
+            assertNull(mFrameQueue.offer(frame));
+        }
+        pipeline.stop();
+
+        assertTrue(mErrors.isEmpty());
+        assertEquals(FRAME_COUNT, mRecorder.mVideoTimestamps.size());
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            assertEquals(frameMicros(i), (long) mRecorder.mVideoTimestamps.get(i));
+            assertEquals((byte) i, (byte) (int) mRecorder.mVideoMarkers.get(i));
+        }
+        assertEquals(FRAME_COUNT, pipeline.getEncodedFrameCount());
+        assertEquals(0, mPool.getInUseCount());
+    }
+
+    @Test
+    public void recordsFilteredFrames() throws Exception {
+        RecordPipeline pipeline = createPipeline();
+        VideoFilterChain chain = new VideoFilterChain(WIDTH, HEIGHT, Arrays.asList(
+                new BrightnessContrastFilter(10, 1f), new ScaleFilter(WIDTH / 2, HEIGHT / 2)));
+        pipeline.setFilterChain(chain);
+        pipeline.start();
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            PooledFrame frame = mPool.acquire();
+            ByteBuffer image = (ByteBuffer) frame.getFrame().image[0];
+            for (int j = 0; j < image.capacity(); j++) {
+                image.put(j, (byte) i);
+            }
+            frame.setTimestamp(frameMicros(i));
+            frame.setCaptureNanos(System.nanoTime());
+            assertNull(mFrameQueue.offer(frame));
+        }
+        pipeline.stop();
+
+        assertTrue(mErrors.isEmpty());
+        assertEquals(FRAME_COUNT, mRecorder.mVideoTimestamps.size());
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            assertEquals(frameMicros(i), (long) mRecorder.mVideoTimestamps.get(i));
+            assertEquals((byte) (i + 10), (byte) (int) mRecorder.mVideoMarkers.get(i));
+        }
+        assertEquals(FRAME_COUNT, chain.getTotalLatency().getCount());
+        assertEquals(0, mPool.getInUseCount());
+        assertEquals(0, pipeline.getFilterOutputPool().getInUseCount());
+    }
+
+    @Test
+    public void recordsEveryAudioSampleRead() throws Exception {
+        RecordPipeline pipeline = createPipeline();
+        pipeline.start();
+        Thread.sleep(50);
+        pipeline.stop();
+
+        assertTrue(mErrors.isEmpty());
+        assertTrue(mAudioReader.mSampleCount > 0);
+        assertEquals(0, pipeline.getAudioOverrunCount());
+        assertEquals(mAudioReader.mSampleCount, mRecorder.mAudioSampleCount);
+    }
+
+    @Test
+    public void batchesReadsIntoOneRecordCallInOrder() throws Exception {
+        RecordPipeline pipeline = createPipeline();
+        pipeline.start();
+        Thread.sleep(50);
+        pipeline.stop();
+
+        assertTrue(mErrors.isEmpty());
+        assertTrue(mAudioReader.mSampleCount > AUDIO_BUFFER_SIZE * AUDIO_READS_PER_CHUNK);
+        // 止めた時の途中までの分を除き、全てまとめて書き込まれる
+        int chunkSamples = AUDIO_BUFFER_SIZE * AUDIO_READS_PER_CHUNK;
+        assertEquals((mAudioReader.mSampleCount + chunkSamples - 1) / chunkSamples, pipeline.getAudioRecordCount());
+        assertEquals(pipeline.getAudioRecordCount(), mRecorder.mAudioRecordCount);
+        assertTrue(mRecorder.mIsAudioInOrder);
+        assertEquals(0, pipeline.getDroppedAudioSampleCount());
+    }
+
+    @Test
+    public void timestamperCountsAudioSamples() throws Exception {
+        RecordTimestamper timestamper = new RecordTimestamper(MediaClock.SYSTEM, FRAME_RATE, 44100);
+        timestamper.start();
+        RecordPipeline pipeline = createPipeline();
+        pipeline.setTimestamper(timestamper);
+        pipeline.start();
+        Thread.sleep(50);
+        pipeline.stop();
+
+        assertEquals(mAudioReader.mSampleCount * 1000000L / 44100, timestamper.getAudioTimestamp());
+    }
+
+    private RecordPipeline createPipeline() {
+        return new RecordPipeline(mRecorder, mFrameQueue, mAudioReader,
+                new AudioBufferPool(AUDIO_BUFFER_SIZE, AUDIO_READS_PER_CHUNK, 8),
+                WIDTH, HEIGHT, WIDTH, HEIGHT, RecordPipeline.CropEngine.JAVA, 0, false,
+                new RecordPipeline.Callback() {
+                    @Override
+                    public void onStageStarted(RecordPipeline.Stage stage) {
+                    }
+
+                    @Override
+                    public void onError(RecordPipeline.Stage stage, Exception e) {
+                        synchronized (mErrors) {
+                            mErrors.add(e);
+                        }
+                    }
+                });
+    }
+
+    private static long frameMicros(int frameIndex) {
+        return Math.round(frameIndex * 1e6 / FRAME_RATE);
+    }
+
+    /**
+     * AudioRecordと同じようにバッファが溜まるまで待ってから返す
+     * サンプルには読み込んだ順の番号を書き込む
+     */
+    private static class FakeAudioReader implements RecordPipeline.AudioReader {
+        private long mSampleCount = 0;
+
+        @Override
+        public int read(ByteBuffer buffer, int sizeInBytes) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                return 0;
+            }
+            int length = sizeInBytes / AudioBufferPool.BYTES_PER_SAMPLE;
+            for (int i = 0; i < length; i++) {
+                buffer.putShort(i * AudioBufferPool.BYTES_PER_SAMPLE, (short) (mSampleCount + i));
+            }
+            mSampleCount += length;
+            return sizeInBytes;
+        }
+    }
+
+    /**
+     * 書き込まれた内容を記録するレコーダー
+     * タイムスタンプはFFmpegFrameRecorderと同じようにフレーム毎に1フレーム分進む
+     */
+    private static class FakeRecorder extends FrameRecorder {
+        private final List<Long> mVideoTimestamps = new ArrayList<>();
+        private final List<Integer> mVideoMarkers = new ArrayList<>();
+        private long mAudioSampleCount = 0;
+        private long mAudioRecordCount = 0;
+        private boolean mIsAudioInOrder = true;
+
+        @Override
+        public void start() throws Exception {
+        }
+
+        @Override
+        public void stop() throws Exception {
+        }
+
+        @Override
+        public void record(Frame frame) throws Exception {
+            if (frame.image != null) {
+                mVideoTimestamps.add(getTimestamp());
+                mVideoMarkers.add((int) ((ByteBuffer) frame.image[0]).get(0));
+                setTimestamp(getTimestamp() + Math.round(1e6 / getFrameRate()));
+            }
+            if (frame.samples != null) {
+                ShortBuffer samples = (ShortBuffer) frame.samples[0];
+                for (int i = samples.position(); i < samples.limit(); i++) {
+                    mIsAudioInOrder &= samples.get(i) == (short) (mAudioSampleCount + i - samples.position());
+                }
+                mAudioSampleCount += samples.remaining();
+                mAudioRecordCount += 1;
+            }
+        }
+
+        @Override
+        public void release() throws Exception {
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.unuuu.sample;
+
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * 端末やエンコーダーなしで、セッションに配ったフレームと音声がそれぞれのレコーダーに届くことを確かめる
+ */
+public class RecordSessionManagerTest {
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 8;
+    private static final int FRAME_COUNT = 10;
+
+    private FramePool mPool;
+    private final List<Exception> mErrors = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mPool = new FramePool(WIDTH, HEIGHT, FRAME_COUNT);
+    }
+
+    @Test
+    public void releasedFrameReturnsToPoolAfterLastReference() {
+        PooledFrame frame = mPool.acquire();
+        frame.retain();
+        frame.release();
+        assertEquals(1, mPool.getInUseCount());
+
+        frame.release();
+        assertEquals(0, mPool.getInUseCount());
+        assertEquals(1, mPool.acquire().getRefCount());
+    }
+
+    @Test
+    public void everySessionRecordsTheSameFrames() throws Exception {
+        FakeRecorder first = new FakeRecorder(WIDTH, HEIGHT, null);
+        FakeRecorder second = new FakeRecorder(WIDTH, HEIGHT, null);
+        RecordSessionManager manager = createManager();
+        manager.addSession("first", first, FRAME_COUNT);
+        manager.addSession("second", second, FRAME_COUNT);
+        manager.start();
+
+        List<ByteBuffer> images = new ArrayList<>();
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            PooledFrame frame = acquire(i);
+            images.add((ByteBuffer) frame.getFrame().image[0]);
+            manager.offerFrame(frame);
+            frame.release();
+        }
+        manager.stop();
+
+        assertTrue(mErrors.isEmpty());
+        for (FakeRecorder recorder : new FakeRecorder[]{first, second}) {
+            assertEquals(FRAME_COUNT, recorder.mMarkers.size());
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                assertEquals(i, (int) recorder.mMarkers.get(i));
+                // 同じ大きさの時はコピーせずに、同じメモリを指す別のバッファで書き込む
+                ByteBuffer recorded = recorder.mImages.get(i);
+                assertNotSame(images.get(i), recorded);
+                images.get(i).put(1, (byte) 42);
+                assertEquals(42, recorded.get(1));
+            }
+        }
+        // レコーダーが読み進めても元のフレームのpositionは変わらない
+        for (ByteBuffer image : images) {
+            assertEquals(0, image.position());
+        }
+        assertEquals(FRAME_COUNT, manager.getSessions().get(0).getEncodedFrameCount());
+        assertEquals(0, mPool.getInUseCount());
+    }
+
+    @Test
+    public void smallerSessionRecordsCenterCrop() throws Exception {
+        FakeRecorder recorder = new FakeRecorder(4, 4, null);
+        RecordSessionManager manager = createManager();
+        manager.addSession("crop", recorder, FRAME_COUNT);
+        manager.start();
+
+        PooledFrame frame = mPool.acquire();
+        ByteBuffer data = (ByteBuffer) frame.getFrame().image[0];
+        for (int i = 0; i < WIDTH * HEIGHT * 3 / 2; i++) {
+            data.put(i, (byte) i);
+        }
+        manager.offerFrame(frame);
+        frame.release();
+        manager.stop();
+
+        assertTrue(mErrors.isEmpty());
+        assertEquals(1, recorder.mMarkers.size());
+        // 8x8の中央の4x4は(2, 2)から始まる
+        assertEquals(2 * WIDTH + 2, (int) recorder.mMarkers.get(0));
+        assertEquals(0, mPool.getInUseCount());
+    }
+
+    @Test
+    public void slowSessionDropsOldestWithoutBlockingOthers() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        FakeRecorder slow = new FakeRecorder(WIDTH, HEIGHT, blocked);
+        FakeRecorder fast = new FakeRecorder(WIDTH, HEIGHT, null);
+        RecordSessionManager manager = createManager();
+        manager.addSession("slow", slow, 2);
+        manager.addSession("fast", fast, FRAME_COUNT);
+        manager.start();
+
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            PooledFrame frame = acquire(i);
+            manager.offerFrame(frame);
+            frame.release();
+        }
+        // 遅いセッションが持っているフレームは最大でキューの分と書き込み中の1つ
+        assertTrue(mPool.getInUseCount() <= FRAME_COUNT);
+        blocked.countDown();
+        manager.stop();
+
+        assertTrue(mErrors.isEmpty());
+        assertEquals(FRAME_COUNT, fast.mMarkers.size());
+        RecordSession slowSession = manager.getSessions().get(0);
+        assertEquals(FRAME_COUNT, slowSession.getEncodedFrameCount() + slowSession.getDroppedFrameCount());
+        assertTrue(slowSession.getDroppedFrameCount() > 0);
+        // 捨てるのは古いフレームなので最後のフレームは書き込まれる
+        assertEquals(FRAME_COUNT - 1, (int) slow.mMarkers.get(slow.mMarkers.size() - 1));
+        assertEquals(0, mPool.getInUseCount());
+    }
+
+    @Test
+    public void audioIsCopiedToEverySession() throws Exception {
+        FakeRecorder first = new FakeRecorder(WIDTH, HEIGHT, null);
+        FakeRecorder second = new FakeRecorder(WIDTH, HEIGHT, null);
+        RecordSessionManager manager = createManager();
+        manager.addSession("first", first, FRAME_COUNT);
+        manager.addSession("second", second, FRAME_COUNT);
+        manager.start();
+
+        ShortBuffer samples = ShortBuffer.allocate(3000);
+        samples.position(100).limit(2900);
+        for (int i = 0; i < 5; i++) {
+            manager.offerAudio(samples);
+            assertEquals(100, samples.position());
+            assertEquals(2900, samples.limit());
+            Thread.sleep(1);
+        }
+        manager.stop();
+
+        assertTrue(mErrors.isEmpty());
+        assertEquals(5 * 2800, first.mAudioSampleCount);
+        assertEquals(5 * 2800, second.mAudioSampleCount);
+    }
+
+    @Test
+    public void captureTimeIsPassedBeforeEachFrame() throws Exception {
+        CaptureTimeRecorder recorder = new CaptureTimeRecorder(WIDTH, HEIGHT);
+        RecordSessionManager manager = createManager();
+        manager.addSession("live", recorder, FRAME_COUNT);
+        manager.start();
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            PooledFrame frame = acquire(i);
+            frame.setCaptureNanos(1000L + i);
+            manager.offerFrame(frame);
+            frame.release();
+            Thread.sleep(1);
+        }
+        manager.stop();
+
+        assertTrue(mErrors.isEmpty());
+        List<Integer> markers = ((FakeRecorder) recorder).mMarkers;
+        assertFalse(markers.isEmpty());
+        assertEquals(markers.size(), recorder.mRecordedCaptureNanos.size());
+        for (int i = 0; i < markers.size(); i++) {
+            assertEquals(1000L + markers.get(i), (long) recorder.mRecordedCaptureNanos.get(i));
+        }
+    }
+
+    private PooledFrame acquire(int marker) {
+        PooledFrame frame = mPool.acquire();
+        ((ByteBuffer) frame.getFrame().image[0]).put(0, (byte) marker);
+        frame.setTimestamp(marker * 33333L);
+        return frame;
+    }
+
+    private RecordSessionManager createManager() {
+        return new RecordSessionManager(WIDTH, HEIGHT, new RecordSessionManager.Callback() {
+            @Override
+            public void onSessionStarted(RecordSession session) {
+            }
+
+            @Override
+            public void onError(RecordSession session, Exception e) {
+                synchronized (mErrors) {
+                    mErrors.add(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 書き込まれた内容を記録するレコーダー
+     */
+    private static class FakeRecorder extends FrameRecorder {
+        private final CountDownLatch mBlocked;
+        private final List<ByteBuffer> mImages = new ArrayList<>();
+        private final List<Integer> mMarkers = new ArrayList<>();
+        private long mAudioSampleCount = 0;
+
+        /**
+         * @param blocked 最初のフレームの書き込みで待つラッチ、nullの時は待たない
+         */
+        FakeRecorder(int width, int height, CountDownLatch blocked) {
+            mBlocked = blocked;
+            setImageWidth(width);
+            setImageHeight(height);
+            setFrameRate(30);
+            setSampleRate(44100);
+        }
+
+        @Override
+        public void start() throws Exception {
+        }
+
+        @Override
+        public void stop() throws Exception {
+        }
+
+        @Override
+        public void record(Frame frame) throws Exception {
+            if (frame.image != null) {
+                if (mBlocked != null) {
+                    try {
+                        mBlocked.await();
+                    } catch (InterruptedException e) {
+                        throw new Exception(e.getMessage());
+                    }
+                }
+                ByteBuffer image = (ByteBuffer) frame.image[0];
+                mImages.add(image);
+                mMarkers.add(image.get(0) & 0xff);
+                // エンコーダーと同じように読んだ分だけpositionを進める
+                image.position(image.limit());
+            }
+            if (frame.samples != null) {
+                mAudioSampleCount += ((ShortBuffer) frame.samples[0]).remaining();
+            }
+        }
+
+        @Override
+        public void release() throws Exception {
+        }
+    }
+
+    /**
+     * 書き込む時に受け取っていた撮影の時刻も記録するレコーダー
+     */
+    private static class CaptureTimeRecorder extends FakeRecorder implements CaptureTimeAware {
+        private final List<Long> mRecordedCaptureNanos = new ArrayList<>();
+        private long mCaptureNanos = 0;
+
+        CaptureTimeRecorder(int width, int height) {
+            super(width, height, null);
+        }
+
+        @Override
+        public void setCaptureNanos(long captureNanos) {
+            mCaptureNanos = captureNanos;
+        }
+
+        @Override
+        public void record(Frame frame) throws Exception {
+            if (frame.image != null) {
+                mRecordedCaptureNanos.add(mCaptureNanos);
+            }
+            super.record(frame);
+        }
+    }
+}
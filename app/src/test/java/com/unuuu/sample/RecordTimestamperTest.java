@@ -0,0 +1,163 @@
+package com.unuuu.sample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RecordTimestamperTest {
+    private static final double FRAME_RATE = 30;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int AUDIO_BUFFER_SAMPLES = 1024;
+    private static final long FRAME_MICROS = Math.round(1e6 / FRAME_RATE);
+
+    private FakeClock mClock;
+    private RecordTimestamper mTimestamper;
+
+    @Before
+    public void setUp() throws Exception {
+        mClock = new FakeClock();
+        mClock.mNanos = 123456789L;
+        mTimestamper = new RecordTimestamper(mClock, FRAME_RATE, SAMPLE_RATE);
+        mTimestamper.start();
+    }
+
+    @Test
+    public void audioTimestampComesFromSampleCount() throws Exception {
+        assertEquals(0, mTimestamper.onAudioRead(AUDIO_BUFFER_SAMPLES));
+        assertEquals(AUDIO_BUFFER_SAMPLES * 1000000L / SAMPLE_RATE, mTimestamper.onAudioRead(AUDIO_BUFFER_SAMPLES));
+        assertEquals(2 * AUDIO_BUFFER_SAMPLES * 1000000L / SAMPLE_RATE, mTimestamper.getAudioTimestamp());
+    }
+
+    @Test
+    public void videoTimestampsSnapToFrameGrid() throws Exception {
+        long start = mClock.mNanos;
+        assertEquals(0, mTimestamper.onVideoFrame(start + 3000000L));
+        assertEquals(frameMicros(1), mTimestamper.onVideoFrame(start + 30000000L));
+        assertEquals(frameMicros(2), mTimestamper.onVideoFrame(start + 70000000L));
+    }
+
+    @Test
+    public void framesInSameSlotAreDropped() throws Exception {
+        long start = mClock.mNanos;
+        long previous = -1;
+        int emitted = 0;
+        // 60fpsで届くフレームは半分を捨てる
+        for (int i = 0; i < 600; i++) {
+            long timestamp = mTimestamper.onVideoFrame(start + i * 1000000000L / 60);
+            if (RecordTimestamper.DROP == timestamp) {
+                continue;
+            }
+            assertTrue(timestamp > previous);
+            previous = timestamp;
+            emitted += 1;
+        }
+        assertEquals(300, emitted);
+        assertEquals(300, mTimestamper.getDroppedFrameCount());
+        assertEquals(0, mTimestamper.getHeldFrameCount());
+    }
+
+    @Test
+    public void stallHoldsPreviousFrame() throws Exception {
+        long start = mClock.mNanos;
+        assertEquals(0, mTimestamper.onVideoFrame(start));
+        // 0.5秒フレームが来なかった
+        long timestamp = mTimestamper.onVideoFrame(start + 500000000L);
+        assertEquals(frameMicros(15), timestamp);
+        assertEquals(14, mTimestamper.getHeldFrameCount());
+        assertEquals(0, mTimestamper.getDroppedFrameCount());
+    }
+
+    @Test
+    public void skippedFramesAreNotCountedAsHeld() throws Exception {
+        long start = mClock.mNanos;
+        // 動きがないので10枚中9枚を外した
+        for (int i = 0; i < 10; i++) {
+            long timestamp = mTimestamper.onVideoFrame(start + i * 1000000000L / 30);
+            assertEquals(frameMicros(i), timestamp);
+            if (i % 10 != 0) {
+                mTimestamper.onVideoFrameSkipped();
+            }
+        }
+        assertEquals(frameMicros(10), mTimestamper.onVideoFrame(start + 10 * 1000000000L / 30));
+        assertEquals(9, mTimestamper.getSkippedFrameCount());
+        assertEquals(0, mTimestamper.getHeldFrameCount());
+        assertEquals(0, mTimestamper.getDroppedFrameCount());
+    }
+
+    @Test
+    public void avDriftStaysUnderOneFrameOverOneHour() throws Exception {
+        // マイクの時計が0.1%遅れる端末で、補正しないと1時間で3.6秒ずれる
+        assertMaxDriftUnderOneFrame(0.999, 3600);
+    }
+
+    @Test
+    public void avDriftStaysUnderOneFrameWithFastAudioClock() throws Exception {
+        assertMaxDriftUnderOneFrame(1.0005, 3600);
+    }
+
+    /**
+     * 音声の読み込みとカメラのフレームを時刻の順に流し、
+     * 各フレームのタイムスタンプと、同じ時刻に録音された音声のタイムスタンプの差を確かめる
+     *
+     * @param audioClockRatio 実際のサンプルレートと設定したサンプルレートの比
+     * @param seconds 録画する秒数
+     */
+    private void assertMaxDriftUnderOneFrame(double audioClockRatio, int seconds) {
+        Random random = new Random(1);
+        long start = mClock.mNanos;
+        double actualSampleRate = SAMPLE_RATE * audioClockRatio;
+        long end = start + seconds * 1000000000L;
+
+        long samplesRead = 0;
+        long nextAudioNanos = start + Math.round(AUDIO_BUFFER_SAMPLES * 1e9 / actualSampleRate);
+        int frameNumber = 0;
+        long nextVideoNanos = start;
+        long maxDriftMicros = 0;
+        long previousTimestamp = -1;
+
+        while (nextAudioNanos < end || nextVideoNanos < end) {
+            if (nextAudioNanos <= nextVideoNanos) {
+                // 読み込みはバッファが溜まってから最大2ms遅れて返る
+                mClock.mNanos = nextAudioNanos + random.nextInt(2000000);
+                mTimestamper.onAudioRead(AUDIO_BUFFER_SAMPLES);
+                samplesRead += AUDIO_BUFFER_SAMPLES;
+                nextAudioNanos = start + Math.round((samplesRead + AUDIO_BUFFER_SAMPLES) * 1e9 / actualSampleRate);
+            } else {
+                mClock.mNanos = nextVideoNanos;
+                long timestamp = mTimestamper.onVideoFrame(nextVideoNanos);
+                if (RecordTimestamper.DROP != timestamp) {
+                    assertTrue(timestamp > previousTimestamp);
+                    previousTimestamp = timestamp;
+
+                    // 最初の1秒は補正が落ち着くまでの時間として除く
+                    long elapsedNanos = nextVideoNanos - start;
+                    if (elapsedNanos > 1000000000L) {
+                        long audioMicros = Math.round(elapsedNanos * actualSampleRate / SAMPLE_RATE / 1000);
+                        maxDriftMicros = Math.max(maxDriftMicros, Math.abs(timestamp - audioMicros));
+                    }
+                }
+                // カメラは±3msの揺らぎで30fps
+                frameNumber += 1;
+                nextVideoNanos = start + Math.round(frameNumber * 1e9 / FRAME_RATE) + random.nextInt(6000000) - 3000000;
+            }
+        }
+
+        assertTrue("max drift " + maxDriftMicros + "us", maxDriftMicros < FRAME_MICROS);
+    }
+
+    private static long frameMicros(int frameIndex) {
+        return Math.round(frameIndex * 1e6 / FRAME_RATE);
+    }
+
+    private static class FakeClock implements MediaClock {
+        private long mNanos;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.unuuu.sample;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * 索引の最後の記録から後ろだけを読み、壊れたパケットの手前で切り詰めることを確かめる
+ */
+public class RecordingJournalTest {
+    private static final int PACKET = RecordingJournal.TS_PACKET_SIZE;
+
+    private File mFile;
+    private File mIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("journal", ".ts");
+        mIndex = RecordingJournal.getIndexFile(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        mIndex.delete();
+    }
+
+    @Test
+    public void truncatesTornPacketAfterLastCheckpoint() throws Exception {
+        RecordingJournal journal = new RecordingJournal(mFile);
+        appendPackets(2);
+        journal.checkpoint(66666L, 2);
+        appendPackets(2);
+        RecordingJournal.Checkpoint last = journal.checkpoint(133333L, 4);
+        appendPackets(3);
+        appendBytes(100);
+        journal.close();
+
+        RecordingJournal.Recovery recovery = RecordingJournal.recover(mFile);
+        assertEquals(4 * PACKET, recovery.getCheckpoint().getOffset());
+        assertEquals(133333L, recovery.getCheckpoint().getTimestamp());
+        assertEquals(4, recovery.getCheckpoint().getFrameCount());
+        assertEquals(last.getOffset(), recovery.getCheckpoint().getOffset());
+        // 記録より前は読まない
+        assertEquals(3 * PACKET + 100, recovery.getScannedBytes());
+        assertEquals(100, recovery.getDiscardedBytes());
+        assertEquals(7 * PACKET, recovery.getLength());
+        assertEquals(7 * PACKET, mFile.length());
+        assertFalse(mIndex.exists());
+        assertNull(RecordingJournal.recover(mFile));
+    }
+
+    @Test
+    public void truncatesAtFirstCorruptPacket() throws Exception {
+        RecordingJournal journal = new RecordingJournal(mFile);
+        appendPackets(1);
+        journal.checkpoint(0, 1);
+        appendPackets(2);
+        appendBytes(PACKET);
+        appendPackets(1);
+        journal.close();
+
+        RecordingJournal.Recovery recovery = RecordingJournal.recover(mFile);
+        assertEquals(3 * PACKET, recovery.getLength());
+        assertEquals(2 * PACKET, recovery.getDiscardedBytes());
+    }
+
+    @Test
+    public void skipsCheckpointWithBrokenCrc() throws Exception {
+        RecordingJournal journal = new RecordingJournal(mFile);
+        appendPackets(1);
+        journal.checkpoint(33333L, 1);
+        appendPackets(1);
+        journal.checkpoint(66666L, 2);
+        journal.close();
+
+        // 最後の記録のフレーム数を書き換える
+        RandomAccessFile index = new RandomAccessFile(mIndex, "rw");
+        try {
+            index.seek(index.length() - 5);
+            index.write(0x7f);
+        } finally {
+            index.close();
+        }
+
+        RecordingJournal.Recovery recovery = RecordingJournal.recover(mFile);
+        assertEquals(1, recovery.getCheckpoint().getFrameCount());
+        assertEquals(PACKET, recovery.getScannedBytes());
+        assertEquals(2 * PACKET, recovery.getLength());
+    }
+
+    @Test
+    public void scansWholeFileWithoutCheckpoint() throws Exception {
+        RecordingJournal journal = new RecordingJournal(mFile);
+        appendPackets(3);
+        appendBytes(10);
+        journal.close();
+
+        RecordingJournal.Recovery recovery = RecordingJournal.recover(mFile);
+        assertNull(recovery.getCheckpoint());
+        assertEquals(3 * PACKET + 10, recovery.getScannedBytes());
+        assertEquals(3 * PACKET, recovery.getLength());
+    }
+
+    @Test
+    public void finishDeletesIndex() throws Exception {
+        RecordingJournal journal = new RecordingJournal(mFile);
+        appendPackets(2);
+        journal.checkpoint(0, 1);
+        appendBytes(10);
+        journal.finish();
+
+        assertFalse(mIndex.exists());
+        assertNull(RecordingJournal.recover(mFile));
+        assertEquals(2 * PACKET + 10, mFile.length());
+    }
+
+    private void appendPackets(int count) throws IOException {
+        byte[] packet = new byte[PACKET];
+        packet[0] = 0x47;
+        FileOutputStream output = new FileOutputStream(mFile, true);
+        try {
+            for (int i = 0; i < count; i++) {
+                output.write(packet);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    private void appendBytes(int length) throws IOException {
+        FileOutputStream output = new FileOutputStream(mFile, true);
+        try {
+            output.write(new byte[length]);
+        } finally {
+            output.close();
+        }
+    }
+}
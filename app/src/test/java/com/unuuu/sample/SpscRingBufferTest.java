@@ -0,0 +1,141 @@
+package com.unuuu.sample;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SpscRingBufferTest {
+    private static final int HAMMER_COUNT = 1000000;
+
+    @Test
+    public void pollReturnsElementsInOrder() throws Exception {
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(3, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        assertNull(buffer.poll());
+        assertNull(buffer.offer(1));
+        assertNull(buffer.offer(2));
+        assertEquals(2, buffer.size());
+        assertEquals(Integer.valueOf(1), buffer.poll());
+        assertEquals(Integer.valueOf(2), buffer.poll());
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void dropNewestRejectsOfferedElement() throws Exception {
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(2, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        buffer.offer(1);
+        buffer.offer(2);
+        assertEquals(Integer.valueOf(3), buffer.offer(3));
+        assertEquals(1, buffer.getDroppedCount());
+        assertEquals(Integer.valueOf(1), buffer.poll());
+        assertEquals(Integer.valueOf(2), buffer.poll());
+    }
+
+    @Test
+    public void dropOldestEvictsHead() throws Exception {
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(3, SpscRingBuffer.BackpressurePolicy.DROP_OLDEST);
+        buffer.offer(1);
+        buffer.offer(2);
+        buffer.offer(3);
+        assertEquals(Integer.valueOf(1), buffer.offer(4));
+        assertEquals(1, buffer.getDroppedCount());
+        assertEquals(3, buffer.size());
+        assertEquals(Integer.valueOf(2), buffer.poll());
+        assertEquals(Integer.valueOf(3), buffer.poll());
+        assertEquals(Integer.valueOf(4), buffer.poll());
+    }
+
+    @Test
+    public void highWaterMarkTracksMaximumOccupancy() throws Exception {
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(5, SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        buffer.offer(1);
+        buffer.offer(2);
+        buffer.offer(3);
+        buffer.poll();
+        buffer.poll();
+        buffer.offer(4);
+        assertEquals(3, buffer.getHighWaterMark());
+    }
+
+    @Test
+    public void blockKeepsEveryElementAcrossThreads() throws Exception {
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(64, SpscRingBuffer.BackpressurePolicy.BLOCK);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+
+        Thread consumer = new Thread(() -> {
+            int expected = 0;
+            while (expected < HAMMER_COUNT) {
+                Integer value = buffer.poll();
+                if (value == null) {
+                    continue;
+                }
+                if (value != expected) {
+                    error.set(new AssertionError("expected " + expected + " but was " + value));
+                    return;
+                }
+                expected += 1;
+            }
+        });
+        consumer.start();
+
+        for (int i = 0; i < HAMMER_COUNT; i++) {
+            assertNull(buffer.offer(i));
+        }
+        consumer.join();
+
+        assertNull(error.get());
+        assertEquals(0, buffer.getDroppedCount());
+        assertTrue(buffer.getHighWaterMark() <= 64);
+    }
+
+    @Test
+    public void dropOldestNeverDuplicatesOrReordersAcrossThreads() throws Exception {
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(8, SpscRingBuffer.BackpressurePolicy.DROP_OLDEST);
+        boolean[] seen = new boolean[HAMMER_COUNT];
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        int[] received = new int[1];
+        Thread consumer = new Thread(() -> {
+            int last = -1;
+            while (true) {
+                Integer value = buffer.poll();
+                if (value == null) {
+                    continue;
+                }
+                if (value < 0) {
+                    return;
+                }
+                if (value <= last || seen[value]) {
+                    error.set(new AssertionError("out of order " + value + " after " + last));
+                    return;
+                }
+                seen[value] = true;
+                last = value;
+                received[0] += 1;
+            }
+        });
+        consumer.start();
+
+        int dropped = 0;
+        for (int i = 0; i < HAMMER_COUNT; i++) {
+            Integer evicted = buffer.offer(i);
+            if (evicted != null) {
+                if (seen[evicted]) {
+                    error.set(new AssertionError("evicted element was also consumed: " + evicted));
+                }
+                dropped += 1;
+            }
+        }
+        // 終端を示す要素は捨てられないように空くまで待つ
+        while (buffer.size() >= buffer.getCapacity()) {
+            Thread.yield();
+        }
+        buffer.offer(-1);
+        consumer.join();
+
+        assertNull(error.get());
+        assertEquals(dropped, buffer.getDroppedCount());
+        assertEquals(HAMMER_COUNT, received[0] + dropped);
+    }
+}
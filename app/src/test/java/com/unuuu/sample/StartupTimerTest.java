@@ -0,0 +1,110 @@
+package com.unuuu.sample;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StartupTimerTest {
+    private static final long MILLIS = 1000000L;
+
+    private FakeClock mClock;
+    private List<String> mEvents;
+    private StartupTimer.Listener mListener;
+
+    @Before
+    public void setUp() throws Exception {
+        mClock = new FakeClock();
+        mClock.mNanos = 5000 * MILLIS;
+        mEvents = new ArrayList<>();
+        mListener = new StartupTimer.Listener() {
+            @Override
+            public void onPhaseFinished(StartupTimer.Phase phase, long durationNanos) {
+                mEvents.add(phase + "=" + durationNanos / MILLIS);
+            }
+
+            @Override
+            public void onStartupFinished(long totalNanos, boolean isOverBudget) {
+                mEvents.add("total=" + totalNanos / MILLIS + (isOverBudget ? " over" : ""));
+            }
+        };
+    }
+
+    @Test
+    public void parallelPhasesAreMeasuredFromTheirOwnStart() throws Exception {
+        StartupTimer timer = new StartupTimer(mClock, 500 * MILLIS, mListener);
+        timer.start();
+
+        // ネイティブの読み込みとカメラを開くのを並行して行う
+        long cameraStart = timer.now();
+        mClock.mNanos += 120 * MILLIS;
+        timer.finishPhase(StartupTimer.Phase.OPEN_CAMERA, cameraStart);
+        mClock.mNanos += 30 * MILLIS;
+        timer.finishPhase(StartupTimer.Phase.LOAD_NATIVES, timer.getStartNanos());
+
+        long recorderStart = timer.now();
+        mClock.mNanos += 40 * MILLIS;
+        timer.finishPhase(StartupTimer.Phase.START_RECORDER, recorderStart);
+        mClock.mNanos += 60 * MILLIS;
+        timer.finishPhase(StartupTimer.Phase.FIRST_FRAME, timer.getStartNanos());
+        timer.finish();
+
+        assertEquals(120 * MILLIS, timer.getDurationNanos(StartupTimer.Phase.OPEN_CAMERA));
+        assertEquals(150 * MILLIS, timer.getDurationNanos(StartupTimer.Phase.LOAD_NATIVES));
+        assertEquals(40 * MILLIS, timer.getDurationNanos(StartupTimer.Phase.START_RECORDER));
+        assertEquals(-1, timer.getDurationNanos(StartupTimer.Phase.START_PREVIEW));
+        assertEquals(250 * MILLIS, timer.getTotalNanos());
+        assertFalse(timer.isOverBudget());
+        assertEquals("[OPEN_CAMERA=120, LOAD_NATIVES=150, START_RECORDER=40, FIRST_FRAME=250, total=250]",
+                mEvents.toString());
+    }
+
+    @Test
+    public void finishReportsOverBudgetOnce() throws Exception {
+        StartupTimer timer = new StartupTimer(mClock, 100 * MILLIS, mListener);
+        timer.start();
+        mClock.mNanos += 101 * MILLIS;
+        timer.finish();
+        mClock.mNanos += 100 * MILLIS;
+        timer.finish();
+
+        assertTrue(timer.isOverBudget());
+        assertEquals(101 * MILLIS, timer.getTotalNanos());
+        assertEquals("[total=101 over]", mEvents.toString());
+    }
+
+    @Test
+    public void zeroBudgetIsNeverExceeded() throws Exception {
+        StartupTimer timer = new StartupTimer(mClock, 0, null);
+        timer.start();
+        mClock.mNanos += 10000 * MILLIS;
+        timer.finish();
+
+        assertFalse(timer.isOverBudget());
+    }
+
+    @Test
+    public void restartClearsPreviousMeasurements() throws Exception {
+        StartupTimer timer = new StartupTimer(mClock, 0, null);
+        timer.start();
+        timer.finishPhase(StartupTimer.Phase.OPEN_CAMERA, timer.now());
+        timer.finish();
+
+        timer.start();
+
+        assertEquals(-1, timer.getDurationNanos(StartupTimer.Phase.OPEN_CAMERA));
+        assertEquals(-1, timer.getTotalNanos());
+    }
+
+    private static class FakeClock implements MediaClock {
+        private long mNanos;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.unuuu.sample;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * フィルタを繋いだ時の出力の大きさと画素、失敗した時の後始末を確かめる
+ */
+public class VideoFilterChainTest {
+
+    @Test
+    public void inPlaceChainRewritesInput() throws Exception {
+        VideoFilterChain chain = new VideoFilterChain(4, 2,
+                Collections.<VideoFilter>singletonList(new BrightnessContrastFilter(10, 1f)));
+        assertTrue(chain.isInPlace());
+
+        ByteBuffer frame = frame(4, 2, 100);
+        assertTrue(chain.process(frame, null));
+        for (int i = 0; i < 8; i++) {
+            assertEquals(110, frame.get(i) & 0xff);
+        }
+        // 色差は変えない
+        assertEquals(100, frame.get(8) & 0xff);
+        assertEquals(0, frame.position());
+    }
+
+    @Test
+    public void resizingChainWritesToOutput() throws Exception {
+        VideoFilterChain chain = new VideoFilterChain(8, 4, Arrays.asList(
+                new CropFilter(4, 4), new ScaleFilter(2, 2), new BrightnessContrastFilter(1, 1f)));
+        assertFalse(chain.isInPlace());
+        assertEquals(2, chain.getOutputWidth());
+        assertEquals(2, chain.getOutputHeight());
+
+        ByteBuffer input = sequence(8, 4);
+        ByteBuffer output = ByteBuffer.allocateDirect(2 * 2 * 3 / 2);
+        assertTrue(chain.process(input, output));
+        // 中央の4x4を切り抜いて2x2に縮小すると、元の(3, 1), (5, 1), (3, 3), (5, 3)が残る
+        assertArrayEquals(new byte[]{12, 14, 28, 30}, new byte[]{
+                output.get(0), output.get(1), output.get(2), output.get(3)});
+        // 色差はVUの組のまま縮小し、明るさのフィルタでは変わらない
+        assertEquals(32 + 8 + 4, output.get(4));
+        assertEquals(32 + 8 + 5, output.get(5));
+        assertEquals(3, chain.getFilterLatencies().size());
+        assertEquals(1, chain.getFilterLatencies().get(1).getCount());
+        assertEquals(1, chain.getTotalLatency().getCount());
+    }
+
+    @Test
+    public void rotateMatchesCropper() throws Exception {
+        VideoFilterChain chain = new VideoFilterChain(4, 2,
+                Collections.<VideoFilter>singletonList(CropFilter.rotate(90, false)));
+        assertEquals(2, chain.getOutputWidth());
+        assertEquals(4, chain.getOutputHeight());
+
+        ByteBuffer input = sequence(4, 2);
+        byte[] source = new byte[12];
+        input.get(source).position(0);
+        ByteBuffer expected = ByteBuffer.allocate(12);
+        new Nv21Cropper(4, 2, 4, 2, 90, false).crop(source, expected);
+
+        ByteBuffer output = ByteBuffer.allocateDirect(12);
+        assertTrue(chain.process(input, output));
+        for (int i = 0; i < 12; i++) {
+            assertEquals(expected.get(i), output.get(i));
+        }
+    }
+
+    @Test
+    public void watermarkBlendsOnlyCoveredPixels() throws Exception {
+        byte[] image = new byte[2 * 2 * 3 / 2];
+        Arrays.fill(image, (byte) 200);
+        VideoFilterChain chain = new VideoFilterChain(4, 4,
+                Collections.<VideoFilter>singletonList(new WatermarkFilter(image, 2, 2, 0, 0, 255)));
+        ByteBuffer frame = frame(4, 4, 10);
+        assertTrue(chain.process(frame, null));
+        assertEquals(200, frame.get(0) & 0xff);
+        assertEquals(10, frame.get(2) & 0xff);
+        assertEquals(200, frame.get(16) & 0xff);
+        assertEquals(10, frame.get(18) & 0xff);
+
+        // 右下から1画素離す位置は偶数に揃えて(2, 2)になる
+        chain = new VideoFilterChain(6, 6,
+                Collections.<VideoFilter>singletonList(new WatermarkFilter(image, 2, 2, -1, -1, 128)));
+        frame = frame(6, 6, 10);
+        assertTrue(chain.process(frame, null));
+        assertEquals((200 * 128 + 10 * 128) >> 8, frame.get(2 * 6 + 2) & 0xff);
+        assertEquals(10, frame.get(4 * 6 + 4) & 0xff);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void watermarkOutsideFrameFailsToPrepare() throws Exception {
+        new VideoFilterChain(4, 4, Collections.<VideoFilter>singletonList(
+                new WatermarkFilter(new byte[6], 2, 2, 4, 0, 255)));
+    }
+
+    @Test
+    public void regionBlurAveragesBlocksInsideRegion() throws Exception {
+        RegionBlurFilter blur = new RegionBlurFilter(2);
+        VideoFilterChain chain = new VideoFilterChain(4, 2, Collections.<VideoFilter>singletonList(blur));
+        ByteBuffer frame = sequence(4, 2);
+        assertTrue(chain.process(frame, null));
+        // 範囲がない時は何もしない
+        assertEquals(1, frame.get(1));
+
+        blur.setRegions(new int[]{0, 0, 2, 2});
+        assertTrue(chain.process(frame, null));
+        // (0, 1, 4, 5)の平均
+        assertEquals(2, frame.get(0));
+        assertEquals(2, frame.get(5));
+        assertEquals(2, frame.get(2));
+        assertEquals(6, frame.get(6));
+    }
+
+    @Test
+    public void failedPrepareReleasesPreparedFilters() throws Exception {
+        final boolean[] isReleased = new boolean[1];
+        BrightnessContrastFilter first = new BrightnessContrastFilter(0, 1f) {
+            @Override
+            public void release() {
+                isReleased[0] = true;
+            }
+        };
+        VideoFilter failing = new BrightnessContrastFilter(0, 1f) {
+            @Override
+            public void prepare(int width, int height) {
+                throw new IllegalStateException("prepare failed");
+            }
+        };
+        try {
+            new VideoFilterChain(4, 2, Arrays.asList(first, failing));
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(isReleased[0]);
+        }
+    }
+
+    @Test
+    public void stopsWhenFilterProducesNoOutput() throws Exception {
+        VideoFilter dropping = new ScaleFilter(2, 2) {
+            @Override
+            public boolean apply(ByteBuffer src, ByteBuffer dst) {
+                return false;
+            }
+        };
+        VideoFilterChain chain = new VideoFilterChain(4, 2, Arrays.asList(dropping, new BrightnessContrastFilter(1, 1f)));
+        assertFalse(chain.process(sequence(4, 2), ByteBuffer.allocateDirect(6)));
+        assertEquals(0, chain.getFilterLatencies().get(1).getCount());
+    }
+
+    private static ByteBuffer frame(int width, int height, int value) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) value);
+        }
+        return buffer;
+    }
+
+    /**
+     * 先頭からの位置を値にしたフレーム
+     */
+    private static ByteBuffer sequence(int width, int height) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * 3 / 2);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) i);
+        }
+        return buffer;
+    }
+}
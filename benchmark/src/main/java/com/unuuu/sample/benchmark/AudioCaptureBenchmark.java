@@ -0,0 +1,113 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.AudioBufferPool;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.bytedeco.javacpp.avcodec.AV_CODEC_ID_AAC;
+
+/**
+ * 100ms分の音声を読み込んでAACのレコーダーに書き込む
+ *
+ * 録音は待たずに値を返す偽物にして、バッファの確保とrecordSamplesの呼び出しの差だけを比べる。
+ * 以前のRecordRunnableは読み込む度にヒープのShortBufferを確保して書き込んでいた。
+ * 割り当て量は-prof gcのgc.alloc.rate.normで、JNIの呼び出し数は戻り値 (recordSamplesの回数) で見る。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioCaptureBenchmark {
+    private static final int SAMPLE_RATE = 44100;
+    /* AudioRecord.getMinBufferSizeの半分に近い値 (約10ms) */
+    private static final int READ_SAMPLES = 441;
+    private static final int READS_PER_OPERATION = 10;
+
+    @Param({"10", "50", "100"})
+    public int latencyMillis;
+
+    private File mFile;
+    private FFmpegFrameRecorder mRecorder;
+    private AudioBufferPool mAudioBuffers;
+    private short mNextSample;
+
+    @Setup
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("audio-capture-benchmark", ".m4a");
+        mRecorder = new FFmpegFrameRecorder(mFile.getAbsolutePath(), 1);
+        mRecorder.setFormat("mp4");
+        mRecorder.setAudioCodec(AV_CODEC_ID_AAC);
+        mRecorder.setSampleRate(SAMPLE_RATE);
+        mRecorder.start();
+        mAudioBuffers = new AudioBufferPool(READ_SAMPLES,
+                AudioBufferPool.readsForLatency(SAMPLE_RATE, READ_SAMPLES, latencyMillis), 1);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mRecorder.stop();
+        mRecorder.release();
+        mFile.delete();
+    }
+
+    /**
+     * 読み込む度にヒープのバッファを確保して書き込む
+     */
+    @Benchmark
+    public int perReadHeapBuffer() throws Exception {
+        for (int i = 0; i < READS_PER_OPERATION; i++) {
+            ShortBuffer buffer = ShortBuffer.allocate(READ_SAMPLES);
+            short[] samples = buffer.array();
+            for (int j = 0; j < READ_SAMPLES; j++) {
+                samples[j] = mNextSample++;
+            }
+            buffer.limit(READ_SAMPLES);
+            mRecorder.recordSamples(buffer);
+        }
+        return READS_PER_OPERATION;
+    }
+
+    /**
+     * 使い回すダイレクトバッファに読み込みをまとめて書き込む
+     */
+    @Benchmark
+    public int batchedDirectBuffer() throws Exception {
+        int recordCount = 0;
+        int readBytes = mAudioBuffers.getReadBytes();
+        for (int i = 0; i < READS_PER_OPERATION; ) {
+            AudioBufferPool.Chunk chunk = mAudioBuffers.acquire();
+            int sampleCount = 0;
+            for (int j = 0; j < mAudioBuffers.getReadsPerChunk() && i < READS_PER_OPERATION; j++, i++) {
+                ByteBuffer buffer = chunk.getReadBuffer(j);
+                for (int k = 0; k < readBytes; k += AudioBufferPool.BYTES_PER_SAMPLE) {
+                    buffer.putShort(k, mNextSample++);
+                }
+                sampleCount += READ_SAMPLES;
+            }
+            chunk.setSampleCount(sampleCount);
+            mRecorder.recordSamples(chunk.getSamples());
+            mAudioBuffers.release(chunk);
+            recordCount += 1;
+        }
+        return recordCount;
+    }
+}
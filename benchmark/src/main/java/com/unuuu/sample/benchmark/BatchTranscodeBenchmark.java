@@ -0,0 +1,104 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.transcoder.BatchTranscoder;
+import com.unuuu.sample.transcoder.TranscodeJob;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 作った動画をまとめて変換する時間をスレッド数ごとに計る
+ *
+ * 動画の数はスレッド数の最大より多くし、どのスレッド数でも同じ動画を変換する。
+ * 1スレッドの時間をスレッド数で割った値に近いほど、コアの数に比例して速くなっている。
+ * 終わった時にfpsと、動画ごとの変換の時間の合計を全体の時間で割った並列度を表示する。
+ * コアの数より多いスレッド数は比べても意味がないので、その時は表示だけで分かるようにコアの数も出す。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BatchTranscodeBenchmark {
+    private static final int CLIP_COUNT = 16;
+    private static final int CLIP_WIDTH = 640;
+    private static final int CLIP_HEIGHT = 480;
+    private static final int CLIP_FRAMES = 90;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private File mInputDirectory;
+    private File mOutputDirectory;
+    private BatchTranscoder.Result mResult;
+
+    @Setup
+    public void setUp() throws Exception {
+        mInputDirectory = Files.createTempDirectory("batch-input").toFile();
+        for (int i = 0; i < CLIP_COUNT; i++) {
+            SyntheticFrames.writeClip(new File(mInputDirectory, String.format(Locale.US, "clip%02d.mp4", i)),
+                    CLIP_WIDTH, CLIP_HEIGHT, CLIP_FRAMES);
+        }
+    }
+
+    /**
+     * 前の結果が残っていると飛ばしてしまうので毎回空の出力先にする
+     */
+    @Setup(Level.Invocation)
+    public void createOutput() throws Exception {
+        mOutputDirectory = Files.createTempDirectory("batch-output").toFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() {
+        delete(mOutputDirectory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println();
+        System.out.println(mResult + " on " + Runtime.getRuntime().availableProcessors() + " processors");
+        for (TranscodeJob job : mResult.getJobs()) {
+            System.out.println(job);
+        }
+        delete(mInputDirectory);
+    }
+
+    @Benchmark
+    public BatchTranscoder.Result transcode() throws Exception {
+        mResult = new BatchTranscoder(BatchTranscoder.Options.parse(new String[]{
+                "--threads", String.valueOf(threads), "--output", mOutputDirectory.getAbsolutePath(),
+                mInputDirectory.getAbsolutePath()})).run();
+        if (mResult.getCount(TranscodeJob.Status.DONE) != CLIP_COUNT) {
+            throw new IllegalStateException(mResult.toString());
+        }
+        return mResult;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,73 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.RecorderRepository;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RecorderRepositoryの設定でNV21のフレームをH.264にエンコードする速さ
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+    private static final int VIDEO_SIZE = 480;
+    private static final int FRAME_COUNT = 30;
+
+    private Frame[] mFrames;
+    private File mOutputFile;
+    private FFmpegFrameRecorder mRecorder;
+    private long mFrameIndex;
+
+    @Setup
+    public void setUpFrames() {
+        // 同じフレームばかりだとエンコーダーの仕事が減るので少しずつずらした絵を用意する
+        mFrames = new Frame[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mFrames[i] = SyntheticFrames.nv21Frame(VIDEO_SIZE, VIDEO_SIZE, i * 4);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startRecorder() throws Exception {
+        mOutputFile = File.createTempFile("encode-benchmark", ".mp4");
+        mRecorder = new RecorderRepository().getRecorder(mOutputFile.getAbsolutePath(), VIDEO_SIZE, VIDEO_SIZE);
+        mRecorder.start();
+        mFrameIndex = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopRecorder() throws Exception {
+        mRecorder.stop();
+        mRecorder.release();
+        if (!mOutputFile.delete()) {
+            mOutputFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public void recordFrame() throws Exception {
+        mRecorder.setTimestamp(mFrameIndex * 1000000L / (long) mRecorder.getFrameRate());
+        mRecorder.record(mFrames[(int) (mFrameIndex % FRAME_COUNT)]);
+        mFrameIndex += 1;
+    }
+}
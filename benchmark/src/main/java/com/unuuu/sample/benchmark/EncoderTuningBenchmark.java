@@ -0,0 +1,118 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.EncoderTuning;
+import com.unuuu.sample.LatencyHistogram;
+import com.unuuu.sample.RecorderRepository;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EncoderTuningの設定ごとに同じ作った映像をエンコードする
+ *
+ * 1回で一定のフレーム数の映像を開始から停止まで書き込み、かかった時間をスコアにする。
+ * 終わった時に設定ごとのfps、1フレームを書き込む時間、停止で残りを書き出す時間と出力の大きさを表示する。
+ * フレームを並列にすると書き込みはすぐに戻り、遅れた分は停止の時間に出る。
+ * -pで設定を渡す時は;で区切る: -PjmhArgs="EncoderTuningBenchmark -p tuning=threads=2;thread_type=slice"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncoderTuningBenchmark {
+    private static final int CLIP_FRAMES = 150;
+    /* 同じフレームばかりだとエンコーダーの仕事が減るので、ずらした絵を繰り返す */
+    private static final int DISTINCT_FRAMES = 30;
+
+    @Param({"640x480", "1280x720"})
+    public String videoSize;
+
+    @Param({"default", "threads=0", "threads=0,thread_type=slice",
+            "threads=0,thread_type=slice,lookahead=0,bframes=0,zerolatency=true",
+            "threads=0,lookahead=10,bframes=0", "threads=0,lookahead=40,bframes=3",
+            "low_end", "mid_range", "high_end", "workstation"})
+    public String tuning;
+
+    private int mWidth;
+    private int mHeight;
+    private EncoderTuning mTuning;
+    private Frame[] mFrames;
+    private File mOutputFile;
+    private LatencyHistogram mFrameLatency;
+    private LatencyHistogram mStopLatency;
+    private long mClipNanos;
+    private long mOutputBytes;
+    private int mClipCount;
+
+    @Setup
+    public void setUp() throws Exception {
+        int[] size = SyntheticFrames.parseSize(videoSize);
+        mWidth = size[0];
+        mHeight = size[1];
+        mTuning = EncoderTuning.parse(tuning);
+        mFrames = new Frame[DISTINCT_FRAMES];
+        for (int i = 0; i < DISTINCT_FRAMES; i++) {
+            mFrames[i] = SyntheticFrames.nv21Frame(mWidth, mHeight, i * 4);
+        }
+        mOutputFile = File.createTempFile("tuning-benchmark", ".mp4");
+        mFrameLatency = new LatencyHistogram("record");
+        mStopLatency = new LatencyHistogram("stop");
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println();
+        System.out.println(String.format(Locale.US, "%s %s: %.1f fps, %d bytes",
+                videoSize, mTuning, CLIP_FRAMES * mClipCount / (mClipNanos / 1e9), mOutputBytes / mClipCount));
+        System.out.println(mFrameLatency);
+        System.out.println(mStopLatency);
+        if (!mOutputFile.delete()) {
+            mOutputFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public long encodeClip() throws Exception {
+        RecorderRepository repository = new RecorderRepository();
+        repository.setEncoderTuning(mTuning);
+        FFmpegFrameRecorder recorder = repository.getRecorder(mOutputFile.getAbsolutePath(), mWidth, mHeight);
+        long clipStart = System.nanoTime();
+        recorder.start();
+        try {
+            long frameRate = (long) recorder.getFrameRate();
+            for (int i = 0; i < CLIP_FRAMES; i++) {
+                recorder.setTimestamp(i * 1000000L / frameRate);
+                long start = System.nanoTime();
+                recorder.record(mFrames[i % DISTINCT_FRAMES]);
+                mFrameLatency.record(System.nanoTime() - start);
+            }
+            long stopStart = System.nanoTime();
+            recorder.stop();
+            mStopLatency.record(System.nanoTime() - stopStart);
+        } finally {
+            recorder.release();
+        }
+        mClipNanos += System.nanoTime() - clipStart;
+        mOutputBytes += mOutputFile.length();
+        mClipCount += 1;
+        return mOutputFile.length();
+    }
+}
@@ -0,0 +1,110 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.BrightnessContrastFilter;
+import com.unuuu.sample.CropFilter;
+import com.unuuu.sample.GraphVideoFilter;
+import com.unuuu.sample.LatencyHistogram;
+import com.unuuu.sample.RegionBlurFilter;
+import com.unuuu.sample.ScaleFilter;
+import com.unuuu.sample.VideoFilter;
+import com.unuuu.sample.VideoFilterChain;
+import com.unuuu.sample.WatermarkFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * よく使うフィルタの組み合わせを640x480のフレームに掛ける
+ *
+ * 入力は毎回元の画像に戻してから掛ける。戻すコピーの分は全ての組み合わせで同じ。
+ * フレーム毎に確保していないことは-prof gcのgc.alloc.rate.normが0に近いことで見る。
+ * 終わった時にフィルタ毎の平均を表示する。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterChainBenchmark {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Param({"brightness", "crop+scale", "rotate90+brightness", "watermark+blur", "graph"})
+    public String chain;
+
+    private VideoFilterChain mChain;
+    private ByteBuffer mSource;
+    private ByteBuffer mInput;
+    private ByteBuffer mOutput;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<VideoFilter> filters = new ArrayList<>();
+        switch (chain) {
+            case "brightness":
+                filters.add(new BrightnessContrastFilter(16, 1.2f));
+                break;
+            case "crop+scale":
+                filters.add(new CropFilter(HEIGHT, HEIGHT));
+                filters.add(new ScaleFilter(320, 320));
+                break;
+            case "rotate90+brightness":
+                filters.add(CropFilter.rotate(90, true));
+                filters.add(new BrightnessContrastFilter(16, 1.2f));
+                break;
+            case "watermark+blur":
+                filters.add(new WatermarkFilter(SyntheticFrames.nv21(64, 32, 1), 64, 32, -16, -16, 160));
+                RegionBlurFilter blur = new RegionBlurFilter(RegionBlurFilter.DEFAULT_BLOCK_SIZE);
+                blur.setRegions(new int[]{240, 160, 160, 160});
+                filters.add(blur);
+                break;
+            case "graph":
+                filters.add(new GraphVideoFilter("crop=" + HEIGHT + ":" + HEIGHT + ",scale=320:320", 320, 320));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown chain: " + chain);
+        }
+        mChain = new VideoFilterChain(WIDTH, HEIGHT, filters);
+
+        byte[] source = SyntheticFrames.nv21(WIDTH, HEIGHT, 0);
+        mSource = ByteBuffer.allocateDirect(source.length);
+        mSource.put(source).flip();
+        mInput = ByteBuffer.allocateDirect(source.length);
+        mOutput = mChain.isInPlace() ? null
+                : ByteBuffer.allocateDirect(mChain.getOutputWidth() * mChain.getOutputHeight() * 3 / 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println();
+        System.out.println(mChain);
+        for (LatencyHistogram latency : mChain.getFilterLatencies()) {
+            System.out.println(latency);
+        }
+        mChain.release();
+    }
+
+    @Benchmark
+    public boolean process() throws Exception {
+        mInput.clear();
+        mInput.put(mSource).flip();
+        mSource.clear();
+        return mChain.process(mInput, mOutput);
+    }
+}
@@ -0,0 +1,74 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.RecordPipeline;
+
+import org.bytedeco.javacv.FFmpegFrameFilter;
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 切り抜きのフィルタのグラフをフレーム毎に作り直す場合と使い続ける場合の比較
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterGraphBenchmark {
+    @Param({"640x480", "1280x720"})
+    public String previewSize;
+
+    private Frame mFrame;
+    private FFmpegFrameFilter mRebuiltFilter;
+    private FFmpegFrameFilter mPersistentFilter;
+
+    @Setup
+    public void setUp() throws Exception {
+        int[] size = SyntheticFrames.parseSize(previewSize);
+        int side = Math.min(size[0], size[1]);
+        mFrame = SyntheticFrames.nv21Frame(size[0], size[1], 0);
+
+        mRebuiltFilter = RecordPipeline.createCropFilter(size[0], size[1], side, side, 0, false);
+        mPersistentFilter = RecordPipeline.createCropFilter(size[0], size[1], side, side, 0, false);
+        mPersistentFilter.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mPersistentFilter.stop();
+        mPersistentFilter.release();
+        mRebuiltFilter.release();
+    }
+
+    /**
+     * 以前のRecordRunnableと同じくフレーム毎にグラフを作り直す
+     */
+    @Benchmark
+    public Frame rebuildGraphPerFrame() throws Exception {
+        mRebuiltFilter.start();
+        mRebuiltFilter.push(mFrame);
+        Frame filtered = mRebuiltFilter.pull();
+        mRebuiltFilter.stop();
+        return filtered;
+    }
+
+    @Benchmark
+    public Frame persistentGraph() throws Exception {
+        mPersistentFilter.push(mFrame);
+        return mPersistentFilter.pull();
+    }
+}
@@ -0,0 +1,66 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.FramePool;
+import com.unuuu.sample.PooledFrame;
+
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * onPreviewFrameでカメラのデータをフレームにコピーする処理
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCopyBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String previewSize;
+
+    private int mWidth;
+    private int mHeight;
+    private byte[] mData;
+    private FramePool mFramePool;
+
+    @Setup
+    public void setUp() {
+        int[] size = SyntheticFrames.parseSize(previewSize);
+        mWidth = size[0];
+        mHeight = size[1];
+        mData = SyntheticFrames.nv21(mWidth, mHeight, 0);
+        mFramePool = new FramePool(mWidth, mHeight, 2);
+    }
+
+    /**
+     * コールバック毎にフレームを確保していた以前の処理
+     */
+    @Benchmark
+    public Frame allocatePerCallback() {
+        Frame frame = new Frame(mWidth, mHeight, Frame.DEPTH_UBYTE, 2);
+        ((ByteBuffer) frame.image[0].position(0)).put(mData);
+        return frame;
+    }
+
+    @Benchmark
+    public Frame pooledFrame() {
+        PooledFrame frame = mFramePool.acquire();
+        ((ByteBuffer) frame.getFrame().image[0].position(0)).put(mData);
+        frame.release();
+        return frame.getFrame();
+    }
+}
@@ -0,0 +1,84 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.FramePool;
+import com.unuuu.sample.PooledFrame;
+import com.unuuu.sample.SpscRingBuffer;
+
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HolaModelでカメラのスレッドから録画のスレッドにフレームを渡すキュー
+ *
+ * エンコーダーが遅れている状態を再現するため、指定した数のフレームが溜まった状態で追加と取り出しを繰り返す。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameQueueBenchmark {
+    @Param({"1", "10", "100"})
+    public int backlog;
+
+    private List<Long> mTimestamps;
+    private List<Frame> mFrames;
+    private Frame mFrame;
+
+    private SpscRingBuffer<PooledFrame> mRingBuffer;
+    private FramePool mFramePool;
+    private long mTimestamp;
+
+    @Setup
+    public void setUp() {
+        mFrame = new Frame(16, 16, Frame.DEPTH_UBYTE, 2);
+        mTimestamps = new ArrayList<>();
+        mFrames = new ArrayList<>();
+        for (int i = 0; i < backlog; i++) {
+            mTimestamps.add((long) i);
+            mFrames.add(mFrame);
+        }
+
+        mRingBuffer = new SpscRingBuffer<>(backlog + 1, SpscRingBuffer.BackpressurePolicy.DROP_OLDEST);
+        mFramePool = new FramePool(16, 16, backlog + 2);
+        for (int i = 0; i < backlog; i++) {
+            mRingBuffer.offer(mFramePool.acquire());
+        }
+    }
+
+    /**
+     * 以前の2つのArrayListを使ったキュー
+     */
+    @Benchmark
+    public Frame arrayLists() {
+        mTimestamps.add(mTimestamp++);
+        mFrames.add(mFrame);
+        mTimestamps.remove(0);
+        return mFrames.remove(0);
+    }
+
+    @Benchmark
+    public PooledFrame ringBuffer() {
+        PooledFrame frame = mFramePool.acquire();
+        frame.setTimestamp(mTimestamp++);
+        mRingBuffer.offer(frame);
+        PooledFrame polled = mRingBuffer.poll();
+        polled.release();
+        return polled;
+    }
+}
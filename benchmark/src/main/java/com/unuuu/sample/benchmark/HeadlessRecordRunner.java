@@ -0,0 +1,434 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.AudioBufferPool;
+import com.unuuu.sample.AudioSource;
+import com.unuuu.sample.EncoderQualityController;
+import com.unuuu.sample.EncoderTuning;
+import com.unuuu.sample.FileAudioSource;
+import com.unuuu.sample.FileVideoSource;
+import com.unuuu.sample.FramePool;
+import com.unuuu.sample.FrameQueueWriter;
+import com.unuuu.sample.Nv21Cropper;
+import com.unuuu.sample.PooledFrame;
+import com.unuuu.sample.RecordPipeline;
+import com.unuuu.sample.RecorderRepository;
+import com.unuuu.sample.RecordingMetrics;
+import com.unuuu.sample.RecordingSummary;
+import com.unuuu.sample.SpscRingBuffer;
+import com.unuuu.sample.VideoSource;
+
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * カメラとマイクの代わりにファイルか作った映像と音声を録画のパイプラインに流す
+ *
+ * HolaModelと同じく、取得元のスレッドで切り抜いてキューに入れ、RecordPipelineでエンコードする。
+ * 既定ではエンコードが追いつくまで取得元を待たせてできるだけ速く流し、維持できたフレームレートを計る。
+ * --realtimeの時はフレームレートに合わせて流し、カメラと同じように追いつかない分を捨てる。
+ * --journalの時は索引を残しながらMPEG-TSに書き込むので、途中でプロセスを終了させて復旧を試せる。
+ * --tuningにはEncoderTuning.parseの形式か端末の区分の名前を渡す。
+ * メモリはJavaのヒープとダイレクトバッファの最大値で、FFmpegがネイティブで確保した分は含まない。
+ *
+ * 実行例: ./gradlew :benchmark:headless -PheadlessArgs="--synthetic 640x480 --frames 900"
+ */
+public class HeadlessRecordRunner {
+    private static final int DEFAULT_FRAME_COUNT = 300;
+    private static final double DEFAULT_FRAME_RATE = 30;
+    private static final int DEFAULT_SAMPLE_RATE = 44100;
+    private static final int FRAME_QUEUE_CAPACITY = 10;
+    /* カメラと同じバッファの数 */
+    private static final int SOURCE_BUFFER_COUNT = 3;
+    private static final int AUDIO_READ_SAMPLES = 1024;
+    private static final int AUDIO_LATENCY_MILLIS = 100;
+    private static final int AUDIO_CHUNK_COUNT = 4;
+    private static final long WAIT_PARK_NANOS = 100000L;
+    private static final long MEMORY_SAMPLE_MILLIS = 10;
+    /* この間に1フレームも届かない時は取得元が止まったとみなす */
+    private static final long STALL_TIMEOUT_MILLIS = 30000;
+
+    /**
+     * 実行の設定
+     */
+    public static class Options {
+        /** 読み込む動画のファイル、nullの時は作った映像と音声を使う */
+        public String input;
+        public int syntheticWidth = 640;
+        public int syntheticHeight = 480;
+        /** 流すフレーム数、ファイルの時は0以下で最後まで */
+        public long frameCount = DEFAULT_FRAME_COUNT;
+        /** 正方形に切り抜くかどうか */
+        public boolean isCrop = true;
+        public String output;
+        /** フレームレートに合わせて流すかどうか */
+        public boolean isRealtime = false;
+        /** 索引を残しながらMPEG-TSに書き込む時の記録の間隔 (フレーム数)、0の時はMP4に書き込む */
+        public int checkpointFrames = 0;
+        /** x264のスレッドと先読みの設定 */
+        public EncoderTuning tuning = EncoderTuning.DEFAULT;
+
+        /**
+         * コマンドラインの引数を読み込む
+         */
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--input":
+                        options.input = args[++i];
+                        break;
+                    case "--synthetic":
+                        int[] size = SyntheticFrames.parseSize(args[++i]);
+                        options.syntheticWidth = size[0];
+                        options.syntheticHeight = size[1];
+                        break;
+                    case "--frames":
+                        options.frameCount = Long.parseLong(args[++i]);
+                        break;
+                    case "--crop":
+                        options.isCrop = Boolean.parseBoolean(args[++i]);
+                        break;
+                    case "--output":
+                        options.output = args[++i];
+                        break;
+                    case "--realtime":
+                        options.isRealtime = true;
+                        break;
+                    case "--journal":
+                        options.checkpointFrames = Integer.parseInt(args[++i]);
+                        break;
+                    case "--tuning":
+                        options.tuning = EncoderTuning.parse(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown argument: " + args[i]);
+                }
+            }
+            return options;
+        }
+    }
+
+    /**
+     * 実行の結果
+     */
+    public static class Result {
+        private final RecordingSummary mSummary;
+        private final int mWidth;
+        private final int mHeight;
+        private final long mPeakHeapBytes;
+        private final long mPeakDirectBytes;
+
+        Result(RecordingSummary summary, int width, int height, long peakHeapBytes, long peakDirectBytes) {
+            mSummary = summary;
+            mWidth = width;
+            mHeight = height;
+            mPeakHeapBytes = peakHeapBytes;
+            mPeakDirectBytes = peakDirectBytes;
+        }
+
+        public RecordingSummary getSummary() {
+            return mSummary;
+        }
+
+        /**
+         * 録画した映像の横幅
+         */
+        public int getWidth() {
+            return mWidth;
+        }
+
+        /**
+         * 録画した映像の高さ
+         */
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * 録画中のJavaのヒープの使用量の最大値
+         */
+        public long getPeakHeapBytes() {
+            return mPeakHeapBytes;
+        }
+
+        /**
+         * 録画中のダイレクトバッファの使用量の最大値
+         */
+        public long getPeakDirectBytes() {
+            return mPeakDirectBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%dx%d %d frames in %dms: %.1ffps, p50=%.2fms, p99=%.2fms, dropped=%d, peakHeap=%dKB, peakDirect=%dKB",
+                    mWidth, mHeight, mSummary.getEncodedFrameCount(), mSummary.getDurationMillis(),
+                    mSummary.getEncodedFrameRate(), mSummary.getLatencyP50Nanos() / 1e6,
+                    mSummary.getLatencyP99Nanos() / 1e6, mSummary.getDroppedFrameCount(),
+                    mPeakHeapBytes / 1024, mPeakDirectBytes / 1024);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Result result = new HeadlessRecordRunner(Options.parse(args)).run();
+        System.out.println(result.getSummary());
+        System.out.println(result);
+    }
+
+    private final Options mOptions;
+
+    public HeadlessRecordRunner(Options options) {
+        mOptions = options;
+    }
+
+    /**
+     * 最後まで流して録画し、結果を返す
+     * 取得元が失敗したり止まったりした時は、録画を止めてからIOExceptionを投げる
+     */
+    public Result run() throws IOException, InterruptedException, FrameRecorder.Exception {
+        VideoSource video;
+        AudioSource audio;
+        if (mOptions.input != null) {
+            video = new FileVideoSource(mOptions.input, SOURCE_BUFFER_COUNT, mOptions.isRealtime, mOptions.frameCount);
+            audio = new FileAudioSource(mOptions.input);
+        } else {
+            video = new SyntheticVideoSource(mOptions.syntheticWidth & ~1, mOptions.syntheticHeight & ~1,
+                    DEFAULT_FRAME_RATE, mOptions.frameCount, SOURCE_BUFFER_COUNT, mOptions.isRealtime);
+            audio = new SyntheticAudioSource(DEFAULT_SAMPLE_RATE);
+        }
+        audio.start();
+
+        int sourceWidth = video.getWidth();
+        int sourceHeight = video.getHeight();
+        int videoWidth = sourceWidth;
+        int videoHeight = sourceHeight;
+        if (mOptions.isCrop) {
+            videoWidth = Math.min(sourceWidth, sourceHeight);
+            videoHeight = videoWidth;
+        }
+        Nv21Cropper cropper = new Nv21Cropper(sourceWidth, sourceHeight, videoWidth, videoHeight, 0, false);
+        double frameRate = video.getFrameRate() > 0 ? video.getFrameRate() : DEFAULT_FRAME_RATE;
+
+        boolean isJournaled = mOptions.checkpointFrames > 0;
+        File output = mOptions.output != null ? new File(mOptions.output)
+                : File.createTempFile("headless", isJournaled ? ".ts" : ".mp4");
+        RecorderRepository repository = new RecorderRepository();
+        repository.setEncoderTuning(mOptions.tuning);
+        FrameRecorder recorder;
+        if (isJournaled) {
+            recorder = repository.getJournaledRecorder(output, cropper.getOutputWidth(),
+                    cropper.getOutputHeight(), EncoderQualityController.DEFAULT_LEVELS[0], mOptions.checkpointFrames);
+        } else {
+            recorder = repository.getRecorder(output.getAbsolutePath(),
+                    cropper.getOutputWidth(), cropper.getOutputHeight());
+        }
+        recorder.setFrameRate(frameRate);
+        if (audio.getSampleRate() > 0) {
+            recorder.setSampleRate(audio.getSampleRate());
+        }
+        recorder.start();
+
+        // HolaModelと同じく、切り抜いたフレームが書き込みのステージまで渡る分も確保する
+        SpscRingBuffer<PooledFrame> frameQueue = new SpscRingBuffer<>(FRAME_QUEUE_CAPACITY,
+                mOptions.isRealtime ? SpscRingBuffer.BackpressurePolicy.DROP_OLDEST : SpscRingBuffer.BackpressurePolicy.BLOCK);
+        FramePool framePool = new FramePool(cropper.getOutputWidth(), cropper.getOutputHeight(),
+                FRAME_QUEUE_CAPACITY + RecordPipeline.VIDEO_QUEUE_CAPACITY + 2);
+        FrameQueueWriter writer = new FrameQueueWriter(framePool, frameQueue, cropper, null, RecordingMetrics.NONE);
+
+        AudioBufferPool audioBuffers = new AudioBufferPool(AUDIO_READ_SAMPLES,
+                AudioBufferPool.readsForLatency(recorder.getSampleRate(), AUDIO_READ_SAMPLES, AUDIO_LATENCY_MILLIS),
+                AUDIO_CHUNK_COUNT);
+        PacedAudioReader audioReader = new PacedAudioReader(audio, recorder.getSampleRate());
+        RecordPipeline pipeline = new RecordPipeline(recorder, frameQueue, audioReader, audioBuffers,
+                sourceWidth, sourceHeight, videoWidth, videoHeight,
+                RecordPipeline.CropEngine.JAVA, 0, false, new RecordPipeline.Callback() {
+                    @Override
+                    public void onStageStarted(RecordPipeline.Stage stage) {
+                    }
+
+                    @Override
+                    public void onError(RecordPipeline.Stage stage, Exception e) {
+                        System.err.println(stage + ": " + e.getMessage());
+                    }
+                });
+
+        MemorySampler memory = new MemorySampler();
+        memory.start();
+        long startNanos = System.nanoTime();
+        pipeline.start();
+
+        CountDownLatch finished = new CountDownLatch(1);
+        AtomicBoolean isStopping = new AtomicBoolean(false);
+        AtomicReference<Exception> videoError = new AtomicReference<>();
+        long frameMicros = (long) (1000000L / frameRate);
+        AtomicLong capturedCount = new AtomicLong();
+        AtomicLong droppedCount = new AtomicLong();
+        video.start(new VideoSource.Callback() {
+            @Override
+            public void onFrame(byte[] data, long captureNanos) {
+                long timestamp = capturedCount.getAndIncrement() * frameMicros;
+                if (!mOptions.isRealtime) {
+                    // エンコードが追いつくまで待ち、プールが空で捨てないようにする
+                    while (framePool.getInUseCount() >= framePool.getCapacity() && !isStopping.get()) {
+                        LockSupport.parkNanos(WAIT_PARK_NANOS);
+                    }
+                }
+                if (!writer.write(data, timestamp, captureNanos)) {
+                    droppedCount.incrementAndGet();
+                }
+                audioReader.setVideoTimestamp(timestamp);
+                video.releaseBuffer(data);
+            }
+
+            @Override
+            public void onEndOfStream() {
+                finished.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                System.err.println("video: " + e);
+                videoError.set(e);
+                finished.countDown();
+            }
+        });
+        long lastCount = -1;
+        while (!finished.await(STALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            long count = capturedCount.get();
+            if (count == lastCount) {
+                videoError.set(new IOException("video source stalled after " + count + " frames"));
+                break;
+            }
+            lastCount = count;
+        }
+        isStopping.set(true);
+
+        audioReader.finish();
+        pipeline.stop();
+        long durationMillis = (System.nanoTime() - startNanos) / 1000000L;
+        memory.stop();
+        video.stop();
+        audio.stop();
+        recorder.stop();
+        recorder.release();
+        if (mOptions.output == null) {
+            output.delete();
+        }
+        if (videoError.get() != null) {
+            throw new IOException("video source failed", videoError.get());
+        }
+
+        RecordingSummary summary = new RecordingSummary(durationMillis, capturedCount.get(),
+                pipeline.getEncodedFrameCount(), droppedCount.get() + pipeline.getDroppedVideoFrameCount(), frameRate,
+                pipeline.getCaptureToEncodeLatency(), frameQueue.getHighWaterMark(), pipeline.getAudioOverrunCount(),
+                framePool.getMemoryBytes(), null, -1);
+        return new Result(summary, cropper.getOutputWidth(), cropper.getOutputHeight(),
+                memory.mPeakHeapBytes, memory.mPeakDirectBytes);
+    }
+
+    /**
+     * 音声が映像より先に進まないように読み込みを待たせる
+     *
+     * ファイルや作った音声は待たずに返るので、そのままでは映像を待たずに最後まで読んでしまう。
+     */
+    private static class PacedAudioReader implements RecordPipeline.AudioReader {
+        private final AudioSource mSource;
+        private final int mSampleRate;
+        private volatile long mVideoTimestamp = 0;
+        private volatile boolean mIsFinished = false;
+        private long mReadSampleCount = 0;
+
+        PacedAudioReader(AudioSource source, int sampleRate) {
+            mSource = source;
+            mSampleRate = sampleRate;
+        }
+
+        void setVideoTimestamp(long timestamp) {
+            mVideoTimestamp = timestamp;
+        }
+
+        /**
+         * 映像が終わったので待っている読み込みを終わらせる
+         */
+        void finish() {
+            mIsFinished = true;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer, int sizeInBytes) {
+            while (mReadSampleCount * 1000000L / mSampleRate > mVideoTimestamp) {
+                if (mIsFinished) {
+                    return 0;
+                }
+                LockSupport.parkNanos(WAIT_PARK_NANOS);
+            }
+            if (mIsFinished) {
+                return 0;
+            }
+            int bytes = mSource.read(buffer, sizeInBytes);
+            if (bytes > 0) {
+                mReadSampleCount += bytes / AudioBufferPool.BYTES_PER_SAMPLE;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * ヒープとダイレクトバッファの使用量を一定の間隔で取得して最大値を残す
+     */
+    private static class MemorySampler {
+        private final MemoryMXBean mMemory = ManagementFactory.getMemoryMXBean();
+        private BufferPoolMXBean mDirectPool;
+        private volatile boolean mIsRunning = false;
+        private volatile long mPeakHeapBytes = 0;
+        private volatile long mPeakDirectBytes = 0;
+        private Thread mThread;
+
+        void start() {
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if ("direct".equals(pool.getName())) {
+                    mDirectPool = pool;
+                }
+            }
+            mIsRunning = true;
+            mThread = new Thread(() -> {
+                while (mIsRunning) {
+                    sample();
+                    try {
+                        Thread.sleep(MEMORY_SAMPLE_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "HeadlessRecordRunner-memory");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        void stop() throws InterruptedException {
+            mIsRunning = false;
+            mThread.join();
+            sample();
+        }
+
+        private void sample() {
+            mPeakHeapBytes = Math.max(mPeakHeapBytes, mMemory.getHeapMemoryUsage().getUsed());
+            if (mDirectPool != null) {
+                mPeakDirectBytes = Math.max(mPeakDirectBytes, mDirectPool.getMemoryUsed());
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.MotionDetector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MotionDetectorが1フレームを調べる時間
+ *
+ * 30fpsの1フレームの時間 (33ms) より十分に短いことを確かめる。
+ * -prof gcを付けて実行すると、1回ごとにメモリを確保していないことも確かめられる。
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionDetectorBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String previewSize;
+
+    @Param({"4", "8", "16"})
+    public int step;
+
+    private byte[][] mFrames;
+    private MotionDetector mDetector;
+    private long mCaptureNanos;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        int[] size = SyntheticFrames.parseSize(previewSize);
+        // 模様をずらしたフレームを交互に渡すと、毎回動いたとみなして比べる先も入れ替わる
+        mFrames = new byte[][]{
+                SyntheticFrames.nv21(size[0], size[1], 0),
+                SyntheticFrames.nv21(size[0], size[1], 64)
+        };
+        mDetector = new MotionDetector(size[0], size[1], step, MotionDetector.DEFAULT_PIXEL_DELTA,
+                MotionDetector.DEFAULT_THRESHOLD_PER_MILLE, MotionDetector.DEFAULT_HOLD_FRAMES, Long.MAX_VALUE);
+    }
+
+    /**
+     * 前に残したフレームと同じで、外すフレーム
+     */
+    @Benchmark
+    public boolean staticFrame() {
+        mCaptureNanos += 33333333L;
+        return mDetector.shouldKeep(mFrames[0], mCaptureNanos);
+    }
+
+    /**
+     * 前のフレームから変わっていて、残すフレーム
+     */
+    @Benchmark
+    public boolean movingFrame() {
+        mCaptureNanos += 33333333L;
+        mIndex ^= 1;
+        return mDetector.shouldKeep(mFrames[mIndex], mCaptureNanos);
+    }
+}
@@ -0,0 +1,112 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.FramePool;
+import com.unuuu.sample.PooledFrame;
+import com.unuuu.sample.RecordSession;
+import com.unuuu.sample.RecordSessionManager;
+import com.unuuu.sample.RecorderRepository;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 1つの映像を複数のセッションで同時に録画した時の時間
+ *
+ * 全てのフレームがキューに入る大きさにして捨てずに書き込ませ、最も遅いセッションが書き終わるまでを計る。
+ * セッション毎のスループットはFRAME_COUNT / 結果 (ms) になる。
+ * セッション毎にビットレートを変えて、保存用とプレビュー用を同時に作る場合に近づける。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MultiSessionBenchmark {
+    private static final int VIDEO_SIZE = 480;
+    private static final int FRAME_COUNT = 60;
+    private static final long FRAME_MICROS = 33333L;
+    private static final int[] VIDEO_BITRATES = {1600000, 400000, 200000, 100000};
+
+    @Param({"1", "2", "4"})
+    public int sessionCount;
+
+    private FramePool mFramePool;
+    private byte[][] mFrameData;
+    private File[] mOutputFiles;
+
+    @Setup
+    public void setUp() throws Exception {
+        mFramePool = new FramePool(VIDEO_SIZE, VIDEO_SIZE, FRAME_COUNT);
+        mFrameData = new byte[FRAME_COUNT][];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mFrameData[i] = SyntheticFrames.nv21(VIDEO_SIZE, VIDEO_SIZE, i * 4);
+        }
+        mOutputFiles = new File[sessionCount];
+        for (int i = 0; i < sessionCount; i++) {
+            mOutputFiles[i] = File.createTempFile("multi-session-benchmark", ".mp4");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (File file : mOutputFiles) {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public long record() throws Exception {
+        RecordSessionManager manager = new RecordSessionManager(VIDEO_SIZE, VIDEO_SIZE,
+                new RecordSessionManager.Callback() {
+                    @Override
+                    public void onSessionStarted(RecordSession session) {
+                    }
+
+                    @Override
+                    public void onError(RecordSession session, Exception e) {
+                        throw new IllegalStateException(session.getName(), e);
+                    }
+                });
+        for (int i = 0; i < sessionCount; i++) {
+            RecorderRepository repository = new RecorderRepository(VIDEO_BITRATES[i % VIDEO_BITRATES.length]);
+            manager.addSession("session" + i,
+                    repository.getRecorder(mOutputFiles[i].getAbsolutePath(), VIDEO_SIZE, VIDEO_SIZE), FRAME_COUNT);
+        }
+        manager.start();
+
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            PooledFrame frame = mFramePool.acquire();
+            ((ByteBuffer) frame.getFrame().image[0].position(0)).put(mFrameData[i]);
+            frame.getFrame().image[0].position(0);
+            frame.setTimestamp(i * FRAME_MICROS);
+            frame.setCaptureNanos(System.nanoTime());
+            manager.offerFrame(frame);
+            frame.release();
+        }
+        manager.stop();
+
+        long encoded = 0;
+        for (RecordSession session : manager.getSessions()) {
+            if (session.getDroppedFrameCount() > 0) {
+                throw new IllegalStateException("frames dropped: " + session);
+            }
+            encoded += session.getEncodedFrameCount();
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,81 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.Nv21Cropper;
+import com.unuuu.sample.RecordPipeline;
+
+import org.bytedeco.javacv.FFmpegFrameFilter;
+import org.bytedeco.javacv.Frame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nv21Cropperとlibavfilterのcropフィルタで中央の正方形を切り抜く速さの比較
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Nv21CropBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String previewSize;
+
+    @Param({"0", "90"})
+    public int rotation;
+
+    private byte[] mData;
+    private Frame mFrame;
+    private ByteBuffer mDestination;
+    private Nv21Cropper mCropper;
+    private FFmpegFrameFilter mFilter;
+
+    @Setup
+    public void setUp() throws Exception {
+        int[] size = SyntheticFrames.parseSize(previewSize);
+        int side = Math.min(size[0], size[1]);
+        mData = SyntheticFrames.nv21(size[0], size[1], 0);
+        mFrame = SyntheticFrames.nv21Frame(size[0], size[1], 0);
+
+        mCropper = new Nv21Cropper(size[0], size[1], side, side, rotation, false);
+        mDestination = ByteBuffer.allocateDirect(mCropper.getOutputSize());
+
+        mFilter = RecordPipeline.createCropFilter(size[0], size[1], side, side, rotation, false);
+        mFilter.start();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        mFilter.stop();
+        mFilter.release();
+    }
+
+    @Benchmark
+    public ByteBuffer javaCrop() {
+        mCropper.crop(mData, mDestination);
+        return mDestination;
+    }
+
+    /**
+     * libavfilterの場合はカメラのデータをフレームにコピーする分も含める
+     */
+    @Benchmark
+    public Frame libavfilterCrop() throws Exception {
+        ((ByteBuffer) mFrame.image[0].position(0)).put(mData);
+        mFilter.push(mFrame);
+        return mFilter.pull();
+    }
+}
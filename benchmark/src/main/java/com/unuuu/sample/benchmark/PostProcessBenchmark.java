@@ -0,0 +1,81 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.AnimatedPreviewSink;
+import com.unuuu.sample.PostProcessor;
+import com.unuuu.sample.RecorderSink;
+import com.unuuu.sample.ThumbnailSink;
+import com.unuuu.sample.TranscodeSink;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 録画したファイルから縮小版、サムネイル、プレビューを作るまでの時間
+ * スレッドが1つの時は出力を1つずつ処理するのと同じになる
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PostProcessBenchmark {
+    private static final int VIDEO_SIZE = 480;
+    private static final int FRAME_COUNT = 150;
+
+    @Param({"1", "2", "4"})
+    public int threadCount;
+
+    private File mInputFile;
+    private File mOutputDirectory;
+    private PostProcessor mPostProcessor;
+
+    @Setup
+    public void setUpClip() throws Exception {
+        mInputFile = File.createTempFile("post-process-benchmark", ".mp4");
+        SyntheticFrames.writeClip(mInputFile, VIDEO_SIZE, VIDEO_SIZE, FRAME_COUNT);
+        mOutputDirectory = new File(mInputFile.getParentFile(), mInputFile.getName() + ".out");
+        mOutputDirectory.mkdirs();
+        mPostProcessor = new PostProcessor(threadCount);
+    }
+
+    @TearDown
+    public void tearDownClip() {
+        mPostProcessor.shutdown();
+        File[] files = mOutputDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mOutputDirectory.delete();
+        mInputFile.delete();
+    }
+
+    @Benchmark
+    public void process() throws Exception {
+        List<RecorderSink> sinks = Arrays.asList(
+                new TranscodeSink(new File(mOutputDirectory, "small.mp4").getAbsolutePath(), 240, 240, 200000),
+                new TranscodeSink(new File(mOutputDirectory, "medium.mp4").getAbsolutePath(), 360, 360, 400000),
+                new ThumbnailSink(new File(mOutputDirectory, "thumbnail.jpg").getAbsolutePath(), 240, 240, 1000000),
+                new AnimatedPreviewSink(new File(mOutputDirectory, "preview.gif").getAbsolutePath(),
+                        AnimatedPreviewSink.Format.GIF, 120, 120, 10, 0, 3000000));
+        mPostProcessor.process(mInputFile.getAbsolutePath(), sinks, null).await();
+    }
+}
@@ -0,0 +1,115 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.PreviewSizeSelector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.functions.Func2;
+
+/**
+ * CameraRepository.getOptimalPreviewSizeと同じ選び方でプレビューのサイズを選ぶ速さ
+ * 以前のRxJavaで選んでいた実装と比べる
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreviewSizeBenchmark {
+    /* よくある端末が返すプレビューのサイズ */
+    private static final int[][] SUPPORTED_SIZES = {
+            {1920, 1080}, {1440, 1080}, {1280, 960}, {1280, 720}, {1056, 864}, {960, 720},
+            {800, 480}, {720, 480}, {640, 480}, {480, 320}, {352, 288}, {320, 240}, {176, 144}
+    };
+
+    private static final PreviewSizeSelector.SizeAccessor<int[]> ACCESSOR = new PreviewSizeSelector.SizeAccessor<int[]>() {
+        @Override
+        public int getWidth(int[] size) {
+            return size[0];
+        }
+
+        @Override
+        public int getHeight(int[] size) {
+            return size[1];
+        }
+    };
+
+    private List<int[]> mSizes;
+
+    @Setup
+    public void setUp() {
+        mSizes = new ArrayList<>();
+        for (int[] size : SUPPORTED_SIZES) {
+            mSizes.add(size);
+        }
+    }
+
+    @Benchmark
+    public int[] squareTarget() {
+        // HolaModelと同じく480x480に近いサイズを探すので縦横比での絞り込みは外れる
+        return PreviewSizeSelector.getOptimalSize(mSizes, 480, 480, ACCESSOR);
+    }
+
+    @Benchmark
+    public int[] wideTarget() {
+        return PreviewSizeSelector.getOptimalSize(mSizes, 1280, 720, ACCESSOR);
+    }
+
+    @Benchmark
+    public int[] squareTargetRx() {
+        return getOptimalSizeRx(mSizes, 480, 480);
+    }
+
+    @Benchmark
+    public int[] wideTargetRx() {
+        return getOptimalSizeRx(mSizes, 1280, 720);
+    }
+
+    /**
+     * ループにする前のPreviewSizeSelector.getOptimalSize
+     */
+    private static int[] getOptimalSizeRx(List<int[]> sizes, int w, int h) {
+        Func2<int[], int[], int[]> reduceFunc = (minSize, size) -> {
+            if (minSize == null) {
+                return size;
+            }
+
+            if (w > ACCESSOR.getWidth(size) || h > ACCESSOR.getHeight(size)) {
+                return minSize;
+            }
+
+            if (Math.abs(ACCESSOR.getHeight(size) - h) < Math.abs(ACCESSOR.getHeight(minSize) - h)) {
+                return size;
+            }
+            return minSize;
+        };
+
+        double targetRatio = (double) w / h;
+        int[] optimalSize = Observable.from(sizes).filter(size -> {
+            double ratio = (double) ACCESSOR.getWidth(size) / ACCESSOR.getHeight(size);
+            return Math.abs(ratio - targetRatio) <= 0.1f;
+        }).reduce(null, reduceFunc).toBlocking().first();
+
+        if (optimalSize == null) {
+            optimalSize = Observable.from(sizes)
+                    .reduce(null, reduceFunc).toBlocking().first();
+        }
+
+        return optimalSize;
+    }
+}
@@ -0,0 +1,58 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.AudioBufferPool;
+import com.unuuu.sample.AudioSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * 正弦波を返す音声の取得元
+ *
+ * 待たずに値を返すので、録音の速さは呼び出し側で合わせる。
+ */
+public class SyntheticAudioSource implements AudioSource {
+    private static final double FREQUENCY = 440.0;
+    private static final double AMPLITUDE = Short.MAX_VALUE / 4.0;
+
+    private final int mSampleRate;
+    /* 1周期分を作っておき、繰り返す */
+    private final short[] mWave;
+    private int mPosition = 0;
+
+    /**
+     * @param sampleRate サンプルレート
+     */
+    public SyntheticAudioSource(int sampleRate) {
+        mSampleRate = sampleRate;
+        mWave = new short[(int) Math.round(sampleRate / FREQUENCY)];
+        for (int i = 0; i < mWave.length; i++) {
+            mWave[i] = (short) (AMPLITUDE * Math.sin(2 * Math.PI * i / mWave.length));
+        }
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        ShortBuffer dst = buffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+        int samples = Math.min(sizeInBytes / AudioBufferPool.BYTES_PER_SAMPLE, dst.remaining());
+        for (int i = 0; i < samples; i++) {
+            dst.put(mWave[mPosition]);
+            mPosition = (mPosition + 1) % mWave.length;
+        }
+        return samples * AudioBufferPool.BYTES_PER_SAMPLE;
+    }
+
+    @Override
+    public void stop() {
+    }
+}
@@ -0,0 +1,84 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.RecorderRepository;
+
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * ベンチマーク用のNV21のフレームを作る
+ */
+public final class SyntheticFrames {
+    private SyntheticFrames() {
+    }
+
+    /**
+     * カメラのプレビューと同じ大きさのNV21のデータを作る
+     *
+     * @param width 横幅
+     * @param height 高さ
+     * @param seed 模様をずらす値
+     * @return NV21のデータ
+     */
+    public static byte[] nv21(int width, int height, int seed) {
+        byte[] data = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                data[y * width + x] = (byte) (x + y + seed);
+            }
+        }
+        for (int i = width * height; i < data.length; i++) {
+            data[i] = (byte) (128 + ((i + seed) & 0x1f));
+        }
+        return data;
+    }
+
+    /**
+     * onPreviewFrameでキューに入れるのと同じ形式のフレームを作る
+     */
+    public static Frame nv21Frame(int width, int height, int seed) {
+        Frame frame = new Frame(width, height, Frame.DEPTH_UBYTE, 2);
+        ((ByteBuffer) frame.image[0].position(0)).put(nv21(width, height, seed));
+        frame.image[0].position(0);
+        return frame;
+    }
+
+    /**
+     * "640x480"の形式の文字列から横幅と高さを取り出す
+     */
+    public static int[] parseSize(String size) {
+        String[] values = size.split("x");
+        return new int[]{Integer.parseInt(values[0]), Integer.parseInt(values[1])};
+    }
+
+    /**
+     * 録画したのと同じ設定で無音の音声を含むMP4を書き出す
+     *
+     * @param file 出力先
+     * @param width 横幅
+     * @param height 高さ
+     * @param frameCount 映像のフレームの数
+     */
+    public static void writeClip(File file, int width, int height, int frameCount) throws FrameRecorder.Exception {
+        FFmpegFrameRecorder recorder = new RecorderRepository().getRecorder(file.getAbsolutePath(), width, height);
+        recorder.start();
+        try {
+            long frameRate = (long) recorder.getFrameRate();
+            ShortBuffer silence = ShortBuffer.allocate((int) (recorder.getSampleRate() / frameRate));
+            for (int i = 0; i < frameCount; i++) {
+                recorder.setTimestamp(i * 1000000L / frameRate);
+                recorder.record(nv21Frame(width, height, i * 4));
+                silence.rewind();
+                recorder.recordSamples(silence);
+            }
+            recorder.stop();
+        } finally {
+            recorder.release();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.unuuu.sample.benchmark;
+
+import com.unuuu.sample.VideoSource;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 模様を動かしたNV21のフレームを渡す映像の取得元
+ *
+ * 模様は最初に作っておき、カメラがバッファに書き込むのと同じようにコピーだけして渡す。
+ * 空いているバッファがない時はカメラと同じようにそのフレームを渡さない。
+ */
+public class SyntheticVideoSource implements VideoSource {
+    /* 模様を作っておくフレーム数、これを繰り返す */
+    private static final int PATTERN_COUNT = 30;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final double mFrameRate;
+    private final long mFrameCount;
+    private final boolean mIsRealtime;
+    private final byte[][] mPatterns;
+    /* 渡すスレッドだけが使う */
+    private final ArrayDeque<byte[]> mFreeBuffers = new ArrayDeque<>();
+
+    private Callback mCallback;
+    private volatile boolean mIsRunning = false;
+    private volatile long mSkippedFrameCount = 0;
+    private Thread mThread;
+
+    /**
+     * @param width 横幅
+     * @param height 高さ
+     * @param frameRate フレームレート
+     * @param frameCount 渡すフレーム数
+     * @param bufferCount 使い回すバッファの数
+     * @param isRealtime フレームレートに合わせて渡すかどうか、falseの時はできるだけ速く渡す
+     */
+    public SyntheticVideoSource(int width, int height, double frameRate, long frameCount, int bufferCount,
+                                boolean isRealtime) {
+        mWidth = width;
+        mHeight = height;
+        mFrameRate = frameRate;
+        mFrameCount = frameCount;
+        mIsRealtime = isRealtime;
+        mPatterns = new byte[PATTERN_COUNT][];
+        for (int i = 0; i < PATTERN_COUNT; i++) {
+            mPatterns[i] = SyntheticFrames.nv21(width, height, i * 4);
+        }
+        for (int i = 0; i < bufferCount; i++) {
+            mFreeBuffers.add(new byte[width * height * 3 / 2]);
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public double getFrameRate() {
+        return mFrameRate;
+    }
+
+    @Override
+    public void start(Callback callback) {
+        mCallback = callback;
+        mIsRunning = true;
+        mThread = new Thread(this::run, "SyntheticVideoSource");
+        mThread.start();
+    }
+
+    @Override
+    public void releaseBuffer(byte[] data) {
+        mFreeBuffers.add(data);
+    }
+
+    @Override
+    public void stop() {
+        mIsRunning = false;
+        if (mThread != null && mThread != Thread.currentThread()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mThread = null;
+    }
+
+    private void run() {
+        long startNanos = System.nanoTime();
+        long frameNanos = (long) (1000000000L / mFrameRate);
+        for (long i = 0; i < mFrameCount && mIsRunning; i++) {
+            if (mIsRealtime) {
+                long waitNanos = startNanos + i * frameNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+            }
+            byte[] buffer = mFreeBuffers.poll();
+            if (buffer == null) {
+                mSkippedFrameCount += 1;
+                continue;
+            }
+            byte[] pattern = mPatterns[(int) (i % PATTERN_COUNT)];
+            System.arraycopy(pattern, 0, buffer, 0, pattern.length);
+            mCallback.onFrame(buffer, System.nanoTime());
+        }
+        if (mIsRunning) {
+            mCallback.onEndOfStream();
+        }
+    }
+
+    /**
+     * 空いているバッファがなく渡さなかったフレーム数
+     */
+    public long getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+}
@@ -0,0 +1,146 @@
+package com.unuuu.sample;
+
+import com.unuuu.sample.benchmark.SyntheticFrames;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * FFmpegのエンコーダーを録画のパイプラインから使い、書き込んだフレームを読み戻して確かめる
+ */
+public class FFmpegBackendTest {
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_COUNT = 60;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("record", ".mp4");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void pipelineWritesEveryFrameToMp4() throws Exception {
+        FFmpegFrameRecorder recorder = new RecorderRepository().getRecorder(mFile.getAbsolutePath(), WIDTH, HEIGHT,
+                EncoderQualityController.DEFAULT_LEVELS[0]);
+        double frameRate = recorder.getFrameRate();
+        FramePool pool = new FramePool(WIDTH, HEIGHT, FRAME_COUNT);
+        SpscRingBuffer<PooledFrame> queue = new SpscRingBuffer<>(FRAME_COUNT,
+                SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        byte[] data = SyntheticFrames.nv21(WIDTH, HEIGHT, 0);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        RecordPipeline pipeline = createPipeline(recorder, queue, WIDTH, RecordPipeline.CropEngine.JAVA, error);
+
+        recorder.start();
+        pipeline.start();
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            PooledFrame frame = pool.acquire();
+            ((ByteBuffer) frame.getFrame().image[0].position(0)).put(data);
+            frame.setTimestamp(Math.round(i * 1e6 / frameRate));
+            frame.setCaptureNanos(System.nanoTime());
+            assertNull(queue.offer(frame));
+        }
+        pipeline.stop();
+        recorder.stop();
+        recorder.release();
+
+        assertNull(error.get());
+        assertEquals(FRAME_COUNT, pipeline.getEncodedFrameCount());
+        assertEquals(0, pipeline.getDroppedVideoFrameCount());
+        assertEquals(FRAME_COUNT, countVideoFrames(mFile));
+    }
+
+    @Test
+    public void libavfilterCropKeepsCaptureTime() throws Exception {
+        FFmpegFrameRecorder recorder = new RecorderRepository().getRecorder(mFile.getAbsolutePath(), WIDTH, HEIGHT,
+                EncoderQualityController.DEFAULT_LEVELS[0]);
+        double frameRate = recorder.getFrameRate();
+        int previewWidth = WIDTH + 80;
+        FramePool pool = new FramePool(previewWidth, HEIGHT, FRAME_COUNT);
+        SpscRingBuffer<PooledFrame> queue = new SpscRingBuffer<>(FRAME_COUNT,
+                SpscRingBuffer.BackpressurePolicy.DROP_NEWEST);
+        byte[] data = SyntheticFrames.nv21(previewWidth, HEIGHT, 0);
+        AtomicReference<Exception> error = new AtomicReference<>();
+        RecordPipeline pipeline = createPipeline(recorder, queue, previewWidth, RecordPipeline.CropEngine.LIBAVFILTER,
+                error);
+
+        recorder.start();
+        pipeline.start();
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            PooledFrame frame = pool.acquire();
+            ((ByteBuffer) frame.getFrame().image[0].position(0)).put(data);
+            frame.setTimestamp(Math.round(i * 1e6 / frameRate));
+            frame.setCaptureNanos(System.nanoTime());
+            assertNull(queue.offer(frame));
+        }
+        pipeline.stop();
+        recorder.stop();
+        recorder.release();
+
+        assertNull(error.get());
+        assertEquals(FRAME_COUNT, pipeline.getEncodedFrameCount());
+        // 切り抜いたフレームにも取得した時刻を引き継ぐので、取得から書き込みまでは録画の時間より短い
+        LatencyHistogram latency = pipeline.getCaptureToEncodeLatency();
+        assertEquals(FRAME_COUNT, latency.getCount());
+        assertTrue(String.valueOf(latency.getMaxNanos()), latency.getMaxNanos() < TimeUnit.SECONDS.toNanos(10));
+        assertEquals(FRAME_COUNT, countVideoFrames(mFile));
+    }
+
+    private static RecordPipeline createPipeline(FFmpegFrameRecorder recorder, SpscRingBuffer<PooledFrame> queue,
+                                                 int previewWidth, RecordPipeline.CropEngine cropEngine,
+                                                 AtomicReference<Exception> error) {
+        return new RecordPipeline(recorder, queue, (buffer, sizeInBytes) -> {
+            // 実時間で録音しているのと同じ速さで無音を返す
+            try {
+                Thread.sleep(sizeInBytes / AudioBufferPool.BYTES_PER_SAMPLE * 1000L / recorder.getSampleRate());
+            } catch (InterruptedException e) {
+                return 0;
+            }
+            return sizeInBytes;
+        }, new AudioBufferPool(1024, 1, 8), previewWidth, HEIGHT, WIDTH, HEIGHT, cropEngine, 0, false,
+                new RecordPipeline.Callback() {
+                    @Override
+                    public void onStageStarted(RecordPipeline.Stage stage) {
+                    }
+
+                    @Override
+                    public void onError(RecordPipeline.Stage stage, Exception e) {
+                        error.set(e);
+                    }
+                });
+    }
+
+    private static int countVideoFrames(File file) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(file);
+        grabber.start();
+        try {
+            int count = 0;
+            Frame frame;
+            while ((frame = grabber.grabImage()) != null) {
+                assertEquals(WIDTH, frame.imageWidth);
+                count += 1;
+            }
+            return count;
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+}
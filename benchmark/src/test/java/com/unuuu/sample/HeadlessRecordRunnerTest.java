@@ -0,0 +1,85 @@
+package com.unuuu.sample;
+
+import com.unuuu.sample.benchmark.HeadlessRecordRunner;
+import com.unuuu.sample.benchmark.SyntheticFrames;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * カメラの代わりに作った映像とファイルを流して、全てのフレームを捨てずに録画できることを確かめる
+ */
+public class HeadlessRecordRunnerTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_COUNT = 60;
+
+    private File mInput;
+    private File mOutput;
+
+    @Before
+    public void setUp() throws Exception {
+        mInput = File.createTempFile("headless-input", ".mp4");
+        mOutput = File.createTempFile("headless-output", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mInput.delete();
+        mOutput.delete();
+    }
+
+    @Test
+    public void recordsEverySyntheticFrame() throws Exception {
+        HeadlessRecordRunner.Result result = new HeadlessRecordRunner(HeadlessRecordRunner.Options.parse(new String[]{
+                "--synthetic", WIDTH + "x" + HEIGHT, "--frames", String.valueOf(FRAME_COUNT),
+                "--output", mOutput.getAbsolutePath()})).run();
+
+        assertEquals(HEIGHT, result.getWidth());
+        assertEquals(HEIGHT, result.getHeight());
+        assertEquals(FRAME_COUNT, result.getSummary().getCapturedFrameCount());
+        assertEquals(FRAME_COUNT, result.getSummary().getEncodedFrameCount());
+        assertEquals(0, result.getSummary().getDroppedFrameCount());
+        assertTrue(result.getSummary().getLatencyP99Nanos() >= result.getSummary().getLatencyP50Nanos());
+        assertTrue(result.getPeakHeapBytes() > 0);
+        assertOutput(HEIGHT, HEIGHT, FRAME_COUNT);
+    }
+
+    @Test
+    public void recordsEveryFrameOfFile() throws Exception {
+        SyntheticFrames.writeClip(mInput, WIDTH, HEIGHT, FRAME_COUNT);
+
+        HeadlessRecordRunner.Result result = new HeadlessRecordRunner(HeadlessRecordRunner.Options.parse(new String[]{
+                "--input", mInput.getAbsolutePath(), "--frames", "0", "--crop", "false",
+                "--output", mOutput.getAbsolutePath()})).run();
+
+        assertEquals(WIDTH, result.getWidth());
+        assertEquals(FRAME_COUNT, result.getSummary().getEncodedFrameCount());
+        assertEquals(0, result.getSummary().getDroppedFrameCount());
+        assertOutput(WIDTH, HEIGHT, FRAME_COUNT);
+    }
+
+    private void assertOutput(int width, int height, int frameCount) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(mOutput);
+        grabber.start();
+        try {
+            assertEquals(width, grabber.getImageWidth());
+            assertEquals(height, grabber.getImageHeight());
+            assertTrue(grabber.getAudioChannels() > 0);
+            int frames = 0;
+            while (grabber.grabImage() != null) {
+                frames += 1;
+            }
+            assertEquals(frameCount, frames);
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.unuuu.sample;
+
+import com.unuuu.sample.benchmark.HeadlessRecordRunner;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 書き込み中のプロセスを強制終了しても、索引から再生できるファイルに戻せることを確かめる
+ */
+public class JournaledRecorderTest {
+    private static final int SIZE = 240;
+    private static final int CHECKPOINT_FRAMES = 15;
+    /* 索引のヘッダーと記録3つ分より大きくなるまで待つ */
+    private static final long KILL_INDEX_BYTES = 8 + 24 * 3;
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    private File mOutput;
+
+    @Before
+    public void setUp() throws Exception {
+        mOutput = File.createTempFile("journaled", ".ts");
+    }
+
+    @After
+    public void tearDown() {
+        mOutput.delete();
+        RecordingJournal.getIndexFile(mOutput).delete();
+    }
+
+    @Test
+    public void stoppedRecordingLeavesNoIndex() throws Exception {
+        HeadlessRecordRunner.Result result = new HeadlessRecordRunner(HeadlessRecordRunner.Options.parse(new String[]{
+                "--synthetic", "320x240", "--frames", "60", "--journal", String.valueOf(CHECKPOINT_FRAMES),
+                "--output", mOutput.getAbsolutePath()})).run();
+
+        assertEquals(60, result.getSummary().getEncodedFrameCount());
+        assertFalse(RecordingJournal.getIndexFile(mOutput).exists());
+        assertNull(RecordingJournal.recover(mOutput));
+        assertEquals(60, countFrames());
+    }
+
+    @Test
+    public void recoversAfterEncoderProcessIsKilled() throws Exception {
+        File index = RecordingJournal.getIndexFile(mOutput);
+        Process process = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getAbsolutePath(),
+                "-cp", System.getProperty("java.class.path"), HeadlessRecordRunner.class.getName(),
+                "--synthetic", "320x240", "--frames", "100000", "--realtime",
+                "--journal", String.valueOf(CHECKPOINT_FRAMES), "--output", mOutput.getAbsolutePath())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (index.length() < KILL_INDEX_BYTES) {
+                assertTrue("no checkpoint before timeout", System.currentTimeMillis() < deadline);
+                assertTrue("encoder process exited early", process.isAlive());
+                Thread.sleep(10);
+            }
+        } finally {
+            process.destroyForcibly();
+            assertTrue(process.waitFor(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+
+        long length = mOutput.length();
+        RecordingJournal.Recovery recovery = RecordingJournal.recover(mOutput);
+        assertNotNull(recovery);
+        assertFalse(index.exists());
+        RecordingJournal.Checkpoint checkpoint = recovery.getCheckpoint();
+        assertTrue(checkpoint.getFrameCount() >= CHECKPOINT_FRAMES * 3);
+        // 最後の記録から後ろだけを読む
+        assertEquals(length - checkpoint.getOffset(), recovery.getScannedBytes());
+        assertTrue(recovery.getLength() >= checkpoint.getOffset());
+        assertEquals(0, recovery.getLength() % RecordingJournal.TS_PACKET_SIZE);
+        assertTrue(countFrames() > 0);
+    }
+
+    private int countFrames() throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(mOutput);
+        grabber.start();
+        try {
+            assertEquals(SIZE, grabber.getImageWidth());
+            assertEquals(SIZE, grabber.getImageHeight());
+            int frames = 0;
+            while (grabber.grabImage() != null) {
+                frames += 1;
+            }
+            return frames;
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+}
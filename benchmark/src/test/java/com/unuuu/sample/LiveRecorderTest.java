@@ -0,0 +1,130 @@
+package com.unuuu.sample;
+
+import com.unuuu.sample.benchmark.SyntheticFrames;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 実際にエンコードしてループバックのUDPに送り、受け取ったMPEG-TSを再生できることを確かめる
+ */
+public class LiveRecorderTest {
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_COUNT = 60;
+    /* 送信で捨てないように大きめにする */
+    private static final int QUEUE_PACKETS = 4096;
+
+    private File mOutput;
+    private DatagramSocket mSink;
+    private Thread mSinkThread;
+    private volatile boolean mIsReceiving;
+
+    @Before
+    public void setUp() throws Exception {
+        mOutput = File.createTempFile("live", ".ts");
+        mSink = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        mSink.setSoTimeout(50);
+        mSink.setReceiveBufferSize(1 << 20);
+        mIsReceiving = true;
+        mSinkThread = new Thread(() -> {
+            byte[] buffer = new byte[LiveSender.TS_PACKET_SIZE * LiveSender.PACKETS_PER_DATAGRAM];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                FileOutputStream output = new FileOutputStream(mOutput);
+                try {
+                    while (mIsReceiving) {
+                        try {
+                            mSink.receive(packet);
+                            output.write(buffer, 0, packet.getLength());
+                        } catch (SocketTimeoutException e) {
+                            // 止めたかを確かめる
+                        }
+                    }
+                } finally {
+                    output.close();
+                }
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, "live-sink");
+        mSinkThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mIsReceiving = false;
+        mSinkThread.join();
+        mSink.close();
+        mOutput.delete();
+    }
+
+    @Test
+    public void sendsPlayableTransportStream() throws Exception {
+        LiveRecorder recorder = new RecorderRepository().getLiveRecorder(
+                (InetSocketAddress) mSink.getLocalSocketAddress(), WIDTH, HEIGHT, QUEUE_PACKETS);
+        int frameRate = (int) recorder.getFrameRate();
+        Frame audioFrame = new Frame();
+        ShortBuffer samples = ShortBuffer.allocate(recorder.getSampleRate() / frameRate);
+        audioFrame.samples = new Buffer[]{samples};
+
+        recorder.start();
+        try {
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                long t = i * 1000000L / frameRate;
+                if (t > recorder.getTimestamp()) {
+                    recorder.setTimestamp(t);
+                }
+                recorder.setCaptureNanos(System.nanoTime());
+                recorder.record(SyntheticFrames.nv21Frame(WIDTH, HEIGHT, i));
+
+                samples.clear();
+                audioFrame.sampleRate = recorder.getSampleRate();
+                audioFrame.audioChannels = recorder.getAudioChannels();
+                recorder.record(audioFrame);
+            }
+            recorder.stop();
+        } finally {
+            recorder.release();
+        }
+        // 送り終わった分を受け取り切るまで待つ
+        Thread.sleep(200);
+        mIsReceiving = false;
+        mSinkThread.join();
+
+        LiveSender sender = recorder.getSender();
+        assertEquals(0, sender.getDroppedPacketCount());
+        assertEquals(0, sender.getSendErrorCount());
+        assertEquals(0, sender.getInvalidPacketCount());
+        assertTrue(sender.getGlassToWireLatency().getCount() > 0);
+        assertEquals(sender.getSentPacketCount() * LiveSender.TS_PACKET_SIZE, mOutput.length());
+
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(mOutput);
+        grabber.start();
+        try {
+            assertEquals(WIDTH, grabber.getImageWidth());
+            assertEquals(HEIGHT, grabber.getImageHeight());
+            Frame frame = grabber.grabImage();
+            assertNotNull(frame);
+            assertTrue(frame.keyFrame);
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+}
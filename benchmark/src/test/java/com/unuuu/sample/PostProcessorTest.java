@@ -0,0 +1,212 @@
+package com.unuuu.sample;
+
+import com.unuuu.sample.benchmark.SyntheticFrames;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * 合成したMP4を1回デコードして、複数の出力が書き出されることを確かめる
+ */
+public class PostProcessorTest {
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_COUNT = 90;
+
+    private File mInputFile;
+    private File mOutputDirectory;
+    private PostProcessor mPostProcessor;
+
+    @Before
+    public void setUp() throws Exception {
+        mInputFile = File.createTempFile("post-process", ".mp4");
+        SyntheticFrames.writeClip(mInputFile, WIDTH, HEIGHT, FRAME_COUNT);
+        mOutputDirectory = new File(mInputFile.getParentFile(), mInputFile.getName() + ".out");
+        assertTrue(mOutputDirectory.mkdirs());
+        mPostProcessor = new PostProcessor(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPostProcessor.shutdown();
+        File[] files = mOutputDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mOutputDirectory.delete();
+        mInputFile.delete();
+    }
+
+    @Test
+    public void writesEveryOutputFromOneDecode() throws Exception {
+        File small = new File(mOutputDirectory, "small.mp4");
+        File thumbnail = new File(mOutputDirectory, "thumbnail.jpg");
+        File preview = new File(mOutputDirectory, "preview.gif");
+        List<RecorderSink> sinks = Arrays.asList(
+                new TranscodeSink(small.getAbsolutePath(), 120, 120, 100000),
+                new ThumbnailSink(thumbnail.getAbsolutePath(), 120, 120, 1000000),
+                new AnimatedPreviewSink(preview.getAbsolutePath(), AnimatedPreviewSink.Format.GIF, 60, 60, 10, 0,
+                        1000000));
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Float> progress = Collections.synchronizedList(new ArrayList<>());
+        AtomicReference<Boolean> cancelled = new AtomicReference<>();
+
+        PostProcessor.Job job = mPostProcessor.process(mInputFile.getAbsolutePath(), sinks,
+                new PostProcessor.Listener() {
+                    @Override
+                    public void onProgress(float value) {
+                        progress.add(value);
+                    }
+
+                    @Override
+                    public void onSinkFinished(PostProcessor.Sink sink, Exception error) {
+                        if (error != null) {
+                            errors.add(error);
+                        }
+                    }
+
+                    @Override
+                    public void onInputError(Exception error) {
+                        errors.add(error);
+                    }
+
+                    @Override
+                    public void onFinish(boolean isCancelled) {
+                        cancelled.set(isCancelled);
+                    }
+                });
+        assertTrue(job.await(30, TimeUnit.SECONDS));
+
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(Boolean.FALSE, cancelled.get());
+        assertEquals(1f, progress.get(progress.size() - 1), 0f);
+        assertTrue(small.length() > 0);
+        assertTrue(thumbnail.length() > 0);
+        assertTrue(preview.length() > 0);
+    }
+
+    @Test
+    public void keepsSourceAspectRatio() throws Exception {
+        File small = new File(mOutputDirectory, "small.mp4");
+        File thumbnail = new File(mOutputDirectory, "thumbnail.jpg");
+        File preview = new File(mOutputDirectory, "preview.gif");
+        // 正方形の入力を横長の上限に収めると、高さに合わせて横幅を16の倍数に切り下げた正方形になる
+        List<RecorderSink> sinks = Arrays.asList(
+                new TranscodeSink(small.getAbsolutePath(), 160, 90, 100000),
+                new ThumbnailSink(thumbnail.getAbsolutePath(), 160, 90, 1000000),
+                new AnimatedPreviewSink(preview.getAbsolutePath(), AnimatedPreviewSink.Format.GIF, 80, 45, 10, 0,
+                        1000000));
+        List<Exception> errors = Collections.synchronizedList(new ArrayList<>());
+        PostProcessor.Job job = mPostProcessor.process(mInputFile.getAbsolutePath(), sinks,
+                new PostProcessor.Listener() {
+                    @Override
+                    public void onProgress(float value) {
+                    }
+
+                    @Override
+                    public void onSinkFinished(PostProcessor.Sink sink, Exception error) {
+                        if (error != null) {
+                            errors.add(error);
+                        }
+                    }
+
+                    @Override
+                    public void onInputError(Exception error) {
+                        errors.add(error);
+                    }
+
+                    @Override
+                    public void onFinish(boolean isCancelled) {
+                    }
+                });
+        assertTrue(job.await(30, TimeUnit.SECONDS));
+
+        assertEquals(Collections.emptyList(), errors);
+        assertImageSize(small, 80, 80);
+        assertImageSize(thumbnail, 80, 80);
+        assertImageSize(preview, 32, 32);
+    }
+
+    @Test
+    public void cancelDeletesPartialOutputs() throws Exception {
+        File small = new File(mOutputDirectory, "small.mp4");
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        AtomicReference<Boolean> cancelled = new AtomicReference<>();
+        PostProcessor.Job[] job = new PostProcessor.Job[1];
+        TranscodeSink sink = new TranscodeSink(small.getAbsolutePath(), 120, 120, 100000) {
+            private int mFrameCount = 0;
+
+            @Override
+            public boolean onFrame(Frame frame, long timestamp) throws Exception {
+                // 途中まで書き込んでから中断する
+                if (++mFrameCount == 10) {
+                    synchronized (job) {
+                        job[0].cancel();
+                    }
+                }
+                return super.onFrame(frame, timestamp);
+            }
+
+            @Override
+            public void abort() throws Exception {
+                aborted.set(true);
+                super.abort();
+            }
+        };
+
+        synchronized (job) {
+            job[0] = mPostProcessor.process(mInputFile.getAbsolutePath(), Collections.singletonList(sink),
+                    new PostProcessor.Listener() {
+                        @Override
+                        public void onProgress(float value) {
+                        }
+
+                        @Override
+                        public void onSinkFinished(PostProcessor.Sink sink, Exception error) {
+                        }
+
+                        @Override
+                        public void onInputError(Exception error) {
+                        }
+
+                        @Override
+                        public void onFinish(boolean isCancelled) {
+                            cancelled.set(isCancelled);
+                        }
+                    });
+        }
+        assertTrue(job[0].await(30, TimeUnit.SECONDS));
+
+        assertEquals(Boolean.TRUE, cancelled.get());
+        assertTrue(aborted.get());
+        assertFalse(small.exists());
+    }
+
+    private static void assertImageSize(File file, int width, int height) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(file);
+        grabber.start();
+        try {
+            assertEquals(file.getName(), width, grabber.getImageWidth());
+            assertEquals(file.getName(), height, grabber.getImageHeight());
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+}
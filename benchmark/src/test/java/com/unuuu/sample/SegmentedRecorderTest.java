@@ -0,0 +1,138 @@
+package com.unuuu.sample;
+
+import com.unuuu.sample.benchmark.SyntheticFrames;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.Buffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 実際にエンコードして、区切ったファイルの境界と先頭のキーフレームを確かめる
+ */
+public class SegmentedRecorderTest {
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 240;
+    private static final int RECORD_SECONDS = 5;
+    private static final int SEGMENT_SECONDS = 2;
+
+    private File mDirectory;
+    private List<SegmentedRecorder.Segment> mClosedSegments;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("segments").toFile();
+        mClosedSegments = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void fragmentedMp4SplitsAtSegmentDuration() throws Exception {
+        List<SegmentedRecorder.Segment> segments = record(RecorderRepository.OutputMode.FRAGMENTED_MP4);
+
+        assertSegmentBoundaries(segments);
+        assertFalse(new File(mDirectory, "playlist.m3u8").exists());
+    }
+
+    @Test
+    public void hlsSplitsAtSegmentDurationAndWritesPlaylist() throws Exception {
+        List<SegmentedRecorder.Segment> segments = record(RecorderRepository.OutputMode.HLS);
+
+        assertSegmentBoundaries(segments);
+
+        String playlist = new String(Files.readAllBytes(new File(mDirectory, "playlist.m3u8").toPath()),
+                StandardCharsets.UTF_8);
+        assertTrue(playlist.startsWith("#EXTM3U\n"));
+        assertTrue(playlist.contains("#EXT-X-TARGETDURATION:" + SEGMENT_SECONDS + "\n"));
+        assertTrue(playlist.contains("#EXTINF:2.000,\nsegment00000.ts\n"));
+        assertTrue(playlist.contains("#EXTINF:2.000,\nsegment00001.ts\n"));
+        assertTrue(playlist.contains("#EXTINF:1.000,\nsegment00002.ts\n"));
+        assertTrue(playlist.endsWith("#EXT-X-ENDLIST\n"));
+    }
+
+    /**
+     * RecordPipelineの書き込みのスレッドと同じ順番で映像と音声を書き込む
+     */
+    private List<SegmentedRecorder.Segment> record(RecorderRepository.OutputMode outputMode) throws Exception {
+        FrameRecorder recorder = new RecorderRepository().getRecorder(outputMode, mDirectory, WIDTH, HEIGHT,
+                EncoderQualityController.DEFAULT_LEVELS[0], SEGMENT_SECONDS, mClosedSegments::add);
+        int frameRate = (int) recorder.getFrameRate();
+        int samplesPerFrame = recorder.getSampleRate() / frameRate;
+
+        Frame audioFrame = new Frame();
+        ShortBuffer samples = ShortBuffer.allocate(samplesPerFrame);
+        audioFrame.samples = new Buffer[]{samples};
+
+        recorder.start();
+        try {
+            for (int i = 0; i < RECORD_SECONDS * frameRate; i++) {
+                long t = i * 1000000L / frameRate;
+                if (t > recorder.getTimestamp()) {
+                    recorder.setTimestamp(t);
+                }
+                recorder.record(SyntheticFrames.nv21Frame(WIDTH, HEIGHT, i));
+
+                samples.clear();
+                audioFrame.sampleRate = recorder.getSampleRate();
+                audioFrame.audioChannels = recorder.getAudioChannels();
+                recorder.record(audioFrame);
+            }
+            recorder.stop();
+        } finally {
+            recorder.release();
+        }
+        return ((SegmentedRecorder) recorder).getSegments();
+    }
+
+    private void assertSegmentBoundaries(List<SegmentedRecorder.Segment> segments) throws Exception {
+        assertEquals(3, segments.size());
+        assertEquals(segments.size(), mClosedSegments.size());
+
+        long[] starts = {0, 2000000, 4000000};
+        long[] durations = {2000000, 2000000, 1000000};
+        for (int i = 0; i < segments.size(); i++) {
+            SegmentedRecorder.Segment segment = segments.get(i);
+            assertEquals(i, segment.getIndex());
+            assertEquals(starts[i], segment.getStartTimestamp());
+            assertEquals(durations[i], segment.getDuration());
+            assertSame(segment, mClosedSegments.get(i));
+            assertTrue(segment.getFile().length() > 0);
+            assertStartsWithKeyFrame(segment.getFile());
+        }
+    }
+
+    private static void assertStartsWithKeyFrame(File file) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(file);
+        grabber.start();
+        try {
+            Frame frame = grabber.grabImage();
+            assertNotNull(frame);
+            assertTrue(file.getName() + " does not start with a key frame", frame.keyFrame);
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.unuuu.sample.transcoder;
+
+import com.unuuu.sample.EncoderTuning;
+import com.unuuu.sample.RecorderRepository;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * アップロードされた動画をまとめて端末の録画と同じ設定に変換する
+ *
+ * 中央の正方形を切り抜いて480x480にし、RecorderRepositoryと同じH.264/AAC、30fps、400kbpsで書き出す。
+ * 入力はディレクトリか動画のファイル、または1行に1つのパスを書いたリスト (-の時は標準入力) で渡す。
+ * コアの数のスレッドのワークスティーリングのプールで1つずつ変換し、スレッド毎にTranscodeWorkerを持つ。
+ * 1つの動画を1つのスレッドでエンコードした方が全体の速さがコアの数に比例しやすいので、x264は既定で1スレッドにする。
+ * 結果は出力先のprogress.tsvに追記し、同じ出力先で実行し直すと終わった動画を飛ばす。
+ *
+ * 実行例: ./gradlew :transcoder:transcode -PtranscodeArgs="--output out uploads"
+ */
+public class BatchTranscoder {
+    /** 端末でプレビューの640x480から切り抜く大きさ */
+    public static final int DEFAULT_SIZE = 480;
+    /** 1つの動画を1スレッドでエンコードする */
+    public static final EncoderTuning DEFAULT_TUNING = new EncoderTuning(1, null, -1, -1, -1, false);
+    private static final Set<String> VIDEO_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "mp4", "mov", "m4v", "3gp", "mkv", "webm", "ts", "avi"));
+
+    /**
+     * 実行の設定
+     */
+    public static class Options {
+        /** 入力のファイルかディレクトリ */
+        public final List<String> inputs = new ArrayList<>();
+        /** 入力のパスを書いたリスト、-の時は標準入力 */
+        public String list;
+        public String output;
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public int size = DEFAULT_SIZE;
+        public EncoderTuning tuning = DEFAULT_TUNING;
+
+        /**
+         * コマンドラインの引数を読み込む
+         */
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--list":
+                        options.list = args[++i];
+                        break;
+                    case "--output":
+                        options.output = args[++i];
+                        break;
+                    case "--threads":
+                        options.threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "--size":
+                        options.size = Integer.parseInt(args[++i]);
+                        break;
+                    case "--tuning":
+                        options.tuning = EncoderTuning.parse(args[++i]);
+                        break;
+                    default:
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("unknown argument: " + args[i]);
+                        }
+                        options.inputs.add(args[i]);
+                        break;
+                }
+            }
+            if (options.output == null) {
+                throw new IllegalArgumentException("--output is required");
+            }
+            if (options.threads <= 0 || options.size <= 0 || (options.size & 1) != 0) {
+                throw new IllegalArgumentException("threads must be positive and size must be even");
+            }
+            return options;
+        }
+    }
+
+    /**
+     * 実行の結果
+     */
+    public static class Result {
+        private final List<TranscodeJob> mJobs;
+        private final int mThreads;
+        private final long mWallNanos;
+
+        Result(List<TranscodeJob> jobs, int threads, long wallNanos) {
+            mJobs = Collections.unmodifiableList(jobs);
+            mThreads = threads;
+            mWallNanos = wallNanos;
+        }
+
+        public List<TranscodeJob> getJobs() {
+            return mJobs;
+        }
+
+        public int getThreads() {
+            return mThreads;
+        }
+
+        public long getWallNanos() {
+            return mWallNanos;
+        }
+
+        public int getCount(TranscodeJob.Status status) {
+            int count = 0;
+            for (TranscodeJob job : mJobs) {
+                if (status == job.getStatus()) {
+                    count += 1;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * 1秒に変換した映像のフレーム数
+         */
+        public double getFramesPerSecond() {
+            long frames = 0;
+            for (TranscodeJob job : mJobs) {
+                if (TranscodeJob.Status.DONE == job.getStatus()) {
+                    frames += job.getEncodedFrameCount();
+                }
+            }
+            return mWallNanos > 0 ? frames * 1e9 / mWallNanos : 0;
+        }
+
+        /**
+         * 変換した動画の時間の合計を全体の時間で割った値、並列にした分だけ大きくなる
+         */
+        public double getParallelism() {
+            long busyNanos = 0;
+            for (TranscodeJob job : mJobs) {
+                if (TranscodeJob.Status.SKIPPED != job.getStatus()) {
+                    busyNanos += job.getWallNanos();
+                }
+            }
+            return mWallNanos > 0 ? (double) busyNanos / mWallNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "BatchTranscoder(threads=%d): done=%d skipped=%d failed=%d in %.1fs, %.1f fps, parallelism=%.2f",
+                    mThreads, getCount(TranscodeJob.Status.DONE), getCount(TranscodeJob.Status.SKIPPED),
+                    getCount(TranscodeJob.Status.FAILED), mWallNanos / 1e9, getFramesPerSecond(), getParallelism());
+        }
+    }
+
+    private final Options mOptions;
+
+    public BatchTranscoder(Options options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Result result = new BatchTranscoder(Options.parse(args)).run();
+        System.out.println(result);
+        if (result.getCount(TranscodeJob.Status.FAILED) > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 全ての入力を変換する
+     * 変換できなかった動画があっても残りは続け、結果のFAILEDで伝える
+     */
+    public Result run() throws IOException, InterruptedException {
+        File outputDirectory = new File(mOptions.output);
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("cannot create " + outputDirectory);
+        }
+        List<TranscodeJob> jobs = createJobs(outputDirectory);
+
+        RecorderRepository repository = new RecorderRepository();
+        repository.setEncoderTuning(mOptions.tuning);
+        ThreadLocal<TranscodeWorker> workers = ThreadLocal.withInitial(
+                () -> new TranscodeWorker(repository, mOptions.size));
+
+        TranscodeProgress progress = new TranscodeProgress(new File(outputDirectory, TranscodeProgress.FILE_NAME));
+        ExecutorService executor = Executors.newWorkStealingPool(mOptions.threads);
+        long startNanos = System.nanoTime();
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (TranscodeJob job : jobs) {
+                if (progress.isDone(job)) {
+                    job.setStatus(TranscodeJob.Status.SKIPPED);
+                    continue;
+                }
+                tasks.add(() -> {
+                    workers.get().run(job);
+                    progress.record(job);
+                    System.out.println(job);
+                    return null;
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // 変換の失敗はjobに残るので、ここに来るのは結果を書き込めなかった時
+                    throw new IOException("cannot record progress", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdown();
+            progress.close();
+        }
+        return new Result(jobs, mOptions.threads, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * 入力の動画を集め、出力先のファイル名を決める
+     * 出力のファイル名が重なる時は変換する前に止める
+     */
+    private List<TranscodeJob> createJobs(File outputDirectory) throws IOException {
+        List<File> inputs = new ArrayList<>();
+        for (String path : mOptions.inputs) {
+            addInput(new File(path), inputs);
+        }
+        if (mOptions.list != null) {
+            InputStream stream = "-".equals(mOptions.list) ? System.in : new FileInputStream(mOptions.list);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        addInput(new File(line.trim()), inputs);
+                    }
+                }
+            } finally {
+                if (stream != System.in) {
+                    reader.close();
+                }
+            }
+        }
+
+        List<TranscodeJob> jobs = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (File input : inputs) {
+            String name = input.getName();
+            int dot = name.lastIndexOf('.');
+            String output = (dot > 0 ? name.substring(0, dot) : name) + ".mp4";
+            if (!names.add(output)) {
+                throw new IllegalArgumentException("duplicate output name " + output + " for " + input);
+            }
+            jobs.add(new TranscodeJob(input, new File(outputDirectory, output)));
+        }
+        return jobs;
+    }
+
+    private static void addInput(File file, List<File> inputs) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                throw new IOException("cannot list " + file);
+            }
+            // 実行し直した時に同じ順番になるように名前で並べる
+            Arrays.sort(children);
+            for (File child : children) {
+                if (child.isFile() && isVideo(child)) {
+                    inputs.add(child);
+                }
+            }
+        } else if (file.isFile()) {
+            inputs.add(file);
+        } else {
+            throw new IOException("no such input: " + file);
+        }
+    }
+
+    private static boolean isVideo(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && VIDEO_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.US));
+    }
+}
@@ -0,0 +1,201 @@
+package com.unuuu.sample.transcoder;
+
+import com.unuuu.sample.LatencyHistogram;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * 1つの動画の変換と、その計測値
+ *
+ * 計測値は変換したワーカーだけが書き込み、終わった後に読む。
+ */
+public class TranscodeJob {
+
+    /**
+     * 変換の状態
+     */
+    public enum Status {
+        /** まだ変換していない */
+        PENDING,
+        /** 変換が終わった */
+        DONE,
+        /** 前に変換が終わっていたので飛ばした */
+        SKIPPED,
+        /** 変換できなかった */
+        FAILED
+    }
+
+    private final File mInput;
+    private final File mOutput;
+    private final long mInputLength;
+    private final long mInputModified;
+
+    private Status mStatus = Status.PENDING;
+    private String mError;
+    private String mWorkerName;
+    private long mWallNanos;
+    private long mDecodedFrameCount;
+    private long mEncodedFrameCount;
+    private long mDroppedFrameCount;
+    private long mAudioFrameCount;
+    private long mDurationMicros;
+    private long mOutputBytes;
+    private final LatencyHistogram mDecodeLatency = new LatencyHistogram("decode");
+    private final LatencyHistogram mEncodeLatency = new LatencyHistogram("encode");
+
+    /**
+     * @param input 入力の動画
+     * @param output 出力先のファイル
+     */
+    public TranscodeJob(File input, File output) {
+        mInput = input;
+        mOutput = output;
+        // 同じ名前で中身が変わった時は変換し直す
+        mInputLength = input.length();
+        mInputModified = input.lastModified();
+    }
+
+    public File getInput() {
+        return mInput;
+    }
+
+    public File getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * 再開する時に前の結果と突き合わせるキー
+     */
+    public String getKey() {
+        return mInput.getAbsolutePath() + "\t" + mInputLength + "\t" + mInputModified;
+    }
+
+    public Status getStatus() {
+        return mStatus;
+    }
+
+    void setStatus(Status status) {
+        mStatus = status;
+    }
+
+    /**
+     * 変換できなかった理由、それ以外の時はnull
+     */
+    public String getError() {
+        return mError;
+    }
+
+    void fail(String error) {
+        mStatus = Status.FAILED;
+        mError = error;
+    }
+
+    public String getWorkerName() {
+        return mWorkerName;
+    }
+
+    void setWorkerName(String workerName) {
+        mWorkerName = workerName;
+    }
+
+    /**
+     * 開いてから閉じるまでの時間 (ナノ秒)
+     */
+    public long getWallNanos() {
+        return mWallNanos;
+    }
+
+    void setWallNanos(long wallNanos) {
+        mWallNanos = wallNanos;
+    }
+
+    public long getDecodedFrameCount() {
+        return mDecodedFrameCount;
+    }
+
+    public long getEncodedFrameCount() {
+        return mEncodedFrameCount;
+    }
+
+    /**
+     * フレームレートを下げるために捨てたフレーム数
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    public long getAudioFrameCount() {
+        return mAudioFrameCount;
+    }
+
+    void onVideoFrame(long decodeNanos, long encodeNanos) {
+        mDecodedFrameCount += 1;
+        mEncodedFrameCount += 1;
+        mDecodeLatency.record(decodeNanos);
+        mEncodeLatency.record(encodeNanos);
+    }
+
+    void onDroppedFrame(long decodeNanos) {
+        mDecodedFrameCount += 1;
+        mDroppedFrameCount += 1;
+        mDecodeLatency.record(decodeNanos);
+    }
+
+    void onAudioFrame() {
+        mAudioFrameCount += 1;
+    }
+
+    /**
+     * 書き込んだ映像の長さ (マイクロ秒)
+     */
+    public long getDurationMicros() {
+        return mDurationMicros;
+    }
+
+    void setDurationMicros(long durationMicros) {
+        mDurationMicros = durationMicros;
+    }
+
+    public long getOutputBytes() {
+        return mOutputBytes;
+    }
+
+    void setOutputBytes(long outputBytes) {
+        mOutputBytes = outputBytes;
+    }
+
+    /**
+     * 1フレームを読み込んでNV21にする時間
+     */
+    public LatencyHistogram getDecodeLatency() {
+        return mDecodeLatency;
+    }
+
+    /**
+     * 1フレームを切り抜いてエンコードする時間
+     */
+    public LatencyHistogram getEncodeLatency() {
+        return mEncodeLatency;
+    }
+
+    /**
+     * 動画の長さに対して何倍の速さで変換できたか
+     */
+    public double getSpeed() {
+        return mWallNanos > 0 ? mDurationMicros * 1000.0 / mWallNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        if (Status.DONE != mStatus) {
+            return String.format(Locale.US, "%s %s%s", mStatus, mInput.getName(), mError != null ? ": " + mError : "");
+        }
+        return String.format(Locale.US,
+                "%s %s -> %s [%s]: %.1fs in %.1fs (x%.1f), frames=%d/%d dropped=%d audio=%d, "
+                        + "decode=%.2fms encode=%.2fms (mean), %d bytes",
+                mStatus, mInput.getName(), mOutput.getName(), mWorkerName, mDurationMicros / 1e6, mWallNanos / 1e9,
+                getSpeed(), mEncodedFrameCount, mDecodedFrameCount, mDroppedFrameCount, mAudioFrameCount,
+                mDecodeLatency.getMeanNanos() / 1e6, mEncodeLatency.getMeanNanos() / 1e6, mOutputBytes);
+    }
+}
@@ -0,0 +1,95 @@
+package com.unuuu.sample.transcoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 変換の結果を1行ずつ追記するファイル
+ *
+ * 途中でプロセスが終了しても、次に同じ出力先で実行した時に変換が終わった動画を飛ばせるようにする。
+ * 1行は状態、入力のパス、大きさ、更新時刻と計測値をタブで区切ったもの。
+ * 書き込む度にディスクまで書き出すので、書いた行は終了しても残る。複数のワーカーから呼べる。
+ */
+public class TranscodeProgress {
+    public static final String FILE_NAME = "progress.tsv";
+    /* 終わった行の項目の数 */
+    private static final int DONE_FIELDS = 11;
+
+    private final File mFile;
+    private final Set<String> mDoneKeys = new HashSet<>();
+    private FileOutputStream mOutput;
+
+    /**
+     * 前の結果を読み込んで追記できるように開く
+     *
+     * @param file 結果のファイル、ない時は作る
+     */
+    public TranscodeProgress(File file) throws IOException {
+        mFile = file;
+        boolean isTorn = file.exists() && load();
+        mOutput = new FileOutputStream(file, true);
+        if (isTorn) {
+            // 途中で切れた行に続けて書かないように改行する
+            mOutput.write('\n');
+        }
+    }
+
+    /**
+     * @return 最後の行が途中で切れている時はtrue
+     */
+    private boolean load() throws IOException {
+        String content = new String(Files.readAllBytes(mFile.toPath()), StandardCharsets.UTF_8);
+        String[] lines = content.split("\n", -1);
+        // 最後の改行の後ろは書いている途中で終了した行なので読まない
+        for (int i = 0; i < lines.length - 1; i++) {
+            String[] fields = lines[i].split("\t");
+            if (fields.length == DONE_FIELDS && TranscodeJob.Status.DONE.name().equals(fields[0])) {
+                mDoneKeys.add(fields[1] + "\t" + fields[2] + "\t" + fields[3]);
+            }
+        }
+        return !lines[lines.length - 1].isEmpty();
+    }
+
+    /**
+     * 前に変換が終わっていて、出力も残っているかどうか
+     */
+    public synchronized boolean isDone(TranscodeJob job) {
+        return mDoneKeys.contains(job.getKey()) && job.getOutput().exists();
+    }
+
+    /**
+     * 変換の結果を追記する
+     */
+    public synchronized void record(TranscodeJob job) throws IOException {
+        String line;
+        if (TranscodeJob.Status.DONE == job.getStatus()) {
+            line = String.format(Locale.US, "%s\t%s\t%s\t%d\t%d\t%d\t%d\t%d\t%d\n", job.getStatus(), job.getKey(),
+                    job.getOutput().getName(), job.getEncodedFrameCount(), job.getDroppedFrameCount(),
+                    job.getDurationMicros(), job.getWallNanos() / 1000000L, job.getOutputBytes(),
+                    job.getEncodeLatency().getMeanNanos() / 1000L);
+            mDoneKeys.add(job.getKey());
+        } else {
+            line = job.getStatus() + "\t" + job.getKey() + "\t" + String.valueOf(job.getError()).replace('\t', ' ')
+                    .replace('\n', ' ') + "\n";
+        }
+        mOutput.write(line.getBytes(StandardCharsets.UTF_8));
+        mOutput.getFD().sync();
+    }
+
+    public synchronized void close() throws IOException {
+        if (mOutput != null) {
+            mOutput.close();
+            mOutput = null;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+}
@@ -0,0 +1,155 @@
+package com.unuuu.sample.transcoder;
+
+import com.unuuu.sample.FileVideoSource;
+import com.unuuu.sample.Nv21Cropper;
+import com.unuuu.sample.RecorderRepository;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.avutil.AV_PIX_FMT_NV21;
+
+/**
+ * 動画を読み込み、中央の正方形を切り抜いて録画と同じ設定で書き出す
+ *
+ * 1つのスレッドが1つ持ち、1つずつ変換する。
+ * 切り抜きとフレームのバッファは同じ大きさの動画が続く間は使い回す。
+ * 書き終わるまでは".part"を付けたファイルに書き、終わってから名前を変えるので、途中の出力を完成したものと間違えない。
+ */
+public class TranscodeWorker {
+    static final String PART_SUFFIX = ".part";
+
+    private final RecorderRepository mRepository;
+    private final int mSize;
+
+    private int mSourceWidth;
+    private int mSourceHeight;
+    private Nv21Cropper mCropper;
+    private byte[] mSource;
+    private Frame mCropped;
+
+    /**
+     * @param repository レコーダーの設定
+     * @param size 出力する正方形の一辺
+     */
+    public TranscodeWorker(RecorderRepository repository, int size) {
+        mRepository = repository;
+        mSize = size;
+    }
+
+    /**
+     * 変換して結果をjobに書き込む
+     * 失敗した時も例外は投げずにjobをFAILEDにする
+     */
+    public void run(TranscodeJob job) {
+        job.setWorkerName(Thread.currentThread().getName());
+        File part = new File(job.getOutput().getPath() + PART_SUFFIX);
+        long startNanos = System.nanoTime();
+        try {
+            transcode(job, part);
+            if (!part.renameTo(job.getOutput())) {
+                throw new IOException("cannot rename " + part + " to " + job.getOutput());
+            }
+            job.setOutputBytes(job.getOutput().length());
+            job.setStatus(TranscodeJob.Status.DONE);
+        } catch (Exception e) {
+            part.delete();
+            job.fail(e.toString());
+        } finally {
+            job.setWallNanos(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void transcode(TranscodeJob job, File part) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(job.getInput());
+        grabber.setPixelFormat(AV_PIX_FMT_NV21);
+        grabber.start();
+        FFmpegFrameRecorder recorder = null;
+        try {
+            // NV21は縦横が偶数でないと色差を切り抜けない
+            int width = grabber.getImageWidth() & ~1;
+            int height = grabber.getImageHeight() & ~1;
+            prepareBuffers(width, height);
+
+            // 切り抜いた正方形から出力の大きさへの縮小はレコーダーの中でswscaleが行う
+            recorder = mRepository.getRecorder(part.getAbsolutePath(), mSize, mSize);
+            recorder.setFormat("mp4");
+            recorder.setOption("movflags", "faststart");
+            if (grabber.getAudioChannels() <= 0) {
+                recorder.setAudioChannels(0);
+            }
+            recorder.start();
+
+            double frameRate = recorder.getFrameRate();
+            long firstTimestamp = -1;
+            long lastSlot = -1;
+            while (true) {
+                long decodeStart = System.nanoTime();
+                Frame frame = grabber.grab();
+                long decodeNanos = System.nanoTime() - decodeStart;
+                if (frame == null) {
+                    break;
+                }
+                if (frame.samples != null) {
+                    recorder.record(frame);
+                    job.onAudioFrame();
+                    continue;
+                }
+                if (frame.image == null) {
+                    continue;
+                }
+
+                // 元の時刻から出力のフレームレートの枠を求め、同じ枠に入る2枚目以降は捨てる
+                long timestamp = grabber.getTimestamp();
+                if (firstTimestamp < 0) {
+                    firstTimestamp = timestamp;
+                }
+                long slot = Math.round((timestamp - firstTimestamp) * frameRate / 1000000.0);
+                if (slot <= lastSlot) {
+                    job.onDroppedFrame(decodeNanos);
+                    continue;
+                }
+                lastSlot = slot;
+
+                long encodeStart = System.nanoTime();
+                FileVideoSource.copyNv21(frame, width, height, mSource);
+                mCropper.crop(mSource, (ByteBuffer) mCropped.image[0]);
+                mCropped.image[0].position(0);
+                long outputTimestamp = Math.round(slot * 1000000.0 / frameRate);
+                if (outputTimestamp > recorder.getTimestamp()) {
+                    recorder.setTimestamp(outputTimestamp);
+                }
+                recorder.record(mCropped);
+                job.onVideoFrame(decodeNanos, System.nanoTime() - encodeStart);
+                job.setDurationMicros(Math.round((slot + 1) * 1000000.0 / frameRate));
+            }
+            recorder.stop();
+        } finally {
+            if (recorder != null) {
+                recorder.release();
+            }
+            grabber.stop();
+            grabber.release();
+        }
+    }
+
+    /**
+     * 前の動画と大きさが違う時だけ切り抜きとバッファを作り直す
+     */
+    private void prepareBuffers(int width, int height) {
+        if (mCropper != null && mSourceWidth == width && mSourceHeight == height) {
+            return;
+        }
+        mSourceWidth = width;
+        mSourceHeight = height;
+        int side = Math.min(width, height);
+        mCropper = new Nv21Cropper(width, height, side, side, 0, false);
+        mSource = new byte[width * height * 3 / 2];
+        mCropped = new Frame(side, side, Frame.DEPTH_UBYTE, 2);
+    }
+}
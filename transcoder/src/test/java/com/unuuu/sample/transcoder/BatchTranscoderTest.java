@@ -0,0 +1,143 @@
+package com.unuuu.sample.transcoder;
+
+import com.unuuu.sample.RecorderRepository;
+
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * 大きさとフレームレートの違う動画を録画と同じ設定に変換し、実行し直した時は終わった動画を飛ばすことを確かめる
+ */
+public class BatchTranscoderTest {
+    private static final int SIZE = BatchTranscoder.DEFAULT_SIZE;
+
+    private File mInputDirectory;
+    private File mOutputDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mInputDirectory = Files.createTempDirectory("uploads").toFile();
+        mOutputDirectory = Files.createTempDirectory("transcoded").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(mInputDirectory);
+        delete(mOutputDirectory);
+    }
+
+    @Test
+    public void transcodesDirectoryAndResumes() throws Exception {
+        writeClip(new File(mInputDirectory, "landscape.mp4"), 640, 360, 30, 45);
+        writeClip(new File(mInputDirectory, "portrait60.mp4"), 360, 640, 60, 90);
+        FileOutputStream broken = new FileOutputStream(new File(mInputDirectory, "broken.mp4"));
+        try {
+            broken.write(new byte[1024]);
+        } finally {
+            broken.close();
+        }
+
+        BatchTranscoder.Result result = run();
+        assertEquals(String.valueOf(result.getJobs()), 2, result.getCount(TranscodeJob.Status.DONE));
+        assertEquals(1, result.getCount(TranscodeJob.Status.FAILED));
+
+        for (TranscodeJob job : result.getJobs()) {
+            if (TranscodeJob.Status.DONE != job.getStatus()) {
+                assertEquals("broken.mp4", job.getInput().getName());
+                assertFalse(job.getOutput().exists());
+                continue;
+            }
+            if (job.getInput().getName().startsWith("portrait")) {
+                // 60fpsの動画は30fpsの枠に入らない分を捨てる、枠のちょうど半分の時刻はどちらに丸めてもよい
+                assertEquals(90, job.getDecodedFrameCount());
+                assertTrue(String.valueOf(job.getEncodedFrameCount()),
+                        45 <= job.getEncodedFrameCount() && job.getEncodedFrameCount() <= 46);
+            } else {
+                assertEquals(45, job.getEncodedFrameCount());
+                assertEquals(0, job.getDroppedFrameCount());
+            }
+            assertEquals(job.getEncodedFrameCount() * 1000000L / 30, job.getDurationMicros(), 1);
+            assertEquals(job.getOutput().length(), job.getOutputBytes());
+            assertEquals(job.getEncodedFrameCount(), job.getEncodeLatency().getCount());
+            assertVideo(job.getOutput(), (int) job.getEncodedFrameCount());
+        }
+        assertFalse(new File(mOutputDirectory, "broken.mp4" + TranscodeWorker.PART_SUFFIX).exists());
+
+        // 終わった動画は飛ばし、失敗した動画はもう一度試す
+        BatchTranscoder.Result resumed = run();
+        assertEquals(2, resumed.getCount(TranscodeJob.Status.SKIPPED));
+        assertEquals(1, resumed.getCount(TranscodeJob.Status.FAILED));
+    }
+
+    private BatchTranscoder.Result run() throws Exception {
+        return new BatchTranscoder(BatchTranscoder.Options.parse(new String[]{
+                "--threads", "2", "--output", mOutputDirectory.getAbsolutePath(),
+                mInputDirectory.getAbsolutePath()})).run();
+    }
+
+    private static void writeClip(File file, int width, int height, int frameRate, int frameCount)
+            throws Exception {
+        FFmpegFrameRecorder recorder = new RecorderRepository().getRecorder(file.getAbsolutePath(), width, height);
+        recorder.setFrameRate(frameRate);
+        recorder.start();
+        try {
+            Frame frame = new Frame(width, height, Frame.DEPTH_UBYTE, 2);
+            ShortBuffer silence = ShortBuffer.allocate(recorder.getSampleRate() / frameRate);
+            for (int i = 0; i < frameCount; i++) {
+                ByteBuffer image = (ByteBuffer) frame.image[0].position(0);
+                for (int j = 0; j < width * height; j++) {
+                    image.put((byte) (j + i * 4));
+                }
+                image.position(0);
+                recorder.setTimestamp(i * 1000000L / frameRate);
+                recorder.record(frame);
+                silence.rewind();
+                recorder.recordSamples(silence);
+            }
+            recorder.stop();
+        } finally {
+            recorder.release();
+        }
+    }
+
+    private static void assertVideo(File file, int frameCount) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(file);
+        grabber.start();
+        try {
+            assertEquals(SIZE, grabber.getImageWidth());
+            assertEquals(SIZE, grabber.getImageHeight());
+            assertEquals(30, grabber.getFrameRate(), 0.5);
+            assertTrue(grabber.getAudioChannels() > 0);
+            int frames = 0;
+            while (grabber.grabImage() != null) {
+                frames += 1;
+            }
+            assertEquals(frameCount, frames);
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,109 @@
+package com.unuuu.sample.transcoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * 終わった動画だけを覚え、途中で切れた行は読まずに続きから書くことを確かめる
+ */
+public class TranscodeProgressTest {
+    private File mDirectory;
+    private File mFile;
+    private TranscodeJob mDone;
+    private TranscodeJob mFailed;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = Files.createTempDirectory("progress").toFile();
+        mFile = new File(mDirectory, TranscodeProgress.FILE_NAME);
+        mDone = createJob("a");
+        mFailed = createJob("b");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void remembersOnlyFinishedJobs() throws Exception {
+        TranscodeProgress progress = new TranscodeProgress(mFile);
+        mDone.setStatus(TranscodeJob.Status.DONE);
+        progress.record(mDone);
+        mFailed.fail("java.io.IOException: broken\tfile");
+        progress.record(mFailed);
+        progress.close();
+
+        TranscodeProgress reopened = new TranscodeProgress(mFile);
+        assertTrue(reopened.isDone(createJob("a")));
+        assertFalse(reopened.isDone(createJob("b")));
+        reopened.close();
+
+        // 出力が消えている時は変換し直す
+        mDone.getOutput().delete();
+        TranscodeProgress withoutOutput = new TranscodeProgress(mFile);
+        assertFalse(withoutOutput.isDone(new TranscodeJob(mDone.getInput(), mDone.getOutput())));
+        withoutOutput.close();
+    }
+
+    @Test
+    public void ignoresTornLastLine() throws Exception {
+        TranscodeProgress progress = new TranscodeProgress(mFile);
+        mDone.setStatus(TranscodeJob.Status.DONE);
+        progress.record(mDone);
+        progress.close();
+
+        // 最後の改行を書く前に終了した
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+
+        TranscodeProgress reopened = new TranscodeProgress(mFile);
+        assertFalse(reopened.isDone(createJob("a")));
+        mFailed.setStatus(TranscodeJob.Status.DONE);
+        reopened.record(mFailed);
+        reopened.close();
+
+        String[] lines = new String(Files.readAllBytes(mFile.toPath()), StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[1].startsWith("DONE\t" + mFailed.getInput().getAbsolutePath()));
+        assertTrue(new TranscodeProgress(mFile).isDone(createJob("b")));
+    }
+
+    /**
+     * 入力と出力のファイルを作ってジョブにする
+     */
+    private TranscodeJob createJob(String name) throws Exception {
+        File input = new File(mDirectory, name + ".mov");
+        File output = new File(mDirectory, name + ".mp4");
+        for (File file : new File[]{input, output}) {
+            if (!file.exists()) {
+                FileOutputStream stream = new FileOutputStream(file);
+                try {
+                    stream.write(name.getBytes(StandardCharsets.UTF_8));
+                } finally {
+                    stream.close();
+                }
+            }
+        }
+        return new TranscodeJob(input, output);
+    }
+}